@@ -0,0 +1,76 @@
+package net.vuonnala.benchmarks;
+
+import net.vuonnala.ChatView;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.swing.SwingUtilities;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening a conversation in the chat transcript: loading its messages into a
+ * new ChatView, laying it out and painting the viewport, on the event
+ * dispatch thread of a headless JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ChatViewBenchmark {
+
+    private static final Dimension VIEWPORT = new Dimension(800, 600);
+
+    @Param({"1000", "20000"})
+    int messages;
+
+    private final List<ChatView.ChatMessage> conversation = new ArrayList<>();
+    private final BufferedImage image = new BufferedImage(VIEWPORT.width, VIEWPORT.height, BufferedImage.TYPE_INT_RGB);
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < messages; i++) {
+            String sender = i % 2 == 0 ? "user" : "assistant";
+            String content = i % 2 == 0
+                    ? "Question " + i + ": how does the virtualized view keep long chats responsive?"
+                    : "Answer " + i + ": only the rows in the viewport are rendered. Row heights of the rest are "
+                    + "estimated from font metrics, so no component exists per message.\nA second paragraph.";
+            conversation.add(new ChatView.ChatMessage(sender, content));
+        }
+    }
+
+    @Benchmark
+    public ChatView open() throws Exception {
+        ChatView[] view = new ChatView[1];
+        SwingUtilities.invokeAndWait(() -> {
+            view[0] = new ChatView();
+            view[0].setSize(VIEWPORT);
+            view[0].doLayout();
+            view[0].addMessages(conversation);
+            view[0].scrollToBottom();
+            view[0].validate();
+            Graphics2D g = image.createGraphics();
+            try {
+                view[0].paint(g);
+            } finally {
+                g.dispose();
+            }
+        });
+        return view[0];
+    }
+}
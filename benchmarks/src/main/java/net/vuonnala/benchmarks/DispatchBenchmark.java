@@ -0,0 +1,135 @@
+package net.vuonnala.benchmarks;
+
+import com.sun.net.httpserver.HttpServer;
+import net.vuonnala.DispatchMetrics;
+import net.vuonnala.LLMClient;
+import net.vuonnala.LLMClientRegistry;
+import net.vuonnala.MessageDispatcher;
+import net.vuonnala.MessageInput;
+import net.vuonnala.MessageStorage;
+import net.vuonnala.MessageValidator;
+import net.vuonnala.WriteBehindJournal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * MessageDispatcher.dispatch end to end: parsing, validation, the HTTP call
+ * to an in-process stub of LM Studio that answers at once, and storage,
+ * either committed before dispatch returns or through the write-behind journal,
+ * with the per-stage DispatchMetrics recorded or not.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final int CONVERSATIONS = 1_000;
+
+    @Param({"2", "20"})
+    int messages;
+
+    @Param({"false", "true"})
+    boolean writeBehind;
+
+    @Param({"true", "false"})
+    boolean metrics;
+
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private Path dir;
+    private MessageStorage storage;
+    private WriteBehindJournal journal;
+    private LLMClientRegistry clients;
+    private MessageDispatcher dispatcher;
+    private int port;
+    private String[] requests;
+
+    @Setup
+    public void setUp() throws Exception {
+        byte[] reply = Requests.completion("A short answer of a sentence or two.").getBytes(StandardCharsets.UTF_8);
+        // Without TCP_NODELAY, Nagle plus delayed ACKs add ~40 ms to every reused connection
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverThreads = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverThreads);
+        server.createContext("/v1/chat/completions", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, reply.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(reply);
+            }
+        });
+        server.start();
+        port = server.getAddress().getPort();
+        LLMClient.setDebugLogging(false);
+
+        dir = Files.createTempDirectory("echoforge-jmh-dispatch");
+        storage = new MessageStorage(dir.resolve("bench.db").toString());
+        journal = writeBehind ? new WriteBehindJournal(storage) : null;
+        clients = new LLMClientRegistry();
+        MessageValidator validator;
+        try (InputStream schema = MessageValidator.class.getClassLoader().getResourceAsStream("schema.json")) {
+            validator = new MessageValidator(schema);
+        }
+        dispatcher = new MessageDispatcher(validator, new MessageInput(), storage, journal, clients);
+        dispatcher.setMetrics(metrics ? new DispatchMetrics() : null);
+
+        requests = new String[CONVERSATIONS];
+        for (int c = 0; c < CONVERSATIONS; c++) {
+            requests[c] = Requests.chat("conv-" + c, messages);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (journal != null) {
+            journal.close();
+        }
+        clients.close();
+        storage.close();
+        server.stop(0);
+        serverThreads.shutdown();
+        deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public String dispatch() throws Exception {
+        return dispatcher.dispatch(requests[ThreadLocalRandom.current().nextInt(CONVERSATIONS)], "127.0.0.1", port);
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
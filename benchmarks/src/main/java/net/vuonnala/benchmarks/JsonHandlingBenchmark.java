@@ -0,0 +1,73 @@
+package net.vuonnala.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import net.vuonnala.DispatchRequest;
+import net.vuonnala.MessageInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JSON work of a dispatch besides validation: reading the conversation
+ * id, parsing the request once into a DispatchRequest, and building the body
+ * LLMClient.sendToLlmStudio sends to LM Studio.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonHandlingBenchmark {
+
+    @Param({"2", "20", "200"})
+    int messages;
+
+    private final MessageInput input = new MessageInput();
+    private String json;
+    private JsonNode root;
+    private DispatchRequest request;
+
+    @Setup
+    public void setUp() {
+        json = Requests.chat("bench-conversation", messages);
+        request = DispatchRequest.parse(json, input);
+        root = request.getRoot();
+    }
+
+    /** Parses the string, as every caller did before DispatchRequest. */
+    @Benchmark
+    public String conversationIdFromJson() {
+        return input.getConversationId(json);
+    }
+
+    @Benchmark
+    public String conversationIdFromTree() {
+        return input.getConversationId(root);
+    }
+
+    @Benchmark
+    public DispatchRequest parse() {
+        return DispatchRequest.parse(json, input);
+    }
+
+    @Benchmark
+    public byte[] requestBody() {
+        return request.toRequestBody(false);
+    }
+
+    @Benchmark
+    public byte[] streamingRequestBody() {
+        return request.toRequestBody(true);
+    }
+}
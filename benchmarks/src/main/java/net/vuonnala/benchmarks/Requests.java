@@ -0,0 +1,55 @@
+package net.vuonnala.benchmarks;
+
+import java.util.Random;
+
+/** Chat requests in the format the UI and batch mode send. */
+final class Requests {
+
+    private static final String[] WORDS = {
+            "database", "index", "query", "latency", "thread", "cache", "network", "memory", "schema", "token",
+            "stream", "batch", "backend", "journal", "cursor", "summary", "window", "pool", "socket", "buffer"
+    };
+
+    private Requests() {
+    }
+
+    /** A request with {@code messages} alternating user and assistant turns of a sentence or two. */
+    static String chat(String conversationId, int messages) {
+        StringBuilder sb = new StringBuilder("{\"conversation_id\":\"").append(conversationId)
+                .append("\",\"model\":\"model-x\",\"messages\":[");
+        for (int i = 0; i < messages; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"role\":\"").append(i % 2 == 0 ? "user" : "assistant")
+                    .append("\",\"content\":\"Message number ").append(i)
+                    .append(" with a sentence or two of ordinary chat text in it.\"}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    /** A system prompt and one user {@code question}, as a conversation's first turn sends them. */
+    static String question(String conversationId, String question) {
+        return "{\"conversation_id\":\"" + conversationId + "\",\"model\":\"model-x\",\"messages\":["
+                + "{\"role\":\"system\",\"content\":\"You are a helpful assistant.\"},"
+                + "{\"role\":\"user\",\"content\":\"" + question + "\"}]}";
+    }
+
+    /** {@code words} words drawn from a small vocabulary, so every word is common. */
+    static String sentence(Random random, int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            sb.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    /** An LM Studio chat completion answering with {@code content}. */
+    static String completion(String content) {
+        return "{\"id\":\"chatcmpl-1\",\"object\":\"chat.completion\",\"created\":1760000000,\"model\":\"model-x\","
+                + "\"choices\":[{\"index\":0,\"logprobs\":null,\"finish_reason\":\"stop\","
+                + "\"message\":{\"role\":\"assistant\",\"content\":\"" + content + "\"}}],"
+                + "\"usage\":{\"prompt_tokens\":120,\"completion_tokens\":40,\"total_tokens\":160},"
+                + "\"stats\":{},\"system_fingerprint\":\"model-x\"}";
+    }
+}
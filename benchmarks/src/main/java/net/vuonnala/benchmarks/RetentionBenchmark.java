@@ -0,0 +1,113 @@
+package net.vuonnala.benchmarks;
+
+import net.vuonnala.MessageStorage;
+import net.vuonnala.RetentionManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Reading a conversation back after retention has archived all but the
+ * {@link #KEEP} most recently active of {@link #CONVERSATIONS}, from the hot
+ * database and from the archive, and storing a turn into the shrunk database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RetentionBenchmark {
+
+    static final int CONVERSATIONS = 10_000;
+    static final int KEEP = 1_000;
+    private static final int TURNS = 10;
+    private static final int BATCH = 500;
+
+    private Path dir;
+    private MessageStorage storage;
+    private final String response = Requests.completion("A short answer of a sentence or two.");
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("echoforge-jmh-retention");
+        storage = new MessageStorage(dir.resolve("bench.db").toString());
+
+        // Conversation c was last active c seconds before the newest
+        Random random = new Random(42);
+        Instant newest = Instant.now().minus(Duration.ofDays(1));
+        List<MessageStorage.PendingResponse> batch = new ArrayList<>(BATCH);
+        for (int turn = 0; turn < TURNS; turn++) {
+            for (int c = 0; c < CONVERSATIONS; c++) {
+                String conversationId = "conv-" + c;
+                Instant timestamp = newest.minusSeconds(c + (long) (TURNS - turn) * CONVERSATIONS);
+                batch.add(new MessageStorage.PendingResponse(timestamp.toString(), conversationId,
+                        Requests.question(conversationId, Requests.sentence(random, 24)),
+                        Requests.completion(Requests.sentence(random, 48))));
+                if (batch.size() == BATCH) {
+                    storage.storeResponses(batch);
+                    batch.clear();
+                }
+            }
+        }
+        storage.storeResponses(batch);
+
+        try (RetentionManager retention = new RetentionManager(storage,
+                new RetentionManager.Policy(null, KEEP), Duration.ZERO)) {
+            retention.runOnce();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        storage.close();
+        deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public List<MessageStorage.ResponseRecord> readHot() throws Exception {
+        return storage.getResponsesByConversationId("conv-" + ThreadLocalRandom.current().nextInt(KEEP));
+    }
+
+    @Benchmark
+    public List<MessageStorage.ResponseRecord> readArchived() throws Exception {
+        return storage.getResponsesByConversationId(
+                "conv-" + ThreadLocalRandom.current().nextInt(KEEP, CONVERSATIONS));
+    }
+
+    /** A new turn of a kept conversation. */
+    @Benchmark
+    public void storeResponse() throws Exception {
+        String conversationId = "conv-" + ThreadLocalRandom.current().nextInt(KEEP);
+        storage.storeResponse(conversationId, Requests.question(conversationId, "One more question?"), response);
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
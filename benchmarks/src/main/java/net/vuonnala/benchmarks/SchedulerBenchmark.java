@@ -0,0 +1,145 @@
+package net.vuonnala.benchmarks;
+
+import net.vuonnala.DispatchScheduler;
+import net.vuonnala.LLMClient;
+import net.vuonnala.MessageDispatcher;
+import net.vuonnala.MessageInput;
+import net.vuonnala.MessageStorage;
+import net.vuonnala.MessageValidator;
+import net.vuonnala.StubLlmServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The latency of a chat turn while a batch keeps every dispatch slot busy.
+ * A stub LM Studio answers each call in {@link #LATENCY_MILLIS}, and
+ * {@link #BACKLOG} batch requests over {@link #BATCH_CONVERSATIONS} are always
+ * waiting. Compared: a plain FIFO of {@link #SLOTS} in front of the
+ * dispatcher, the DispatchScheduler without reserved slots, and with one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SchedulerBenchmark {
+
+    static final int SLOTS = 4;
+    static final int LATENCY_MILLIS = 50;
+    static final int BACKLOG = 16;
+    static final int BATCH_CONVERSATIONS = 50;
+
+    /** Runs one request at its priority and completes when it has finished. */
+    private interface Submitter {
+        CompletableFuture<String> dispatch(DispatchScheduler.Priority priority, String json);
+    }
+
+    @Param({"fifo", "scheduler", "reserved"})
+    String queue;
+
+    private StubLlmServer stub;
+    private Path dir;
+    private MessageStorage storage;
+    private Submitter submitter;
+    private Thread batch;
+    private final Semaphore waiting = new Semaphore(BACKLOG);
+    private final String chat = Requests.question("chat", "What did the batch find so far?");
+
+    @Setup
+    public void setUp() throws Exception {
+        LLMClient.setDebugLogging(false);
+        System.setProperty("sun.net.httpserver.nodelay", "true");  // for the stub, as in DispatchBenchmark
+        stub = new StubLlmServer(0, StubLlmServer.Profile.parse("latency=" + LATENCY_MILLIS + "ms,tps=0"));
+        dir = Files.createTempDirectory("echoforge-jmh-scheduler");
+        storage = new MessageStorage(dir.resolve("bench.db").toString());
+        MessageValidator validator;
+        try (InputStream schema = MessageValidator.class.getClassLoader().getResourceAsStream("schema.json")) {
+            validator = new MessageValidator(schema);
+        }
+        MessageDispatcher dispatcher = new MessageDispatcher(validator, new MessageInput(), storage);
+        int port = stub.getPort();
+
+        switch (queue) {
+            case "fifo" -> {
+                Semaphore slots = new Semaphore(SLOTS, true);
+                submitter = (priority, json) -> CompletableFuture.supplyAsync(() -> {
+                    try {
+                        slots.acquire();
+                        try {
+                            return dispatcher.dispatch(json, "127.0.0.1", port);
+                        } finally {
+                            slots.release();
+                        }
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }, command -> Thread.ofVirtual().start(command));
+            }
+            case "scheduler", "reserved" -> {
+                DispatchScheduler scheduler = new DispatchScheduler(dispatcher, SLOTS, queue.equals("reserved") ? 1 : 0);
+                submitter = (priority, json) -> scheduler.dispatch(priority, json, "127.0.0.1", port, null);
+            }
+            default -> throw new IllegalArgumentException(queue);
+        }
+
+        // Tops the batch up to BACKLOG requests whenever one finishes
+        batch = Thread.ofVirtual().start(() -> {
+            for (int i = 0; !Thread.currentThread().isInterrupted(); i++) {
+                try {
+                    waiting.acquire();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                String conversationId = "batch-" + (i % BATCH_CONVERSATIONS);
+                submitter.dispatch(DispatchScheduler.Priority.BATCH,
+                                Requests.question(conversationId, "Batch question " + i))
+                        .whenComplete((answer, failure) -> waiting.release());
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        batch.interrupt();
+        batch.join();
+        // Let the batch requests still in flight finish before their storage closes
+        waiting.acquire(BACKLOG);
+        storage.close();
+        stub.close();
+        deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public String chatTurn() throws Exception {
+        return submitter.dispatch(DispatchScheduler.Priority.INTERACTIVE, chat).get();
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
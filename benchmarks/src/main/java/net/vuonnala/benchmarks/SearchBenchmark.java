@@ -0,0 +1,92 @@
+package net.vuonnala.benchmarks;
+
+import net.vuonnala.MessageStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A ranked page of full-text search hits over {@link #RESPONSES} stored turns
+ * of three messages each, for a rare word, a common word, a common word as a
+ * prefix, two words and a prefix, and for a page deep into a common word.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+    static final int RESPONSES = 100_000;
+    private static final int BATCH = 1_000;
+    private static final int PAGE = 20;
+
+    @Param({"zanzibar", "latency ", "latency", "cache memory", "jour"})
+    String query;
+
+    @Param({"0", "80"})
+    int offset;
+
+    private Path dir;
+    private MessageStorage storage;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("echoforge-jmh-search");
+        storage = new MessageStorage(dir.resolve("bench.db").toString());
+        Random random = new Random(42);
+        List<MessageStorage.PendingResponse> batch = new ArrayList<>(BATCH);
+        for (int i = 0; i < RESPONSES; i++) {
+            String conversationId = "conv-" + i;
+            String question = Requests.sentence(random, 12) + (i % 20_000 == 0 ? " zanzibar" : "");
+            batch.add(new MessageStorage.PendingResponse(Instant.now().toString(), conversationId,
+                    Requests.question(conversationId, question),
+                    Requests.completion(Requests.sentence(random, 24))));
+            if (batch.size() == BATCH) {
+                storage.storeResponses(batch);
+                batch.clear();
+            }
+        }
+        storage.storeResponses(batch);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        storage.close();
+        deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public List<MessageStorage.SearchHit> search() throws Exception {
+        return storage.search(query, offset, PAGE);
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
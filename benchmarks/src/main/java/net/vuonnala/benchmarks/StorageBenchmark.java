@@ -0,0 +1,129 @@
+package net.vuonnala.benchmarks;
+
+import net.vuonnala.DispatchRequest;
+import net.vuonnala.MessageStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Storing a turn and reading a conversation back, on databases already
+ * holding {@code conversations} conversations of {@link #TURNS} turns each.
+ * Every store is its own committed transaction, as without the write-behind
+ * journal. With {@code compressed} the payloads are compressed, the existing
+ * rows included, before measuring. Both databases are then vacuumed, so they
+ * are laid out alike.
+ *
+ * Setup prints the database size for each parameter combination: as stored,
+ * and with {@code compressed} also after compressing the existing rows and
+ * after the vacuum. For the sizes with only a token timing run:
+ * {@code java -jar benchmarks/target/benchmarks.jar StorageBenchmark.storeResponse -wi 0 -i 1 -r 1}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+    static final int TURNS = 5;
+    private static final int BATCH = 500;
+    private static final int STORED_REQUESTS = 64;
+
+    @Param({"1000", "10000"})
+    int conversations;
+
+    @Param({"false", "true"})
+    boolean compressed;
+
+    private Path dir;
+    private MessageStorage storage;
+    private final List<DispatchRequest> requests = new ArrayList<>();
+    private final String response = Requests.completion("A short answer of a sentence or two.");
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("echoforge-jmh-storage");
+        storage = new MessageStorage(dir.resolve("bench.db").toString());
+        List<MessageStorage.PendingResponse> batch = new ArrayList<>(BATCH);
+        for (int turn = 0; turn < TURNS; turn++) {
+            for (int c = 0; c < conversations; c++) {
+                String conversationId = "conv-" + c;
+                batch.add(new MessageStorage.PendingResponse(Instant.now().toString(), conversationId,
+                        Requests.chat(conversationId, 2 * turn + 1), response));
+                if (batch.size() == BATCH) {
+                    storage.storeResponses(batch);
+                    batch.clear();
+                }
+            }
+        }
+        storage.storeResponses(batch);
+        long plainBytes = storage.getStorageStats().databaseBytes;
+        if (compressed) {
+            storage.enableCompression();
+            storage.compressExistingRows();
+            long migratedBytes = storage.getStorageStats().databaseBytes;
+            storage.compact();
+            long vacuumedBytes = storage.getStorageStats().databaseBytes;
+            System.out.printf("%nDatabase of %,d conversations: plain %.1f MB, compressed %.1f MB (%.0f%%), "
+                            + "after VACUUM %.1f MB (%.0f%%)%n", conversations, plainBytes / 1e6,
+                    migratedBytes / 1e6, 100.0 * migratedBytes / plainBytes,
+                    vacuumedBytes / 1e6, 100.0 * vacuumedBytes / plainBytes);
+        } else {
+            storage.compact();
+            System.out.printf("%nDatabase of %,d conversations: plain %.1f MB%n", conversations, plainBytes / 1e6);
+        }
+
+        for (int i = 0; i < STORED_REQUESTS; i++) {
+            String conversationId = "conv-" + (i * conversations / STORED_REQUESTS);
+            requests.add(DispatchRequest.parse(Requests.chat(conversationId, 2 * TURNS + 1)));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        storage.close();
+        deleteRecursively(dir);
+    }
+
+    /** The next turn of an existing conversation, with its messages indexed. */
+    @Benchmark
+    public void storeResponse() throws Exception {
+        DispatchRequest request = requests.get(ThreadLocalRandom.current().nextInt(STORED_REQUESTS));
+        storage.storeResponse(request.getConversationId(), request, response);
+    }
+
+    @Benchmark
+    public List<MessageStorage.ResponseRecord> getResponsesByConversationId() throws Exception {
+        return storage.getResponsesByConversationId("conv-" + ThreadLocalRandom.current().nextInt(conversations));
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
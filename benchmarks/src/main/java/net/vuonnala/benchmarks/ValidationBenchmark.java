@@ -0,0 +1,59 @@
+package net.vuonnala.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import net.vuonnala.DispatchRequest;
+import net.vuonnala.MessageValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schema validation of a request as the message array grows: from the JSON
+ * string, as MessageValidator was first used, and from the tree the
+ * dispatcher has already parsed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidationBenchmark {
+
+    @Param({"2", "20", "200", "2000"})
+    int messages;
+
+    private MessageValidator validator;
+    private String json;
+    private JsonNode root;
+
+    @Setup
+    public void setUp() throws Exception {
+        try (InputStream schema = MessageValidator.class.getClassLoader().getResourceAsStream("schema.json")) {
+            validator = new MessageValidator(schema);
+        }
+        json = Requests.chat("bench", messages);
+        root = DispatchRequest.parse(json).getRoot();
+    }
+
+    @Benchmark
+    public void validateJson() {
+        validator.validate(json);
+    }
+
+    @Benchmark
+    public void validateTree() {
+        validator.validate(root);
+    }
+}
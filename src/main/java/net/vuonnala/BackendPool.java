@@ -0,0 +1,347 @@
+package net.vuonnala;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Spreads requests over several LM Studio nodes.
+ *
+ * By default each request goes to the healthy backend with the fewest requests
+ * in flight. In {@link Mode#CONSISTENT_HASH} mode a conversation always lands on
+ * the same node (as long as that node is healthy), which keeps the node's prompt
+ * cache warm for the conversation's growing history.
+ *
+ * A background task probes every backend's /v1/models. Backends that fail
+ * several probes or requests in a row are ejected for a cool-down period and
+ * re-admitted once a probe succeeds again. Without probing, an ejected backend
+ * is offered requests again after the cool-down: the first one that succeeds
+ * re-admits it, and one that fails ejects it for another cool-down.
+ */
+public class BackendPool implements AutoCloseable {
+
+    public enum Mode {
+        LEAST_OUTSTANDING,
+        CONSISTENT_HASH
+    }
+
+    public static final Duration DEFAULT_PROBE_INTERVAL = Duration.ofSeconds(10);
+    public static final Duration DEFAULT_EJECTION = Duration.ofSeconds(30);
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    private static final int VIRTUAL_NODES = 64;
+
+    @FunctionalInterface
+    public interface BackendCall<T> {
+        T call(LLMClient client) throws Exception;
+    }
+
+    private final List<Backend> backends;
+    private final Mode mode;
+    private final TreeMap<Long, Backend> ring = new TreeMap<>();
+    private final AtomicInteger rotation = new AtomicInteger();
+    private final ScheduledExecutorService prober;
+
+    public BackendPool(LLMClientRegistry clients, List<String> endpoints, Mode mode) {
+        this(clients, endpoints, mode, DEFAULT_PROBE_INTERVAL, DEFAULT_EJECTION, DEFAULT_FAILURE_THRESHOLD);
+    }
+
+    /**
+     * @param endpoints        "host:port" of every backend
+     * @param probeInterval    How often /v1/models is probed; zero disables probing, and requests try
+     *                         ejected backends again after the cool-down
+     * @param ejection         How long a failing backend is kept out before it is probed again
+     * @param failureThreshold Consecutive failures that eject a backend
+     */
+    public BackendPool(LLMClientRegistry clients, List<String> endpoints, Mode mode,
+                       Duration probeInterval, Duration ejection, int failureThreshold) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one backend is required.");
+        }
+        this.mode = mode;
+        List<Backend> list = new ArrayList<>();
+        for (String endpoint : endpoints) {
+            int colon = endpoint.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Backend must be host:port, got: " + endpoint);
+            }
+            String host = endpoint.substring(0, colon).trim();
+            int port = Integer.parseInt(endpoint.substring(colon + 1).trim());
+            list.add(new Backend(host, port, clients.get(host, port), ejection.toNanos(), failureThreshold,
+                    !probeInterval.isZero()));
+        }
+        this.backends = List.copyOf(list);
+
+        for (Backend backend : backends) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(backend.getEndpoint() + "#" + i), backend);
+            }
+        }
+
+        if (probeInterval.isZero()) {
+            this.prober = null;
+        } else {
+            this.prober = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "echoforge-health-probe");
+                t.setDaemon(true);
+                return t;
+            });
+            prober.scheduleWithFixedDelay(this::probeAll, 0, probeInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Picks a backend for the conversation and runs the call on it, keeping the
+     * backend's in-flight count and latency up to date.
+     */
+    public <T> T execute(String conversationId, BackendCall<T> work) throws Exception {
+        return select(conversationId).execute(work);
+    }
+
+    /**
+     * Chooses the backend for a request according to the pool's mode.
+     *
+     * @throws IOException if every backend is ejected
+     */
+    public Backend select(String conversationId) throws IOException {
+        if (mode == Mode.CONSISTENT_HASH && conversationId != null && !conversationId.equals("unknown")) {
+            Backend owner = walkRing(hash(conversationId));
+            if (owner != null) {
+                return owner;
+            }
+        } else {
+            Backend least = leastOutstanding();
+            if (least != null) {
+                return least;
+            }
+        }
+        throw new IOException("No healthy backend among " + backends.size());
+    }
+
+    private Backend leastOutstanding() {
+        int start = Math.floorMod(rotation.getAndIncrement(), backends.size());  // spreads ties
+        Backend best = null;
+        for (int i = 0; i < backends.size(); i++) {
+            Backend candidate = backends.get((start + i) % backends.size());
+            if (candidate.isAvailable() && (best == null || candidate.getInFlight() < best.getInFlight())) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The first available backend clockwise from the hash; an ejected owner's
+     * conversations move to the next node on the ring and come back later.
+     */
+    private Backend walkRing(long hash) {
+        for (Backend candidate : ring.tailMap(hash, true).values()) {
+            if (candidate.isAvailable()) return candidate;
+        }
+        for (Backend candidate : ring.headMap(hash, false).values()) {
+            if (candidate.isAvailable()) return candidate;
+        }
+        return null;
+    }
+
+    private void probeAll() {
+        for (Backend backend : backends) {
+            backend.probeAsync();
+        }
+    }
+
+    public List<Backend> getBackends() {
+        return backends;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /** One line per backend, for reports. */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (Backend backend : backends) {
+            sb.append(backend).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() {
+        if (prober != null) {
+            prober.shutdownNow();
+        }
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xff);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * One LM Studio node with its live load and health.
+     */
+    public static class Backend {
+        private final String host;
+        private final int port;
+        private final LLMClient client;
+        private final long ejectionNanos;
+        private final int failureThreshold;
+        private final boolean probed;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicBoolean probing = new AtomicBoolean();
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private volatile boolean healthy = true;
+        private volatile long ejectedUntil;
+
+        Backend(String host, int port, LLMClient client, long ejectionNanos, int failureThreshold, boolean probed) {
+            this.host = host;
+            this.port = port;
+            this.client = client;
+            this.ejectionNanos = ejectionNanos;
+            this.failureThreshold = failureThreshold;
+            this.probed = probed;
+        }
+
+        <T> T execute(BackendCall<T> work) throws Exception {
+            inFlight.incrementAndGet();
+            requests.increment();
+            long start = System.nanoTime();
+            try {
+                T result = work.call(client);
+                latencies.record(System.nanoTime() - start);
+                consecutiveFailures.set(0);
+                if (!healthy) {
+                    healthy = true;
+                    DebugLog.log("Backend " + getEndpoint() + " re-admitted after a request succeeded");
+                }
+                return result;
+            } catch (ConcurrencyLimiter.RejectedException e) {
+                throw e;  // never reached the backend
+            } catch (IOException e) {
+                // Transport failures and 5xx count against the backend; bad requests don't
+                if (!(e instanceof LLMClient.HttpStatusException status) || status.isServerError()) {
+                    failures.increment();
+                    recordFailure();
+                }
+                throw e;
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        void probeAsync() {
+            if ((!healthy && System.nanoTime() < ejectedUntil) || !probing.compareAndSet(false, true)) {
+                return;
+            }
+            Thread.ofVirtual().name("echoforge-probe-" + getEndpoint()).start(() -> {
+                try {
+                    client.fetchAvailableModels();
+                    consecutiveFailures.set(0);
+                    if (!healthy) {
+                        healthy = true;
+                        DebugLog.log("Backend " + getEndpoint() + " re-admitted");
+                    }
+                } catch (Exception e) {
+                    recordFailure();
+                } finally {
+                    probing.set(false);
+                }
+            });
+        }
+
+        private void recordFailure() {
+            int failed = consecutiveFailures.incrementAndGet();
+            if (failed >= failureThreshold) {
+                ejectedUntil = System.nanoTime() + ejectionNanos;
+                if (healthy) {
+                    healthy = false;
+                    DebugLog.log("Backend " + getEndpoint() + " ejected after " + failed + " failures");
+                }
+            }
+        }
+
+        /**
+         * Healthy, or without probing, ejected and past its cool-down; the next
+         * request then decides whether it is re-admitted.
+         */
+        public boolean isAvailable() {
+            return healthy || (!probed && System.nanoTime() >= ejectedUntil);
+        }
+
+        public String getEndpoint() {
+            return host + ":" + port;
+        }
+
+        public LLMClient getClient() {
+            return client;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public long getRequestCount() {
+            return requests.sum();
+        }
+
+        public long getFailureCount() {
+            return failures.sum();
+        }
+
+        public LatencyHistogram getLatencies() {
+            return latencies;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s in-flight=%d requests=%d failures=%d latency[%s]",
+                    getEndpoint(), healthy ? "UP" : "EJECTED", getInFlight(),
+                    getRequestCount(), getFailureCount(), latencies.summary());
+        }
+    }
+
+    /** Endpoint list from a comma separated "host:port,host:port" string. */
+    public static List<String> parseEndpoints(String list) {
+        List<String> endpoints = new ArrayList<>();
+        for (String part : list.split(",")) {
+            if (!part.isBlank()) {
+                endpoints.add(part.trim());
+            }
+        }
+        return endpoints;
+    }
+
+    /** The mode for a --balance flag value: "least" or "hash". */
+    public static Mode parseMode(String value) {
+        return switch (value) {
+            case "", "least" -> Mode.LEAST_OUTSTANDING;
+            case "hash" -> Mode.CONSISTENT_HASH;
+            default -> throw new IllegalArgumentException("Unknown balance mode: " + value);
+        };
+    }
+}
@@ -0,0 +1,213 @@
+package net.vuonnala;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless batch dispatch. Streams a JSONL file of requests, dispatches each
+ * line through {@link MessageDispatcher} on a virtual thread, and writes one
+ * result line per request to an output JSONL file as soon as it finishes.
+ * Responses are stored in SQLite by the dispatcher as usual.
+ *
+ * At most {@code concurrency} requests are in flight; the reader stops reading
+ * the input until one of them completes.
+ */
+public class BatchRunner {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final MessageDispatcher dispatcher;
+    private final String ip;
+    private final int port;
+    private final int concurrency;
+    private volatile DispatchScheduler scheduler;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Dispatches through the dispatcher's {@link BackendPool}.
+     */
+    public BatchRunner(MessageDispatcher dispatcher, int concurrency) {
+        this(dispatcher, null, 0, concurrency);
+    }
+
+    /**
+     * Dispatches every request to one LMStudio endpoint.
+     */
+    public BatchRunner(MessageDispatcher dispatcher, String ip, int port, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1.");
+        }
+        this.dispatcher = dispatcher;
+        this.ip = ip;
+        this.port = port;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Dispatches through the scheduler at {@link DispatchScheduler.Priority#BATCH},
+     * so turns of one conversation run in file order and interactive requests
+     * sharing the scheduler go first. Null dispatches directly, in any order.
+     */
+    public void setScheduler(DispatchScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Dispatches every non-blank line of {@code input} and writes the results to
+     * {@code output}. Returns when all requests have finished.
+     */
+    public Report run(Path input, Path output) throws IOException, InterruptedException {
+        Semaphore permits = new Semaphore(concurrency);
+        long start = System.nanoTime();
+        long lines = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8);
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                permits.acquire();  // backpressure: don't read ahead of the in-flight limit
+                final long lineNumber = lines;
+                final String json = line;
+                executor.submit(() -> {
+                    try {
+                        writeResult(writer, dispatchOne(lineNumber, json));
+                    } catch (UncheckedIOException e) {
+                        DebugLog.log("Failed to write result of line " + lineNumber + ": " + e.getMessage());
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+            // closing the executor waits for the remaining requests
+        }
+
+        return new Report(succeeded.sum(), invalid.sum(), failed.sum(),
+                System.nanoTime() - start, latencies);
+    }
+
+    private ObjectNode dispatchOne(long lineNumber, String json) {
+        ObjectNode result = MAPPER.createObjectNode();
+        result.put("line", lineNumber);
+        long t0 = System.nanoTime();
+        try {
+            String response = dispatch(json);
+            long elapsed = System.nanoTime() - t0;
+            latencies.record(elapsed);
+            succeeded.increment();
+
+            result.put("status", "ok");
+            result.put("latency_ms", elapsed / 1_000_000.0);
+            result.set("response", parseOrText(response));
+        } catch (IllegalArgumentException e) {
+            invalid.increment();
+            result.put("status", "invalid");
+            result.put("error", e.getMessage());
+        } catch (Exception e) {
+            failed.increment();
+            result.put("status", "error");
+            result.put("latency_ms", (System.nanoTime() - t0) / 1_000_000.0);
+            result.put("error", String.valueOf(e.getMessage()));
+        }
+        return result;
+    }
+
+    private String dispatch(String json) throws Exception {
+        DispatchScheduler s = scheduler;
+        if (s == null) {
+            return ip != null ? dispatcher.dispatch(json, ip, port) : dispatcher.dispatch(json);
+        }
+        CompletableFuture<String> response = ip != null
+                ? s.dispatch(DispatchScheduler.Priority.BATCH, json, ip, port, null)
+                : s.dispatch(DispatchScheduler.Priority.BATCH, json, null);
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } catch (InterruptedException e) {
+            response.cancel(true);
+            throw e;
+        }
+    }
+
+    private static JsonNode parseOrText(String response) {
+        try {
+            return MAPPER.readTree(response);
+        } catch (JsonProcessingException e) {
+            return MAPPER.getNodeFactory().textNode(response);
+        }
+    }
+
+    private static void writeResult(BufferedWriter writer, ObjectNode result) {
+        String line = result.toString();
+        synchronized (writer) {
+            try {
+                writer.write(line);
+                writer.newLine();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    public static class Report {
+        public final long succeeded;
+        public final long invalid;
+        public final long failed;
+        public final long wallNanos;
+        public final LatencyHistogram latencies;
+
+        public Report(long succeeded, long invalid, long failed, long wallNanos, LatencyHistogram latencies) {
+            this.succeeded = succeeded;
+            this.invalid = invalid;
+            this.failed = failed;
+            this.wallNanos = wallNanos;
+            this.latencies = latencies;
+        }
+
+        public long total() {
+            return succeeded + invalid + failed;
+        }
+
+        public double throughputPerSecond() {
+            return wallNanos == 0 ? 0 : total() / (wallNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("""
+                    Requests:   %d (ok %d, invalid %d, failed %d)
+                    Wall time:  %.2f s
+                    Throughput: %.2f req/s
+                    Latency:    p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms""",
+                    total(), succeeded, invalid, failed,
+                    wallNanos / 1e9, throughputPerSecond(),
+                    latencies.getPercentileMillis(0.50), latencies.getPercentileMillis(0.95),
+                    latencies.getPercentileMillis(0.99), latencies.getMaxNanos() / 1e6);
+        }
+    }
+}
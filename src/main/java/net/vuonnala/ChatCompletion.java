@@ -0,0 +1,46 @@
+package net.vuonnala;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of one chat completion call: the assistant's text, the response
+ * JSON in the regular (non-streaming) chat completion shape, and timings.
+ */
+public class ChatCompletion {
+    public final String responseJson;
+    public final String role;
+    public final String content;
+    /** Nanoseconds from sending the request to the first content token, or -1 if none arrived. */
+    public final long timeToFirstTokenNanos;
+    /** Nanoseconds from sending the request to the end of the response. */
+    public final long totalNanos;
+    /** Token counts from the response's "usage" field, or -1 if the backend did not report them. */
+    public final int promptTokens;
+    public final int completionTokens;
+
+    public ChatCompletion(String responseJson, String role, String content,
+                          long timeToFirstTokenNanos, long totalNanos,
+                          int promptTokens, int completionTokens) {
+        this.responseJson = responseJson;
+        this.role = role;
+        this.content = content;
+        this.timeToFirstTokenNanos = timeToFirstTokenNanos;
+        this.totalNanos = totalNanos;
+        this.promptTokens = promptTokens;
+        this.completionTokens = completionTokens;
+    }
+
+    public long getTimeToFirstTokenMillis() {
+        return timeToFirstTokenNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(timeToFirstTokenNanos);
+    }
+
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ChatCompletion[role=%s, ttft=%d ms, total=%d ms, tokens=%d/%d]",
+                role, getTimeToFirstTokenMillis(), getTotalMillis(), promptTokens, completionTokens);
+    }
+}
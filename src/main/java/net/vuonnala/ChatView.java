@@ -0,0 +1,237 @@
+package net.vuonnala;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableCellRenderer;
+import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Virtualized chat transcript. Messages live in a table model and are painted
+ * by one shared renderer, so only the rows in view are laid out and no
+ * component is created per message.
+ *
+ * Row heights of off-screen rows are estimated from font metrics without
+ * laying out the text; a row is measured exactly when it is first painted.
+ * Must be used on the event dispatch thread.
+ */
+public class ChatView extends JScrollPane {
+
+    /** One message as shown in the transcript. */
+    public static final class ChatMessage {
+        public final String sender;
+        private final StringBuilder content;
+
+        public ChatMessage(String sender, String content) {
+            this.sender = sender;
+            this.content = new StringBuilder(content);
+        }
+
+        public String getContent() {
+            return content.toString();
+        }
+
+        /** What the row shows, and what is copied to the clipboard. */
+        @Override
+        public String toString() {
+            return sender + ":\n" + content;
+        }
+    }
+
+    private static final int PADDING = 5;
+
+    private final List<ChatMessage> messages = new ArrayList<>();
+    private final MessageModel model = new MessageModel();
+    private final JTable table = new JTable(model);
+    private final MessageRenderer renderer = new MessageRenderer();
+    private final Timer relayout;
+    private int laidOutWidth = -1;
+
+    public ChatView() {
+        table.setTableHeader(null);
+        table.setShowGrid(false);
+        table.setIntercellSpacing(new Dimension(0, 0));
+        table.setFillsViewportHeight(true);
+        table.setDefaultRenderer(Object.class, renderer);
+        table.setRowSelectionAllowed(true);
+        setViewportView(table);
+        getVerticalScrollBar().setUnitIncrement(16);
+
+        // Re-estimate every row once the width has settled, not on every resize step
+        relayout = new Timer(100, e -> estimateAllRows());
+        relayout.setRepeats(false);
+        getViewport().addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                if (getViewport().getWidth() != laidOutWidth) {
+                    relayout.restart();
+                }
+            }
+        });
+    }
+
+    /** Appends one message and returns it, for later updates. */
+    public ChatMessage addMessage(String sender, String content) {
+        ChatMessage message = new ChatMessage(sender, content);
+        addMessages(List.of(message));
+        return message;
+    }
+
+    /** Appends several messages with a single model event. */
+    public void addMessages(List<ChatMessage> added) {
+        if (added.isEmpty()) {
+            return;
+        }
+        int first = messages.size();
+        messages.addAll(added);
+        model.fireTableRowsInserted(first, messages.size() - 1);
+        for (int row = first; row < messages.size(); row++) {
+            table.setRowHeight(row, estimateHeight(messages.get(row)));
+        }
+    }
+
+    /**
+     * Appends text to a message's content, e.g. streamed tokens. Ignored if the
+     * message is no longer shown.
+     */
+    public void appendToMessage(ChatMessage message, String text) {
+        message.content.append(text);
+        updated(message);
+    }
+
+    /** Replaces a message's content. */
+    public void setMessageContent(ChatMessage message, String content) {
+        message.content.setLength(0);
+        message.content.append(content);
+        updated(message);
+    }
+
+    public void removeMessage(ChatMessage message) {
+        int index = messages.lastIndexOf(message);
+        if (index >= 0) {
+            messages.remove(index);
+            model.fireTableRowsDeleted(index, index);
+        }
+    }
+
+    public void clear() {
+        int size = messages.size();
+        if (size > 0) {
+            messages.clear();
+            model.fireTableRowsDeleted(0, size - 1);
+        }
+    }
+
+    public int getMessageCount() {
+        return messages.size();
+    }
+
+    public ChatMessage getMessage(int index) {
+        return messages.get(index);
+    }
+
+    public void scrollToBottom() {
+        if (!messages.isEmpty()) {
+            table.scrollRectToVisible(table.getCellRect(messages.size() - 1, 0, true));
+        }
+    }
+
+    private void updated(ChatMessage message) {
+        // Updates go to the latest messages, so searching from the end is short
+        int index = messages.lastIndexOf(message);
+        if (index >= 0) {
+            model.fireTableRowsUpdated(index, index);
+            table.setRowHeight(index, estimateHeight(message));
+        }
+    }
+
+    private void estimateAllRows() {
+        laidOutWidth = getViewport().getWidth();
+        for (int row = 0; row < messages.size(); row++) {
+            table.setRowHeight(row, estimateHeight(messages.get(row)));
+        }
+    }
+
+    /**
+     * Height of a message from the width of its lines in the table font,
+     * assuming each line wraps at the column width. Word wrapping can need a
+     * line more; the renderer corrects that when the row becomes visible.
+     */
+    private int estimateHeight(ChatMessage message) {
+        FontMetrics metrics = table.getFontMetrics(table.getFont());
+        int width = Math.max(1, columnWidth() - 2 * PADDING);
+        int lines = 0;
+        String text = message.toString();
+        int start = 0;
+        while (start <= text.length()) {
+            int end = text.indexOf('\n', start);
+            if (end < 0) {
+                end = text.length();
+            }
+            int lineWidth = metrics.stringWidth(text.substring(start, end));
+            lines += Math.max(1, (lineWidth + width - 1) / width);
+            start = end + 1;
+        }
+        return lines * metrics.getHeight() + 2 * PADDING;
+    }
+
+    private int columnWidth() {
+        int width = getViewport().getWidth();
+        return width > 0 ? width : 600;
+    }
+
+    private final class MessageModel extends AbstractTableModel {
+        @Override
+        public int getRowCount() {
+            return messages.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return 1;
+        }
+
+        @Override
+        public Object getValueAt(int rowIndex, int columnIndex) {
+            return messages.get(rowIndex);
+        }
+    }
+
+    /**
+     * Paints every row with one text area. Measures the row it paints and fixes
+     * the row height if the estimate was off.
+     */
+    private final class MessageRenderer implements TableCellRenderer {
+        private final JTextArea area = new JTextArea();
+
+        MessageRenderer() {
+            area.setLineWrap(true);
+            area.setWrapStyleWord(true);
+            area.setBorder(BorderFactory.createEmptyBorder(PADDING, PADDING, PADDING, PADDING));
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                                                       boolean hasFocus, int row, int column) {
+            area.setText(value.toString());
+            area.setFont(table.getFont());
+            area.setBackground(isSelected ? table.getSelectionBackground() : table.getBackground());
+            area.setForeground(isSelected ? table.getSelectionForeground() : table.getForeground());
+
+            int width = table.getColumnModel().getColumn(column).getWidth();
+            area.setSize(width, Short.MAX_VALUE);
+            int height = area.getPreferredSize().height;
+            if (height != table.getRowHeight(row)) {
+                SwingUtilities.invokeLater(() -> {
+                    if (row < table.getRowCount()) {
+                        table.setRowHeight(row, height);
+                    }
+                });
+            }
+            return area;
+        }
+    }
+}
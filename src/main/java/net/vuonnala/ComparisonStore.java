@@ -0,0 +1,195 @@
+package net.vuonnala;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stored {@link ModelComparison}s, in the {@code comparisons} and
+ * {@code comparison_results} tables of a {@link MessageStorage} database.
+ * The tables are created with the rest of the schema; get the store from
+ * {@link MessageStorage#getComparisonStore()}.
+ *
+ * Comparisons are kept apart from the conversation's turns, so they don't
+ * become part of its history.
+ */
+public class ComparisonStore {
+
+    // One row per prompt sent to several models, linked to one result row per
+    // model; response_content is NULL for a model that failed
+    static final String CREATE_COMPARISONS = """
+            CREATE TABLE IF NOT EXISTS comparisons (
+                id INTEGER PRIMARY KEY AUTOINCREMENT,
+                timestamp TEXT NOT NULL,
+                conversation_id TEXT NOT NULL,
+                request_json TEXT NOT NULL,
+                wall_nanos INTEGER NOT NULL
+            );
+        """;
+
+    static final String CREATE_RESULTS = """
+            CREATE TABLE IF NOT EXISTS comparison_results (
+                comparison_id INTEGER NOT NULL,
+                position INTEGER NOT NULL,
+                endpoint TEXT NOT NULL,
+                model TEXT NOT NULL,
+                response_content TEXT,
+                error TEXT,
+                ttft_nanos INTEGER NOT NULL,
+                total_nanos INTEGER NOT NULL,
+                prompt_tokens INTEGER NOT NULL,
+                completion_tokens INTEGER NOT NULL,
+                PRIMARY KEY (comparison_id, position),
+                FOREIGN KEY (comparison_id) REFERENCES comparisons(id)
+            ) WITHOUT ROWID;
+        """;
+
+    static final String CREATE_CONVERSATION_INDEX =
+            "CREATE INDEX IF NOT EXISTS idx_comparisons_conversation ON comparisons (conversation_id, id)";
+
+    private static final String INSERT_COMPARISON =
+            "INSERT INTO comparisons (timestamp, conversation_id, request_json, wall_nanos) VALUES (?, ?, ?, ?)";
+    private static final String INSERT_RESULT =
+            "INSERT INTO comparison_results (comparison_id, position, endpoint, model, response_content, error, "
+                    + "ttft_nanos, total_nanos, prompt_tokens, completion_tokens) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_COMPARISON =
+            "SELECT id, timestamp, conversation_id, request_json, wall_nanos FROM comparisons WHERE id = ?";
+    private static final String SELECT_CONVERSATION_COMPARISON_IDS =
+            "SELECT id FROM comparisons WHERE conversation_id = ? ORDER BY id";
+    private static final String SELECT_RESULTS =
+            "SELECT endpoint, model, response_content, error, ttft_nanos, total_nanos, prompt_tokens, completion_tokens "
+                    + "FROM comparison_results WHERE comparison_id = ? ORDER BY position";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final SqliteConnectionPool pool;
+
+    ComparisonStore(SqliteConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Stores a comparison: the request once, linked to every model's answer or
+     * error, in one transaction.
+     *
+     * @return The stored comparison, with its id
+     */
+    public ModelComparison storeComparison(DispatchRequest request, long wallNanos,
+                                           List<ModelComparison.Result> results) throws SQLException {
+        String timestamp = Instant.now().toString();
+        long id = pool.inTransaction(conn -> {
+            PreparedStatement insert = conn.prepare(INSERT_COMPARISON);
+            insert.setString(1, timestamp);
+            insert.setString(2, request.getConversationId());
+            insert.setString(3, request.getJson());
+            insert.setLong(4, wallNanos);
+            insert.executeUpdate();
+            long comparisonId;
+            try (Statement stmt = conn.connection().createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT last_insert_rowid()")) {
+                rs.next();
+                comparisonId = rs.getLong(1);
+            }
+
+            PreparedStatement pstmt = conn.prepare(INSERT_RESULT);
+            for (int i = 0; i < results.size(); i++) {
+                ModelComparison.Result result = results.get(i);
+                ChatCompletion completion = result.completion;
+                pstmt.setLong(1, comparisonId);
+                pstmt.setInt(2, i);
+                pstmt.setString(3, result.target.getEndpoint());
+                pstmt.setString(4, result.target.model);
+                pstmt.setString(5, completion != null ? completion.responseJson : null);
+                pstmt.setString(6, result.error);
+                pstmt.setLong(7, completion != null ? completion.timeToFirstTokenNanos : -1);
+                pstmt.setLong(8, completion != null ? completion.totalNanos : -1);
+                pstmt.setInt(9, completion != null ? completion.promptTokens : -1);
+                pstmt.setInt(10, completion != null ? completion.completionTokens : -1);
+                pstmt.executeUpdate();
+            }
+            return comparisonId;
+        });
+        return new ModelComparison(id, timestamp, request.getConversationId(), request.getJson(), wallNanos, results);
+    }
+
+    /**
+     * A stored comparison with its results in their original order, or null if
+     * there is none with the id.
+     */
+    public ModelComparison getComparison(long id) throws SQLException {
+        return pool.read(conn -> readComparison(conn, id));
+    }
+
+    /** The conversation's comparisons, oldest first. */
+    public List<ModelComparison> getComparisonsByConversationId(String conversationId) throws SQLException {
+        return pool.read(conn -> {
+            List<Long> ids = new ArrayList<>();
+            PreparedStatement pstmt = conn.prepare(SELECT_CONVERSATION_COMPARISON_IDS);
+            pstmt.setString(1, conversationId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getLong(1));
+                }
+            }
+            List<ModelComparison> comparisons = new ArrayList<>();
+            for (long id : ids) {
+                comparisons.add(readComparison(conn, id));
+            }
+            return comparisons;
+        });
+    }
+
+    private static ModelComparison readComparison(SqliteConnectionPool.PooledConnection conn, long id)
+            throws SQLException {
+        PreparedStatement select = conn.prepare(SELECT_COMPARISON);
+        select.setLong(1, id);
+        String timestamp;
+        String conversationId;
+        String requestJson;
+        long wallNanos;
+        try (ResultSet rs = select.executeQuery()) {
+            if (!rs.next()) {
+                return null;
+            }
+            timestamp = rs.getString("timestamp");
+            conversationId = rs.getString("conversation_id");
+            requestJson = rs.getString("request_json");
+            wallNanos = rs.getLong("wall_nanos");
+        }
+
+        List<ModelComparison.Result> results = new ArrayList<>();
+        PreparedStatement pstmt = conn.prepare(SELECT_RESULTS);
+        pstmt.setLong(1, id);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                ModelComparison.Target target = ModelComparison.Target.of(rs.getString("endpoint"), rs.getString("model"));
+                String response = rs.getString("response_content");
+                ChatCompletion completion = null;
+                if (response != null) {
+                    JsonNode message = readJson(response).path("choices").path(0).path("message");
+                    completion = new ChatCompletion(response, message.path("role").asText("assistant"),
+                            message.path("content").asText(""), rs.getLong("ttft_nanos"), rs.getLong("total_nanos"),
+                            rs.getInt("prompt_tokens"), rs.getInt("completion_tokens"));
+                }
+                results.add(new ModelComparison.Result(target, completion, rs.getString("error")));
+            }
+        }
+        return new ModelComparison(id, timestamp, conversationId, requestJson, wallNanos, results);
+    }
+
+    private static JsonNode readJson(String json) throws SQLException {
+        try {
+            return MAPPER.readTree(json);
+        } catch (IOException e) {
+            throw new SQLException("Stored response is not JSON", e);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package net.vuonnala;
+
+import javax.swing.*;
+import java.awt.*;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Sends one prompt to several models at once and shows their answers side by
+ * side, one column per model, each with its time-to-first-token, total time
+ * and token counts. Models are found on the window's LM Studio endpoint plus
+ * any further backends listed. Must be used on the event dispatch thread.
+ */
+public class ComparisonView extends JPanel {
+
+    /** How long each model may take before it is given up. */
+    private static final Duration DEADLINE = Duration.ofMinutes(5);
+
+    private final MessageDispatcher dispatcher;
+    private final DispatchScheduler scheduler;
+    private final Supplier<String> endpoint;
+    private final Supplier<String> conversationId;
+
+    private final JTextField backendsField = new JTextField(30);
+    private final JButton findButton = new JButton("Find Models");
+    private final DefaultListModel<ModelComparison.Target> targetModel = new DefaultListModel<>();
+    private final JList<ModelComparison.Target> targetList = new JList<>(targetModel);
+    private final JTextField systemField = new JTextField(50);
+    private final JTextArea promptArea = new JTextArea(3, 50);
+    private final JButton compareButton = new JButton("Compare");
+    private final JLabel statusLabel = new JLabel(" ");
+    private final JPanel columns = new JPanel(new GridLayout(1, 0, 5, 0));
+    private CompletableFuture<ModelComparison> comparison;  // in progress, if any
+
+    /** One model's answer as it streams in. */
+    private static final class Column {
+        final JTextArea answer = new JTextArea();
+        final JLabel stats = new JLabel("waiting...");
+        final StringBuilder pending = new StringBuilder();  // tokens not yet shown, guarded by itself
+    }
+
+    /**
+     * @param endpoint       "host:port" of the window's LM Studio
+     * @param conversationId The conversation comparisons are linked to
+     */
+    public ComparisonView(MessageDispatcher dispatcher, DispatchScheduler scheduler, Supplier<String> endpoint,
+                          Supplier<String> conversationId) {
+        super(new BorderLayout());
+        this.dispatcher = dispatcher;
+        this.scheduler = scheduler;
+        this.endpoint = endpoint;
+        this.conversationId = conversationId;
+        layoutComponents();
+        findButton.addActionListener(e -> findModels());
+        compareButton.addActionListener(e -> {
+            if (comparison != null) {
+                comparison.cancel(true);
+            } else {
+                compare();
+            }
+        });
+    }
+
+    private void layoutComponents() {
+        backendsField.setToolTipText("Further backends to search, host:port,host:port,...");
+        targetList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        targetList.setVisibleRowCount(4);
+        promptArea.setLineWrap(true);
+        promptArea.setWrapStyleWord(true);
+
+        JPanel backends = new JPanel();
+        backends.add(new JLabel("Other backends:"));
+        backends.add(backendsField);
+        backends.add(findButton);
+
+        JPanel prompt = new JPanel();
+        prompt.setLayout(new BoxLayout(prompt, BoxLayout.Y_AXIS));
+        prompt.add(new JLabel("System Message:"));
+        prompt.add(systemField);
+        prompt.add(new JLabel("User Message:"));
+        prompt.add(new JScrollPane(promptArea));
+
+        JPanel controls = new JPanel(new BorderLayout());
+        controls.add(backends, BorderLayout.NORTH);
+        JScrollPane targets = new JScrollPane(targetList);
+        targets.setBorder(BorderFactory.createTitledBorder("Models (select several)"));
+        controls.add(targets, BorderLayout.CENTER);
+        JPanel bottom = new JPanel(new BorderLayout());
+        bottom.add(prompt, BorderLayout.CENTER);
+        bottom.add(compareButton, BorderLayout.EAST);
+        bottom.add(statusLabel, BorderLayout.SOUTH);
+        controls.add(bottom, BorderLayout.SOUTH);
+
+        add(controls, BorderLayout.NORTH);
+        add(new JScrollPane(columns), BorderLayout.CENTER);
+    }
+
+    /** Lists the models of the window's endpoint and the other backends, off the EDT. */
+    private void findModels() {
+        List<String> endpoints = new ArrayList<>();
+        endpoints.add(endpoint.get());
+        endpoints.addAll(BackendPool.parseEndpoints(backendsField.getText()));
+        findButton.setEnabled(false);
+        new SwingWorker<List<ModelComparison.Target>, Void>() {
+            @Override
+            protected List<ModelComparison.Target> doInBackground() throws Exception {
+                return dispatcher.discoverTargets(endpoints);
+            }
+
+            @Override
+            protected void done() {
+                findButton.setEnabled(true);
+                try {
+                    List<ModelComparison.Target> targets = get();
+                    targetModel.clear();
+                    targetModel.addAll(targets);
+                    targetList.setSelectionInterval(0, targets.size() - 1);
+                    statusLabel.setText(targets.size() + " models found");
+                } catch (Exception e) {
+                    statusLabel.setText("Failed to find models: "
+                            + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+                }
+            }
+        }.execute();
+    }
+
+    private void compare() {
+        List<ModelComparison.Target> targets = targetList.getSelectedValuesList();
+        String question = promptArea.getText().trim();
+        if (targets.isEmpty() || question.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "Please select at least one model and enter a user message.",
+                    "Missing Input", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        JSONArray messages = new JSONArray();
+        if (!systemField.getText().isBlank()) {
+            messages.put(new JSONObject().put("role", "system").put("content", systemField.getText().trim()));
+        }
+        messages.put(new JSONObject().put("role", "user").put("content", question));
+        JSONObject request = new JSONObject();
+        request.put("conversation_id", conversationId.get());
+        request.put("model", targets.get(0).model);
+        request.put("messages", messages);
+
+        columns.removeAll();
+        Map<ModelComparison.Target, Column> shown = new IdentityHashMap<>();
+        for (ModelComparison.Target target : targets) {
+            Column column = new Column();
+            column.answer.setLineWrap(true);
+            column.answer.setWrapStyleWord(true);
+            column.answer.setEditable(false);
+            JPanel panel = new JPanel(new BorderLayout());
+            panel.setBorder(BorderFactory.createTitledBorder(target.toString()));
+            panel.add(new JScrollPane(column.answer), BorderLayout.CENTER);
+            panel.add(column.stats, BorderLayout.SOUTH);
+            columns.add(panel);
+            shown.put(target, column);
+        }
+        columns.revalidate();
+        columns.repaint();
+
+        // Each model's tokens arrive on its own thread and are shown in batches, one EDT task per batch
+        CompletableFuture<ModelComparison> dispatch = scheduler.submit(DispatchScheduler.Priority.INTERACTIVE,
+                conversationId.get(), () -> dispatcher.dispatchFanOutAsync(request.toString(), targets,
+                        (target, token) -> {
+                            Column column = shown.get(target);
+                            boolean first;
+                            synchronized (column.pending) {
+                                first = column.pending.length() == 0;
+                                column.pending.append(token);
+                            }
+                            if (first) {
+                                SwingUtilities.invokeLater(() -> showPending(column));
+                            }
+                        }, DEADLINE));
+        comparison = dispatch;
+        compareButton.setText("Stop");
+        statusLabel.setText("Comparing " + targets.size() + " models...");
+
+        dispatch.whenComplete((result, failure) -> SwingUtilities.invokeLater(() -> {
+            comparison = null;
+            compareButton.setText("Compare");
+            if (failure == null) {
+                for (ModelComparison.Result answer : result.results) {
+                    Column column = shown.get(answer.target);
+                    if (answer.isSuccess()) {
+                        column.answer.setText(answer.completion.content);
+                    }
+                    column.stats.setText(answer.describe());
+                }
+                statusLabel.setText(result.results.size() + " models in " + result.getWallMillis()
+                        + " ms (comparison " + result.id + ")");
+            } else if (failure instanceof CancellationException) {
+                statusLabel.setText("Comparison stopped.");
+            } else {
+                statusLabel.setText("Comparison failed: " + failure.getMessage());
+            }
+        }));
+    }
+
+    private static void showPending(Column column) {
+        String text;
+        synchronized (column.pending) {
+            text = column.pending.toString();
+            column.pending.setLength(0);
+        }
+        column.answer.append(text);
+    }
+}
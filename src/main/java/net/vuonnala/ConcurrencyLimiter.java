@@ -0,0 +1,279 @@
+package net.vuonnala;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caps the LLM calls in flight to one backend, and finds the cap from the
+ * latency it observes. An LM Studio node answers overlapping requests by
+ * slicing its GPU between them, so up to a point more concurrency means more
+ * throughput; past it every request just gets slower. The limiter looks for
+ * that point with AIMD on latency per completion token:
+ *
+ * <ul>
+ *   <li>The baseline is the latency per token with nothing else in flight.
+ *       Samples taken alone move it either way; samples taken under load can
+ *       only lower it.</li>
+ *   <li>A call that comes back within {@link #TOLERANCE} times the baseline,
+ *       while at least half the limit was in use, raises the limit by
+ *       1/limit, i.e. by one per limit's worth of calls.</li>
+ *   <li>A slower call, or one that failed, lowers the limit by
+ *       {@link #BACKOFF}. Calls that started before the last decrease don't
+ *       lower it again, so a burst of slow answers counts once.</li>
+ * </ul>
+ *
+ * Requests beyond the limit wait, at most {@code maxQueue} of them and each
+ * for at most {@code maxWait}; past either they fail at once with
+ * {@link RejectedException} instead of piling onto a saturated backend.
+ */
+public class ConcurrencyLimiter implements ConcurrencyLimiterMXBean {
+
+    public static final String OBJECT_NAME_PREFIX = "net.vuonnala:type=ConcurrencyLimiter,endpoint=";
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+    public static final int DEFAULT_MAX_LIMIT = 64;
+    public static final int DEFAULT_MAX_QUEUE = 256;
+    public static final Duration DEFAULT_MAX_WAIT = Duration.ofSeconds(30);
+
+    /** A call this many times slower per token than the baseline means the backend is congested. */
+    static final double TOLERANCE = 2.0;
+    /** Share of the limit kept after congestion. */
+    static final double BACKOFF = 0.9;
+    /** Weight of a new sample taken alone in the baseline. */
+    private static final double BASELINE_WEIGHT = 0.2;
+
+    /** Thrown when a request can't get a slot; it never reached the backend. */
+    public static class RejectedException extends IOException {
+        public RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long maxWaitNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private double limit;                          // guarded by lock, like the fields below
+    private int inFlight;
+    private int waiting;
+    private double baselineNanosPerToken = Double.NaN;
+    private long lastDecrease = System.nanoTime();
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder backoffs = new LongAdder();
+
+    public ConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MAX_LIMIT, DEFAULT_MAX_QUEUE, DEFAULT_MAX_WAIT);
+    }
+
+    /**
+     * @param initialLimit Calls allowed in flight before any latency is known
+     * @param maxLimit     The limit never grows past this
+     * @param maxQueue     Requests that may wait for a slot; 0 to reject at once
+     * @param maxWait      How long a request may wait for a slot
+     */
+    public ConcurrencyLimiter(int initialLimit, int maxLimit, int maxQueue, Duration maxWait) {
+        if (initialLimit < 1 || maxLimit < initialLimit || maxQueue < 0) {
+            throw new IllegalArgumentException("Invalid concurrency limits: initial " + initialLimit
+                    + ", max " + maxLimit + ", queue " + maxQueue);
+        }
+        this.limit = initialLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueue = maxQueue;
+        this.maxWaitNanos = maxWait.toNanos();
+    }
+
+    /** One call's slot. The first of its methods called when the call ends frees it; later calls do nothing. */
+    public final class Permit {
+        private final long start;
+        private final int inFlightAtStart;
+        private boolean released;
+
+        private Permit(long start, int inFlightAtStart) {
+            this.start = start;
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        /**
+         * The call answered.
+         *
+         * @param nanos  How long it took
+         * @param tokens Completion tokens in the answer; latency is judged per token
+         */
+        public void success(long nanos, int tokens) {
+            end(this, (double) nanos / Math.max(1, tokens), false);
+        }
+
+        /** The call failed in a way that suggests overload, e.g. a timeout or HTTP 5xx. */
+        public void failure() {
+            end(this, -1, true);
+        }
+
+        /** The call ended without saying anything about the backend, e.g. it was cancelled. */
+        public void release() {
+            end(this, -1, false);
+        }
+    }
+
+    /**
+     * Takes a slot, waiting for one if the limit is reached.
+     *
+     * @throws RejectedException if the queue is full or no slot frees up within the maximum wait
+     */
+    public Permit acquire() throws InterruptedException, RejectedException {
+        lock.lock();
+        try {
+            if (inFlight >= (int) limit) {
+                if (waiting >= maxQueue) {
+                    rejected.increment();
+                    throw new RejectedException("Concurrency limit " + (int) limit + " reached and "
+                            + waiting + " requests already waiting");
+                }
+                waiting++;
+                try {
+                    long remaining = maxWaitNanos;
+                    while (inFlight >= (int) limit) {
+                        if (remaining <= 0) {
+                            rejected.increment();
+                            throw new RejectedException("No slot under concurrency limit " + (int) limit
+                                    + " within " + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos) + " ms");
+                        }
+                        remaining = available.awaitNanos(remaining);
+                    }
+                } finally {
+                    waiting--;
+                }
+            }
+            inFlight++;
+            return new Permit(System.nanoTime(), inFlight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void end(Permit permit, double nanosPerToken, boolean failed) {
+        lock.lock();
+        try {
+            if (permit.released) {
+                return;
+            }
+            permit.released = true;
+            inFlight--;
+            if (failed) {
+                decrease(permit);
+            } else if (nanosPerToken >= 0) {
+                if (permit.inFlightAtStart == 1 && !Double.isNaN(baselineNanosPerToken)) {
+                    baselineNanosPerToken += BASELINE_WEIGHT * (nanosPerToken - baselineNanosPerToken);
+                }
+                if (Double.isNaN(baselineNanosPerToken) || nanosPerToken < baselineNanosPerToken) {
+                    baselineNanosPerToken = nanosPerToken;
+                }
+                if (nanosPerToken > TOLERANCE * baselineNanosPerToken) {
+                    decrease(permit);
+                } else if (permit.inFlightAtStart * 2 >= limit && limit < maxLimit) {
+                    int before = (int) limit;
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                    if ((int) limit > before) {
+                        available.signalAll();
+                    }
+                }
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void decrease(Permit permit) {
+        if (permit.start - lastDecrease <= 0) {
+            return;  // the load that slowed it down was already backed off from
+        }
+        limit = Math.max(1, limit * BACKOFF);
+        lastDecrease = System.nanoTime();
+        backoffs.increment();
+    }
+
+    @Override
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getBackoffCount() {
+        return backoffs.sum();
+    }
+
+    @Override
+    public double getBaselineMillisPerToken() {
+        lock.lock();
+        try {
+            return baselineNanosPerToken / 1e6;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** "limit=.. inFlight=.. queued=.. rejected=.. backoffs=.. baseline=.. ms/token", for reports. */
+    @Override
+    public String summary() {
+        return String.format("limit=%d inFlight=%d queued=%d rejected=%d backoffs=%d baseline=%.2f ms/token",
+                getLimit(), getInFlight(), getQueueDepth(), getRejectedCount(), getBackoffCount(),
+                getBaselineMillisPerToken());
+    }
+
+    /**
+     * Registers this limiter with the platform MBean server under
+     * {@link #OBJECT_NAME_PREFIX} plus the endpoint, replacing whatever was
+     * registered there before.
+     */
+    public void register(String endpoint) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(endpoint));
+        try {
+            server.registerMBean(this, name);
+        } catch (InstanceAlreadyExistsException e) {
+            server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package net.vuonnala;
+
+/**
+ * The JMX view of a {@link ConcurrencyLimiter}, one per LMStudio endpoint; see
+ * {@link ConcurrencyLimiter#register(String)}.
+ */
+public interface ConcurrencyLimiterMXBean {
+
+    /** Requests allowed in flight right now. */
+    int getLimit();
+
+    int getInFlight();
+
+    /** Requests waiting for a slot. */
+    int getQueueDepth();
+
+    /** Requests refused because the queue was full or the wait ran out. */
+    long getRejectedCount();
+
+    /** Times the limit was lowered because latency rose or a call failed. */
+    long getBackoffCount();
+
+    /** Milliseconds per completion token with nothing else in flight, or NaN before the first sample. */
+    double getBaselineMillisPerToken();
+
+    /** The figures above in one line. */
+    String summary();
+}
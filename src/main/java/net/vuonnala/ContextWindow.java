@@ -0,0 +1,246 @@
+package net.vuonnala;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the messages sent to the LLM under a per-model token budget.
+ *
+ * The leading system messages and the most recent turns are always kept; the
+ * oldest turns in between are dropped. If a {@link MessageStorage} is given,
+ * dropped turns are replaced by a summary instead. A summary is generated once
+ * for the turns it covers and stored per conversation; when more turns have to
+ * go, only those are folded into the stored summary. Each trim frees a quarter
+ * of the budget so that the next few turns fit without summarizing again.
+ *
+ * Only the request sent to the LLM is trimmed; the full history is still stored.
+ */
+public class ContextWindow {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** Role, separators and priming tokens added around every message by chat templates. */
+    static final int MESSAGE_OVERHEAD = 4;
+
+    static final String SUMMARY_PREFIX = "Summary of the earlier conversation: ";
+    private static final String SUMMARY_INSTRUCTION =
+            "Summarize the conversation below in a few sentences. Keep names, facts, decisions "
+                    + "and open questions; leave out pleasantries.";
+
+    /**
+     * Produces a summary of some messages, extending a previous summary if there is one.
+     */
+    @FunctionalInterface
+    public interface Summarizer {
+        String summarize(String model, String previousSummary, List<JsonNode> messages) throws Exception;
+    }
+
+    private final Tokenizer tokenizer;
+    private final int defaultBudget;
+    private final Map<String, Integer> modelBudgets;
+    private final MessageStorage summaries;
+
+    /**
+     * @param tokenizer     Estimates the tokens of a message's content
+     * @param defaultBudget Request budget in tokens for models without their own
+     * @param modelBudgets  Budgets by model name
+     * @param summaries     Where summaries are kept, or null to drop old turns without summarizing
+     */
+    public ContextWindow(Tokenizer tokenizer, int defaultBudget, Map<String, Integer> modelBudgets,
+                         MessageStorage summaries) {
+        if (defaultBudget < 1) {
+            throw new IllegalArgumentException("Token budget must be positive.");
+        }
+        this.tokenizer = tokenizer;
+        this.defaultBudget = defaultBudget;
+        this.modelBudgets = Map.copyOf(modelBudgets);
+        this.summaries = summaries;
+    }
+
+    public boolean isSummarizing() {
+        return summaries != null;
+    }
+
+    public int getBudget(String model) {
+        return model == null ? defaultBudget : modelBudgets.getOrDefault(model, defaultBudget);
+    }
+
+    public int countTokens(JsonNode message) {
+        return tokenizer.count(message.path("content").asText("")) + MESSAGE_OVERHEAD;
+    }
+
+    /**
+     * The request to send: the request itself if it fits the model's budget,
+     * otherwise a copy with the oldest turns dropped or summarized.
+     *
+     * @param summarizer Generates summaries; ignored if this window keeps none,
+     *                   and may be null to only drop turns
+     */
+    public DispatchRequest fit(DispatchRequest request, Summarizer summarizer) throws Exception {
+        JsonNode messages = request.getMessages();
+        if (messages == null) {
+            return request;
+        }
+        int budget = getBudget(request.getModel());
+        int total = 0;
+        for (JsonNode message : messages) {
+            total += countTokens(message);
+        }
+        if (total <= budget) {
+            return request;
+        }
+
+        // Leading system prompt, then the turns
+        int head = 0;
+        int headTokens = 0;
+        while (head < messages.size() - 1 && "system".equals(messages.get(head).path("role").asText())) {
+            headTokens += countTokens(messages.get(head++));
+        }
+
+        if (summaries != null && summarizer != null) {
+            return summarized(request, messages, head, headTokens, budget, summarizer);
+        }
+        int keepFrom = recentStart(messages, head, messages.size(), budget - headTokens);
+        return request.withMessages(assemble(messages, head, null, keepFrom));
+    }
+
+    private DispatchRequest summarized(DispatchRequest request, JsonNode messages, int head, int headTokens,
+                                       int budget, Summarizer summarizer) throws Exception {
+        String conversationId = request.getConversationId();
+        MessageStorage.ContextSummary stored = summaries.getContextSummary(conversationId);
+
+        // Reuse the stored summary if the history still starts with the turns it covers
+        int covered = 0;
+        String summary = null;
+        if (stored != null && head + stored.coveredMessages < messages.size()
+                && stored.coveredHash.equals(hashOf(messages, head, head + stored.coveredMessages))) {
+            covered = stored.coveredMessages;
+            summary = stored.summary;
+        }
+
+        int summaryTokens = summary == null ? 0 : tokenizer.count(SUMMARY_PREFIX + summary) + MESSAGE_OVERHEAD;
+        int rest = 0;
+        for (int i = head + covered; i < messages.size(); i++) {
+            rest += countTokens(messages.get(i));
+        }
+        if (headTokens + summaryTokens + rest <= budget) {
+            return request.withMessages(assemble(messages, head, summary, head + covered));
+        }
+
+        // Fold the turns that no longer fit into the summary, leaving room for the next turns
+        int target = budget * 3 / 4 - headTokens - summaryTokens;
+        int keepFrom = Math.max(head + covered, recentStart(messages, head + covered, messages.size(), target));
+        if (keepFrom == head + covered) {
+            keepFrom = Math.min(keepFrom + 1, messages.size() - 1);
+        }
+        List<JsonNode> folded = new ArrayList<>();
+        for (int i = head + covered; i < keepFrom; i++) {
+            folded.add(messages.get(i));
+        }
+        if (!folded.isEmpty()) {
+            summary = summarizer.summarize(request.getModel(), summary, folded);
+            summaries.putContextSummary(conversationId, keepFrom - head,
+                    hashOf(messages, head, keepFrom), summary);
+        }
+
+        // A summary alone may not make it fit; drop what is still over budget
+        summaryTokens = summary == null ? 0 : tokenizer.count(SUMMARY_PREFIX + summary) + MESSAGE_OVERHEAD;
+        int recent = Math.max(keepFrom, recentStart(messages, keepFrom, messages.size(),
+                budget - headTokens - summaryTokens));
+        return request.withMessages(assemble(messages, head, summary, recent));
+    }
+
+    /**
+     * Index of the oldest message in {@code [from, to)} such that it and all later
+     * messages fit the budget. The last message is always kept, and the kept turns
+     * never start with an assistant reply.
+     */
+    private int recentStart(JsonNode messages, int from, int to, int budget) {
+        int start = to - 1;
+        int used = countTokens(messages.get(start));
+        while (start > from && used + countTokens(messages.get(start - 1)) <= budget) {
+            used += countTokens(messages.get(--start));
+        }
+        while (start < to - 1 && "assistant".equals(messages.get(start).path("role").asText())) {
+            start++;
+        }
+        return start;
+    }
+
+    private static ArrayNode assemble(JsonNode messages, int head, String summary, int keepFrom) {
+        ArrayNode kept = MAPPER.createArrayNode();
+        for (int i = 0; i < head; i++) {
+            kept.add(messages.get(i));
+        }
+        if (summary != null) {
+            kept.addObject().put("role", "system").put("content", SUMMARY_PREFIX + summary);
+        }
+        for (int i = keepFrom; i < messages.size(); i++) {
+            kept.add(messages.get(i));
+        }
+        return kept;
+    }
+
+    private static String hashOf(JsonNode messages, int from, int to) {
+        ArrayNode range = MAPPER.createArrayNode();
+        for (int i = from; i < to; i++) {
+            range.add(messages.get(i));
+        }
+        return MessageLog.sha256(MessageLog.canonicalize(range).toString());
+    }
+
+    /**
+     * A summarizer that asks the given LM Studio client, with the conversation's
+     * own model.
+     */
+    public static Summarizer summarizeWith(LLMClient client) {
+        return (model, previousSummary, messages) -> {
+            StringBuilder transcript = new StringBuilder();
+            if (previousSummary != null) {
+                transcript.append("Earlier summary: ").append(previousSummary).append("\n\n");
+            }
+            for (JsonNode message : messages) {
+                transcript.append(message.path("role").asText()).append(": ")
+                        .append(message.path("content").asText()).append('\n');
+            }
+
+            ObjectNode body = MAPPER.createObjectNode();
+            body.put("model", model);
+            ArrayNode prompt = body.putArray("messages");
+            prompt.addObject().put("role", "system").put("content", SUMMARY_INSTRUCTION);
+            prompt.addObject().put("role", "user").put("content", transcript.toString());
+
+            String response = client.sendToLlmStudio(DispatchRequest.parse(body.toString()));
+            JsonNode content;
+            try {
+                content = MAPPER.readTree(response).path("choices").path(0).path("message").path("content");
+            } catch (JsonProcessingException e) {
+                throw new IOException("Summary request returned no JSON: " + response, e);
+            }
+            if (!content.isTextual()) {
+                throw new IOException("Summary request returned no content: " + response);
+            }
+            return content.asText();
+        };
+    }
+
+    /** Budgets by model from a "model=tokens,model=tokens" string. */
+    public static Map<String, Integer> parseBudgets(String list) {
+        Map<String, Integer> budgets = new HashMap<>();
+        for (String part : list.split(",")) {
+            int eq = part.lastIndexOf('=');
+            if (eq > 0) {
+                budgets.put(part.substring(0, eq).trim(), Integer.parseInt(part.substring(eq + 1).trim()));
+            }
+        }
+        return budgets;
+    }
+}
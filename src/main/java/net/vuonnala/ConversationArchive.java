@@ -0,0 +1,221 @@
+package net.vuonnala;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Append-only segment files for conversations moved out of the database, kept
+ * in a directory next to it. Each conversation is one DEFLATE-compressed block;
+ * the {@code archived_conversations} table records the segment, offset, length
+ * and checksum of the block, so a read is one positioned read and an inflate.
+ *
+ * Blocks are appended and forced to disk before the transaction that deletes
+ * the hot rows commits. A crash in between leaves an unreferenced block behind,
+ * never a conversation without its rows. Appends happen under the database's
+ * write lock; reads may run concurrently from any thread.
+ */
+class ConversationArchive {
+
+    static final String CREATE_INDEX = """
+            CREATE TABLE IF NOT EXISTS archived_conversations (
+                conversation_id TEXT PRIMARY KEY,
+                segment TEXT NOT NULL,
+                offset INTEGER NOT NULL,
+                length INTEGER NOT NULL,
+                checksum INTEGER NOT NULL,
+                responses INTEGER NOT NULL,
+                last_response_id INTEGER NOT NULL,
+                archived_at TEXT NOT NULL
+            ) WITHOUT ROWID;
+        """;
+
+    /** A new segment is started once the current one reaches this size. */
+    static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".arc";
+
+    /** Where a conversation's block lives. */
+    static final class Location {
+        final String segment;
+        final long offset;
+        final int length;
+        final long checksum;
+
+        Location(String segment, long offset, int length, long checksum) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.checksum = checksum;
+        }
+    }
+
+    private final Path directory;
+    private FileChannel current;
+    private String currentName;
+    private int currentNumber;
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder readBytes = new LongAdder();
+    private final LongAdder readNanos = new LongAdder();
+
+    /** @param directory Created on the first append */
+    ConversationArchive(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Compresses and appends one block. It is not durable until {@link #force()}.
+     * Callers hold the database's write lock.
+     */
+    Location append(byte[] block) throws IOException {
+        byte[] compressed = deflate(block);
+        FileChannel channel = currentSegment(compressed.length);
+        long offset = channel.size();
+        ByteBuffer buffer = ByteBuffer.wrap(compressed);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(compressed);
+        return new Location(currentName, offset, compressed.length, crc.getValue());
+    }
+
+    /** Forces appended blocks to disk. */
+    void force() throws IOException {
+        if (current != null) {
+            current.force(false);
+        }
+    }
+
+    /** Reads, verifies and inflates a block. */
+    byte[] read(Location location) throws IOException {
+        long start = System.nanoTime();
+        byte[] compressed = new byte[location.length];
+        try (FileChannel channel = FileChannel.open(directory.resolve(location.segment), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(compressed);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, location.offset + buffer.position()) < 0) {
+                    throw new IOException("Archive segment " + location.segment + " is truncated");
+                }
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(compressed);
+        if (crc.getValue() != location.checksum) {
+            throw new IOException("Archive block at " + location.segment + ":" + location.offset + " is corrupt");
+        }
+        Inflater inflater = new Inflater(true);
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed), inflater)) {
+            byte[] block = in.readAllBytes();
+            reads.increment();
+            readBytes.add(compressed.length);
+            readNanos.add(System.nanoTime() - start);
+            return block;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Bytes of all segment files, including blocks no longer referenced. */
+    long sizeOnDisk() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        long size = 0;
+        try (Stream<Path> segments = Files.list(directory)) {
+            for (Path segment : segments.toList()) {
+                size += Files.size(segment);
+            }
+        }
+        return size;
+    }
+
+    long getReads() {
+        return reads.sum();
+    }
+
+    long getReadBytes() {
+        return readBytes.sum();
+    }
+
+    long getReadNanos() {
+        return readNanos.sum();
+    }
+
+    void close() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    private FileChannel currentSegment(int blockLength) throws IOException {
+        if (current == null) {
+            Files.createDirectories(directory);
+            currentNumber = 1;
+            try (Stream<Path> segments = Files.list(directory)) {
+                for (Path segment : segments.toList()) {
+                    currentNumber = Math.max(currentNumber, segmentNumber(segment.getFileName().toString()));
+                }
+            }
+            open(currentNumber);
+        }
+        if (current.size() > 0 && current.size() + blockLength > SEGMENT_SIZE) {
+            current.force(false);
+            current.close();
+            open(++currentNumber);
+        }
+        return current;
+    }
+
+    private void open(int number) throws IOException {
+        currentName = String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+        current = FileChannel.open(directory.resolve(currentName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+    }
+
+    private static int segmentNumber(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static byte[] deflate(byte[] block) {
+        // Archived blocks are written once and read rarely, so spend the time on size
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(block);
+            deflater.finish();
+            byte[] out = new byte[Math.max(64, block.length / 2)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return Arrays.copyOf(out, length);
+        } finally {
+            deflater.end();
+        }
+    }
+}
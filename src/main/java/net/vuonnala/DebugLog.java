@@ -0,0 +1,23 @@
+package net.vuonnala;
+
+/**
+ * The [DEBUG] lines of every class, printed to standard output unless turned
+ * off with {@link LLMClient#setDebugLogging}.
+ */
+final class DebugLog {
+
+    private static volatile boolean enabled = true;
+
+    private DebugLog() {
+    }
+
+    static void setEnabled(boolean enabled) {
+        DebugLog.enabled = enabled;
+    }
+
+    static void log(String message) {
+        if (enabled) {
+            System.out.println("[DEBUG] " + message);
+        }
+    }
+}
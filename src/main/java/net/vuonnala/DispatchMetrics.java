@@ -0,0 +1,293 @@
+package net.vuonnala;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where the time of a dispatch goes, stage by stage, and what passes through.
+ * Every stage has a {@link LatencyHistogram} and the counters are
+ * {@link LongAdder}s, so recording takes no lock and allocates nothing; the
+ * cost per dispatch is a few {@code System.nanoTime()} calls and atomic
+ * increments (see MetricsBenchmark and DispatchBenchmark in the benchmarks module).
+ *
+ * {@link #register()} exposes the metrics over JMX, e.g. to JConsole or
+ * VisualVM, through {@link DispatchMetricsMXBean}.
+ */
+public class DispatchMetrics implements DispatchMetricsMXBean {
+
+    public static final String OBJECT_NAME = "net.vuonnala:type=DispatchMetrics";
+
+    // Quoted, so that reading the usage builds no strings
+    static final String PROMPT_TOKENS = "\"prompt_tokens\"";
+    static final String COMPLETION_TOKENS = "\"completion_tokens\"";
+
+    /** Records nothing and never reads the clock, for callers without metrics. */
+    static final DispatchMetrics NONE = new DispatchMetrics(false);
+
+    public enum Stage {
+        /** Parsing the request JSON. */
+        PARSE,
+        /** Reading the conversation id from the parsed request. */
+        CONVERSATION_ID,
+        /** Schema validation. */
+        VALIDATE,
+        /** The call to LM Studio, from sending the request to the end of the response. */
+        SEND,
+        /** From sending the request to the response headers. */
+        FIRST_BYTE,
+        /** Storing the turn, or handing it to the write-behind journal. */
+        STORE,
+        /** The whole dispatch. */
+        TOTAL
+    }
+
+    private final boolean recording;
+    private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder promptTokens = new LongAdder();
+    private final LongAdder completionTokens = new LongAdder();
+    private final LongAdder generationNanos = new LongAdder();
+
+    public DispatchMetrics() {
+        this(true);
+    }
+
+    private DispatchMetrics(boolean recording) {
+        this.recording = recording;
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    /** Counts a new request; returns its start time for {@link #lap}. */
+    long start() {
+        if (!recording) {
+            return 0;
+        }
+        requests.increment();
+        return System.nanoTime();
+    }
+
+    /** The clock, or 0 when not recording. */
+    long now() {
+        return recording ? System.nanoTime() : 0;
+    }
+
+    void record(Stage stage, long nanos) {
+        if (recording) {
+            stages[stage.ordinal()].record(nanos);
+        }
+    }
+
+    /** Records the time since {@code since} for the stage; returns now, the start of the next stage. */
+    long lap(Stage stage, long since) {
+        if (!recording) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        stages[stage.ordinal()].record(now - since);
+        return now;
+    }
+
+    void failed() {
+        if (recording) {
+            errors.increment();
+        }
+    }
+
+    void sent(long bytes) {
+        if (recording) {
+            bytesOut.add(bytes);
+        }
+    }
+
+    void received(long bytes) {
+        if (recording) {
+            bytesIn.add(bytes);
+        }
+    }
+
+    /**
+     * Adds a response's token usage; {@code sendNanos} is the time LM Studio took
+     * for it. Responses without usage (negative counts) are skipped.
+     */
+    void usage(int prompt, int completion, long sendNanos) {
+        if (!recording || completion < 0) {
+            return;
+        }
+        promptTokens.add(Math.max(0, prompt));
+        completionTokens.add(completion);
+        generationNanos.add(sendNanos);
+    }
+
+    /** Same as {@link #usage(int, int, long)} with the counts read from a response's JSON. */
+    void usage(String responseJson, long sendNanos) {
+        if (recording) {
+            usage(usageTokens(responseJson, PROMPT_TOKENS), usageTokens(responseJson, COMPLETION_TOKENS), sendNanos);
+        }
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getPromptTokens() {
+        return promptTokens.sum();
+    }
+
+    @Override
+    public long getCompletionTokens() {
+        return completionTokens.sum();
+    }
+
+    @Override
+    public double getTokensPerSecond() {
+        long nanos = generationNanos.sum();
+        return nanos == 0 ? 0 : completionTokens.sum() * 1e9 / nanos;
+    }
+
+    @Override
+    public Map<String, StageSnapshot> getStages() {
+        Map<String, StageSnapshot> snapshots = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = getHistogram(stage);
+            snapshots.put(stage.name(), new StageSnapshot(histogram.getCount(), histogram.getMeanNanos() / 1e6,
+                    histogram.getPercentileMillis(0.50), histogram.getPercentileMillis(0.99),
+                    histogram.getMaxNanos() / 1e6));
+        }
+        return snapshots;
+    }
+
+    @Override
+    public String summary() {
+        StringBuilder sb = new StringBuilder(String.format(
+                "requests=%d errors=%d out=%d bytes in=%d bytes tokens=%d/%d (%.1f tokens/s)%n",
+                getRequestCount(), getErrorCount(), getBytesOut(), getBytesIn(),
+                getPromptTokens(), getCompletionTokens(), getTokensPerSecond()));
+        for (Stage stage : Stage.values()) {
+            sb.append(String.format("  %-16s %s%n", stage, getHistogram(stage).summary()));
+        }
+        return sb.toString();
+    }
+
+    /** Clears all counters and histograms. Not atomic with respect to concurrent dispatches. */
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : stages) {
+            histogram.reset();
+        }
+        for (LongAdder counter : new LongAdder[]{requests, errors, bytesOut, bytesIn,
+                promptTokens, completionTokens, generationNanos}) {
+            counter.reset();
+        }
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server under
+     * {@link #OBJECT_NAME}, replacing whatever was registered there before.
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        try {
+            server.registerMBean(this, name);
+        } catch (InstanceAlreadyExistsException e) {
+            server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        }
+    }
+
+    /**
+     * A token count from a chat completion's "usage" field, or -1
+     * if there is none. Scans from the end, where the field usually is, instead
+     * of parsing the whole response.
+     *
+     * @param key The quoted field name, {@link #PROMPT_TOKENS} or {@link #COMPLETION_TOKENS}
+     */
+    static int usageTokens(String responseJson, String key) {
+        int at = responseJson.lastIndexOf(key);
+        if (at < 0) {
+            return -1;
+        }
+        int i = at + key.length();
+        while (i < responseJson.length() && (responseJson.charAt(i) == ':' || Character.isWhitespace(responseJson.charAt(i)))) {
+            i++;
+        }
+        int value = 0;
+        int digits = 0;
+        while (i < responseJson.length() && Character.isDigit(responseJson.charAt(i)) && digits < 9) {
+            value = value * 10 + (responseJson.charAt(i++) - '0');
+            digits++;
+        }
+        return digits == 0 ? -1 : value;
+    }
+
+    /** One stage's latency in milliseconds, as shown over JMX. */
+    public static class StageSnapshot {
+        private final long count;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p99Millis;
+        private final double maxMillis;
+
+        @ConstructorProperties({"count", "meanMillis", "p50Millis", "p99Millis", "maxMillis"})
+        public StageSnapshot(long count, double meanMillis, double p50Millis, double p99Millis, double maxMillis) {
+            this.count = count;
+            this.meanMillis = meanMillis;
+            this.p50Millis = p50Millis;
+            this.p99Millis = p99Millis;
+            this.maxMillis = maxMillis;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+    }
+}
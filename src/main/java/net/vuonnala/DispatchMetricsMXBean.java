@@ -0,0 +1,35 @@
+package net.vuonnala;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link DispatchMetrics}, registered as
+ * {@value DispatchMetrics#OBJECT_NAME}. Latencies are in milliseconds.
+ */
+public interface DispatchMetricsMXBean {
+
+    long getRequestCount();
+
+    long getErrorCount();
+
+    /** Request bodies sent to LM Studio. */
+    long getBytesOut();
+
+    /** Response bodies received from LM Studio, as UTF-8. */
+    long getBytesIn();
+
+    long getPromptTokens();
+
+    long getCompletionTokens();
+
+    /** Completion tokens per second of LM Studio time, over responses that reported usage. */
+    double getTokensPerSecond();
+
+    /** Latency per stage, keyed by stage name. */
+    Map<String, DispatchMetrics.StageSnapshot> getStages();
+
+    /** All counters and stage latencies in a few lines. */
+    String summary();
+
+    void reset();
+}
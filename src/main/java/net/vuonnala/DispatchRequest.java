@@ -0,0 +1,157 @@
+package net.vuonnala;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A dispatch request parsed once into a Jackson tree. Validation, routing,
+ * storage and the HTTP call all read the same tree instead of re-parsing the
+ * JSON text.
+ *
+ * The tree is shared; callers must treat it as read-only.
+ */
+public class DispatchRequest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String json;
+    private final JsonNode root;
+    private final String conversationId;
+
+    private DispatchRequest(String json, JsonNode root, String conversationId) {
+        this.json = json;
+        this.root = root;
+        this.conversationId = conversationId;
+    }
+
+    /**
+     * Parses the request JSON. The conversation id is read with
+     * {@link MessageInput#getConversationId(JsonNode)}.
+     *
+     * @throws IllegalArgumentException if the text is not JSON
+     */
+    public static DispatchRequest parse(String json) {
+        return parse(json, new MessageInput());
+    }
+
+    public static DispatchRequest parse(String json, MessageInput input) {
+        JsonNode root = readTree(json);
+        return of(json, root, input.getConversationId(root));
+    }
+
+    /** The first step of {@link #parse}, for callers that time each step. */
+    static JsonNode readTree(String json) {
+        JsonNode root;
+        try {
+            root = MAPPER.readTree(json);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Failed to parse JSON content.", e);
+        }
+        if (root == null) {
+            throw new IllegalArgumentException("Failed to parse JSON content.");
+        }
+        return root;
+    }
+
+    static DispatchRequest of(String json, JsonNode root, String conversationId) {
+        return new DispatchRequest(json, root, conversationId);
+    }
+
+    /**
+     * A copy of this request with other messages, e.g. a trimmed history. The
+     * copy shares all other fields with this request.
+     */
+    public DispatchRequest withMessages(ArrayNode messages) {
+        ObjectNode copy = MAPPER.createObjectNode();
+        Iterator<Map.Entry<String, JsonNode>> fields = root.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            copy.set(field.getKey(), field.getKey().equals("messages") ? messages : field.getValue());
+        }
+        if (!copy.has("messages")) {
+            copy.set("messages", messages);
+        }
+        return new DispatchRequest(null, copy, conversationId);
+    }
+
+    /**
+     * A copy of this request for another model, e.g. to compare models on the
+     * same messages. The copy shares all other fields with this request.
+     */
+    public DispatchRequest withModel(String model) {
+        ObjectNode copy = MAPPER.createObjectNode();
+        if (root.isObject()) {
+            copy.setAll((ObjectNode) root);
+        }
+        copy.put("model", model);
+        return new DispatchRequest(null, copy, conversationId);
+    }
+
+    /** The JSON text the request was parsed from, or its serialized tree for a derived request. */
+    public String getJson() {
+        return json != null ? json : root.toString();
+    }
+
+    public JsonNode getRoot() {
+        return root;
+    }
+
+    /** The conversation_id, or "unknown" if the request has none. */
+    public String getConversationId() {
+        return conversationId;
+    }
+
+    /** The model name, or null if the request has no textual "model". */
+    public String getModel() {
+        JsonNode model = root.get("model");
+        return model != null && model.isTextual() ? model.asText() : null;
+    }
+
+    /** The "messages" array, or null if the request has none. */
+    public JsonNode getMessages() {
+        JsonNode messages = root.get("messages");
+        return messages != null && messages.isArray() ? messages : null;
+    }
+
+    /**
+     * False if the request sets {@code "cache": false} to skip the {@link ResponseCache}.
+     */
+    public boolean isCacheable() {
+        return root.path("cache").asBoolean(true);
+    }
+
+    /**
+     * Serializes the chat completion body straight from the tree: the model, the
+     * messages and, when streaming, the stream flags.
+     *
+     * @throws IllegalArgumentException if the model or messages are missing
+     */
+    public byte[] toRequestBody(boolean stream) {
+        String model = getModel();
+        if (model == null) {
+            throw new IllegalArgumentException("JSON must contain a 'model' field (string).");
+        }
+        JsonNode messages = getMessages();
+        if (messages == null) {
+            throw new IllegalArgumentException("Validated JSON does not have a 'messages' array.");
+        }
+
+        ObjectNode body = MAPPER.createObjectNode();
+        body.put("model", model);
+        body.set("messages", messages);
+        if (stream) {
+            body.put("stream", true);
+            body.putObject("stream_options").put("include_usage", true);
+        }
+        try {
+            return MAPPER.writeValueAsBytes(body);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to serialize request body", e);
+        }
+    }
+}
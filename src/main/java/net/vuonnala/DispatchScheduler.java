@@ -0,0 +1,387 @@
+package net.vuonnala;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Decides which dispatch runs next when more are waiting than may run at
+ * once, so a large batch can't starve the user in the chat window.
+ *
+ * <ul>
+ *   <li>Every dispatch has a {@link Priority}. The classes share the slots by
+ *       weight (stride scheduling), so interactive turns go first without
+ *       starving background work. {@code reserved} slots are kept free for
+ *       interactive turns, which then don't wait for a batch request to end.</li>
+ *   <li>Within a class, conversations take turns: each waiting conversation
+ *       gets one dispatch in turn, however many it has queued.</li>
+ *   <li>Turns of one conversation run one at a time and in submission order;
+ *       different conversations run in parallel. Each conversation has its own
+ *       lane, so a turn only ever waits behind turns of its own conversation.
+ *       A lane holding turns of several priorities is scheduled at the
+ *       highest of them, so an interactive turn isn't held back by a
+ *       background turn queued before it. A cancelled turn keeps its lane and
+ *       slot until its dispatch thread has returned, as the thread may still
+ *       store the turn.</li>
+ * </ul>
+ *
+ * Requests without a conversation id are not ordered. Dispatches run through
+ * {@link MessageDispatcher#dispatchAsync}; the scheduler itself has no threads.
+ */
+public class DispatchScheduler {
+
+    public static final int DEFAULT_CONCURRENCY = 8;
+    public static final int DEFAULT_RESERVED = 1;
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    public enum Priority {
+        /** A user is waiting, e.g. in the chat window. */
+        INTERACTIVE(16),
+        /** Bulk jobs such as {@link BatchRunner}. */
+        BATCH(4),
+        /** Work nobody is waiting for. */
+        BACKGROUND(1);
+
+        /** Share of the slots while every class has work waiting. */
+        public final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private final MessageDispatcher dispatcher;
+    private final int concurrency;
+    private final int reserved;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Lane> lanes = new HashMap<>();  // conversations with turns queued or running
+    private final Map<Priority, Queue> queues = new EnumMap<>(Priority.class);
+    private double virtualTime;                              // guarded by lock, like the queues and running
+    private int running;
+
+    /** A priority class: its conversations with a turn waiting, in round-robin order. */
+    private static final class Queue {
+        final ArrayDeque<Lane> ready = new ArrayDeque<>();
+        final LatencyHistogram waits = new LatencyHistogram();
+        double pass;
+        int queued;
+        long started;
+    }
+
+    /** The turns of one conversation. */
+    private static final class Lane {
+        final String conversationId;
+        final ArrayDeque<Task<?>> tasks = new ArrayDeque<>();
+        Priority readyIn;  // the queue this lane waits in, or null while running or empty
+        boolean active;
+
+        Lane(String conversationId) {
+            this.conversationId = conversationId;
+        }
+
+        Priority highest() {
+            Priority best = Priority.BACKGROUND;
+            for (Task<?> task : tasks) {
+                if (task.priority.compareTo(best) < 0) {
+                    best = task.priority;
+                }
+            }
+            return best;
+        }
+    }
+
+    private static final class Task<T> {
+        final Priority priority;
+        final Supplier<CompletableFuture<T>> start;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final long queuedAt = System.nanoTime();
+        Lane lane;  // guarded by the scheduler's lock
+        volatile CompletableFuture<T> running;
+
+        Task(Priority priority, Supplier<CompletableFuture<T>> start) {
+            this.priority = priority;
+            this.start = start;
+        }
+    }
+
+    public DispatchScheduler(MessageDispatcher dispatcher) {
+        this(dispatcher, DEFAULT_CONCURRENCY, DEFAULT_RESERVED);
+    }
+
+    /**
+     * @param concurrency Dispatches running at once
+     * @param reserved    Of those, slots only interactive dispatches may use
+     */
+    public DispatchScheduler(MessageDispatcher dispatcher, int concurrency, int reserved) {
+        if (concurrency < 1 || reserved < 0 || reserved >= concurrency) {
+            throw new IllegalArgumentException("Invalid scheduler slots: concurrency " + concurrency
+                    + ", reserved " + reserved);
+        }
+        this.dispatcher = dispatcher;
+        this.concurrency = concurrency;
+        this.reserved = reserved;
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new Queue());
+        }
+    }
+
+    /**
+     * Schedules {@link MessageDispatcher#dispatchAsync(String, String, int, Duration)}.
+     * The deadline counts from when the dispatch starts, not while it waits.
+     * Cancelling the future takes a waiting dispatch out of the queue, or
+     * aborts a running one.
+     */
+    public CompletableFuture<String> dispatch(Priority priority, String jsonContent, String ip, int port,
+                                              Duration deadline) {
+        return submit(priority, conversationId(jsonContent),
+                () -> dispatcher.dispatchAsync(jsonContent, ip, port, deadline));
+    }
+
+    /**
+     * Schedules {@link MessageDispatcher#dispatchAsync(String, Duration)}, through the backend pool.
+     */
+    public CompletableFuture<String> dispatch(Priority priority, String jsonContent, Duration deadline) {
+        return submit(priority, conversationId(jsonContent), () -> dispatcher.dispatchAsync(jsonContent, deadline));
+    }
+
+    /**
+     * Schedules {@link MessageDispatcher#dispatchStreamingAsync(String, String, int, Consumer, Duration)}.
+     */
+    public CompletableFuture<ChatCompletion> dispatchStreaming(Priority priority, String jsonContent, String ip,
+                                                               int port, Consumer<String> onToken, Duration deadline) {
+        return submit(priority, conversationId(jsonContent),
+                () -> dispatcher.dispatchStreamingAsync(jsonContent, ip, port, onToken, deadline));
+    }
+
+    /**
+     * Schedules any asynchronous work as a turn of {@code conversationId};
+     * {@code start} is called when the turn's slot comes up.
+     *
+     * @param conversationId Null for work that needs no ordering
+     */
+    public <T> CompletableFuture<T> submit(Priority priority, String conversationId,
+                                           Supplier<CompletableFuture<T>> start) {
+        Task<T> task = new Task<>(priority, start);
+        task.result.whenComplete((value, failure) -> {
+            CompletableFuture<T> inner = task.running;
+            if (task.result.isCancelled() && inner != null) {
+                inner.cancel(true);
+            }
+        });
+        List<Task<?>> toStart;
+        lock.lock();
+        try {
+            Lane lane = conversationId == null ? new Lane(null) : lanes.computeIfAbsent(conversationId, Lane::new);
+            task.lane = lane;
+            lane.tasks.add(task);
+            queues.get(priority).queued++;
+            if (!lane.active) {
+                ready(lane);
+            }
+            toStart = schedule();
+        } finally {
+            lock.unlock();
+        }
+        startAll(toStart);
+        return task.result;
+    }
+
+    /** Puts a lane with waiting turns into the queue of its highest priority. */
+    private void ready(Lane lane) {
+        Priority priority = lane.highest();
+        if (lane.readyIn == priority) {
+            return;
+        }
+        if (lane.readyIn != null) {
+            queues.get(lane.readyIn).ready.remove(lane);
+        }
+        Queue queue = queues.get(priority);
+        if (queue.ready.isEmpty()) {
+            queue.pass = Math.max(queue.pass, virtualTime);  // an idle class earns no credit
+        }
+        queue.ready.add(lane);
+        lane.readyIn = priority;
+    }
+
+    /** Takes turns off the queues while there are free slots; the caller starts them outside the lock. */
+    private List<Task<?>> schedule() {
+        List<Task<?>> toStart = new ArrayList<>();
+        while (running < concurrency) {
+            boolean shared = running < concurrency - reserved;
+            Priority next = null;
+            for (Priority priority : Priority.values()) {
+                Queue queue = queues.get(priority);
+                if (!queue.ready.isEmpty() && (shared || priority == Priority.INTERACTIVE)
+                        && (next == null || queue.pass < queues.get(next).pass)) {
+                    next = priority;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            Queue queue = queues.get(next);
+            Lane lane = queue.ready.poll();
+            lane.readyIn = null;
+            Task<?> task = lane.tasks.poll();
+            queues.get(task.priority).queued--;
+            if (task.result.isDone()) {
+                idle(lane);  // cancelled while it waited
+                continue;
+            }
+            virtualTime = queue.pass;
+            queue.pass += 1.0 / next.weight;
+            queue.started++;
+            queue.waits.record(System.nanoTime() - task.queuedAt);
+            lane.active = true;
+            running++;
+            toStart.add(task);
+        }
+        return toStart;
+    }
+
+    private void idle(Lane lane) {
+        if (!lane.tasks.isEmpty()) {
+            ready(lane);
+        } else if (lane.conversationId != null) {
+            lanes.remove(lane.conversationId);
+        }
+    }
+
+    private void startAll(List<Task<?>> tasks) {
+        for (Task<?> task : tasks) {
+            start(task);
+        }
+    }
+
+    private <T> void start(Task<T> task) {
+        CompletableFuture<T> inner;
+        try {
+            inner = task.start.get();
+        } catch (RuntimeException e) {
+            inner = CompletableFuture.failedFuture(e);
+        }
+        task.running = inner;
+        if (task.result.isCancelled()) {
+            inner.cancel(true);  // cancelled while starting
+        }
+        // A cancelled dispatch's thread may still be storing its answer, so the
+        // lane stays taken until the thread is done
+        CompletableFuture<Void> worker = inner instanceof MessageDispatcher.AsyncDispatch<?> dispatch
+                ? dispatch.workerFinished() : null;
+        if (worker != null) {
+            worker.whenComplete((value, failure) -> finished(task));
+        }
+        inner.whenComplete((value, failure) -> {
+            if (worker == null) {
+                finished(task);
+            }
+            if (failure != null) {
+                task.result.completeExceptionally(failure);
+            } else {
+                task.result.complete(value);
+            }
+        });
+    }
+
+    private void finished(Task<?> task) {
+        List<Task<?>> toStart;
+        lock.lock();
+        try {
+            running--;
+            task.lane.active = false;
+            idle(task.lane);
+            toStart = schedule();
+        } finally {
+            lock.unlock();
+        }
+        startAll(toStart);
+    }
+
+    /** Dispatches running right now. */
+    public int getRunningCount() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Dispatches of a class waiting for a slot. */
+    public int getQueuedCount(Priority priority) {
+        lock.lock();
+        try {
+            return queues.get(priority).queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Dispatches of a class started so far. */
+    public long getStartedCount(Priority priority) {
+        lock.lock();
+        try {
+            return queues.get(priority).started;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** How long dispatches of a class waited for their slot. */
+    public LatencyHistogram getQueueWaits(Priority priority) {
+        return queues.get(priority).waits;
+    }
+
+    /** "interactive started=.. queued=.. wait p50 .. ms, p95 .. ms; batch ...", for reports. */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (Priority priority : Priority.values()) {
+            LatencyHistogram waits = getQueueWaits(priority);
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(String.format("%s started=%d queued=%d wait p50 %.1f ms, p95 %.1f ms",
+                    priority.name().toLowerCase(), getStartedCount(priority), getQueuedCount(priority),
+                    waits.getPercentileMillis(0.50), waits.getPercentileMillis(0.95)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The conversation id of a request, read without parsing the whole
+     * request, or null if there is none.
+     */
+    static String conversationId(String json) {
+        try (JsonParser parser = JSON.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (name.equals("conversation_id")) {
+                    return value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                }
+                parser.skipChildren();
+            }
+        } catch (IOException e) {
+            // Not JSON; validation rejects it when it runs
+        }
+        return null;
+    }
+}
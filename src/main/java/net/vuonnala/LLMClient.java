@@ -1,20 +1,26 @@
 package net.vuonnala;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-
-import org.json.JSONArray;
-import org.json.JSONObject;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 public class LLMClient {
     private static final ObjectMapper MAPPER = new ObjectMapper();
@@ -23,15 +29,57 @@ public class LLMClient {
     private final HttpClient httpClient;
     private final String baseUrl;
 
+    private volatile ConcurrencyLimiter limiter;
+
+    /** LM Studio answered, but with a status other than 200. */
+    public static class HttpStatusException extends IOException {
+        private final int statusCode;
+
+        public HttpStatusException(int statusCode, String message) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * True for 5xx, where the backend failed. A 4xx, e.g. a model that isn't
+         * loaded or a prompt over the context length, is about the request.
+         */
+        public boolean isServerError() {
+            return statusCode >= 500;
+        }
+    }
+
     public LLMClient(String ip, int port) {
-        this.httpClient = HttpClient.newBuilder()
+        this(HttpClient.newBuilder()
                 .version(HttpClient.Version.HTTP_1_1)               // Force HTTP/1.1
                 .connectTimeout(Duration.ofSeconds(5))             // Connection handshake
-                .build();
+                .build(), ip, port);
+    }
 
+    /**
+     * Uses the given, possibly shared, HTTP client. See {@link LLMClientRegistry}.
+     */
+    public LLMClient(HttpClient httpClient, String ip, int port) {
+        this.httpClient = httpClient;
         this.baseUrl = "http://" + ip + ":" + port;
     }
 
+    /**
+     * Caps the chat completions in flight through this client, blocking or
+     * streamed; null for no cap. {@link #sendAsync} is not limited.
+     */
+    public void setLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public ConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
     /**
      * Sends the user (already validated) JSON to LM Studio’s /v1/chat/completions endpoint.
      * Expects the JSON to contain "model" and "messages" fields:
@@ -49,50 +97,376 @@ public class LLMClient {
      * @throws InterruptedException
      */
     public String sendToLlmStudio(String validatedJson) throws IOException, InterruptedException {
-        // 1) Parse the validated JSON
-        JsonNode rootNode = MAPPER.readTree(validatedJson);
+        return sendToLlmStudio(DispatchRequest.parse(validatedJson));
+    }
 
-        // 2) Extract the "model"
-        JsonNode modelNode = rootNode.get("model");
-        if (modelNode == null || !modelNode.isTextual()) {
-            throw new IllegalArgumentException("JSON must contain a 'model' field (string).");
+    /**
+     * Same as {@link #sendToLlmStudio(String)} for an already parsed request. The
+     * body is serialized straight from the request's tree.
+     */
+    public String sendToLlmStudio(DispatchRequest request) throws IOException, InterruptedException {
+        return sendToLlmStudio(request, DispatchMetrics.NONE);
+    }
+
+    /**
+     * Same as {@link #sendToLlmStudio(DispatchRequest)}, recording the time to the
+     * response headers and the bytes sent and received. If the calling thread is
+     * interrupted while waiting, the HTTP exchange is aborted.
+     */
+    public String sendToLlmStudio(DispatchRequest request, DispatchMetrics metrics)
+            throws IOException, InterruptedException {
+        ConcurrencyLimiter.Permit permit = acquire();
+        long start = System.nanoTime();
+        try {
+            String response = await(sendAsync(request, metrics));
+            if (permit != null) {
+                permit.success(System.nanoTime() - start, completionTokens(response));
+            }
+            return response;
+        } catch (IOException e) {
+            // Catch the exact connection or timeout error
+            DebugLog.log("Exception during HTTP request: " + e.getMessage());
+            if (permit != null && isOverload(e)) {
+                permit.failure();
+            }
+            throw e; // Rethrow so it's handled upstream
+        } catch (InterruptedException e) {
+            DebugLog.log("HTTP request cancelled");
+            throw e;
+        } finally {
+            if (permit != null) {
+                permit.release();  // does nothing if the outcome was recorded above
+            }
         }
-        String model = modelNode.asText();
+    }
+
+    /**
+     * Whether a failed call should back the limiter off: timeouts, transport
+     * errors and 5xx. A 4xx says only that the request was bad.
+     */
+    private static boolean isOverload(IOException e) {
+        return !(e instanceof HttpStatusException status) || status.isServerError();
+    }
 
-        // 3) Extract the "messages" array
-        JsonNode messagesNode = rootNode.get("messages");
-        if (messagesNode == null || !messagesNode.isArray()) {
-            throw new IllegalArgumentException("Validated JSON does not have a 'messages' array.");
+    /** The answer's completion tokens, estimated from its content if it reports no usage. */
+    private static int completionTokens(String response) {
+        int tokens = DispatchMetrics.usageTokens(response, DispatchMetrics.COMPLETION_TOKENS);
+        if (tokens > 0) {
+            return tokens;
         }
+        try {
+            JsonNode message = MAPPER.readTree(response).path("choices").path(0).path("message");
+            return Tokenizer.APPROXIMATE.count(message.path("content").asText(""));
+        } catch (IOException e) {
+            return Tokenizer.APPROXIMATE.count(response);
+        }
+    }
 
-        // 4) Build the request body for LM Studio
-        JSONObject requestBody = new JSONObject();
-        requestBody.put("model", model);
-        requestBody.put("messages", new JSONArray(messagesNode.toString()));
+    /** A slot from the limiter, or null if there is no limiter. */
+    private ConcurrencyLimiter.Permit acquire() throws IOException, InterruptedException {
+        ConcurrencyLimiter l = limiter;
+        return l == null ? null : l.acquire();
+    }
+
+    /**
+     * Non-blocking {@link #sendToLlmStudio(DispatchRequest, DispatchMetrics)}. The
+     * future completes on an HTTP client thread with the raw response, or with an
+     * {@link IOException} for transport errors and an {@link HttpStatusException}
+     * for non-200 answers. Cancelling it, or completing it any other way before
+     * the answer arrives, aborts the HTTP exchange and closes its connection.
+     */
+    public CompletableFuture<String> sendAsync(DispatchRequest request, DispatchMetrics metrics) {
+        // 1) Build the request body for LM Studio
+        byte[] requestBody = request.toRequestBody(false);
+        metrics.sent(requestBody.length);
 
         String endpoint = baseUrl + "/v1/chat/completions";
-        System.out.println("[DEBUG] POSTing to: " + endpoint);
+        DebugLog.log("POSTing to: " + endpoint);
 
         HttpRequest httpRequest = HttpRequest.newBuilder()
                 .uri(URI.create(endpoint))
                 .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString()))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(requestBody))
                 .build();
 
-        // 6) Send request
-        try {
-            HttpResponse<String> response = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
-            System.out.println("[DEBUG] HTTP status: " + response.statusCode());
-            System.out.println("[DEBUG] Response body: " + response.body());
+        // 2) Send request. The body is decoded as UTF-8, which JSON requires (RFC 8259)
+        long start = System.nanoTime();
+        HttpResponse.BodyHandler<String> handler = info -> {
+            metrics.lap(DispatchMetrics.Stage.FIRST_BYTE, start);
+            return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(), bytes -> {
+                metrics.received(bytes.length);
+                return new String(bytes, StandardCharsets.UTF_8);
+            });
+        };
+        CompletableFuture<HttpResponse<String>> exchange = httpClient.sendAsync(httpRequest, handler);
+        CompletableFuture<String> result = exchange.thenApply(response -> {
+            DebugLog.log("HTTP status: " + response.statusCode());
+            DebugLog.log("Response body: " + response.body());
+            if (response.statusCode() != 200) {
+                // Same as streaming: an error body is not an answer to store or cache
+                throw new CompletionException(new HttpStatusException(response.statusCode(),
+                        "Chat completion failed: HTTP " + response.statusCode() + ": " + response.body()));
+            }
             return response.body();
+        });
+        // Cancelling a dependent future doesn't reach the exchange by itself
+        result.whenComplete((body, failure) -> {
+            if (failure != null) {
+                exchange.cancel(true);
+            }
+        });
+        return result;
+    }
 
-        } catch (IOException | InterruptedException e) {
-            // Catch the exact connection or timeout error
-            System.out.println("[DEBUG] Exception during HTTP request: " + e.getMessage());
-            throw e; // Rethrow so it's handled upstream
+    /**
+     * Waits for an exchange. An interrupted wait cancels it, which aborts the
+     * HTTP exchange, so a cancelled dispatch doesn't keep the backend busy.
+     */
+    private static <T> T await(CompletableFuture<T> exchange) throws IOException, InterruptedException {
+        try {
+            return exchange.get();
+        } catch (InterruptedException e) {
+            exchange.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /** The number of bytes {@code s} takes as UTF-8, without encoding it. */
+    static long utf8Length(CharSequence s) {
+        long bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Streams a chat completion from /v1/chat/completions. Sends the request with
+     * "stream": true and hands each content token to {@code onToken} as its
+     * server-sent event arrives. {@code onToken} runs on the calling thread.
+     * Interrupting that thread aborts the stream.
+     *
+     * If the backend ignores "stream" and answers with a regular JSON response,
+     * the whole content is delivered as a single token.
+     *
+     * @param validatedJson The entire validated conversation JSON
+     * @param onToken       Receives content tokens in order
+     * @return The assembled completion, with the same response JSON shape as
+     *         {@link #sendToLlmStudio(String)} plus time-to-first-token
+     */
+    public ChatCompletion streamToLlmStudio(String validatedJson, Consumer<String> onToken)
+            throws IOException, InterruptedException {
+        return streamToLlmStudio(DispatchRequest.parse(validatedJson), onToken);
+    }
+
+    /**
+     * Same as {@link #streamToLlmStudio(String, Consumer)} for an already parsed request.
+     */
+    public ChatCompletion streamToLlmStudio(DispatchRequest request, Consumer<String> onToken)
+            throws IOException, InterruptedException {
+        return streamToLlmStudio(request, onToken, DispatchMetrics.NONE);
+    }
+
+    /**
+     * Same as {@link #streamToLlmStudio(DispatchRequest, Consumer)}, recording the
+     * time to the response headers, the bytes sent and received (UTF-8).
+     */
+    public ChatCompletion streamToLlmStudio(DispatchRequest request, Consumer<String> onToken,
+                                           DispatchMetrics metrics) throws IOException, InterruptedException {
+        ConcurrencyLimiter.Permit permit = acquire();
+        try {
+            ChatCompletion completion = stream(request, onToken, metrics);
+            if (permit != null) {
+                permit.success(completion.totalNanos, completion.completionTokens > 0
+                        ? completion.completionTokens : Tokenizer.APPROXIMATE.count(completion.content));
+            }
+            return completion;
+        } catch (IOException e) {
+            if (permit != null && isOverload(e)) {
+                permit.failure();
+            }
+            throw e;
+        } finally {
+            if (permit != null) {
+                permit.release();
+            }
         }
     }
 
+    private ChatCompletion stream(DispatchRequest request, Consumer<String> onToken, DispatchMetrics metrics)
+            throws IOException, InterruptedException {
+        byte[] requestBody = request.toRequestBody(true);
+        metrics.sent(requestBody.length);
+
+        String endpoint = baseUrl + "/v1/chat/completions";
+        DebugLog.log("Streaming POST to: " + endpoint);
+
+        HttpRequest httpRequest = HttpRequest.newBuilder()
+                .uri(URI.create(endpoint))
+                .header("Content-Type", "application/json")
+                .header("Accept", "text/event-stream")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(requestBody))
+                .build();
+
+        long start = System.nanoTime();
+        HttpResponse<Stream<String>> response = await(httpClient.sendAsync(httpRequest, info -> {
+            metrics.lap(DispatchMetrics.Stage.FIRST_BYTE, start);
+            return HttpResponse.BodyHandlers.ofLines().apply(info);
+        }));
+        DebugLog.log("HTTP status: " + response.statusCode());
+
+        SseAccumulator accumulator = new SseAccumulator(start, onToken);
+        long received = 0;
+        try (Stream<String> lines = response.body()) {
+            Iterator<String> it = lines.iterator();
+            while (it.hasNext() && !accumulator.done) {
+                String line = it.next();
+                received += utf8Length(line) + 1;  // and its line feed
+                accumulator.accept(line);
+            }
+        } catch (UncheckedIOException e) {
+            // An interrupted read closes the body, and closing it aborts the exchange
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Stream cancelled");
+            }
+            throw e;
+        }
+        metrics.received(received);
+        if (response.statusCode() != 200) {
+            throw new HttpStatusException(response.statusCode(),
+                    "Chat completion failed: HTTP " + response.statusCode() + ": " + accumulator.raw);
+        }
+
+        ChatCompletion completion = accumulator.finish(request.getModel(), System.nanoTime() - start);
+        DebugLog.log("Stream finished: " + completion);
+        return completion;
+    }
+
+    /**
+     * Folds server-sent events of a streamed chat completion back into one
+     * completion. Lines that aren't SSE are kept, so a non-streaming JSON answer
+     * can still be parsed at the end.
+     */
+    private static final class SseAccumulator {
+        private final long start;
+        private final Consumer<String> onToken;
+        private final StringBuilder content = new StringBuilder();
+        private final StringBuilder raw = new StringBuilder();
+        private boolean sawEvents;
+        private boolean done;
+        private long firstTokenNanos = -1;
+        private String id;
+        private String model;
+        private String role = "assistant";
+        private String finishReason;
+        private JsonNode usage;
+
+        SseAccumulator(long start, Consumer<String> onToken) {
+            this.start = start;
+            this.onToken = onToken;
+        }
+
+        void accept(String line) throws IOException {
+            if (!line.startsWith("data:")) {
+                if (!sawEvents && !line.startsWith(":") && !line.startsWith("event:")) {
+                    raw.append(line).append('\n');
+                }
+                return;
+            }
+            sawEvents = true;
+            String data = line.substring(5).trim();
+            if (data.equals("[DONE]")) {
+                done = true;
+                return;
+            }
+            if (data.isEmpty()) {
+                return;
+            }
+            JsonNode chunk = MAPPER.readTree(data);
+            if (chunk.hasNonNull("id")) id = chunk.get("id").asText();
+            if (chunk.hasNonNull("model")) model = chunk.get("model").asText();
+            if (chunk.hasNonNull("usage")) usage = chunk.get("usage");
+
+            for (JsonNode choice : chunk.path("choices")) {
+                JsonNode delta = choice.path("delta");
+                if (delta.hasNonNull("role")) role = delta.get("role").asText();
+                if (choice.hasNonNull("finish_reason")) finishReason = choice.get("finish_reason").asText();
+                String token = delta.path("content").asText("");
+                if (!token.isEmpty()) {
+                    token(token);
+                }
+            }
+        }
+
+        private void token(String token) {
+            if (firstTokenNanos < 0) {
+                firstTokenNanos = System.nanoTime() - start;
+            }
+            content.append(token);
+            onToken.accept(token);
+        }
+
+        ChatCompletion finish(String requestedModel, long totalNanos) throws IOException {
+            if (!sawEvents) {
+                // The backend answered without streaming
+                String body = raw.toString();
+                JsonNode message = MAPPER.readTree(body).path("choices").path(0).path("message");
+                String text = message.path("content").asText("");
+                if (!text.isEmpty()) {
+                    token(text);
+                }
+                JsonNode usageNode = MAPPER.readTree(body).path("usage");
+                return new ChatCompletion(body, message.path("role").asText("assistant"), text,
+                        firstTokenNanos, totalNanos,
+                        usageNode.path("prompt_tokens").asInt(-1), usageNode.path("completion_tokens").asInt(-1));
+            }
+
+            ObjectNode responseJson = MAPPER.createObjectNode();
+            if (id != null) responseJson.put("id", id);
+            responseJson.put("object", "chat.completion");
+            responseJson.put("model", model != null ? model : requestedModel);
+            ObjectNode choice = responseJson.putArray("choices").addObject();
+            choice.put("index", 0);
+            ObjectNode message = choice.putObject("message");
+            message.put("role", role);
+            message.put("content", content.toString());
+            if (finishReason != null) choice.put("finish_reason", finishReason);
+            if (usage != null) responseJson.set("usage", usage);
+
+            return new ChatCompletion(responseJson.toString(), role, content.toString(),
+                    firstTokenNanos, totalNanos,
+                    usage != null ? usage.path("prompt_tokens").asInt(-1) : -1,
+                    usage != null ? usage.path("completion_tokens").asInt(-1) : -1);
+        }
+    }
+
+    /**
+     * Turns the [DEBUG] output of the client and of every other class on or
+     * off, e.g. off for batch runs.
+     */
+    public static void setDebugLogging(boolean enabled) {
+        DebugLog.setEnabled(enabled);
+    }
+
     public List<String> fetchAvailableModels() throws IOException, InterruptedException {
         String endpoint = baseUrl + "/v1/models";
         HttpRequest request = HttpRequest.newBuilder()
@@ -105,7 +479,7 @@ public class LLMClient {
         HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
 
         if (response.statusCode() != 200) {
-            throw new IOException("Failed to fetch models: HTTP " + response.statusCode());
+            throw new HttpStatusException(response.statusCode(), "Failed to fetch models: HTTP " + response.statusCode());
         }
 
         JsonNode rootNode = MAPPER.readTree(response.body());
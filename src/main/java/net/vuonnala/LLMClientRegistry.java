@@ -0,0 +1,121 @@
+package net.vuonnala;
+
+import javax.management.JMException;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Hands out one {@link LLMClient} per backend endpoint, all sharing a single
+ * configured {@link HttpClient}. The HttpClient keeps idle connections alive and
+ * pools them per host, so reusing it avoids a new TCP handshake, selector thread
+ * and executor for every request.
+ */
+public class LLMClientRegistry implements AutoCloseable {
+
+    private static final Duration SHUTDOWN_GRACE = Duration.ofSeconds(5);
+
+    private final ExecutorService executor;
+    private final HttpClient httpClient;
+    private final Map<String, LLMClient> clients = new ConcurrentHashMap<>();
+    private volatile Supplier<ConcurrencyLimiter> limiters;
+
+    public LLMClientRegistry() {
+        this(false);
+    }
+
+    /**
+     * @param http2 Negotiate HTTP/2 where the backend supports it. LM Studio
+     *              speaks HTTP/1.1, which is also the fallback.
+     */
+    public LLMClientRegistry(boolean http2) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "echoforge-http-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.httpClient = HttpClient.newBuilder()
+                .version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))             // Connection handshake
+                .executor(executor)
+                .build();
+    }
+
+    /**
+     * Returns the shared client for the endpoint, creating it on first use.
+     */
+    public LLMClient get(String ip, int port) {
+        return clients.computeIfAbsent(ip + ":" + port, key -> {
+            LLMClient client = new LLMClient(httpClient, ip, port);
+            limit(key, client, limiters);
+            return client;
+        });
+    }
+
+    /**
+     * Gives every endpoint, present and future, its own {@link ConcurrencyLimiter}
+     * from the factory, registered over JMX. Null removes the limits.
+     */
+    public void setConcurrencyLimits(Supplier<ConcurrencyLimiter> factory) {
+        this.limiters = factory;
+        clients.forEach((endpoint, client) -> limit(endpoint, client, factory));
+    }
+
+    private static void limit(String endpoint, LLMClient client, Supplier<ConcurrencyLimiter> factory) {
+        ConcurrencyLimiter limiter = factory == null ? null : factory.get();
+        if (limiter != null) {
+            try {
+                limiter.register(endpoint);
+            } catch (JMException e) {
+                DebugLog.log("Could not register the limiter of " + endpoint + ": " + e.getMessage());
+            }
+        }
+        client.setLimiter(limiter);
+    }
+
+    /** Each endpoint's {@link ConcurrencyLimiter#summary()}, one per line; empty without limits. */
+    public String describeLimits() {
+        StringBuilder sb = new StringBuilder();
+        new TreeMap<>(clients).forEach((endpoint, client) -> {
+            ConcurrencyLimiter limiter = client.getLimiter();
+            if (limiter != null) {
+                sb.append("Limit:      ").append(endpoint).append(' ').append(limiter.summary()).append('\n');
+            }
+        });
+        return sb.toString();
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    /**
+     * Lets in-flight exchanges finish for a few seconds, aborts whatever is left,
+     * then releases the HttpClient and its threads.
+     */
+    @Override
+    public void close() {
+        clients.clear();
+        httpClient.shutdown();
+        try {
+            if (!httpClient.awaitTermination(SHUTDOWN_GRACE)) {
+                httpClient.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            httpClient.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdown();
+    }
+}
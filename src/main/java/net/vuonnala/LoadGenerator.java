@@ -0,0 +1,260 @@
+package net.vuonnala;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives {@link MessageDispatcher} with synthetic chat requests for a fixed
+ * time and reports throughput, latency percentiles, heap use and garbage
+ * collection. Meant to run against a {@link StubLlmServer}, so a load test
+ * needs neither a GPU nor a network.
+ *
+ * Load is either closed, a fixed number of requests in flight with a new one
+ * sent as soon as one finishes, or open, requests sent at a fixed rate whether
+ * or not earlier ones have finished. In the open model latency is measured from
+ * when a request was due rather than when it went out, so a stalled dispatcher
+ * shows up in the percentiles instead of just lowering the rate.
+ */
+public class LoadGenerator {
+
+    public static final int DEFAULT_CONVERSATIONS = 1_000;
+
+    private static final Duration HEAP_SAMPLE_INTERVAL = Duration.ofMillis(50);
+
+    private final MessageDispatcher dispatcher;
+    private final String ip;
+    private final int port;
+    private final int conversations;
+    private final boolean streaming;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Dispatches through the dispatcher's {@link BackendPool}.
+     */
+    public LoadGenerator(MessageDispatcher dispatcher, int conversations, boolean streaming) {
+        this(dispatcher, null, 0, conversations, streaming);
+    }
+
+    /**
+     * Dispatches every request to one LMStudio endpoint.
+     *
+     * @param conversations Requests are spread over this many conversation ids
+     * @param streaming     Whether requests are streamed
+     */
+    public LoadGenerator(MessageDispatcher dispatcher, String ip, int port, int conversations, boolean streaming) {
+        if (conversations < 1) {
+            throw new IllegalArgumentException("Conversations must be at least 1.");
+        }
+        this.dispatcher = dispatcher;
+        this.ip = ip;
+        this.port = port;
+        this.conversations = conversations;
+        this.streaming = streaming;
+    }
+
+    /** Closed load: keeps {@code concurrency} requests in flight for {@code duration}. */
+    public Report runAtConcurrency(int concurrency, Duration duration) throws InterruptedException {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1.");
+        }
+        Run run = new Run();
+        long deadline = run.start + duration.toNanos();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < concurrency; i++) {
+                executor.submit(() -> {
+                    while (System.nanoTime() < deadline) {
+                        run.dispatchOne(System.nanoTime());
+                    }
+                });
+            }
+        }
+        return run.finish("concurrency " + concurrency);
+    }
+
+    /**
+     * Open load: starts {@code requestsPerSecond} requests a second for
+     * {@code duration}, each on its own virtual thread, then waits for the
+     * last ones to finish.
+     */
+    public Report runAtRate(double requestsPerSecond, Duration duration) throws InterruptedException {
+        if (requestsPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive.");
+        }
+        Run run = new Run();
+        long interval = (long) (1e9 / requestsPerSecond);
+        long count = (long) (duration.toNanos() / 1e9 * requestsPerSecond);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long i = 0; i < count; i++) {
+                long due = run.start + i * interval;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                executor.submit(() -> run.dispatchOne(due));
+            }
+        }
+        return run.finish(String.format("%.1f req/s", requestsPerSecond));
+    }
+
+    private String nextRequest() {
+        long n = sequence.incrementAndGet();
+        return "{\"conversation_id\":\"load-" + (n % conversations) + "\",\"model\":\"" + StubLlmServer.MODEL
+                + "\",\"messages\":[{\"role\":\"system\",\"content\":\"You are a helpful assistant.\"},"
+                + "{\"role\":\"user\",\"content\":\"Load test question number " + n + ", please answer briefly.\"}]}";
+    }
+
+    /** The counters of one run, and the sampler that watches the heap during it. */
+    private final class Run {
+        final long start = System.nanoTime();
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final LatencyHistogram firstTokens = new LatencyHistogram();
+        final LongAdder succeeded = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final long heapAtStart = memory.getHeapMemoryUsage().getUsed();
+        final AtomicLong peakHeap = new AtomicLong(heapAtStart);
+        final long gcCountAtStart = gcCount();
+        final long gcMillisAtStart = gcMillis();
+        final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "echoforge-load-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+
+        Run() {
+            sampler.scheduleAtFixedRate(() -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+                    0, HEAP_SAMPLE_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        /** Dispatches one request; latency counts from {@code due}. */
+        void dispatchOne(long due) {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            String json = nextRequest();
+            try {
+                if (streaming) {
+                    ChatCompletion completion = ip != null
+                            ? dispatcher.dispatchStreaming(json, ip, port, token -> { })
+                            : dispatcher.dispatchStreaming(json, token -> { });
+                    if (completion.timeToFirstTokenNanos >= 0) {
+                        firstTokens.record(completion.timeToFirstTokenNanos);  // from the start of the HTTP call
+                    }
+                } else if (ip != null) {
+                    dispatcher.dispatch(json, ip, port);
+                } else {
+                    dispatcher.dispatch(json);
+                }
+                latencies.record(System.nanoTime() - due);
+                succeeded.increment();
+            } catch (Exception e) {
+                failed.increment();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        Report finish(String load) {
+            long wall = System.nanoTime() - start;
+            sampler.shutdownNow();
+            long heapAtEnd = memory.getHeapMemoryUsage().getUsed();
+            return new Report(load, succeeded.sum(), failed.sum(), wall, latencies,
+                    streaming ? firstTokens : null, maxInFlight.get(), heapAtStart,
+                    Math.max(peakHeap.get(), heapAtEnd), heapAtEnd,
+                    gcCount() - gcCountAtStart, gcMillis() - gcMillisAtStart);
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    public static class Report {
+        /** "concurrency 16" or "40.0 req/s". */
+        public final String load;
+        public final long succeeded;
+        public final long failed;
+        public final long wallNanos;
+        public final LatencyHistogram latencies;
+        /** Time to first token of streamed requests, or null if not streaming. */
+        public final LatencyHistogram firstTokens;
+        public final int maxInFlight;
+        public final long heapAtStart;
+        public final long peakHeap;
+        public final long heapAtEnd;
+        public final long gcCount;
+        public final long gcMillis;
+
+        public Report(String load, long succeeded, long failed, long wallNanos, LatencyHistogram latencies,
+                      LatencyHistogram firstTokens, int maxInFlight, long heapAtStart, long peakHeap,
+                      long heapAtEnd, long gcCount, long gcMillis) {
+            this.load = load;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.wallNanos = wallNanos;
+            this.latencies = latencies;
+            this.firstTokens = firstTokens;
+            this.maxInFlight = maxInFlight;
+            this.heapAtStart = heapAtStart;
+            this.peakHeap = peakHeap;
+            this.heapAtEnd = heapAtEnd;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        public long total() {
+            return succeeded + failed;
+        }
+
+        public double throughputPerSecond() {
+            return wallNanos == 0 ? 0 : succeeded / (wallNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            String report = String.format("""
+                    Load:       %s, at most %d in flight
+                    Requests:   %d (ok %d, failed %d)
+                    Wall time:  %.2f s
+                    Throughput: %.2f req/s
+                    Latency:    p50 %.1f ms, p95 %.1f ms, p99 %.1f ms, max %.1f ms
+                    Heap:       %.1f MB at start, %.1f MB peak, %.1f MB at end
+                    GC:         %d collections, %d ms (%.1f%% of wall time)""",
+                    load, maxInFlight, total(), succeeded, failed, wallNanos / 1e9, throughputPerSecond(),
+                    latencies.getPercentileMillis(0.50), latencies.getPercentileMillis(0.95),
+                    latencies.getPercentileMillis(0.99), latencies.getMaxNanos() / 1e6,
+                    heapAtStart / 1e6, peakHeap / 1e6, heapAtEnd / 1e6,
+                    gcCount, gcMillis, wallNanos == 0 ? 0 : 100.0 * gcMillis * 1e6 / wallNanos);
+            if (firstTokens != null) {
+                report += String.format("%nFirst token: p50 %.1f ms, p95 %.1f ms, p99 %.1f ms",
+                        firstTokens.getPercentileMillis(0.50), firstTokens.getPercentileMillis(0.95),
+                        firstTokens.getPercentileMillis(0.99));
+            }
+            return report;
+        }
+    }
+}
@@ -1,24 +1,363 @@
 package net.vuonnala;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 public class Main {
+    private static final String USAGE = """
+            Usage: java -jar echoforge.jar [options]
+
+            Without options the Swing UI is started.
+
+              --db <file>            SQLite database (default responses.db)
+              --batch <in.jsonl>     Dispatch every line of the file headlessly and exit
+              --out <out.jsonl>      Batch results (default <in>.results.jsonl)
+              --ip <address>         LMStudio IP for batch mode (default 127.0.0.1)
+              --port <port>          LMStudio port for batch mode (default 1234)
+              --concurrency <n>      Requests in flight in batch mode (default 8)
+              --backends <list>      Balance batch requests over host:port,host:port,... instead of --ip/--port
+              --balance <mode>       least (fewest in-flight requests, default) or hash (conversation affinity)
+              --compact              Rewrite the database without its free pages, enable incremental vacuum, and exit
+              --stub <port>          Only serve a stub LMStudio (OpenAI API, no model) on the port until stopped
+              --stub-profile <spec>  Stub answers, e.g. latency=100ms,jitter=0ms,tps=200,tokens=64,errors=0.01
+              --load <seconds>       Generate load through the dispatcher for that long, report and exit. Uses an
+                                     embedded stub unless --ip/--port/--backends are given, and a temporary
+                                     database unless --db is
+              --rate <n>             Requests per second for --load; without it --concurrency requests stay in flight
+              --stream               Stream the --load requests
+              --replay <ids|all>     Send the stored turns of these conversations (comma separated) again, store the
+                                     run and report its latencies per model. Uses --ip/--port or --backends
+              --pace <pacing>        Replay pacing: original, original:<speedup>, max (default) or requests per second
+              --model <name>         Replay every turn to this model instead of its own
+              --baseline <run id>    Compare the replay with this earlier run
+              --label <text>         Name of the replay run in reports
+              --help                 Show this help
+            """;
+
     public static void main(String[] args) {
         try {
+            Map<String, String> flags = parseFlags(args);
+            if (flags.containsKey("help")) {
+                System.out.print(USAGE);
+                return;
+            }
+
+            if ((flags.containsKey("stub") || flags.containsKey("load"))
+                    && System.getProperty("sun.net.httpserver.nodelay") == null) {
+                // Before the stub's HttpServer starts; see StubLlmServer
+                System.setProperty("sun.net.httpserver.nodelay", "true");
+            }
+            if (flags.containsKey("stub")) {
+                runStub(flags);
+                return;
+            }
+
             // 1) Create a default validator with a known schema path
             MessageValidator validator = new MessageValidator(Main.class.getClassLoader().getResourceAsStream("schema.json"));
 
             // 2) Create message input logic & storage
             MessageInput messageInput = new MessageInput();
-            MessageStorage storage = new MessageStorage("responses.db");
+            MessageStorage storage = new MessageStorage(flags.getOrDefault("db",
+                    flags.containsKey("load") ? temporaryDatabase() : "responses.db"));
+            if (flags.containsKey("compact")) {
+                compact(storage);
+                return;
+            }
+            if (Boolean.getBoolean("echoforge.compression")) {
+                storage.enableCompression();  // -Dechoforge.compression=true
+            }
+
+            // 2b) Optional write-behind journal: -Dechoforge.writeBehind=true
+            WriteBehindJournal journal = null;
+            if (Boolean.getBoolean("echoforge.writeBehind")) {
+                journal = new WriteBehindJournal(storage,
+                        Integer.getInteger("echoforge.journal.queueDepth", WriteBehindJournal.DEFAULT_QUEUE_DEPTH),
+                        Integer.getInteger("echoforge.journal.batchSize", WriteBehindJournal.DEFAULT_BATCH_SIZE),
+                        Duration.ofMillis(Long.getLong("echoforge.journal.flushIntervalMs",
+                                WriteBehindJournal.DEFAULT_FLUSH_INTERVAL.toMillis())));
+                journal.register();  // queue depth and lag over JMX
+            }
+            // 2c) One shared HTTP client for all LMStudio endpoints: -Dechoforge.http2=true to negotiate HTTP/2
+            LLMClientRegistry clients = new LLMClientRegistry(Boolean.getBoolean("echoforge.http2"));
+            // Optional adaptive cap on requests in flight per endpoint: -Dechoforge.limit=true
+            if (Boolean.getBoolean("echoforge.limit")) {
+                int initialLimit = Integer.getInteger("echoforge.limit.initial", ConcurrencyLimiter.DEFAULT_INITIAL_LIMIT);
+                int maxLimit = Integer.getInteger("echoforge.limit.max", ConcurrencyLimiter.DEFAULT_MAX_LIMIT);
+                int maxQueue = Integer.getInteger("echoforge.limit.queue", ConcurrencyLimiter.DEFAULT_MAX_QUEUE);
+                Duration maxWait = Duration.ofMillis(Long.getLong("echoforge.limit.maxWaitMs",
+                        ConcurrencyLimiter.DEFAULT_MAX_WAIT.toMillis()));
+                clients.setConcurrencyLimits(() -> new ConcurrencyLimiter(initialLimit, maxLimit, maxQueue, maxWait));
+            }
+
+            // 2d) Optional pool of LMStudio nodes
+            BackendPool backends = null;
+            if (flags.containsKey("backends")) {
+                backends = new BackendPool(clients, BackendPool.parseEndpoints(flags.get("backends")),
+                        BackendPool.parseMode(flags.getOrDefault("balance", "")));
+            }
+
+            // 2e) Optional response cache: -Dechoforge.cache=true
+            ResponseCache cache = null;
+            if (Boolean.getBoolean("echoforge.cache")) {
+                cache = new ResponseCache(
+                        Boolean.parseBoolean(System.getProperty("echoforge.cache.persistent", "true")) ? storage : null,
+                        Integer.getInteger("echoforge.cache.maxEntries", ResponseCache.DEFAULT_MAX_ENTRIES),
+                        Long.getLong("echoforge.cache.maxBytes", ResponseCache.DEFAULT_MAX_BYTES),
+                        Duration.ofSeconds(Long.getLong("echoforge.cache.ttlSeconds",
+                                ResponseCache.DEFAULT_TTL.toSeconds())),
+                        Integer.getInteger("echoforge.cache.maxPersistentEntries",
+                                ResponseCache.DEFAULT_MAX_PERSISTENT_ENTRIES));
+            }
+
+            // 2f) Optional sharing of identical in-flight requests: -Dechoforge.coalesce=true
+            RequestCoalescer coalescer = Boolean.getBoolean("echoforge.coalesce") ? new RequestCoalescer() : null;
+
+            // 2g) Optional context window: -Dechoforge.context.budget=<tokens>
+            ContextWindow contextWindow = null;
+            if (Integer.getInteger("echoforge.context.budget", 0) > 0) {
+                contextWindow = new ContextWindow(Tokenizer.APPROXIMATE,
+                        Integer.getInteger("echoforge.context.budget"),
+                        ContextWindow.parseBudgets(System.getProperty("echoforge.context.modelBudgets", "")),
+                        Boolean.getBoolean("echoforge.context.summaries") ? storage : null);
+            }
+
+            // 2h) Optional retention: -Dechoforge.retention.days=<n> and/or -Dechoforge.retention.conversations=<n>
+            RetentionManager retention = null;
+            int keepDays = Integer.getInteger("echoforge.retention.days", 0);
+            int keepConversations = Integer.getInteger("echoforge.retention.conversations", 0);
+            if (keepDays > 0 || keepConversations > 0) {
+                retention = new RetentionManager(storage,
+                        new RetentionManager.Policy(keepDays > 0 ? Duration.ofDays(keepDays) : null, keepConversations),
+                        Duration.ofMinutes(Long.getLong("echoforge.retention.intervalMinutes",
+                                RetentionManager.DEFAULT_INTERVAL.toMinutes())));
+            }
+
+            final WriteBehindJournal shutdownJournal = journal;
+            final BackendPool shutdownBackends = backends;
+            final RetentionManager shutdownRetention = retention;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    if (shutdownBackends != null) {
+                        shutdownBackends.close();
+                    }
+                    clients.close();
+                    if (shutdownJournal != null) {
+                        shutdownJournal.close();  // drains pending responses
+                    }
+                    if (shutdownRetention != null) {
+                        shutdownRetention.close();
+                    }
+                    storage.close();
+                } catch (Exception e) {
+                    DebugLog.log("Failed to close storage: " + e.getMessage());
+                }
+            }));
 
             // 3) Create the dispatcher
-            MessageDispatcher dispatcher = new MessageDispatcher(validator, messageInput, storage);
+            MessageDispatcher dispatcher = new MessageDispatcher(validator, messageInput, storage, journal, clients);
+            dispatcher.setBackendPool(backends);
+            dispatcher.setResponseCache(cache);
+            dispatcher.setContextWindow(contextWindow);
+            dispatcher.setRequestCoalescer(coalescer);
+            dispatcher.getMetrics().register();  // per-stage latencies over JMX, e.g. in JConsole
 
-            // 4) Create the UI
-            UserInterface ui = new UserInterface(dispatcher, validator, storage);
+            // 4) Headless batch mode, a load test, or the UI
+            if (flags.containsKey("batch")) {
+                runBatch(dispatcher, flags);
+                return;
+            }
+            if (flags.containsKey("load")) {
+                runLoad(dispatcher, flags);
+                return;
+            }
+            if (flags.containsKey("replay")) {
+                runReplay(dispatcher, storage, flags);
+                return;
+            }
+            // Chat turns run as interactive: -Dechoforge.scheduler.concurrency=<n>, -Dechoforge.scheduler.reserved=<n>
+            DispatchScheduler scheduler = new DispatchScheduler(dispatcher,
+                    Integer.getInteger("echoforge.scheduler.concurrency", DispatchScheduler.DEFAULT_CONCURRENCY),
+                    Integer.getInteger("echoforge.scheduler.reserved", DispatchScheduler.DEFAULT_RESERVED));
+            UserInterface ui = new UserInterface(dispatcher, scheduler, validator, storage);
             ui.setVisible(true);
 
         } catch (Exception e) {
+            System.err.println("EchoForge failed: " + e.getMessage());
             System.exit(1);
         }
     }
+
+    private static void runBatch(MessageDispatcher dispatcher, Map<String, String> flags) throws Exception {
+        Path input = Path.of(flags.get("batch"));
+        Path output = Path.of(flags.getOrDefault("out", input + ".results.jsonl"));
+        int concurrency = Integer.parseInt(flags.getOrDefault("concurrency", "8"));
+        LLMClient.setDebugLogging(false);
+
+        BackendPool backends = dispatcher.getBackendPool();
+        BatchRunner runner;
+        if (backends != null) {
+            System.out.println("Dispatching " + input + " to " + backends.getBackends().size() + " backends ("
+                    + backends.getMode() + ") with concurrency " + concurrency + ", results in " + output);
+            runner = new BatchRunner(dispatcher, concurrency);
+        } else {
+            String ip = flags.getOrDefault("ip", "127.0.0.1");
+            int port = Integer.parseInt(flags.getOrDefault("port", "1234"));
+            System.out.println("Dispatching " + input + " to " + ip + ":" + port
+                    + " with concurrency " + concurrency + ", results in " + output);
+            runner = new BatchRunner(dispatcher, ip, port, concurrency);
+        }
+
+        // Keeps the turns of each conversation in file order
+        DispatchScheduler scheduler = new DispatchScheduler(dispatcher, concurrency, 0);
+        runner.setScheduler(scheduler);
+
+        BatchRunner.Report report = runner.run(input, output);
+        System.out.println(report);
+        System.out.println("Scheduler:  " + scheduler.summary());
+        if (backends != null) {
+            System.out.print(backends.describe());
+        }
+        if (dispatcher.getResponseCache() != null) {
+            System.out.println("Cache:      " + dispatcher.getResponseCache().summary());
+        }
+        if (dispatcher.getRequestCoalescer() != null) {
+            System.out.println("Coalesced:  " + dispatcher.getRequestCoalescer().summary());
+        }
+        if (dispatcher.getJournal() != null) {
+            System.out.println("Journal:    " + dispatcher.getJournal().summary());
+        }
+        System.out.print(dispatcher.getClientRegistry().describeLimits());
+        System.out.print("Dispatch:   " + dispatcher.getMetrics().summary());
+    }
+
+    private static void runStub(Map<String, String> flags) throws Exception {
+        StubLlmServer stub = new StubLlmServer(Integer.parseInt(flags.getOrDefault("stub", "1234")),
+                StubLlmServer.Profile.parse(flags.getOrDefault("stub-profile", "")));
+        System.out.println("Stub LMStudio on 127.0.0.1:" + stub.getPort() + " (" + stub.getProfile()
+                + "); Ctrl+C to stop");
+        // The server's dispatcher thread keeps the JVM running
+    }
+
+    private static void runLoad(MessageDispatcher dispatcher, Map<String, String> flags) throws Exception {
+        Duration duration = Duration.ofSeconds(Long.parseLong(flags.get("load").isEmpty() ? "30" : flags.get("load")));
+        int concurrency = Integer.parseInt(flags.getOrDefault("concurrency", "8"));
+        boolean streaming = flags.containsKey("stream");
+        LLMClient.setDebugLogging(false);
+
+        StubLlmServer stub = null;
+        LoadGenerator generator;
+        if (dispatcher.getBackendPool() != null) {
+            generator = new LoadGenerator(dispatcher, LoadGenerator.DEFAULT_CONVERSATIONS, streaming);
+        } else if (flags.containsKey("ip") || flags.containsKey("port")) {
+            generator = new LoadGenerator(dispatcher, flags.getOrDefault("ip", "127.0.0.1"),
+                    Integer.parseInt(flags.getOrDefault("port", "1234")), LoadGenerator.DEFAULT_CONVERSATIONS, streaming);
+        } else {
+            stub = new StubLlmServer(0, StubLlmServer.Profile.parse(flags.getOrDefault("stub-profile", "")));
+            generator = new LoadGenerator(dispatcher, "127.0.0.1", stub.getPort(),
+                    LoadGenerator.DEFAULT_CONVERSATIONS, streaming);
+            System.out.println("Stub LMStudio on 127.0.0.1:" + stub.getPort() + " (" + stub.getProfile() + ")");
+        }
+
+        try {
+            LoadGenerator.Report report;
+            if (flags.containsKey("rate")) {
+                System.out.println("Sending " + flags.get("rate") + " requests/s for " + duration.toSeconds() + " s");
+                report = generator.runAtRate(Double.parseDouble(flags.get("rate")), duration);
+            } else {
+                System.out.println("Keeping " + concurrency + " requests in flight for " + duration.toSeconds() + " s");
+                report = generator.runAtConcurrency(concurrency, duration);
+            }
+            System.out.println(report);
+            if (stub != null) {
+                System.out.println("Stub:       " + stub.summary());
+            }
+            if (dispatcher.getRequestCoalescer() != null) {
+                System.out.println("Coalesced:  " + dispatcher.getRequestCoalescer().summary());
+            }
+            if (dispatcher.getJournal() != null) {
+                System.out.println("Journal:    " + dispatcher.getJournal().summary());
+            }
+            System.out.print(dispatcher.getClientRegistry().describeLimits());
+            System.out.print("Dispatch:   " + dispatcher.getMetrics().summary());
+        } finally {
+            if (stub != null) {
+                stub.close();
+            }
+        }
+    }
+
+    private static void runReplay(MessageDispatcher dispatcher, MessageStorage storage, Map<String, String> flags)
+            throws Exception {
+        String selection = flags.get("replay");
+        List<String> conversationIds = selection.isEmpty() || selection.equals("all")
+                ? storage.getConversationIdsWithResponses()
+                : Arrays.stream(selection.split(",")).map(String::trim).filter(id -> !id.isEmpty()).toList();
+        ReplayRunner.Pacing pacing = ReplayRunner.Pacing.parse(flags.getOrDefault("pace", ""));
+        int concurrency = Integer.parseInt(flags.getOrDefault("concurrency",
+                String.valueOf(ReplayRunner.DEFAULT_MAX_IN_FLIGHT)));
+        LLMClient.setDebugLogging(false);
+
+        ReplayRunner runner;
+        if (dispatcher.getBackendPool() != null) {
+            runner = new ReplayRunner(dispatcher, storage);
+        } else {
+            runner = new ReplayRunner(dispatcher, storage, flags.getOrDefault("ip", "127.0.0.1"),
+                    Integer.parseInt(flags.getOrDefault("port", "1234")));
+        }
+        String model = flags.getOrDefault("model", "");
+        runner.setModel(model.isEmpty() ? null : model);
+        String baseline = flags.getOrDefault("baseline", "");
+        System.out.println("Replaying " + conversationIds.size() + " conversations at " + pacing
+                + " with at most " + concurrency + " turns in flight");
+
+        ReplayRunner.Report report = runner.run(conversationIds, pacing, concurrency,
+                flags.getOrDefault("label", "replay"));
+        System.out.println(report);
+        System.out.print(ReplayRunner.report(storage.getReplayStore(), report.runId, baseline.isEmpty() ? 0 : Long.parseLong(baseline)));
+        System.out.print(dispatcher.getClientRegistry().describeLimits());
+    }
+
+    /** A database for one load test, deleted on exit. */
+    private static String temporaryDatabase() throws IOException {
+        Path db = Files.createTempFile("echoforge-load", ".db");
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            new File(db + suffix).deleteOnExit();
+        }
+        return db.toString();
+    }
+
+    private static void compact(MessageStorage storage) throws Exception {
+        long before = storage.getStorageStats().databaseBytes;
+        System.out.println("Compacting the database (" + before / 1_000_000 + " MB)...");
+        storage.compact();
+        System.out.println("Compacted to " + storage.getStorageStats().databaseBytes / 1_000_000
+                + " MB; incremental vacuum is on");
+        storage.close();
+    }
+
+    /**
+     * Parses "--name value" pairs; a flag followed by another flag or nothing gets an empty value.
+     */
+    static Map<String, String> parseFlags(String[] args) {
+        Map<String, String> flags = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i] + "\n" + USAGE);
+            }
+            String name = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                flags.put(name, args[++i]);
+            } else {
+                flags.put(name, "");
+            }
+        }
+        return flags;
+    }
 }
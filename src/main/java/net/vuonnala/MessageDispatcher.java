@@ -1,16 +1,137 @@
 package net.vuonnala;
 
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
 public class MessageDispatcher {
     private final MessageValidator messageValidator;
     private final MessageInput messageInput;
     private final MessageStorage messageStorage;
+    private final WriteBehindJournal journal;
+    private final LLMClientRegistry clients;
+    private volatile BackendPool backends;
+    private volatile ResponseCache cache;
+    private volatile ContextWindow contextWindow;
+    private volatile RequestCoalescer coalescer;
+    private volatile DispatchMetrics metrics = new DispatchMetrics();
 
     public MessageDispatcher(MessageValidator validator,
                              MessageInput input,
                              MessageStorage storage) {
+        this(validator, input, storage, null, new LLMClientRegistry());
+    }
+
+    public MessageDispatcher(MessageValidator validator,
+                             MessageInput input,
+                             MessageStorage storage,
+                             WriteBehindJournal journal) {
+        this(validator, input, storage, journal, new LLMClientRegistry());
+    }
+
+    /**
+     * @param journal If not null, responses are handed to this write-behind journal
+     *                instead of being stored before {@link #dispatch} returns.
+     * @param clients Supplies the shared client for each LMStudio endpoint
+     */
+    public MessageDispatcher(MessageValidator validator,
+                             MessageInput input,
+                             MessageStorage storage,
+                             WriteBehindJournal journal,
+                             LLMClientRegistry clients) {
         this.messageValidator = validator;
         this.messageInput = input;
         this.messageStorage = storage;
+        this.journal = journal;
+        this.clients = clients;
+    }
+
+    /**
+     * Routes {@link #dispatch(String)} and {@link #dispatchStreaming(String, Consumer)}
+     * over several backends. Dispatches with an explicit ip and port bypass the pool.
+     */
+    public void setBackendPool(BackendPool backends) {
+        this.backends = backends;
+    }
+
+    public BackendPool getBackendPool() {
+        return backends;
+    }
+
+    /**
+     * Answers byte-identical non-streaming requests from the cache instead of
+     * calling the LLM. Requests with {@code "cache": false} always go to the LLM.
+     * Cached answers are stored as turns like any other response.
+     */
+    public void setResponseCache(ResponseCache cache) {
+        this.cache = cache;
+    }
+
+    public ResponseCache getResponseCache() {
+        return cache;
+    }
+
+    /**
+     * Lets identical requests that arrive while one is in flight share its
+     * call, streamed or not. Every caller still stores its own turn. Requests
+     * with {@code "cache": false} are never shared.
+     */
+    public void setRequestCoalescer(RequestCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    public RequestCoalescer getRequestCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * Trims each request to the window's token budget before it is sent. The
+     * stored turn still holds the untrimmed request.
+     */
+    public void setContextWindow(ContextWindow contextWindow) {
+        this.contextWindow = contextWindow;
+    }
+
+    public ContextWindow getContextWindow() {
+        return contextWindow;
+    }
+
+    /** The write-behind journal responses are handed to, or null if they are stored directly. */
+    public WriteBehindJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Per-stage latencies and counters of every dispatch; see {@link DispatchMetrics#register()}.
+     */
+    public DispatchMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(DispatchMetrics metrics) {
+        this.metrics = metrics != null ? metrics : DispatchMetrics.NONE;
+    }
+
+    /**
+     * The shared client for an LMStudio endpoint, e.g. for listing its models.
+     */
+    public LLMClient getClient(String ip, int port) {
+        return clients.get(ip, port);
+    }
+
+    public LLMClientRegistry getClientRegistry() {
+        return clients;
     }
 
     /**
@@ -23,13 +144,426 @@ public class MessageDispatcher {
      * @throws Exception   If validation or sending fails
      */
     public String dispatch(String jsonContent, String ip, int port) throws Exception {
-        messageValidator.validate(jsonContent);
-        String conversationId = messageInput.getConversationId(jsonContent);
+        DispatchMetrics m = metrics;
+        long start = m.start();
+        try {
+            DispatchRequest request = parse(jsonContent, m, start);
 
-        LLMClient client = new LLMClient(ip, port);
-        String response = client.sendToLlmStudio(jsonContent);
-        messageStorage.storeResponse(conversationId, jsonContent, response);
+            LLMClient client = clients.get(ip, port);
+            String response = send(request, m, () -> client.sendToLlmStudio(fit(request, client), m));
+            storeResponse(request, response, m);
 
+            m.lap(DispatchMetrics.Stage.TOTAL, start);
+            return response;
+        } catch (Exception e) {
+            m.failed();
+            throw e;
+        }
+    }
+
+    /**
+     * Validate, call the LLM on a backend chosen by the {@link BackendPool}, and
+     * store the response.
+     *
+     * @throws IllegalStateException if no backend pool is set
+     */
+    public String dispatch(String jsonContent) throws Exception {
+        DispatchMetrics m = metrics;
+        long start = m.start();
+        try {
+            DispatchRequest request = parse(jsonContent, m, start);
+
+            BackendPool pool = requirePool();
+            String response = send(request, m, () -> pool.execute(request.getConversationId(),
+                    client -> client.sendToLlmStudio(fit(request, client), m)));
+            storeResponse(request, response, m);
+
+            m.lap(DispatchMetrics.Stage.TOTAL, start);
+            return response;
+        } catch (Exception e) {
+            m.failed();
+            throw e;
+        }
+    }
+
+    /**
+     * Validate, stream the completion from the LLM, and store the assembled
+     * response once the stream ends.
+     *
+     * @param jsonContent  The user-supplied JSON
+     * @param ip           The IP for LMStudio
+     * @param port         The port for LMStudio
+     * @param onToken      Receives content tokens as they arrive, on the calling thread
+     * @return The complete response with its time-to-first-token
+     * @throws Exception   If validation or sending fails
+     */
+    public ChatCompletion dispatchStreaming(String jsonContent, String ip, int port,
+                                            Consumer<String> onToken) throws Exception {
+        DispatchMetrics m = metrics;
+        long start = m.start();
+        try {
+            DispatchRequest request = parse(jsonContent, m, start);
+
+            LLMClient client = clients.get(ip, port);
+            ChatCompletion completion = stream(request, m, onToken,
+                    sink -> client.streamToLlmStudio(fit(request, client), sink, m));
+            storeResponse(request, completion.responseJson, m);
+
+            m.lap(DispatchMetrics.Stage.TOTAL, start);
+            return completion;
+        } catch (Exception e) {
+            m.failed();
+            throw e;
+        }
+    }
+
+    /**
+     * Streaming variant of {@link #dispatch(String)}.
+     */
+    public ChatCompletion dispatchStreaming(String jsonContent, Consumer<String> onToken) throws Exception {
+        DispatchMetrics m = metrics;
+        long start = m.start();
+        try {
+            DispatchRequest request = parse(jsonContent, m, start);
+
+            BackendPool pool = requirePool();
+            ChatCompletion completion = stream(request, m, onToken, sink -> pool.execute(request.getConversationId(),
+                    client -> client.streamToLlmStudio(fit(request, client), sink, m)));
+            storeResponse(request, completion.responseJson, m);
+
+            m.lap(DispatchMetrics.Stage.TOTAL, start);
+            return completion;
+        } catch (Exception e) {
+            m.failed();
+            throw e;
+        }
+    }
+
+    /**
+     * {@link #dispatch(String, String, int)} on its own virtual thread: returns
+     * at once and completes with the raw response once it is stored, or
+     * exceptionally if validation, the LLM call or storing fails.
+     *
+     * This is the blocking dispatch, not non-blocking I/O: the virtual thread
+     * waits for a concurrency limiter permit and for the LLM's answer. Cancelling
+     * the future, or missing the deadline, interrupts that thread, and the LLM
+     * client then aborts the HTTP exchange; the future completes with a
+     * {@link java.util.concurrent.CancellationException} or a
+     * {@link java.util.concurrent.TimeoutException}. An answer that already
+     * arrived may still be stored.
+     *
+     * @param deadline For the whole dispatch, or null for none
+     */
+    public AsyncDispatch<String> dispatchAsync(String jsonContent, String ip, int port, Duration deadline) {
+        return async(() -> dispatch(jsonContent, ip, port), deadline);
+    }
+
+    /**
+     * {@link #dispatch(String)} on its own virtual thread; see
+     * {@link #dispatchAsync(String, String, int, Duration)}. A cancelled dispatch
+     * frees its backend's slot in the pool at once and isn't counted against
+     * the backend.
+     */
+    public AsyncDispatch<String> dispatchAsync(String jsonContent, Duration deadline) {
+        return async(() -> dispatch(jsonContent), deadline);
+    }
+
+    /**
+     * {@link #dispatchStreaming(String, String, int, Consumer)} on its own virtual thread; see
+     * {@link #dispatchAsync(String, String, int, Duration)}. {@code onToken} runs
+     * on the dispatch's virtual thread, and no more tokens arrive once the
+     * future is cancelled or times out.
+     */
+    public AsyncDispatch<ChatCompletion> dispatchStreamingAsync(String jsonContent, String ip, int port,
+                                                                Consumer<String> onToken, Duration deadline) {
+        return async(() -> dispatchStreaming(jsonContent, ip, port, onToken), deadline);
+    }
+
+    /**
+     * {@link #dispatchStreaming(String, Consumer)} on its own virtual thread.
+     */
+    public AsyncDispatch<ChatCompletion> dispatchStreamingAsync(String jsonContent, Consumer<String> onToken,
+                                                                Duration deadline) {
+        return async(() -> dispatchStreaming(jsonContent, onToken), deadline);
+    }
+
+    /**
+     * Every model of every endpoint, from {@link LLMClient#fetchAvailableModels},
+     * in endpoint order. The endpoints are asked concurrently; one that can't be
+     * reached is skipped.
+     *
+     * @param endpoints "host:port" of each LM Studio node
+     * @throws IOException if no endpoint could be reached
+     */
+    public List<ModelComparison.Target> discoverTargets(List<String> endpoints) throws Exception {
+        List<ModelComparison.Target> nodes = new ArrayList<>();
+        List<CompletableFuture<List<String>>> lists = new ArrayList<>();
+        for (String endpoint : endpoints) {
+            ModelComparison.Target node = ModelComparison.Target.of(endpoint, null);
+            nodes.add(node);
+            lists.add(async(() -> clients.get(node.ip, node.port).fetchAvailableModels(), null));
+        }
+        List<ModelComparison.Target> targets = new ArrayList<>();
+        Exception firstFailure = null;
+        for (int i = 0; i < nodes.size(); i++) {
+            ModelComparison.Target node = nodes.get(i);
+            try {
+                for (String model : lists.get(i).get()) {
+                    targets.add(new ModelComparison.Target(node.ip, node.port, model));
+                }
+            } catch (ExecutionException e) {
+                DebugLog.log("No models from " + node.getEndpoint() + ": " + e.getCause());
+                if (firstFailure == null) {
+                    firstFailure = e.getCause() instanceof Exception cause ? cause : e;
+                }
+            } catch (InterruptedException e) {
+                lists.forEach(list -> list.cancel(true));
+                throw e;
+            }
+        }
+        if (targets.isEmpty() && firstFailure != null) {
+            throw new IOException("No endpoint could be reached: " + firstFailure, firstFailure);
+        }
+        return targets;
+    }
+
+    /**
+     * Validates the request once and streams it to every target at the same
+     * time, each with its own model, then stores all answers as one linked
+     * {@link ModelComparison}. The wall time is that of the slowest model.
+     *
+     * Every target is called directly, without the backend pool, the cache or
+     * coalescing, so each answer and its timings are the model's own. A model
+     * that fails or misses the deadline gets its error in the comparison; the
+     * others still count. The comparison is stored right away, even with a
+     * write-behind journal, and not as a turn of the conversation.
+     *
+     * @param onToken  Receives each target's content tokens as they arrive, on
+     *                 that target's thread; null to ignore them
+     * @param deadline For each model's answer, or null for none
+     */
+    public ModelComparison dispatchFanOut(String jsonContent, List<ModelComparison.Target> targets,
+                                          BiConsumer<ModelComparison.Target, String> onToken,
+                                          Duration deadline) throws Exception {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("No models to compare.");
+        }
+        DispatchMetrics m = metrics;
+        long start = m.start();
+        try {
+            DispatchRequest request = parse(jsonContent, m, start);
+
+            long sent = System.nanoTime();
+            List<CompletableFuture<ChatCompletion>> calls = new ArrayList<>();
+            for (ModelComparison.Target target : targets) {
+                DispatchRequest variant = request.withModel(target.model);
+                LLMClient client = clients.get(target.ip, target.port);
+                Consumer<String> sink = onToken == null ? token -> { } : token -> onToken.accept(target, token);
+                calls.add(async(() -> timedStream(m, () -> client.streamToLlmStudio(fit(variant, client), sink, m)),
+                        deadline));
+            }
+            List<ModelComparison.Result> results = new ArrayList<>();
+            try {
+                for (int i = 0; i < targets.size(); i++) {
+                    results.add(collect(targets.get(i), calls.get(i), deadline));
+                }
+            } catch (InterruptedException e) {
+                calls.forEach(call -> call.cancel(true));
+                throw e;
+            }
+            long wallNanos = System.nanoTime() - sent;
+
+            long stored = m.now();
+            ModelComparison comparison = messageStorage.getComparisonStore().storeComparison(request, wallNanos, results);
+            m.lap(DispatchMetrics.Stage.STORE, stored);
+
+            m.lap(DispatchMetrics.Stage.TOTAL, start);
+            return comparison;
+        } catch (Exception e) {
+            m.failed();
+            throw e;
+        }
+    }
+
+    /**
+     * {@link #dispatchFanOut} on its own virtual thread. Cancelling the future
+     * interrupts it, which aborts every model's call; nothing is stored then.
+     */
+    public AsyncDispatch<ModelComparison> dispatchFanOutAsync(String jsonContent,
+                                                              List<ModelComparison.Target> targets,
+                                                              BiConsumer<ModelComparison.Target, String> onToken,
+                                                              Duration deadline) {
+        return async(() -> dispatchFanOut(jsonContent, targets, onToken, deadline), null);
+    }
+
+    /** Waits for one target's answer and turns a failure into its result. */
+    private static ModelComparison.Result collect(ModelComparison.Target target, CompletableFuture<ChatCompletion> call,
+                                                  Duration deadline) throws InterruptedException {
+        try {
+            return new ModelComparison.Result(target, call.get(), null);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            // Only the deadline's timeout gets its own message; deadline is null for none
+            String error = cause instanceof TimeoutException && deadline != null
+                    ? "No answer within " + deadline.toMillis() + " ms"
+                    : cause.getMessage() != null ? cause.getMessage() : cause.toString();
+            return new ModelComparison.Result(target, null, error);
+        } catch (CancellationException e) {
+            return new ModelComparison.Result(target, null, "Cancelled");
+        }
+    }
+
+    /**
+     * The future of a dispatch running on its own virtual thread. It completes
+     * early when cancelled or timed out, while the thread may still be storing
+     * an answer that already arrived; {@link #workerFinished()} tells when the
+     * thread is done.
+     */
+    public static final class AsyncDispatch<T> extends CompletableFuture<T> {
+        private final CompletableFuture<Void> workerFinished = new CompletableFuture<>();
+
+        /**
+         * Completes when the dispatch's thread has returned: just before this
+         * future if it ran to the end, later if this future completed early.
+         */
+        public CompletableFuture<Void> workerFinished() {
+            return workerFinished;
+        }
+    }
+
+    /**
+     * Runs a blocking dispatch on a virtual thread, so only that thread waits on
+     * the limiter and the HTTP answer. The future completing early, by
+     * cancellation or timeout, interrupts the thread; the LLM client then aborts
+     * its HTTP exchange. A dispatch that ignores interrupts runs to the end.
+     */
+    static <T> AsyncDispatch<T> async(Callable<T> dispatch, Duration deadline) {
+        AsyncDispatch<T> result = new AsyncDispatch<>();
+        Thread worker = Thread.ofVirtual().name("echoforge-dispatch").unstarted(() -> {
+            T value = null;
+            Throwable failure = null;
+            try {
+                value = dispatch.call();
+            } catch (Throwable e) {
+                failure = e;
+            }
+            result.workerFinished.complete(null);
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(value);
+            }
+        });
+        result.whenComplete((value, failure) -> {
+            if (failure != null && Thread.currentThread() != worker) {
+                worker.interrupt();
+            }
+        });
+        if (deadline != null) {
+            result.orTimeout(deadline.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        worker.start();
+        return result;
+    }
+
+    /**
+     * The request trimmed to the context window, summarizing with the client the
+     * request goes to.
+     */
+    private DispatchRequest fit(DispatchRequest request, LLMClient client) throws Exception {
+        ContextWindow window = contextWindow;
+        if (window == null) {
+            return request;
+        }
+        return window.fit(request, window.isSummarizing() ? ContextWindow.summarizeWith(client) : null);
+    }
+
+    private String send(DispatchRequest request, DispatchMetrics m, Callable<String> call) throws Exception {
+        ResponseCache responseCache = cache;
+        RequestCoalescer requestCoalescer = coalescer;
+        if (responseCache == null && requestCoalescer == null) {
+            return timedSend(m, call);
+        }
+        if (!request.isCacheable()) {
+            if (responseCache != null) {
+                responseCache.recordBypass();
+            }
+            return timedSend(m, call);
+        }
+        String key = ResponseCache.key(request);
+        if (responseCache != null) {
+            String cached = responseCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        // Only the caller that makes the call records it and caches its answer
+        Callable<String> upstream = () -> {
+            String response = timedSend(m, call);
+            if (responseCache != null) {
+                responseCache.put(key, response);
+            }
+            return response;
+        };
+        return requestCoalescer != null ? requestCoalescer.execute(key, upstream) : upstream.call();
+    }
+
+    private ChatCompletion stream(DispatchRequest request, DispatchMetrics m, Consumer<String> onToken,
+                                  RequestCoalescer.StreamCall call) throws Exception {
+        RequestCoalescer requestCoalescer = coalescer;
+        if (requestCoalescer == null || !request.isCacheable()) {
+            return timedStream(m, () -> call.stream(onToken));
+        }
+        return requestCoalescer.stream(ResponseCache.key(request), onToken,
+                sink -> timedStream(m, () -> call.stream(sink)));
+    }
+
+    /** Calls the LLM, recording the send time and the token usage of the response. */
+    private static String timedSend(DispatchMetrics m, Callable<String> call) throws Exception {
+        long start = m.now();
+        String response = call.call();
+        long end = m.lap(DispatchMetrics.Stage.SEND, start);
+        m.usage(response, end - start);
         return response;
     }
+
+    /** Streams from the LLM, recording the stream's duration and token usage. */
+    private static ChatCompletion timedStream(DispatchMetrics m, Callable<ChatCompletion> call) throws Exception {
+        ChatCompletion completion = call.call();
+        m.record(DispatchMetrics.Stage.SEND, completion.totalNanos);
+        m.usage(completion.promptTokens, completion.completionTokens, completion.totalNanos);
+        return completion;
+    }
+
+    private BackendPool requirePool() {
+        BackendPool pool = backends;
+        if (pool == null) {
+            throw new IllegalStateException("No backend pool configured.");
+        }
+        return pool;
+    }
+
+    /**
+     * Parses the JSON once and validates the parsed tree; everything downstream
+     * reuses it.
+     */
+    private DispatchRequest parse(String jsonContent, DispatchMetrics m, long start) {
+        JsonNode root = DispatchRequest.readTree(jsonContent);
+        long parsed = m.lap(DispatchMetrics.Stage.PARSE, start);
+        String conversationId = messageInput.getConversationId(root);
+        long extracted = m.lap(DispatchMetrics.Stage.CONVERSATION_ID, parsed);
+        messageValidator.validate(root);
+        m.lap(DispatchMetrics.Stage.VALIDATE, extracted);
+        return DispatchRequest.of(jsonContent, root, conversationId);
+    }
+
+    private void storeResponse(DispatchRequest request, String response, DispatchMetrics m) throws Exception {
+        long start = m.now();
+        if (journal != null) {
+            journal.submit(request.getConversationId(), request, response);
+        } else {
+            messageStorage.storeResponse(request.getConversationId(), request, response);
+        }
+        m.lap(DispatchMetrics.Stage.STORE, start);
+    }
 }
@@ -11,13 +11,22 @@ public class MessageInput {
      */
     public String getConversationId(String json) {
         try {
-            JsonNode root = MAPPER.readTree(json);
+            return getConversationId(MAPPER.readTree(json));
+        } catch (Exception e) {
+            // Swallow or log; validation is handled in MessageValidator anyway.
+        }
+        return "unknown";
+    }
+
+    /**
+     * Same as {@link #getConversationId(String)} for an already parsed request.
+     */
+    public String getConversationId(JsonNode root) {
+        if (root != null) {
             JsonNode idNode = root.get("conversation_id");
             if (idNode != null && idNode.isTextual()) {
                 return idNode.asText();
             }
-        } catch (Exception e) {
-            // Swallow or log; validation is handled in MessageValidator anyway.
         }
         return "unknown";
     }
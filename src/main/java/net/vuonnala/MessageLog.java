@@ -0,0 +1,427 @@
+package net.vuonnala;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Append-only, per-conversation message log behind the {@code responses} table.
+ *
+ * Each turn only appends the messages that are new compared to what the
+ * conversation already holds, instead of storing the whole history again.
+ * Message bodies are content-addressed by their SHA-256, so a system prompt
+ * repeated across conversations is stored once.
+ *
+ * Every log entry also carries a chain hash over all entries of its segment,
+ * which lets a new request be matched against the stored history with a single
+ * lookup. If a request does not extend the stored history (for example a
+ * hand-built request reusing a conversation id), a new segment is started and
+ * the whole request is appended.
+ */
+class MessageLog {
+
+    static final String CREATE_BODIES = """
+            CREATE TABLE IF NOT EXISTS message_bodies (
+                hash TEXT PRIMARY KEY,
+                body TEXT NOT NULL
+            );
+        """;
+
+    static final String CREATE_MESSAGES = """
+            CREATE TABLE IF NOT EXISTS messages (
+                conversation_id TEXT NOT NULL,
+                seq INTEGER NOT NULL,
+                body_hash TEXT NOT NULL REFERENCES message_bodies(hash),
+                chain_hash TEXT NOT NULL,
+                PRIMARY KEY (conversation_id, seq)
+            ) WITHOUT ROWID;
+        """;
+
+    static final String CREATE_HEADS = """
+            CREATE TABLE IF NOT EXISTS message_heads (
+                conversation_id TEXT PRIMARY KEY,
+                base_seq INTEGER NOT NULL,
+                next_seq INTEGER NOT NULL
+            ) WITHOUT ROWID;
+        """;
+
+    // Finds the messages still using a body when a conversation's log is deleted
+    static final String CREATE_BODY_INDEX =
+            "CREATE INDEX IF NOT EXISTS idx_messages_body ON messages (body_hash)";
+
+    private static final String SELECT_HEAD =
+            "SELECT base_seq, next_seq FROM message_heads WHERE conversation_id = ?";
+    private static final String UPSERT_HEAD =
+            "INSERT OR REPLACE INTO message_heads (conversation_id, base_seq, next_seq) VALUES (?, ?, ?)";
+    private static final String SELECT_CHAIN =
+            "SELECT chain_hash FROM messages WHERE conversation_id = ? AND seq = ?";
+    private static final String INSERT_BODY =
+            "INSERT OR IGNORE INTO message_bodies (hash, body) VALUES (?, ?)";
+    private static final String INSERT_MESSAGE =
+            "INSERT INTO messages (conversation_id, seq, body_hash, chain_hash) VALUES (?, ?, ?, ?)";
+    private static final String SELECT_CONVERSATION_BODIES =
+            "SELECT DISTINCT body_hash FROM messages WHERE conversation_id = ?";
+    private static final String DELETE_MESSAGES = "DELETE FROM messages WHERE conversation_id = ?";
+    private static final String DELETE_HEAD = "DELETE FROM message_heads WHERE conversation_id = ?";
+    private static final String DELETE_UNUSED_BODY =
+            "DELETE FROM message_bodies WHERE hash = ? AND NOT EXISTS (SELECT 1 FROM messages WHERE body_hash = ?)";
+    private static final String SELECT_RANGE = """
+            SELECT b.body FROM messages m JOIN message_bodies b ON b.hash = m.body_hash
+            WHERE m.conversation_id = ? AND m.seq >= ? AND m.seq < ?
+            ORDER BY m.seq
+        """;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final PayloadCodec codec;
+
+    /** @param codec How message bodies are stored */
+    MessageLog(PayloadCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Where a turn's messages live in the log. Requests of the turn are
+     * {@code [baseSeq, requestEndSeq)}, of which {@code [deltaSeq, requestEndSeq)}
+     * were appended by the turn; the reply follows up to {@code endSeq}.
+     * {@code text} is the content of the appended messages, for the search index.
+     */
+    static final class Turn {
+        final String envelopeJson;
+        final long baseSeq;
+        final long deltaSeq;
+        final long requestEndSeq;
+        final long endSeq;
+        final String text;
+
+        Turn(String envelopeJson, long baseSeq, long deltaSeq, long requestEndSeq, long endSeq, String text) {
+            this.envelopeJson = envelopeJson;
+            this.baseSeq = baseSeq;
+            this.deltaSeq = deltaSeq;
+            this.requestEndSeq = requestEndSeq;
+            this.endSeq = endSeq;
+            this.text = text;
+        }
+    }
+
+    private static final class Entry {
+        final String body;
+        final String bodyHash;
+        final String chainHash;
+
+        Entry(String body, String bodyHash, String chainHash) {
+            this.body = body;
+            this.bodyHash = bodyHash;
+            this.chainHash = chainHash;
+        }
+    }
+
+    /**
+     * Appends the new messages of a request and its reply to the conversation's log.
+     * Must run inside the caller's transaction on the writer connection.
+     *
+     * @return where the turn was stored, or null if the request has no
+     *         "messages" array and should be stored verbatim
+     */
+    Turn append(SqliteConnectionPool.PooledConnection conn, String conversationId,
+                String requestJson, String responseContent) throws SQLException {
+        JsonNode root;
+        try {
+            root = MAPPER.readTree(requestJson);
+        } catch (JsonProcessingException e) {
+            return null;
+        }
+        return append(conn, conversationId, root, responseContent);
+    }
+
+    /**
+     * Same as {@link #append(SqliteConnectionPool.PooledConnection, String, String, String)}
+     * for an already parsed request. The tree is not modified.
+     */
+    Turn append(SqliteConnectionPool.PooledConnection conn, String conversationId,
+                JsonNode root, String responseContent) throws SQLException {
+        if (root == null || !root.isObject() || !root.path("messages").isArray()) {
+            return null;
+        }
+
+        // The envelope shares the request's child nodes; it is only serialized
+        ObjectNode envelope = MAPPER.createObjectNode();
+        Iterator<Map.Entry<String, JsonNode>> fields = root.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            if (!field.getKey().equals("messages")) {
+                envelope.set(field.getKey(), field.getValue());
+            }
+        }
+        JsonNode messagesNode = root.get("messages");
+
+        List<Entry> request = chain(messagesNode, "");
+
+        // 1) Does the request extend the conversation's current segment?
+        long baseSeq = 0;
+        long nextSeq = 0;
+        PreparedStatement head = conn.prepare(SELECT_HEAD);
+        head.setString(1, conversationId);
+        try (ResultSet rs = head.executeQuery()) {
+            if (rs.next()) {
+                baseSeq = rs.getLong("base_seq");
+                nextSeq = rs.getLong("next_seq");
+            }
+        }
+
+        int known = (int) (nextSeq - baseSeq);
+        boolean extendsSegment = known > 0 && request.size() >= known
+                && request.get(known - 1).chainHash.equals(chainAt(conn, conversationId, nextSeq - 1));
+        if (!extendsSegment) {
+            baseSeq = nextSeq;
+            known = 0;
+        }
+
+        // 2) Append only what the log doesn't have yet
+        long deltaSeq = baseSeq + known;
+        long seq = deltaSeq;
+        StringBuilder text = new StringBuilder();
+        for (int i = known; i < request.size(); i++) {
+            insert(conn, conversationId, seq++, request.get(i));
+            appendContent(text, messagesNode.get(i));
+        }
+        long requestEndSeq = seq;
+
+        // 3) The reply becomes part of the history the next request is expected to extend
+        String lastChain = request.isEmpty() ? "" : request.get(request.size() - 1).chainHash;
+        ArrayNode replies = replyMessages(responseContent);
+        for (Entry reply : chain(replies, lastChain)) {
+            insert(conn, conversationId, seq++, reply);
+        }
+        for (JsonNode reply : replies) {
+            appendContent(text, reply);
+        }
+
+        PreparedStatement upsert = conn.prepare(UPSERT_HEAD);
+        upsert.setString(1, conversationId);
+        upsert.setLong(2, baseSeq);
+        upsert.setLong(3, seq);
+        upsert.executeUpdate();
+
+        return new Turn(envelope.toString(), baseSeq, deltaSeq, requestEndSeq, seq, text.toString());
+    }
+
+    /**
+     * Rebuilds a request JSON from its stored envelope and the messages in
+     * {@code [fromSeq, toSeq)}.
+     */
+    String rebuild(SqliteConnectionPool.PooledConnection conn, String conversationId,
+                   String envelopeJson, long fromSeq, long toSeq) throws SQLException {
+        StringBuilder messages = new StringBuilder("[");
+        PreparedStatement range = conn.prepare(SELECT_RANGE);
+        range.setString(1, conversationId);
+        range.setLong(2, fromSeq);
+        range.setLong(3, toSeq);
+        try (ResultSet rs = range.executeQuery()) {
+            boolean first = true;
+            while (rs.next()) {
+                if (!first) {
+                    messages.append(',');
+                }
+                messages.append(codec.read(rs, 1));
+                first = false;
+            }
+        }
+        messages.append(']');
+
+        String envelope = envelopeJson.trim();
+        if (envelope.equals("{}")) {
+            return "{\"messages\":" + messages + "}";
+        }
+        return envelope.substring(0, envelope.length() - 1) + ",\"messages\":" + messages + "}";
+    }
+
+    /**
+     * The content of the messages in {@code [fromSeq, toSeq)}, one message per line.
+     */
+    String text(SqliteConnectionPool.PooledConnection conn, String conversationId,
+                long fromSeq, long toSeq) throws SQLException {
+        StringBuilder text = new StringBuilder();
+        PreparedStatement range = conn.prepare(SELECT_RANGE);
+        range.setString(1, conversationId);
+        range.setLong(2, fromSeq);
+        range.setLong(3, toSeq);
+        try (ResultSet rs = range.executeQuery()) {
+            while (rs.next()) {
+                try {
+                    appendContent(text, MAPPER.readTree(codec.read(rs, 1)));
+                } catch (JsonProcessingException e) {
+                    // bodies are written by chain(); skip anything unreadable
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * The message content of a request stored verbatim and its reply.
+     */
+    static String text(String requestJson, String responseContent) {
+        StringBuilder text = new StringBuilder();
+        try {
+            for (JsonNode message : MAPPER.readTree(requestJson).path("messages")) {
+                appendContent(text, message);
+            }
+        } catch (JsonProcessingException e) {
+            // not JSON; only the reply is indexed
+        }
+        for (JsonNode reply : replyMessages(responseContent)) {
+            appendContent(text, reply);
+        }
+        return text.toString();
+    }
+
+    private static void appendContent(StringBuilder text, JsonNode message) {
+        JsonNode content = message.path("content");
+        if (content.isTextual() && !content.asText().isBlank()) {
+            if (!text.isEmpty()) {
+                text.append('\n');
+            }
+            text.append(content.asText());
+        }
+    }
+
+    /**
+     * Deletes a conversation's log, and the bodies no other conversation uses.
+     * The conversation's next turn starts a new segment. Must run inside the
+     * caller's transaction on the writer connection.
+     */
+    void delete(SqliteConnectionPool.PooledConnection conn, String conversationId) throws SQLException {
+        List<String> hashes = new ArrayList<>();
+        PreparedStatement select = conn.prepare(SELECT_CONVERSATION_BODIES);
+        select.setString(1, conversationId);
+        try (ResultSet rs = select.executeQuery()) {
+            while (rs.next()) {
+                hashes.add(rs.getString(1));
+            }
+        }
+
+        PreparedStatement messages = conn.prepare(DELETE_MESSAGES);
+        messages.setString(1, conversationId);
+        messages.executeUpdate();
+        PreparedStatement head = conn.prepare(DELETE_HEAD);
+        head.setString(1, conversationId);
+        head.executeUpdate();
+
+        PreparedStatement body = conn.prepare(DELETE_UNUSED_BODY);
+        for (String hash : hashes) {
+            body.setString(1, hash);
+            body.setString(2, hash);
+            body.executeUpdate();
+        }
+    }
+
+    private String chainAt(SqliteConnectionPool.PooledConnection conn, String conversationId, long seq) throws SQLException {
+        PreparedStatement stmt = conn.prepare(SELECT_CHAIN);
+        stmt.setString(1, conversationId);
+        stmt.setLong(2, seq);
+        try (ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+
+    private void insert(SqliteConnectionPool.PooledConnection conn, String conversationId, long seq, Entry entry) throws SQLException {
+        PreparedStatement body = conn.prepare(INSERT_BODY);
+        body.setString(1, entry.bodyHash);
+        codec.bind(body, 2, entry.body);
+        body.executeUpdate();
+
+        PreparedStatement message = conn.prepare(INSERT_MESSAGE);
+        message.setString(1, conversationId);
+        message.setLong(2, seq);
+        message.setString(3, entry.bodyHash);
+        message.setString(4, entry.chainHash);
+        message.executeUpdate();
+    }
+
+    private static List<Entry> chain(JsonNode messages, String previousChain) {
+        List<Entry> entries = new ArrayList<>();
+        String chainHash = previousChain;
+        for (JsonNode message : messages) {
+            String body = canonicalize(message).toString();
+            String bodyHash = sha256(body);
+            chainHash = sha256(chainHash + bodyHash);
+            entries.add(new Entry(body, bodyHash, chainHash));
+        }
+        return entries;
+    }
+
+    /**
+     * The assistant messages of a chat completion, reduced to role and content the
+     * way callers append them to their history.
+     */
+    private static ArrayNode replyMessages(String responseContent) {
+        ArrayNode replies = MAPPER.createArrayNode();
+        JsonNode choices;
+        try {
+            choices = MAPPER.readTree(responseContent).path("choices");
+        } catch (JsonProcessingException e) {
+            return replies;
+        }
+        for (JsonNode choice : choices) {
+            JsonNode message = choice.path("message");
+            if (message.path("content").isTextual()) {
+                ObjectNode reply = replies.addObject();
+                reply.put("role", message.path("role").asText("assistant"));
+                reply.put("content", message.get("content").asText());
+            }
+        }
+        return replies;
+    }
+
+    /**
+     * Copies a JSON value with object keys in sorted order, so equal messages hash
+     * the same regardless of how the client ordered their fields.
+     */
+    static JsonNode canonicalize(JsonNode node) {
+        if (node.isObject()) {
+            Map<String, JsonNode> sorted = new TreeMap<>();
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                sorted.put(field.getKey(), canonicalize(field.getValue()));
+            }
+            ObjectNode copy = MAPPER.createObjectNode();
+            copy.setAll(sorted);
+            return copy;
+        }
+        if (node.isArray()) {
+            ArrayNode copy = MAPPER.createArrayNode();
+            for (JsonNode item : node) {
+                copy.add(canonicalize(item));
+            }
+            return copy;
+        }
+        return node;
+    }
+
+    static String sha256(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HEX.formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
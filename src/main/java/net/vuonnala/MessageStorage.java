@@ -1,21 +1,217 @@
 package net.vuonnala;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.sql.*;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class MessageStorage implements AutoCloseable {
+
+    private static final String INSERT_CONVERSATION =
+            "INSERT OR IGNORE INTO conversations (conversation_id, title, created_at) VALUES (?, ?, ?)";
+    private static final String INSERT_RESPONSE =
+            "INSERT INTO responses (timestamp, conversation_id, request_json, response_content, "
+                    + "base_seq, delta_seq, request_end_seq, end_seq) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    /** Everything a ResponseRecord needs. */
+    private static final String RECORD_COLUMNS =
+            "id, timestamp, conversation_id, request_json, response_content, base_seq, delta_seq, request_end_seq";
+    /** Covered by idx_responses_conversation; skips the large JSON columns. */
+    private static final String SUMMARY_COLUMNS = "id, timestamp, conversation_id";
+
+    private static final String SELECT_ALL_RESPONSES =
+            "SELECT " + RECORD_COLUMNS + " FROM responses ORDER BY id ASC";
+    private static final String SELECT_RESPONSES_BY_CONVERSATION =
+            "SELECT " + RECORD_COLUMNS + " FROM responses WHERE conversation_id = ? ORDER BY id ASC";
+    private static final String SELECT_RESPONSES_AFTER =
+            "SELECT " + RECORD_COLUMNS + " FROM responses WHERE id > ? ORDER BY id LIMIT ?";
+    private static final String SELECT_CONVERSATION_RESPONSES_AFTER =
+            "SELECT " + RECORD_COLUMNS + " FROM responses WHERE conversation_id = ? AND id > ? ORDER BY id LIMIT ?";
+    private static final String STREAM_RESPONSES =
+            "SELECT " + RECORD_COLUMNS + " FROM responses ORDER BY id";
+    private static final String STREAM_CONVERSATION_RESPONSES =
+            "SELECT " + RECORD_COLUMNS + " FROM responses WHERE conversation_id = ? ORDER BY id";
+    private static final String SELECT_SUMMARIES_AFTER =
+            "SELECT " + SUMMARY_COLUMNS + " FROM responses WHERE id > ? ORDER BY id LIMIT ?";
+    private static final String SELECT_CONVERSATION_SUMMARIES =
+            "SELECT " + SUMMARY_COLUMNS + " FROM responses WHERE conversation_id = ? ORDER BY timestamp, id";
+    private static final String SELECT_ALL_CONVERSATIONS =
+            "SELECT conversation_id, title, created_at FROM conversations ORDER BY created_at DESC, conversation_id DESC";
+    private static final String SELECT_FIRST_CONVERSATIONS =
+            "SELECT conversation_id, title, created_at FROM conversations "
+                    + "ORDER BY created_at DESC, conversation_id DESC LIMIT ?";
+    private static final String SELECT_CONVERSATIONS_AFTER =
+            "SELECT conversation_id, title, created_at FROM conversations WHERE (created_at, conversation_id) < (?, ?) "
+                    + "ORDER BY created_at DESC, conversation_id DESC LIMIT ?";
+    private static final String UPDATE_CONVERSATION_TITLE =
+            "UPDATE conversations SET title = ? WHERE conversation_id = ?";
+
+    private static final String SELECT_LEGACY_RESPONSE_IDS =
+            "SELECT id FROM responses WHERE delta_seq IS NULL ORDER BY id";
+    private static final String SELECT_RESPONSE_BY_ID =
+            "SELECT conversation_id, request_json, response_content FROM responses WHERE id = ?";
+    private static final String UPDATE_RESPONSE_TURN =
+            "UPDATE responses SET request_json = ?, base_seq = ?, delta_seq = ?, request_end_seq = ?, end_seq = ? WHERE id = ?";
+
+    private static final String SELECT_CACHED_RESPONSE =
+            "SELECT response, created_at FROM response_cache WHERE cache_key = ? AND created_at >= ?";
+    private static final String UPSERT_CACHED_RESPONSE =
+            "INSERT OR REPLACE INTO response_cache (cache_key, response, created_at) VALUES (?, ?, ?)";
+    private static final String DELETE_EXPIRED_CACHED_RESPONSES =
+            "DELETE FROM response_cache WHERE created_at < ?";
+    private static final String DELETE_OLDEST_CACHED_RESPONSES =
+            "DELETE FROM response_cache WHERE cache_key IN "
+                    + "(SELECT cache_key FROM response_cache ORDER BY created_at DESC LIMIT -1 OFFSET ?)";
+
+    private static final String SELECT_CONTEXT_SUMMARY =
+            "SELECT covered_messages, covered_hash, summary FROM context_summaries WHERE conversation_id = ?";
+    private static final String UPSERT_CONTEXT_SUMMARY =
+            "INSERT OR REPLACE INTO context_summaries (conversation_id, covered_messages, covered_hash, summary, updated_at) "
+                    + "VALUES (?, ?, ?, ?, ?)";
+
+    private static final String SELECT_RESPONSE_CONVERSATION_IDS =
+            "SELECT conversation_id FROM responses GROUP BY conversation_id ORDER BY MIN(id)";
+
+    private static final String INDEX_RESPONSE_TEXT =
+            "INSERT INTO response_search (rowid, text) VALUES (last_insert_rowid(), ?)";
+    private static final String INSERT_RESPONSE_TEXT =
+            "INSERT INTO response_search (rowid, text) VALUES (?, ?)";
+    private static final String INDEX_CONVERSATION_TITLE =
+            "INSERT INTO conversation_search (rowid, title) SELECT rowid, title FROM conversations WHERE conversation_id = ?";
+    private static final String UNINDEX_CONVERSATION_TITLE =
+            "DELETE FROM conversation_search WHERE rowid = (SELECT rowid FROM conversations WHERE conversation_id = ?)";
+    private static final String SELECT_RESPONSES_TO_INDEX =
+            "SELECT id, conversation_id, request_json, response_content, delta_seq, end_seq FROM responses "
+                    + "WHERE id > ? ORDER BY id LIMIT ?";
+    private static final String SELECT_UNCOMPRESSED_RESPONSES =
+            "SELECT id, request_json, response_content FROM responses "
+                    + "WHERE id > ? AND (typeof(request_json) = 'text' OR typeof(response_content) = 'text') "
+                    + "ORDER BY id LIMIT ?";
+    private static final String UPDATE_RESPONSE_PAYLOAD =
+            "UPDATE responses SET request_json = ?, response_content = ? WHERE id = ?";
+    private static final String SELECT_UNCOMPRESSED_BODIES =
+            "SELECT rowid, body FROM message_bodies WHERE rowid > ? AND typeof(body) = 'text' ORDER BY rowid LIMIT ?";
+    private static final String UPDATE_BODY =
+            "UPDATE message_bodies SET body = ? WHERE rowid = ?";
+    private static final String SELECT_TRAINING_RESPONSES =
+            "SELECT request_json, response_content FROM responses ORDER BY id DESC LIMIT ?";
+    private static final String SELECT_TRAINING_BODIES =
+            "SELECT body FROM message_bodies ORDER BY rowid DESC LIMIT ?";
+
+    private static final String SELECT_ARCHIVED_LOCATION =
+            "SELECT segment, offset, length, checksum, last_response_id FROM archived_conversations "
+                    + "WHERE conversation_id = ?";
+    private static final String UPSERT_ARCHIVED_LOCATION =
+            "INSERT OR REPLACE INTO archived_conversations (conversation_id, segment, offset, length, checksum, "
+                    + "responses, last_response_id, archived_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String UNINDEX_CONVERSATION_RESPONSES =
+            "DELETE FROM response_search WHERE rowid IN (SELECT id FROM responses WHERE conversation_id = ?)";
+    private static final String DELETE_CONVERSATION_RESPONSES =
+            "DELETE FROM responses WHERE conversation_id = ?";
+    private static final String COUNT_ARCHIVED_CONVERSATIONS =
+            "SELECT count(*) FROM archived_conversations";
+    // Walks idx_responses_conversation once; recency 1 is the most recently active conversation
+    private static final String SELECT_COLD_CONVERSATIONS = """
+            SELECT conversation_id FROM (
+                SELECT conversation_id, max(timestamp) AS last_active,
+                       row_number() OVER (ORDER BY max(timestamp) DESC, conversation_id DESC) AS recency
+                FROM responses
+                GROUP BY conversation_id)
+            WHERE last_active < ? OR recency > ?
+            ORDER BY last_active, conversation_id
+            LIMIT ?
+        """;
 
-public class MessageStorage {
+    private static final String SEARCH_RESPONSES = """
+            SELECT r.id, r.conversation_id, r.timestamp, c.title,
+                   snippet(response_search, 0, '[', ']', '...', 12) AS snippet
+            FROM response_search
+            JOIN responses r ON r.id = response_search.rowid
+            LEFT JOIN conversations c ON c.conversation_id = r.conversation_id
+            WHERE response_search MATCH ?
+              AND response_search.rowid >= (
+                  SELECT coalesce(min(rowid), 0) FROM (
+                      SELECT rowid FROM response_search WHERE response_search MATCH ?
+                      ORDER BY rowid DESC LIMIT ?))
+            ORDER BY rank
+            LIMIT ? OFFSET ?
+        """;
+    private static final String SEARCH_CONVERSATION_TITLES = """
+            SELECT c.conversation_id, c.title, c.created_at
+            FROM conversation_search
+            JOIN conversations c ON c.rowid = conversation_search.rowid
+            WHERE conversation_search MATCH ?
+            ORDER BY rank
+            LIMIT ?
+        """;
+
+    /**
+     * Search ranks at most this many of the newest matches. Walking the matches
+     * by rowid is cheap, scoring them is not, so this bounds the cost of words
+     * that occur in most messages.
+     */
+    private static final int SEARCH_RANK_WINDOW = 1_000;
+
+    /** Bumped whenever initializeDatabase() learns a new migration step. */
+    private static final int SCHEMA_VERSION = 2;
+    private static final int MIGRATION_BATCH = 500;
+
+    /** Responses needed before a compression dictionary is trained, and how many are sampled. */
+    private static final int TRAINING_MIN_RESPONSES = 100;
+    private static final int TRAINING_SAMPLES = 1_000;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
 
-    private final String dbUrl;
+    private final SqliteConnectionPool pool;
+    /** Null for an in-memory database. */
+    private final ConversationArchive archive;
+    private final PayloadCodec codec = new PayloadCodec();
+    private final MessageLog messageLog = new MessageLog(codec);
+    private final List<StorageListener> listeners = new CopyOnWriteArrayList<>();
+    private final ComparisonStore comparisons;
+    private final ReplayStore replays;
+    private Thread compressor;
+    private volatile boolean closing;
 
     public MessageStorage(String dbFile) throws SQLException {
-        this.dbUrl = "jdbc:sqlite:" + dbFile;
+        this(dbFile, SqliteConnectionPool.DEFAULT_READERS);
+    }
+
+    public MessageStorage(String dbFile, int readerCount) throws SQLException {
+        this.pool = new SqliteConnectionPool(dbFile, readerCount);
+        boolean inMemory = dbFile.isEmpty() || dbFile.startsWith(":memory:");
+        this.archive = inMemory ? null : new ConversationArchive(Path.of(dbFile + ".archive"));
+        this.comparisons = new ComparisonStore(pool);
+        this.replays = new ReplayStore(pool);
         initializeDatabase();
     }
 
+    /** The model comparisons stored in this database. */
+    public ComparisonStore getComparisonStore() {
+        return comparisons;
+    }
+
+    /** The replay runs stored in this database. */
+    public ReplayStore getReplayStore() {
+        return replays;
+    }
+
     private void initializeDatabase() throws SQLException {
-        try (Connection conn = DriverManager.getConnection(dbUrl)) {
+        int version = pool.write(conn -> {
             String createConversations = """
             CREATE TABLE IF NOT EXISTS conversations (
                 conversation_id TEXT PRIMARY KEY,
@@ -24,6 +220,9 @@ public class MessageStorage {
             );
         """;
 
+            // request_json holds the request without its "messages"; the turn's messages
+            // live in the message log at [base_seq, request_end_seq). Rows with a NULL
+            // delta_seq store the full request verbatim.
             String createResponses = """
             CREATE TABLE IF NOT EXISTS responses (
                 id INTEGER PRIMARY KEY AUTOINCREMENT,
@@ -31,97 +230,1181 @@ public class MessageStorage {
                 conversation_id TEXT NOT NULL,
                 request_json TEXT NOT NULL,
                 response_content TEXT NOT NULL,
+                base_seq INTEGER,
+                delta_seq INTEGER,
+                request_end_seq INTEGER,
+                end_seq INTEGER,
                 FOREIGN KEY (conversation_id) REFERENCES conversations(conversation_id)
             );
         """;
 
-            try (Statement stmt = conn.createStatement()) {
+            // Persistent tier of the ResponseCache; created_at is epoch millis
+            String createResponseCache = """
+            CREATE TABLE IF NOT EXISTS response_cache (
+                cache_key TEXT PRIMARY KEY,
+                response TEXT NOT NULL,
+                created_at INTEGER NOT NULL
+            ) WITHOUT ROWID;
+        """;
+            // Finds expired and the oldest entries when the cache is pruned
+            String createResponseCacheIndex =
+                    "CREATE INDEX IF NOT EXISTS idx_response_cache_created ON response_cache (created_at)";
+
+            // ContextWindow summaries: one per conversation, covering its first covered_messages
+            // messages after the system prompt
+            String createContextSummaries = """
+            CREATE TABLE IF NOT EXISTS context_summaries (
+                conversation_id TEXT PRIMARY KEY,
+                covered_messages INTEGER NOT NULL,
+                covered_hash TEXT NOT NULL,
+                summary TEXT NOT NULL,
+                updated_at TEXT NOT NULL
+            ) WITHOUT ROWID;
+        """;
+
+            // Per-conversation lookups; covers the summary projection
+            String createResponsesIndex = """
+            CREATE INDEX IF NOT EXISTS idx_responses_conversation
+                ON responses (conversation_id, timestamp);
+        """;
+
+            // Serves the sidebar's newest-first keyset pagination
+            String createConversationsIndex = """
+            CREATE INDEX IF NOT EXISTS idx_conversations_created
+                ON conversations (created_at DESC, conversation_id DESC);
+        """;
+
+            // Full-text search over the message text of each response (rowid = responses.id)
+            // and over conversation titles (rowid = conversations.rowid)
+            String createResponseSearch =
+                    "CREATE VIRTUAL TABLE IF NOT EXISTS response_search USING fts5(text)";
+            String createConversationSearch =
+                    "CREATE VIRTUAL TABLE IF NOT EXISTS conversation_search USING fts5(title)";
+
+            try (Statement stmt = conn.connection().createStatement()) {
                 stmt.execute(createConversations);
+                stmt.execute(createConversationsIndex);
                 stmt.execute(createResponses);
+                stmt.execute(createResponsesIndex);
+                stmt.execute(MessageLog.CREATE_BODIES);
+                stmt.execute(MessageLog.CREATE_MESSAGES);
+                stmt.execute(MessageLog.CREATE_HEADS);
+                stmt.execute(MessageLog.CREATE_BODY_INDEX);
+                stmt.execute(createResponseCache);
+                stmt.execute(createResponseCacheIndex);
+                stmt.execute(createContextSummaries);
+                stmt.execute(ComparisonStore.CREATE_COMPARISONS);
+                stmt.execute(ComparisonStore.CREATE_RESULTS);
+                stmt.execute(ComparisonStore.CREATE_CONVERSATION_INDEX);
+                stmt.execute(ReplayStore.CREATE_RUNS);
+                stmt.execute(ReplayStore.CREATE_RESULTS);
+                stmt.execute(createResponseSearch);
+                stmt.execute(createConversationSearch);
+                stmt.execute(PayloadCodec.CREATE_DICTIONARIES);
+                stmt.execute(ConversationArchive.CREATE_INDEX);
+                codec.load(conn);
+                try (ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+                    return rs.next() ? rs.getInt(1) : 0;
+                }
             }
+        });
+
+        if (version < 1) {
+            migrateToMessageLog();
+        }
+        if (version < 2) {
+            rebuildSearchIndex();
+        }
+        if (version < SCHEMA_VERSION) {
+            pool.write(conn -> {
+                try (Statement stmt = conn.connection().createStatement()) {
+                    stmt.execute("PRAGMA user_version = " + SCHEMA_VERSION);
+                }
+                return null;
+            });
         }
     }
-    public void registerConversation(String conversationId, String title) throws SQLException {
-        String sql = "INSERT OR IGNORE INTO conversations (conversation_id, title, created_at) VALUES (?, ?, ?)";
 
-        try (Connection conn = DriverManager.getConnection(dbUrl);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    /**
+     * Version 0 stored the whole message history in every row. Moves those rows
+     * into the message log, in id order so each conversation's turns are replayed
+     * as they happened. Commits in batches; an interrupted migration resumes
+     * with the rows that still have no delta_seq.
+     */
+    private void migrateToMessageLog() throws SQLException {
+        List<Long> legacyIds = pool.write(conn -> {
+            addColumnIfMissing(conn, "responses", "base_seq", "INTEGER");
+            addColumnIfMissing(conn, "responses", "delta_seq", "INTEGER");
+            addColumnIfMissing(conn, "responses", "request_end_seq", "INTEGER");
+            addColumnIfMissing(conn, "responses", "end_seq", "INTEGER");
+
+            List<Long> ids = new ArrayList<>();
+            try (ResultSet rs = conn.prepare(SELECT_LEGACY_RESPONSE_IDS).executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getLong(1));
+                }
+            }
+            return ids;
+        });
+        if (legacyIds.isEmpty()) {
+            return;
+        }
+
+        DebugLog.log("Migrating " + legacyIds.size() + " responses to the message log");
+        for (int from = 0; from < legacyIds.size(); from += MIGRATION_BATCH) {
+            List<Long> batch = legacyIds.subList(from, Math.min(from + MIGRATION_BATCH, legacyIds.size()));
+            pool.inTransaction(conn -> {
+                for (long id : batch) {
+                    migrateRow(conn, id);
+                }
+                return null;
+            });
+        }
+    }
+
+    private void migrateRow(SqliteConnectionPool.PooledConnection conn, long id) throws SQLException {
+        PreparedStatement select = conn.prepare(SELECT_RESPONSE_BY_ID);
+        select.setLong(1, id);
+        String conversationId;
+        String requestJson;
+        String responseContent;
+        try (ResultSet rs = select.executeQuery()) {
+            if (!rs.next()) {
+                return;
+            }
+            conversationId = rs.getString("conversation_id");
+            requestJson = codec.read(rs, "request_json");
+            responseContent = codec.read(rs, "response_content");
+        }
+
+        MessageLog.Turn turn = messageLog.append(conn, conversationId, requestJson, responseContent);
+        if (turn == null) {
+            return;  // not a chat request; keep it verbatim
+        }
+        PreparedStatement update = conn.prepare(UPDATE_RESPONSE_TURN);
+        codec.bind(update, 1, turn.envelopeJson);
+        update.setLong(2, turn.baseSeq);
+        update.setLong(3, turn.deltaSeq);
+        update.setLong(4, turn.requestEndSeq);
+        update.setLong(5, turn.endSeq);
+        update.setLong(6, id);
+        update.executeUpdate();
+    }
+
+    /**
+     * Version 1 had no search index. Indexes every conversation title and the
+     * message text of every response, in batches.
+     */
+    private void rebuildSearchIndex() throws SQLException {
+        pool.inTransaction(conn -> {
+            try (Statement stmt = conn.connection().createStatement()) {
+                stmt.execute("DELETE FROM response_search");
+                stmt.execute("DELETE FROM conversation_search");
+                stmt.execute("INSERT INTO conversation_search (rowid, title) SELECT rowid, title FROM conversations");
+            }
+            return null;
+        });
+
+        long afterId = 0;
+        long indexed = 0;
+        while (true) {
+            long from = afterId;
+            long[] last = pool.inTransaction(conn -> indexBatch(conn, from));
+            if (last[1] == 0) {
+                break;
+            }
+            afterId = last[0];
+            indexed += last[1];
+        }
+        if (indexed > 0) {
+            DebugLog.log("Indexed " + indexed + " responses for search");
+        }
+    }
+
+    /** Indexes the next batch after {@code afterId}; returns the last id and the batch size. */
+    private long[] indexBatch(SqliteConnectionPool.PooledConnection conn, long afterId) throws SQLException {
+        record Row(long id, String conversationId, String requestJson, String responseContent, Long deltaSeq, long endSeq) {
+        }
+        List<Row> rows = new ArrayList<>();
+        PreparedStatement select = conn.prepare(SELECT_RESPONSES_TO_INDEX);
+        select.setLong(1, afterId);
+        select.setInt(2, MIGRATION_BATCH);
+        try (ResultSet rs = select.executeQuery()) {
+            while (rs.next()) {
+                long deltaSeq = rs.getLong("delta_seq");
+                Long delta = rs.wasNull() ? null : deltaSeq;
+                rows.add(new Row(rs.getLong("id"), rs.getString("conversation_id"), codec.read(rs, "request_json"),
+                        codec.read(rs, "response_content"), delta, rs.getLong("end_seq")));
+            }
+        }
+
+        PreparedStatement insert = conn.prepare(INSERT_RESPONSE_TEXT);
+        for (Row row : rows) {
+            String text = row.deltaSeq() != null
+                    ? messageLog.text(conn, row.conversationId(), row.deltaSeq(), row.endSeq())
+                    : MessageLog.text(row.requestJson(), row.responseContent());
+            if (!text.isEmpty()) {
+                insert.setLong(1, row.id());
+                insert.setString(2, text);
+                insert.executeUpdate();
+            }
+        }
+        return new long[]{rows.isEmpty() ? afterId : rows.get(rows.size() - 1).id(), rows.size()};
+    }
+
+    private static void addColumnIfMissing(SqliteConnectionPool.PooledConnection conn, String table,
+                                           String column, String type) throws SQLException {
+        try (Statement stmt = conn.connection().createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+                while (rs.next()) {
+                    if (column.equalsIgnoreCase(rs.getString("name"))) {
+                        return;
+                    }
+                }
+            }
+            stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+        }
+    }
+
+    public void addListener(StorageListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(StorageListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void registerConversation(String conversationId, String title) throws SQLException {
+        String createdAt = Instant.now().toString();
+        int inserted = pool.inTransaction(conn -> {
+            PreparedStatement pstmt = conn.prepare(INSERT_CONVERSATION);
             pstmt.setString(1, conversationId);
             pstmt.setString(2, title);
-            pstmt.setString(3, Instant.now().toString());
-            pstmt.executeUpdate();
+            pstmt.setString(3, createdAt);
+            int rows = pstmt.executeUpdate();
+            if (rows > 0) {
+                indexTitle(conn, conversationId);
+            }
+            return rows;
+        });
+        if (inserted > 0) {
+            ConversationSummary added = new ConversationSummary(conversationId, title, createdAt);
+            for (StorageListener listener : listeners) {
+                listener.conversationAdded(added);
+            }
         }
     }
 
+    /**
+     * Stores one turn. Only the messages that are not already part of the
+     * conversation's history are written.
+     */
     public void storeResponse(String conversationId, String requestJson, String responseContent) throws SQLException {
-        String sql = "INSERT INTO responses (timestamp, conversation_id, request_json, response_content) VALUES (?, ?, ?, ?)";
+        pool.inTransaction(conn -> insertResponse(conn,
+                new PendingResponse(Instant.now().toString(), conversationId, requestJson, responseContent)));
+        fireResponseStored(conversationId);
+    }
 
-        try (Connection conn = DriverManager.getConnection(dbUrl);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, Instant.now().toString());
-            pstmt.setString(2, conversationId);
-            pstmt.setString(3, requestJson);         // new field: the full message history sent to LLM
-            pstmt.setString(4, responseContent);     // the reply from LLM
-            pstmt.executeUpdate();
+    /**
+     * Stores several responses in one transaction (group commit). Either all rows
+     * are written or none are.
+     */
+    public void storeResponses(List<PendingResponse> responses) throws SQLException {
+        if (responses.isEmpty()) {
+            return;
+        }
+        pool.inTransaction(conn -> {
+            for (PendingResponse response : responses) {
+                insertResponse(conn, response);
+            }
+            return null;
+        });
+        for (PendingResponse response : responses) {
+            fireResponseStored(response.conversationId);
         }
     }
 
+    /**
+     * Same as {@link #storeResponse(String, String, String)} for an already parsed
+     * request, which spares re-parsing it.
+     */
+    public void storeResponse(String conversationId, DispatchRequest request, String responseContent) throws SQLException {
+        pool.inTransaction(conn -> insertResponse(conn, new PendingResponse(Instant.now().toString(),
+                conversationId, request.getJson(), request.getRoot(), responseContent)));
+        fireResponseStored(conversationId);
+    }
 
-    public List<ResponseRecord> getAllResponses() throws SQLException {
-        String sql = "SELECT * FROM responses ORDER BY timestamp DESC";
-        try (Connection conn = DriverManager.getConnection(dbUrl);
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-            return extractResults(rs);
+    private void fireResponseStored(String conversationId) {
+        for (StorageListener listener : listeners) {
+            listener.responseStored(conversationId);
+        }
+    }
+
+    private static void indexTitle(SqliteConnectionPool.PooledConnection conn, String conversationId) throws SQLException {
+        PreparedStatement index = conn.prepare(INDEX_CONVERSATION_TITLE);
+        index.setString(1, conversationId);
+        index.executeUpdate();
+    }
+
+    private int insertResponse(SqliteConnectionPool.PooledConnection conn, PendingResponse response) throws SQLException {
+        MessageLog.Turn turn = response.requestNode != null
+                ? messageLog.append(conn, response.conversationId, response.requestNode, response.responseContent)
+                : messageLog.append(conn, response.conversationId, response.requestJson, response.responseContent);
+
+        PreparedStatement pstmt = conn.prepare(INSERT_RESPONSE);
+        pstmt.setString(1, response.timestamp);
+        pstmt.setString(2, response.conversationId);
+        codec.bind(pstmt, 4, response.responseContent);   // the reply from LLM
+        if (turn != null) {
+            codec.bind(pstmt, 3, turn.envelopeJson);      // the request minus its messages
+            pstmt.setLong(5, turn.baseSeq);
+            pstmt.setLong(6, turn.deltaSeq);
+            pstmt.setLong(7, turn.requestEndSeq);
+            pstmt.setLong(8, turn.endSeq);
+        } else {
+            codec.bind(pstmt, 3, response.requestJson);
+            for (int i = 5; i <= 8; i++) {
+                pstmt.setNull(i, Types.INTEGER);
+            }
         }
+        int rows = pstmt.executeUpdate();
+
+        // Index the text this turn added, not the raw JSON
+        String text = turn != null ? turn.text : MessageLog.text(response.requestJson, response.responseContent);
+        if (!text.isEmpty()) {
+            PreparedStatement index = conn.prepare(INDEX_RESPONSE_TEXT);
+            index.setString(1, text);
+            index.executeUpdate();
+        }
+        return rows;
+    }
+
+    /**
+     * All hot responses in id order, oldest first. As with every method returning
+     * {@link ResponseRecord}s, a record's request holds only the messages its
+     * turn added unless it {@link ResponseRecord#startsNewHistory starts a new history};
+     * a conversation's full requests are rebuilt by replaying its records in this order.
+     */
+    public List<ResponseRecord> getAllResponses() throws SQLException {
+        return pool.read(conn -> {
+            try (ResultSet rs = conn.prepare(SELECT_ALL_RESPONSES).executeQuery()) {
+                return extractResults(conn, rs);
+            }
+        });
     }
 
+    /**
+     * Returns the conversation's turns in order, archived ones included. Each
+     * record's request holds only the messages that turn added, so replaying the
+     * records in order rebuilds the history in time linear to its length. A
+     * record that {@link ResponseRecord#startsNewHistory starts a new history}
+     * holds its complete request.
+     */
     public List<ResponseRecord> getResponsesByConversationId(String conversationId) throws SQLException {
-        String sql = "SELECT * FROM responses WHERE conversation_id = ? ORDER BY timestamp ASC";
-        try (Connection conn = DriverManager.getConnection(dbUrl);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        return pool.read(conn -> {
+            PreparedStatement pstmt = conn.prepare(SELECT_RESPONSES_BY_CONVERSATION);
             pstmt.setString(1, conversationId);
+            List<ResponseRecord> hot;
             try (ResultSet rs = pstmt.executeQuery()) {
-                return extractResults(rs);
+                hot = extractResults(conn, rs);
             }
+            return withArchived(readArchived(conn, conversationId, 0), hot, Integer.MAX_VALUE);
+        });
+    }
+
+    /**
+     * One page of responses in id order, for walking the whole table in bounded
+     * memory. Requests hold only the messages each turn added; see
+     * {@link ResponseRecord#requestJson}.
+     *
+     * @param afterId The last id of the previous page, or 0 for the first page
+     */
+    public List<ResponseRecord> getResponsesPage(long afterId, int limit) throws SQLException {
+        return pool.read(conn -> {
+            PreparedStatement pstmt = conn.prepare(SELECT_RESPONSES_AFTER);
+            pstmt.setLong(1, afterId);
+            pstmt.setInt(2, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return extractResults(conn, rs);
+            }
+        });
+    }
+
+    /**
+     * One page of a conversation's turns; see {@link #getResponsesByConversationId(String)}.
+     *
+     * @param afterId The last id of the previous page, or 0 for the first page
+     */
+    public List<ResponseRecord> getResponsesByConversationId(String conversationId, long afterId, int limit)
+            throws SQLException {
+        return pool.read(conn -> {
+            PreparedStatement pstmt = conn.prepare(SELECT_CONVERSATION_RESPONSES_AFTER);
+            pstmt.setString(1, conversationId);
+            pstmt.setLong(2, afterId);
+            pstmt.setInt(3, limit);
+            List<ResponseRecord> hot;
+            try (ResultSet rs = pstmt.executeQuery()) {
+                hot = extractResults(conn, rs);
+            }
+            return withArchived(readArchived(conn, conversationId, afterId), hot, limit);
+        });
+    }
+
+    /**
+     * One page of response ids and timestamps without their JSON.
+     *
+     * @param afterId The last id of the previous page, or 0 for the first page
+     */
+    public List<ResponseSummary> getResponseSummariesPage(long afterId, int limit) throws SQLException {
+        return pool.read(conn -> {
+            PreparedStatement pstmt = conn.prepare(SELECT_SUMMARIES_AFTER);
+            pstmt.setLong(1, afterId);
+            pstmt.setInt(2, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                List<ResponseSummary> list = new ArrayList<>();
+                while (rs.next()) {
+                    list.add(toSummary(conn, rs));
+                }
+                return list;
+            }
+        });
+    }
+
+    /**
+     * All hot responses in id order, read lazily; archived conversations are
+     * skipped, as in the other whole-table reads. The stream holds a reader
+     * connection until it is closed or fully consumed, so use it in a
+     * try-with-resources block. On an in-memory database the stream holds the
+     * writer, and it must be closed by the thread that opened it. Requests hold
+     * only the messages each turn added; see {@link ResponseRecord#requestJson}.
+     */
+    public Stream<ResponseRecord> streamAllResponses() throws SQLException {
+        return openCursor(STREAM_RESPONSES, null, this::toRecord).stream();
+    }
+
+    /**
+     * A conversation's turns, read lazily; see {@link #streamAllResponses()}.
+     * Archived turns are read up front and come first. Reading them in order
+     * rebuilds the history as {@link #getResponsesByConversationId(String)} describes.
+     */
+    public Stream<ResponseRecord> streamResponsesByConversationId(String conversationId) throws SQLException {
+        Cursor<ResponseRecord> cursor = openCursor(STREAM_CONVERSATION_RESPONSES, conversationId, this::toRecord);
+        List<ResponseRecord> archived;
+        try {
+            archived = archive == null ? List.of() : pool.read(conn -> readArchived(conn, conversationId, 0));
+        } catch (SQLException | RuntimeException e) {
+            cursor.close();
+            throw e;
         }
+        if (archived.isEmpty()) {
+            return cursor.stream();
+        }
+        long lastArchived = archived.get(archived.size() - 1).id;
+        return Stream.concat(archived.stream(), cursor.stream().filter(record -> record.id > lastArchived));
     }
 
-    public List<ConversationSummary> getAllConversations() throws SQLException {
-        List<ConversationSummary> list = new ArrayList<>();
-        String sql = "SELECT conversation_id, title FROM conversations ORDER BY created_at DESC";
+    /**
+     * A conversation's hot response ids and timestamps in time order, read from
+     * the index alone; see {@link #streamAllResponses()}.
+     */
+    public Stream<ResponseSummary> streamResponseSummaries(String conversationId) throws SQLException {
+        return openCursor(SELECT_CONVERSATION_SUMMARIES, conversationId, this::toSummary).stream();
+    }
 
-        try (Connection conn = DriverManager.getConnection(dbUrl);
-             Statement stmt = conn.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+    private <T> Cursor<T> openCursor(String sql, String conversationId, RowMapper<T> mapper) throws SQLException {
+        SqliteConnectionPool.PooledConnection conn = pool.acquireReader();
+        PreparedStatement stmt = null;
+        try {
+            // Not from the statement cache: the cursor owns it until it is closed
+            stmt = conn.connection().prepareStatement(sql);
+            if (conversationId != null) {
+                stmt.setString(1, conversationId);
+            }
+            return new Cursor<>(conn, stmt, stmt.executeQuery(), mapper);
+        } catch (SQLException | RuntimeException e) {
+            if (stmt != null) {
+                stmt.close();
+            }
+            pool.release(conn);
+            throw e;
+        }
+    }
 
-            while (rs.next()) {
-                String id = rs.getString("conversation_id");
-                String title = rs.getString("title");
-                list.add(new ConversationSummary(id, title));
+    /**
+     * Responses whose message text matches the query, best match first. For
+     * words found in very many responses, only the newest matches are ranked.
+     * Archived turns are not searched; their conversations' titles still are.
+     *
+     * @param query  Words to look for, as typed by the user; the last word also
+     *               matches as a prefix
+     * @param offset Hits to skip, for paging
+     * @param limit  Maximum number of hits to return
+     */
+    public List<SearchHit> search(String query, int offset, int limit) throws SQLException {
+        String match = toMatchQuery(query);
+        if (match == null) {
+            return List.of();
+        }
+        return pool.read(conn -> {
+            PreparedStatement pstmt = conn.prepare(SEARCH_RESPONSES);
+            pstmt.setString(1, match);
+            pstmt.setString(2, match);
+            pstmt.setInt(3, SEARCH_RANK_WINDOW);
+            pstmt.setInt(4, limit);
+            pstmt.setInt(5, offset);
+            List<SearchHit> hits = new ArrayList<>();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    hits.add(new SearchHit(rs.getLong("id"), rs.getString("conversation_id"),
+                            rs.getString("title"), rs.getString("timestamp"), rs.getString("snippet")));
+                }
             }
+            return hits;
+        });
+    }
+
+    /**
+     * Conversations whose title matches the query, best match first; see
+     * {@link #search(String, int, int)}.
+     */
+    public List<ConversationSummary> searchConversationTitles(String query, int limit) throws SQLException {
+        String match = toMatchQuery(query);
+        if (match == null) {
+            return List.of();
         }
+        return pool.read(conn -> {
+            PreparedStatement pstmt = conn.prepare(SEARCH_CONVERSATION_TITLES);
+            pstmt.setString(1, match);
+            pstmt.setInt(2, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return extractConversations(rs);
+            }
+        });
+    }
 
+    /**
+     * Turns user input into an FTS5 query: every word must match, the last one
+     * as a prefix unless the input ends with a space, i.e. the word is complete.
+     * Prefix matches of common words cost several times more than exact ones.
+     * Words are quoted, so FTS5 operators in the input are taken literally.
+     * Returns null if there are no words.
+     */
+    static String toMatchQuery(String query) {
+        if (query == null) {
+            return null;
+        }
+        String[] words = query.trim().split("\\s+");
+        StringBuilder match = new StringBuilder();
+        for (String word : words) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (!match.isEmpty()) {
+                match.append(' ');
+            }
+            match.append('"').append(word.replace("\"", "\"\"")).append('"');
+        }
+        if (match.isEmpty()) {
+            return null;
+        }
+        return Character.isWhitespace(query.charAt(query.length() - 1)) ? match.toString() : match.append('*').toString();
+    }
+
+    public List<ConversationSummary> getAllConversations() throws SQLException {
+        return pool.read(conn -> {
+            try (ResultSet rs = conn.prepare(SELECT_ALL_CONVERSATIONS).executeQuery()) {
+                return extractConversations(rs);
+            }
+        });
+    }
+
+    /**
+     * One page of conversations, newest first.
+     *
+     * @param after The last conversation of the previous page, or null for the first page
+     * @param limit Maximum number of conversations to return
+     */
+    public List<ConversationSummary> getConversationsPage(ConversationSummary after, int limit) throws SQLException {
+        return pool.read(conn -> {
+            PreparedStatement pstmt;
+            if (after == null) {
+                pstmt = conn.prepare(SELECT_FIRST_CONVERSATIONS);
+                pstmt.setInt(1, limit);
+            } else {
+                pstmt = conn.prepare(SELECT_CONVERSATIONS_AFTER);
+                pstmt.setString(1, after.createdAt);
+                pstmt.setString(2, after.id);
+                pstmt.setInt(3, limit);
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return extractConversations(rs);
+            }
+        });
+    }
+
+    private static List<ConversationSummary> extractConversations(ResultSet rs) throws SQLException {
+        List<ConversationSummary> list = new ArrayList<>();
+        while (rs.next()) {
+            list.add(new ConversationSummary(rs.getString("conversation_id"), rs.getString("title"),
+                    rs.getString("created_at")));
+        }
         return list;
     }
+
     public void updateConversationTitle(String conversationId, String newTitle) throws SQLException {
-        String sql = "UPDATE conversations SET title = ? WHERE conversation_id = ?";
+        int updated = pool.inTransaction(conn -> {
+            PreparedStatement unindex = conn.prepare(UNINDEX_CONVERSATION_TITLE);
+            unindex.setString(1, conversationId);
+            unindex.executeUpdate();
 
-        try (Connection conn = DriverManager.getConnection(dbUrl);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            PreparedStatement pstmt = conn.prepare(UPDATE_CONVERSATION_TITLE);
             pstmt.setString(1, newTitle);
             pstmt.setString(2, conversationId);
-            pstmt.executeUpdate();
+            int rows = pstmt.executeUpdate();
+            indexTitle(conn, conversationId);
+            return rows;
+        });
+        if (updated > 0) {
+            for (StorageListener listener : listeners) {
+                listener.conversationRenamed(conversationId, newTitle);
+            }
+        }
+    }
+
+    /**
+     * The cached response for a {@link ResponseCache} key, or null if there is
+     * none created at or after {@code notBeforeMillis}.
+     */
+    public CachedResponse getCachedResponse(String cacheKey, long notBeforeMillis) throws SQLException {
+        return pool.read(conn -> {
+            PreparedStatement pstmt = conn.prepare(SELECT_CACHED_RESPONSE);
+            pstmt.setString(1, cacheKey);
+            pstmt.setLong(2, notBeforeMillis);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? new CachedResponse(rs.getString("response"), rs.getLong("created_at")) : null;
+            }
+        });
+    }
+
+    public void putCachedResponse(String cacheKey, String response, long createdAtMillis) throws SQLException {
+        pool.write(conn -> {
+            PreparedStatement pstmt = conn.prepare(UPSERT_CACHED_RESPONSE);
+            pstmt.setString(1, cacheKey);
+            pstmt.setString(2, response);
+            pstmt.setLong(3, createdAtMillis);
+            return pstmt.executeUpdate();
+        });
+    }
+
+    /**
+     * Deletes cached responses created before {@code notBeforeMillis}, then all
+     * but the {@code maxEntries} newest, in one transaction.
+     *
+     * @return The number of responses deleted
+     */
+    public int pruneCachedResponses(long notBeforeMillis, int maxEntries) throws SQLException {
+        return pool.inTransaction(conn -> {
+            PreparedStatement expired = conn.prepare(DELETE_EXPIRED_CACHED_RESPONSES);
+            expired.setLong(1, notBeforeMillis);
+            int deleted = expired.executeUpdate();
+            PreparedStatement oldest = conn.prepare(DELETE_OLDEST_CACHED_RESPONSES);
+            oldest.setInt(1, maxEntries);
+            return deleted + oldest.executeUpdate();
+        });
+    }
+
+    /**
+     * The conversation's {@link ContextWindow} summary, or null if it has none.
+     */
+    public ContextSummary getContextSummary(String conversationId) throws SQLException {
+        return pool.read(conn -> {
+            PreparedStatement pstmt = conn.prepare(SELECT_CONTEXT_SUMMARY);
+            pstmt.setString(1, conversationId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? new ContextSummary(rs.getInt("covered_messages"),
+                        rs.getString("covered_hash"), rs.getString("summary")) : null;
+            }
+        });
+    }
+
+    public void putContextSummary(String conversationId, int coveredMessages, String coveredHash,
+                                  String summary) throws SQLException {
+        pool.write(conn -> {
+            PreparedStatement pstmt = conn.prepare(UPSERT_CONTEXT_SUMMARY);
+            pstmt.setString(1, conversationId);
+            pstmt.setInt(2, coveredMessages);
+            pstmt.setString(3, coveredHash);
+            pstmt.setString(4, summary);
+            pstmt.setString(5, Instant.now().toString());
+            return pstmt.executeUpdate();
+        });
+    }
+
+    /**
+     * The id of every conversation with hot turns, in the order the
+     * conversations began. Archived conversations are not listed.
+     */
+    public List<String> getConversationIdsWithResponses() throws SQLException {
+        return pool.read(conn -> {
+            List<String> ids = new ArrayList<>();
+            try (ResultSet rs = conn.prepare(SELECT_RESPONSE_CONVERSATION_IDS).executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getString(1));
+                }
+            }
+            return ids;
+        });
+    }
+
+    /**
+     * Compresses the request and response JSON and the message bodies of rows
+     * written from now on. Rows stored before stay readable and are compressed on
+     * a background thread, in batches that leave the writer to other callers in
+     * between. The first call on a database with enough responses trains the
+     * preset dictionary from them; until then values are compressed without one.
+     */
+    public synchronized void enableCompression() throws SQLException {
+        if (codec.isEnabled()) {
+            return;
+        }
+        codec.setEnabled(true);
+        if (codec.getDictionaryId() == 0) {
+            trainCompressionDictionary();
+        }
+        compressor = new Thread(() -> {
+            try {
+                long compressed = compressExistingRows();
+                if (compressed > 0) {
+                    DebugLog.log("Compressed " + compressed + " stored rows");
+                }
+            } catch (SQLException e) {
+                if (!closing) {
+                    DebugLog.log("Background compression stopped: " + e.getMessage());
+                }
+            }
+        }, "echoforge-compressor");
+        compressor.setDaemon(true);
+        compressor.start();
+    }
+
+    public boolean isCompressionEnabled() {
+        return codec.isEnabled();
+    }
+
+    /**
+     * Trains a new compression dictionary from the newest responses and message
+     * bodies and compresses new rows with it. Rows compressed with an older
+     * dictionary keep using that one.
+     *
+     * @return false if there are too few responses to train from
+     */
+    public boolean trainCompressionDictionary() throws SQLException {
+        List<String> samples = pool.read(conn -> {
+            List<String> values = new ArrayList<>();
+            PreparedStatement responses = conn.prepare(SELECT_TRAINING_RESPONSES);
+            responses.setInt(1, TRAINING_SAMPLES);
+            try (ResultSet rs = responses.executeQuery()) {
+                while (rs.next()) {
+                    values.add(codec.read(rs, "request_json"));
+                    values.add(codec.read(rs, "response_content"));
+                }
+            }
+            if (values.size() < 2 * TRAINING_MIN_RESPONSES) {
+                return List.of();
+            }
+            PreparedStatement bodies = conn.prepare(SELECT_TRAINING_BODIES);
+            bodies.setInt(1, TRAINING_SAMPLES);
+            try (ResultSet rs = bodies.executeQuery()) {
+                while (rs.next()) {
+                    values.add(codec.read(rs, "body"));
+                }
+            }
+            return values;
+        });
+        if (samples.isEmpty()) {
+            return false;
+        }
+        byte[] dictionary = PayloadCodec.train(samples, PayloadCodec.MAX_DICTIONARY_SIZE);
+        if (dictionary.length == 0) {
+            return false;
+        }
+        pool.write(conn -> codec.addDictionary(conn, dictionary));
+        return true;
+    }
+
+    /**
+     * Compresses the rows that are still stored as plain text, in batches, and
+     * returns how many were rewritten. Does nothing while compression is off.
+     * {@link #enableCompression()} runs this in the background.
+     */
+    public long compressExistingRows() throws SQLException {
+        if (!codec.isEnabled()) {
+            return 0;
+        }
+        long compressed = 0;
+        long afterId = 0;
+        while (!closing) {
+            long from = afterId;
+            long[] last = pool.inTransaction(conn -> compressResponseBatch(conn, from));
+            if (last[1] == 0) {
+                break;
+            }
+            afterId = last[0];
+            compressed += last[1];
+        }
+        afterId = 0;
+        while (!closing) {
+            long from = afterId;
+            long[] last = pool.inTransaction(conn -> compressBodyBatch(conn, from));
+            if (last[1] == 0) {
+                break;
+            }
+            afterId = last[0];
+            compressed += last[1];
+        }
+        return compressed;
+    }
+
+    /** Compresses the next batch of responses after {@code afterId}; returns the last id and the batch size. */
+    private long[] compressResponseBatch(SqliteConnectionPool.PooledConnection conn, long afterId) throws SQLException {
+        record Row(long id, String requestJson, String responseContent) {
+        }
+        List<Row> rows = new ArrayList<>();
+        PreparedStatement select = conn.prepare(SELECT_UNCOMPRESSED_RESPONSES);
+        select.setLong(1, afterId);
+        select.setInt(2, MIGRATION_BATCH);
+        try (ResultSet rs = select.executeQuery()) {
+            while (rs.next()) {
+                rows.add(new Row(rs.getLong("id"), codec.read(rs, "request_json"), codec.read(rs, "response_content")));
+            }
+        }
+
+        PreparedStatement update = conn.prepare(UPDATE_RESPONSE_PAYLOAD);
+        for (Row row : rows) {
+            codec.bind(update, 1, row.requestJson());
+            codec.bind(update, 2, row.responseContent());
+            update.setLong(3, row.id());
+            update.executeUpdate();
+        }
+        return new long[]{rows.isEmpty() ? afterId : rows.get(rows.size() - 1).id(), rows.size()};
+    }
+
+    /** Same as {@link #compressResponseBatch} for message bodies, by rowid. */
+    private long[] compressBodyBatch(SqliteConnectionPool.PooledConnection conn, long afterRowid) throws SQLException {
+        record Row(long rowid, String body) {
+        }
+        List<Row> rows = new ArrayList<>();
+        PreparedStatement select = conn.prepare(SELECT_UNCOMPRESSED_BODIES);
+        select.setLong(1, afterRowid);
+        select.setInt(2, MIGRATION_BATCH);
+        try (ResultSet rs = select.executeQuery()) {
+            while (rs.next()) {
+                rows.add(new Row(rs.getLong(1), codec.read(rs, 2)));
+            }
+        }
+
+        PreparedStatement update = conn.prepare(UPDATE_BODY);
+        for (Row row : rows) {
+            codec.bind(update, 1, row.body());
+            update.setLong(2, row.rowid());
+            update.executeUpdate();
+        }
+        return new long[]{rows.isEmpty() ? afterRowid : rows.get(rows.size() - 1).rowid(), rows.size()};
+    }
+
+    /**
+     * Conversations to archive under a retention policy, least recently active
+     * first: those without a response since {@code activeSince}, and those
+     * beyond the {@code keepNewest} most recently active ones.
+     *
+     * @param activeSince ISO-8601 timestamp; an empty string archives nothing by age
+     */
+    public List<String> findColdConversations(String activeSince, int keepNewest, int limit) throws SQLException {
+        return pool.read(conn -> {
+            PreparedStatement pstmt = conn.prepare(SELECT_COLD_CONVERSATIONS);
+            pstmt.setString(1, activeSince);
+            pstmt.setInt(2, keepNewest);
+            pstmt.setInt(3, limit);
+            List<String> ids = new ArrayList<>();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getString(1));
+                }
+            }
+            return ids;
+        });
+    }
+
+    /**
+     * Moves conversations' responses out of the database into compressed archive
+     * segments next to it, in one transaction. Their search entries and message
+     * log go too; the conversation and its title stay. Archived turns are still
+     * returned by {@link #getResponsesByConversationId(String)} and its paged and
+     * streaming variants, but not by the whole-table reads or by search. A
+     * conversation with turns added after it was archived is archived again as
+     * a whole. The freed pages are returned by {@link #incrementalVacuum(int)}.
+     *
+     * @return How many of the conversations had responses to archive
+     */
+    public int archiveConversations(List<String> conversationIds) throws SQLException {
+        if (archive == null) {
+            throw new IllegalStateException("An in-memory database has no archive");
+        }
+        return pool.inTransaction(conn -> {
+            String archivedAt = Instant.now().toString();
+            int archived = 0;
+            for (String conversationId : conversationIds) {
+                PreparedStatement select = conn.prepare(SELECT_RESPONSES_BY_CONVERSATION);
+                select.setString(1, conversationId);
+                List<ResponseRecord> records;
+                try (ResultSet rs = select.executeQuery()) {
+                    records = extractResults(conn, rs);
+                }
+                if (records.isEmpty()) {
+                    continue;
+                }
+                records.addAll(0, readArchived(conn, conversationId, 0));
+
+                ConversationArchive.Location location;
+                try {
+                    location = archive.append(toArchiveBlock(conversationId, records));
+                } catch (IOException e) {
+                    throw new SQLException("Failed to write to the archive", e);
+                }
+                PreparedStatement upsert = conn.prepare(UPSERT_ARCHIVED_LOCATION);
+                upsert.setString(1, conversationId);
+                upsert.setString(2, location.segment);
+                upsert.setLong(3, location.offset);
+                upsert.setInt(4, location.length);
+                upsert.setLong(5, location.checksum);
+                upsert.setInt(6, records.size());
+                upsert.setLong(7, records.get(records.size() - 1).id);
+                upsert.setString(8, archivedAt);
+                upsert.executeUpdate();
+
+                for (String sql : List.of(UNINDEX_CONVERSATION_RESPONSES, DELETE_CONVERSATION_RESPONSES)) {
+                    PreparedStatement delete = conn.prepare(sql);
+                    delete.setString(1, conversationId);
+                    delete.executeUpdate();
+                }
+                messageLog.delete(conn, conversationId);
+                archived++;
+            }
+            // The blocks must be on disk before the rows they replace are gone
+            try {
+                archive.force();
+            } catch (IOException e) {
+                throw new SQLException("Failed to write to the archive", e);
+            }
+            return archived;
+        });
+    }
+
+    /**
+     * Returns up to {@code pages} free pages to the file system, in one short
+     * write, and returns how many were freed. Does nothing on a database
+     * created before incremental vacuum was turned on, until {@link #compact()}
+     * has been run on it once.
+     */
+    public int incrementalVacuum(int pages) throws SQLException {
+        return pool.write(conn -> {
+            try (Statement stmt = conn.connection().createStatement()) {
+                long before = pragma(stmt, "freelist_count");
+                // executeUpdate steps the pragma to the end; execute would free a single page
+                stmt.executeUpdate("PRAGMA incremental_vacuum(" + pages + ")");
+                return (int) (before - pragma(stmt, "freelist_count"));
+            }
+        });
+    }
+
+    public boolean isIncrementalVacuumEnabled() throws SQLException {
+        // Asks the writer: readers keep the mode the file had when they were opened
+        return pool.write(conn -> {
+            try (Statement stmt = conn.connection().createStatement()) {
+                return pragma(stmt, "auto_vacuum") == 2;
+            }
+        });
+    }
+
+    /**
+     * Rewrites the whole database without its free pages and turns on
+     * incremental vacuum for it. Blocks writers until done and needs free disk
+     * space for a copy of the database; meant to be run once, offline.
+     */
+    public void compact() throws SQLException {
+        pool.write(conn -> {
+            conn.closeStatements();
+            try (Statement stmt = conn.connection().createStatement()) {
+                stmt.execute("PRAGMA auto_vacuum=INCREMENTAL");
+                stmt.execute("VACUUM");
+            }
+            return null;
+        });
+    }
+
+    /** Sizes of the database and the archive, and how the archive has been read. */
+    public StorageStats getStorageStats() throws SQLException {
+        long[] database = pool.read(conn -> {
+            try (Statement stmt = conn.connection().createStatement()) {
+                long pageSize = pragma(stmt, "page_size");
+                return new long[]{pragma(stmt, "page_count") * pageSize, pragma(stmt, "freelist_count") * pageSize};
+            }
+        });
+        long archivedConversations = pool.read(conn -> {
+            try (ResultSet rs = conn.prepare(COUNT_ARCHIVED_CONVERSATIONS).executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        });
+        long archiveBytes = 0;
+        if (archive != null) {
+            try {
+                archiveBytes = archive.sizeOnDisk();
+            } catch (IOException e) {
+                throw new SQLException("Failed to read the archive size", e);
+            }
+        }
+        return new StorageStats(database[0], database[1], archivedConversations, archiveBytes,
+                archive == null ? 0 : archive.getReads(), archive == null ? 0 : archive.getReadNanos());
+    }
+
+    private static long pragma(Statement stmt, String name) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("PRAGMA " + name)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * The conversation's archived turns after {@code afterId}, or an empty list
+     * if it has none. Skips reading the archive if all of them are before it.
+     */
+    private List<ResponseRecord> readArchived(SqliteConnectionPool.PooledConnection conn, String conversationId,
+                                              long afterId) throws SQLException {
+        if (archive == null) {
+            return List.of();
+        }
+        PreparedStatement select = conn.prepare(SELECT_ARCHIVED_LOCATION);
+        select.setString(1, conversationId);
+        ConversationArchive.Location location;
+        try (ResultSet rs = select.executeQuery()) {
+            if (!rs.next() || rs.getLong("last_response_id") <= afterId) {
+                return List.of();
+            }
+            location = new ConversationArchive.Location(rs.getString("segment"), rs.getLong("offset"),
+                    rs.getInt("length"), rs.getLong("checksum"));
+        }
+        byte[] block;
+        try {
+            block = archive.read(location);
+        } catch (IOException e) {
+            throw new SQLException("Failed to read archived conversation " + conversationId, e);
+        }
+        List<ResponseRecord> records = new ArrayList<>();
+        for (ResponseRecord record : fromArchiveBlock(block)) {
+            if (record.id > afterId) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Archived records followed by the hot ones newer than all of them, up to
+     * {@code limit}. The hot rows are read first: a conversation archived in
+     * between then shows up in both lists rather than in neither.
+     */
+    private static List<ResponseRecord> withArchived(List<ResponseRecord> archived, List<ResponseRecord> hot, int limit) {
+        if (archived.isEmpty()) {
+            return hot;
+        }
+        long lastArchived = archived.get(archived.size() - 1).id;
+        List<ResponseRecord> records = new ArrayList<>(archived.subList(0, Math.min(limit, archived.size())));
+        for (ResponseRecord record : hot) {
+            if (records.size() == limit) {
+                break;
+            }
+            if (record.id > lastArchived) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private static byte[] toArchiveBlock(String conversationId, List<ResponseRecord> records) {
+        ObjectNode root = MAPPER.createObjectNode();
+        root.put("conversation_id", conversationId);
+        ArrayNode responses = root.putArray("responses");
+        for (ResponseRecord record : records) {
+            responses.addObject()
+                    .put("id", record.id)
+                    .put("timestamp", record.timestamp)
+                    .put("request_json", record.requestJson)
+                    .put("response_content", record.responseContent)
+                    .put("starts_new_history", record.startsNewHistory);
+        }
+        return root.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<ResponseRecord> fromArchiveBlock(byte[] block) throws SQLException {
+        JsonNode root;
+        try {
+            root = MAPPER.readTree(block);
+        } catch (IOException e) {
+            throw new SQLException("Archived conversation is not valid JSON", e);
+        }
+        String conversationId = root.path("conversation_id").asText();
+        List<ResponseRecord> records = new ArrayList<>();
+        for (JsonNode response : root.path("responses")) {
+            records.add(new ResponseRecord(response.get("id").asInt(), response.get("timestamp").asText(),
+                    conversationId, response.get("request_json").asText(), response.get("response_content").asText(),
+                    response.get("starts_new_history").asBoolean()));
+        }
+        return records;
+    }
+
+    /**
+     * Stops background compression and closes the writer and all reader connections.
+     */
+    @Override
+    public void close() throws SQLException {
+        closing = true;
+        Thread running;
+        synchronized (this) {
+            running = compressor;
+        }
+        if (running != null) {
+            try {
+                running.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            pool.close();
+        } finally {
+            if (archive != null) {
+                try {
+                    archive.close();
+                } catch (IOException e) {
+                    DebugLog.log("Failed to close the archive: " + e.getMessage());
+                }
+            }
         }
     }
 
     public static class ConversationSummary {
         public final String id;
         public final String title;
+        /** ISO-8601 creation time; with the id, the position in newest-first order. */
+        public final String createdAt;
 
         public ConversationSummary(String id, String title) {
+            this(id, title, null);
+        }
+
+        public ConversationSummary(String id, String title, String createdAt) {
             this.id = id;
             this.title = title;
+            this.createdAt = createdAt;
         }
 
         @Override
@@ -132,34 +1415,253 @@ public class MessageStorage {
 
 
 
-    private List<ResponseRecord> extractResults(ResultSet rs) throws SQLException {
+    private List<ResponseRecord> extractResults(SqliteConnectionPool.PooledConnection conn, ResultSet rs) throws SQLException {
         List<ResponseRecord> results = new ArrayList<>();
         while (rs.next()) {
-            ResponseRecord record = new ResponseRecord(
-                    rs.getInt("id"),
-                    rs.getString("timestamp"),
-                    rs.getString("conversation_id"),
-                    rs.getString("request_json"),
-                    rs.getString("response_content")
-            );
-            results.add(record);
+            results.add(toRecord(conn, rs));
         }
         return results;
     }
 
+    private ResponseSummary toSummary(SqliteConnectionPool.PooledConnection conn, ResultSet rs) throws SQLException {
+        return new ResponseSummary(rs.getLong("id"), rs.getString("timestamp"), rs.getString("conversation_id"));
+    }
+
+    private ResponseRecord toRecord(SqliteConnectionPool.PooledConnection conn, ResultSet rs) throws SQLException {
+        String conversationId = rs.getString("conversation_id");
+        String requestJson = codec.read(rs, "request_json");
+        long deltaSeq = rs.getLong("delta_seq");
+        boolean startsNewHistory = true;
+        if (!rs.wasNull()) {
+            long baseSeq = rs.getLong("base_seq");
+            requestJson = messageLog.rebuild(conn, conversationId, requestJson,
+                    deltaSeq, rs.getLong("request_end_seq"));
+            startsNewHistory = deltaSeq == baseSeq;
+        }
+        return new ResponseRecord(
+                rs.getInt("id"),
+                rs.getString("timestamp"),
+                conversationId,
+                requestJson,
+                codec.read(rs, "response_content"),
+                startsNewHistory
+        );
+    }
+
+    @FunctionalInterface
+    private interface RowMapper<T> {
+        T map(SqliteConnectionPool.PooledConnection conn, ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * Lazily maps the rows of an open result set. Closes the statement and hands
+     * the connection back once the last row has been read or on close().
+     */
+    private final class Cursor<T> implements Iterator<T>, AutoCloseable {
+        private final SqliteConnectionPool.PooledConnection conn;
+        private final PreparedStatement stmt;
+        private final ResultSet rs;
+        private final RowMapper<T> mapper;
+        private Boolean hasRow;
+        private boolean closed;
+
+        Cursor(SqliteConnectionPool.PooledConnection conn, PreparedStatement stmt, ResultSet rs, RowMapper<T> mapper) {
+            this.conn = conn;
+            this.stmt = stmt;
+            this.rs = rs;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (closed) {
+                return false;
+            }
+            if (hasRow == null) {
+                try {
+                    hasRow = rs.next();
+                } catch (SQLException e) {
+                    close();
+                    throw new IllegalStateException("Failed to read the next row", e);
+                }
+                if (!hasRow) {
+                    close();
+                }
+            }
+            return hasRow;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            hasRow = null;
+            try {
+                return mapper.map(conn, rs);
+            } catch (SQLException e) {
+                close();
+                throw new IllegalStateException("Failed to read a row", e);
+            }
+        }
+
+        Stream<T> stream() {
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false)
+                    .onClose(this::close);
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                DebugLog.log("Failed to close cursor: " + e.getMessage());
+            } finally {
+                pool.release(conn);
+            }
+        }
+    }
+
+    /**
+     * A response that has not been written yet. The timestamp is taken when the
+     * response is produced, not when it reaches the database.
+     */
+    public static class PendingResponse {
+        public final String timestamp;
+        public final String conversationId;
+        public final String requestJson;
+        public final String responseContent;
+        /** The parsed request, if the caller already has it; otherwise requestJson is parsed. */
+        public final JsonNode requestNode;
+
+        public PendingResponse(String timestamp, String conversationId, String requestJson, String responseContent) {
+            this(timestamp, conversationId, requestJson, null, responseContent);
+        }
+
+        public PendingResponse(String timestamp, String conversationId, String requestJson,
+                               JsonNode requestNode, String responseContent) {
+            this.timestamp = timestamp;
+            this.conversationId = conversationId;
+            this.requestJson = requestJson;
+            this.requestNode = requestNode;
+            this.responseContent = responseContent;
+        }
+    }
+
+    public static class CachedResponse {
+        public final String response;
+        public final long createdAtMillis;
+
+        public CachedResponse(String response, long createdAtMillis) {
+            this.response = response;
+            this.createdAtMillis = createdAtMillis;
+        }
+    }
+
+    public static class ContextSummary {
+        public final int coveredMessages;
+        /** Hash of the covered messages, to tell whether a request still starts with them. */
+        public final String coveredHash;
+        public final String summary;
+
+        public ContextSummary(int coveredMessages, String coveredHash, String summary) {
+            this.coveredMessages = coveredMessages;
+            this.coveredHash = coveredHash;
+            this.summary = summary;
+        }
+    }
+
+    /** A response matching a search, with the matching text marked in [brackets]. */
+    public static class SearchHit {
+        public final long responseId;
+        public final String conversationId;
+        /** Null if the conversation was never registered. */
+        public final String conversationTitle;
+        public final String timestamp;
+        public final String snippet;
+
+        public SearchHit(long responseId, String conversationId, String conversationTitle,
+                         String timestamp, String snippet) {
+            this.responseId = responseId;
+            this.conversationId = conversationId;
+            this.conversationTitle = conversationTitle;
+            this.timestamp = timestamp;
+            this.snippet = snippet;
+        }
+    }
+
+    /** Sizes in bytes; see {@link #getStorageStats()}. */
+    public static class StorageStats {
+        /** The database file's pages, free ones included; the WAL is not counted. */
+        public final long databaseBytes;
+        /** Free pages that {@link #incrementalVacuum(int)} can return. */
+        public final long freeBytes;
+        public final long archivedConversations;
+        /** Archive segments on disk, including blocks replaced by a later archiving. */
+        public final long archiveBytes;
+        /** Archive blocks read since the database was opened, and the time spent. */
+        public final long archiveReads;
+        public final long archiveReadNanos;
+
+        public StorageStats(long databaseBytes, long freeBytes, long archivedConversations, long archiveBytes,
+                            long archiveReads, long archiveReadNanos) {
+            this.databaseBytes = databaseBytes;
+            this.freeBytes = freeBytes;
+            this.archivedConversations = archivedConversations;
+            this.archiveBytes = archiveBytes;
+            this.archiveReads = archiveReads;
+            this.archiveReadNanos = archiveReadNanos;
+        }
+    }
+
+    /** A response without its request and response JSON. */
+    public static class ResponseSummary {
+        public final long id;
+        public final String timestamp;
+        public final String conversationId;
+
+        public ResponseSummary(long id, String timestamp, String conversationId) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.conversationId = conversationId;
+        }
+    }
+
+    /**
+     * One stored turn. Turns are kept as a log of the messages each one added,
+     * so a record is not the request as it was sent unless it starts a new
+     * history; replay a conversation's records in order to rebuild that.
+     */
     public static class ResponseRecord {
         public final int id;
         public final String timestamp;
         public final String conversationId;
+        /**
+         * The request with only the messages this turn added to the history,
+         * usually just the new user message. The complete request if
+         * {@link #startsNewHistory} is set.
+         */
         public final String requestJson;
         public final String responseContent;
+        /** True if requestJson holds the complete request rather than only the messages this turn added. */
+        public final boolean startsNewHistory;
 
         public ResponseRecord(int id, String timestamp, String conversationId, String requestJson, String responseContent) {
+            this(id, timestamp, conversationId, requestJson, responseContent, true);
+        }
+
+        public ResponseRecord(int id, String timestamp, String conversationId, String requestJson,
+                              String responseContent, boolean startsNewHistory) {
             this.id = id;
             this.timestamp = timestamp;
             this.conversationId = conversationId;
             this.requestJson = requestJson;
             this.responseContent = responseContent;
+            this.startsNewHistory = startsNewHistory;
         }
 
         @Override
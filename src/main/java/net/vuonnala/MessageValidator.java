@@ -34,19 +34,28 @@ public class MessageValidator {
      */
     public void validate(String jsonContent) {
         try {
-            JsonNode inputNode = MAPPER.readTree(jsonContent);
-            Set<ValidationMessage> errors = schema.validate(inputNode);
-
-            if (!errors.isEmpty()) {
-                StringBuilder sb = new StringBuilder("JSON validation error(s):\n");
-                for (ValidationMessage error : errors) {
-                    sb.append(" - ").append(error.getMessage()).append("\n");
-                }
-                throw new IllegalArgumentException(sb.toString());
-            }
+            validate(MAPPER.readTree(jsonContent));
         } catch (IOException e) {
             throw new IllegalArgumentException("Failed to parse JSON content.", e);
         }
     }
+
+    /**
+     * Validate an already parsed request against the schema.
+     *
+     * @param inputNode The parsed request
+     * @throws IllegalArgumentException if validation fails
+     */
+    public void validate(JsonNode inputNode) {
+        Set<ValidationMessage> errors = schema.validate(inputNode);
+
+        if (!errors.isEmpty()) {
+            StringBuilder sb = new StringBuilder("JSON validation error(s):\n");
+            for (ValidationMessage error : errors) {
+                sb.append(" - ").append(error.getMessage()).append("\n");
+            }
+            throw new IllegalArgumentException(sb.toString());
+        }
+    }
 }
 
@@ -0,0 +1,111 @@
+package net.vuonnala;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One prompt answered by several models, for comparing them side by side; see
+ * {@link MessageDispatcher#dispatchFanOut}. Every model got the same messages
+ * at the same time, so the wall time is that of the slowest model rather
+ * than the sum of all of them.
+ */
+public class ModelComparison {
+
+    /** A model served by one LM Studio endpoint. */
+    public static class Target {
+        public final String ip;
+        public final int port;
+        public final String model;
+
+        public Target(String ip, int port, String model) {
+            this.ip = ip;
+            this.port = port;
+            this.model = model;
+        }
+
+        /**
+         * @param endpoint "host:port"
+         * @param model    Null for the endpoint alone, e.g. before its models are known
+         */
+        public static Target of(String endpoint, String model) {
+            int colon = endpoint.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Endpoint must be host:port, got: " + endpoint);
+            }
+            return new Target(endpoint.substring(0, colon).trim(),
+                    Integer.parseInt(endpoint.substring(colon + 1).trim()), model);
+        }
+
+        public String getEndpoint() {
+            return ip + ":" + port;
+        }
+
+        @Override
+        public String toString() {
+            return model + " @ " + getEndpoint();
+        }
+    }
+
+    /** One model's answer, or why it has none. */
+    public static class Result {
+        public final Target target;
+        /** Null if the model failed. */
+        public final ChatCompletion completion;
+        /** Null if the model answered. */
+        public final String error;
+
+        public Result(Target target, ChatCompletion completion, String error) {
+            this.target = target;
+            this.completion = completion;
+            this.error = error;
+        }
+
+        public boolean isSuccess() {
+            return completion != null;
+        }
+
+        /** "ttft .. ms, total .. ms, tokens ../..", or the error. */
+        public String describe() {
+            if (completion == null) {
+                return "failed: " + error;
+            }
+            return String.format("ttft %d ms, total %d ms, tokens %d/%d", completion.getTimeToFirstTokenMillis(),
+                    completion.getTotalMillis(), completion.promptTokens, completion.completionTokens);
+        }
+    }
+
+    /** The stored comparison's id, linking its results. */
+    public final long id;
+    public final String timestamp;
+    public final String conversationId;
+    /** The request as validated, with the model it named. */
+    public final String requestJson;
+    /** Nanoseconds from sending the first request to the end of the last answer. */
+    public final long wallNanos;
+    /** In the order the targets were given. */
+    public final List<Result> results;
+
+    public ModelComparison(long id, String timestamp, String conversationId, String requestJson, long wallNanos,
+                           List<Result> results) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.conversationId = conversationId;
+        this.requestJson = requestJson;
+        this.wallNanos = wallNanos;
+        this.results = List.copyOf(results);
+    }
+
+    public long getWallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(wallNanos);
+    }
+
+    /** One line per model, then the wall time, for reports. */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (Result result : results) {
+            sb.append(String.format("%-40s %s%n", result.target, result.describe()));
+        }
+        sb.append(String.format("%d models in %d ms%n", results.size(), getWallMillis()));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,342 @@
+package net.vuonnala;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of the JSON payload columns behind {@link MessageStorage}.
+ *
+ * A value is stored either as TEXT, as it always was, or as a BLOB whose first
+ * byte names the codec that wrote it:
+ * <ul>
+ *   <li>{@code 0}: UTF-8 text, for values too small to gain from compression</li>
+ *   <li>{@code 1}: raw DEFLATE, followed by the id of the preset dictionary it
+ *       was compressed with (0 for none) and the uncompressed length</li>
+ * </ul>
+ * Reads decode whatever a row holds, so rows written with compression off or
+ * with an older dictionary stay readable when the setting or dictionary changes.
+ *
+ * The preset dictionary is trained from stored rows: the payloads repeat the
+ * same field names, model ids and system prompts in every row, which DEFLATE
+ * can then reference from the first byte of each value instead of learning
+ * them anew per value.
+ */
+class PayloadCodec {
+
+    static final String CREATE_DICTIONARIES = """
+            CREATE TABLE IF NOT EXISTS codec_dictionaries (
+                id INTEGER PRIMARY KEY,
+                dictionary BLOB NOT NULL,
+                created_at TEXT NOT NULL
+            );
+        """;
+
+    private static final String SELECT_DICTIONARIES = "SELECT id, dictionary FROM codec_dictionaries ORDER BY id";
+    private static final String INSERT_DICTIONARY =
+            "INSERT INTO codec_dictionaries (dictionary, created_at) VALUES (?, ?)";
+
+    static final byte STORED = 0;
+    static final byte DEFLATE = 1;
+
+    /** DEFLATE can only refer back 32 KB, so a larger dictionary would go unused. */
+    static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int DEFLATE_HEADER = 1 + Integer.BYTES + Integer.BYTES;
+    private static final int MIN_COMPRESSIBLE = 64;
+    private static final int POOLED_CODERS = 16;
+
+    // Dictionary training: substrings of GRAM characters count if they occur in at
+    // least MIN_SHARE of the samples; the dictionary is built from WINDOW-character pieces
+    private static final int GRAM = 8;
+    private static final int WINDOW = 64;
+    private static final double MIN_SHARE = 0.05;
+    private static final int MAX_SAMPLE_LENGTH = 4096;
+
+    private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private volatile boolean enabled;
+    private volatile int dictionaryId;
+
+    /** Loads the stored dictionaries; new values use the latest one. */
+    void load(SqliteConnectionPool.PooledConnection conn) throws SQLException {
+        try (ResultSet rs = conn.prepare(SELECT_DICTIONARIES).executeQuery()) {
+            while (rs.next()) {
+                putDictionary(rs.getInt("id"), rs.getBytes("dictionary"));
+            }
+        }
+    }
+
+    /** Stores a new dictionary and compresses new values with it. */
+    int addDictionary(SqliteConnectionPool.PooledConnection conn, byte[] dictionary) throws SQLException {
+        PreparedStatement insert = conn.prepare(INSERT_DICTIONARY);
+        insert.setBytes(1, dictionary);
+        insert.setString(2, Instant.now().toString());
+        insert.executeUpdate();
+        int id;
+        try (Statement stmt = conn.connection().createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT last_insert_rowid()")) {
+            rs.next();
+            id = rs.getInt(1);
+        }
+        putDictionary(id, dictionary);
+        return id;
+    }
+
+    /** Makes a dictionary available for decoding and compresses new values with it. */
+    void putDictionary(int id, byte[] dictionary) {
+        dictionaries.put(id, dictionary);
+        dictionaryId = id;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /** Id of the dictionary new values are compressed with, or 0 if there is none yet. */
+    int getDictionaryId() {
+        return dictionaryId;
+    }
+
+    /** Binds a value as TEXT, or compressed if compression is on. */
+    void bind(PreparedStatement stmt, int index, String value) throws SQLException {
+        if (enabled) {
+            stmt.setBytes(index, encode(value));
+        } else {
+            stmt.setString(index, value);
+        }
+    }
+
+    /** Reads a column written by {@link #bind}, whichever way it was stored. */
+    String read(ResultSet rs, String column) throws SQLException {
+        Object value = rs.getObject(column);
+        return value instanceof byte[] blob ? decode(blob) : (String) value;
+    }
+
+    /** Same as {@link #read(ResultSet, String)} by column index. */
+    String read(ResultSet rs, int column) throws SQLException {
+        Object value = rs.getObject(column);
+        return value instanceof byte[] blob ? decode(blob) : (String) value;
+    }
+
+    byte[] encode(String value) {
+        byte[] text = value.getBytes(StandardCharsets.UTF_8);
+        if (text.length >= MIN_COMPRESSIBLE) {
+            byte[] compressed = deflate(text, dictionaryId);
+            if (compressed.length < text.length + 1) {
+                return compressed;
+            }
+        }
+        byte[] stored = new byte[text.length + 1];
+        stored[0] = STORED;
+        System.arraycopy(text, 0, stored, 1, text.length);
+        return stored;
+    }
+
+    String decode(byte[] blob) throws SQLException {
+        if (blob.length == 0) {
+            throw new SQLException("Empty compressed value");
+        }
+        return switch (blob[0]) {
+            case STORED -> new String(blob, 1, blob.length - 1, StandardCharsets.UTF_8);
+            case DEFLATE -> inflate(blob);
+            default -> throw new SQLException("Unknown codec " + blob[0] + " in stored value");
+        };
+    }
+
+    private byte[] deflate(byte[] text, int dictionary) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        try {
+            if (dictionary != 0) {
+                deflater.setDictionary(dictionaries.get(dictionary));
+            }
+            deflater.setInput(text);
+            deflater.finish();
+            byte[] out = new byte[DEFLATE_HEADER + text.length + 64];
+            int length = DEFLATE_HEADER;
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            ByteBuffer.wrap(out).put(DEFLATE).putInt(dictionary).putInt(text.length);
+            return Arrays.copyOf(out, length);
+        } finally {
+            deflater.reset();
+            release(deflaters, deflater);
+        }
+    }
+
+    private String inflate(byte[] blob) throws SQLException {
+        ByteBuffer header = ByteBuffer.wrap(blob, 1, DEFLATE_HEADER - 1);
+        int dictionary = header.getInt();
+        byte[] text = new byte[header.getInt()];
+
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            if (dictionary != 0) {
+                byte[] preset = dictionaries.get(dictionary);
+                if (preset == null) {
+                    throw new SQLException("Stored value needs unknown compression dictionary " + dictionary);
+                }
+                inflater.setDictionary(preset);
+            }
+            inflater.setInput(blob, DEFLATE_HEADER, blob.length - DEFLATE_HEADER);
+            int length = 0;
+            while (length < text.length) {
+                int read = inflater.inflate(text, length, text.length - length);
+                if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new SQLException("Compressed value is truncated");
+                }
+                length += read;
+            }
+            return new String(text, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new SQLException("Compressed value is corrupt", e);
+        } finally {
+            inflater.reset();
+            release(inflaters, inflater);
+        }
+    }
+
+    private static <T> void release(Queue<T> pool, T coder) {
+        // Roughly bounded; an extra coder is left to the garbage collector
+        if (pool.size() < POOLED_CODERS) {
+            pool.offer(coder);
+        }
+    }
+
+    /**
+     * Builds a preset dictionary of at most {@code maxSize} bytes from sample
+     * values. Picks windows of the samples greedily by how many recurring grams
+     * they hold that no earlier pick covers, and puts the best ones last, since
+     * DEFLATE encodes nearer matches in fewer bits. Returns an empty array if
+     * the samples share nothing worth keeping.
+     */
+    static byte[] train(List<String> values, int maxSize) {
+        // The shared structure is at the start of a payload; long tails only cost time
+        List<String> samples = new ArrayList<>(values.size());
+        for (String value : values) {
+            samples.add(value.length() > MAX_SAMPLE_LENGTH ? value.substring(0, MAX_SAMPLE_LENGTH) : value);
+        }
+
+        // 1) In how many samples does each gram occur? Only recurring grams are worth a dictionary entry
+        Map<Long, Integer> share = new HashMap<>();
+        for (String sample : samples) {
+            Set<Long> seen = new HashSet<>();
+            for (int i = 0; i + GRAM <= sample.length(); i++) {
+                seen.add(gram(sample, i));
+            }
+            for (long gram : seen) {
+                share.merge(gram, 1, Integer::sum);
+            }
+        }
+        int minShare = Math.max(2, (int) Math.ceil(samples.size() * MIN_SHARE));
+        share.values().removeIf(count -> count < minShare);
+
+        // 2) Greedy cover. Scores only fall as grams get covered, so a stale score is an
+        // upper bound and a candidate whose fresh score still leads can be taken
+        PriorityQueue<Window> queue = new PriorityQueue<>((a, b) -> Long.compare(b.score, a.score));
+        for (int s = 0; s < samples.size(); s++) {
+            String sample = samples.get(s);
+            for (int start = 0; start + GRAM <= sample.length(); start += WINDOW / 2) {
+                Window window = new Window(s, start, Math.min(start + WINDOW, sample.length()));
+                window.score = score(sample, window, share);
+                if (window.score > 0) {
+                    queue.add(window);
+                }
+            }
+        }
+        List<String> chosen = new ArrayList<>();
+        int size = 0;
+        while (!queue.isEmpty() && size < maxSize) {
+            Window best = queue.poll();
+            String sample = samples.get(best.sample);
+            long score = score(sample, best, share);
+            if (score == 0) {
+                continue;
+            }
+            if (!queue.isEmpty() && score < queue.peek().score) {
+                best.score = score;
+                queue.add(best);
+                continue;
+            }
+            String segment = sample.substring(best.start, best.end);
+            int bytes = segment.getBytes(StandardCharsets.UTF_8).length;
+            if (size + bytes > maxSize) {
+                continue;
+            }
+            chosen.add(segment);
+            size += bytes;
+            for (int i = best.start; i + GRAM <= best.end; i++) {
+                share.remove(gram(sample, i));
+            }
+        }
+
+        StringBuilder dictionary = new StringBuilder(size);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            dictionary.append(chosen.get(i));
+        }
+        return dictionary.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final class Window {
+        final int sample;
+        final int start;
+        final int end;
+        long score;
+
+        Window(int sample, int start, int end) {
+            this.sample = sample;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static long score(String sample, Window window, Map<Long, Integer> share) {
+        long score = 0;
+        for (int i = window.start; i + GRAM <= window.end; i++) {
+            score += share.getOrDefault(gram(sample, i), 0);
+        }
+        return score;
+    }
+
+    /** 64-bit FNV-1a hash of the GRAM characters at {@code from}. */
+    private static long gram(String sample, int from) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = from; i < from + GRAM; i++) {
+            hash = (hash ^ sample.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+}
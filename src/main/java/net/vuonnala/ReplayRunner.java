@@ -0,0 +1,448 @@
+package net.vuonnala;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Sends stored turns again, as a performance regression suite for a new model
+ * or new hardware. Every turn's prompt is rebuilt from {@link MessageStorage}
+ * exactly as it was sent, with the stored answers as the assistant's earlier
+ * messages, so every run sends the same prompts whatever the models answer.
+ *
+ * Turns are sent in the order they were first stored, each on its own virtual
+ * thread, at most {@code maxInFlight} at a time and paced by a {@link Pacing}.
+ * Each turn's latency, time to first token, tokens and answer are stored in a
+ * run of their own, apart from the conversations; nothing is added to the
+ * history. {@link #report} compares a run with an earlier one, per model.
+ */
+public class ReplayRunner {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+    /** Results written in one transaction while the run goes on. */
+    private static final int FLUSH_BATCH = 256;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** When each turn is sent. */
+    public static final class Pacing {
+        private final double speedup;  // > 0 to keep the original timing
+        private final double rate;     // > 0 for a fixed rate
+
+        private Pacing(double speedup, double rate) {
+            this.speedup = speedup;
+            this.rate = rate;
+        }
+
+        /**
+         * The turns' original spacing, divided by {@code speedup}: a turn stored
+         * a minute after the first is sent 15 seconds after it at speedup 4.
+         */
+        public static Pacing original(double speedup) {
+            if (speedup <= 0) {
+                throw new IllegalArgumentException("Speedup must be positive.");
+            }
+            return new Pacing(speedup, 0);
+        }
+
+        /** A turn every {@code 1 / requestsPerSecond} seconds. */
+        public static Pacing fixedRate(double requestsPerSecond) {
+            if (requestsPerSecond <= 0) {
+                throw new IllegalArgumentException("Rate must be positive.");
+            }
+            return new Pacing(0, requestsPerSecond);
+        }
+
+        /** The next turn as soon as fewer than the maximum are in flight. */
+        public static Pacing asFastAsPossible() {
+            return new Pacing(0, 0);
+        }
+
+        /** The pacing for a --pace flag value: "original", "original:<speedup>", "max" or requests per second. */
+        public static Pacing parse(String spec) {
+            if (spec.isEmpty() || spec.equals("max")) {
+                return asFastAsPossible();
+            }
+            if (spec.equals("original")) {
+                return original(1);
+            }
+            if (spec.startsWith("original:")) {
+                return original(Double.parseDouble(spec.substring("original:".length())));
+            }
+            try {
+                return fixedRate(Double.parseDouble(spec));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Unknown pacing: " + spec);
+            }
+        }
+
+        /**
+         * When turn {@code index} is due, in {@link System#nanoTime()} terms.
+         *
+         * @param offsetNanos How long after the first turn this one was originally stored
+         */
+        long due(long start, long index, long offsetNanos) {
+            if (speedup > 0) {
+                return start + (long) (offsetNanos / speedup);
+            }
+            if (rate > 0) {
+                return start + (long) (index * 1e9 / rate);
+            }
+            return start;
+        }
+
+        @Override
+        public String toString() {
+            if (speedup > 0) {
+                return "original x" + speedup;
+            }
+            return rate > 0 ? rate + " req/s" : "max";
+        }
+    }
+
+    /** A stored turn, with the history its prompt is rebuilt from. */
+    private static final class Turn {
+        final long responseId;
+        final String conversationId;
+        final Instant timestamp;
+        final ObjectNode envelope;      // the request without its messages
+        final List<JsonNode> history;   // shared by the conversation's turns, complete before any is sent
+        final int messageCount;
+        final String originalContent;
+
+        Turn(long responseId, String conversationId, Instant timestamp, ObjectNode envelope,
+             List<JsonNode> history, int messageCount, String originalContent) {
+            this.responseId = responseId;
+            this.conversationId = conversationId;
+            this.timestamp = timestamp;
+            this.envelope = envelope;
+            this.history = history;
+            this.messageCount = messageCount;
+            this.originalContent = originalContent;
+        }
+
+        DispatchRequest request(String model) {
+            ArrayNode messages = MAPPER.createArrayNode();
+            messages.addAll(history.subList(0, messageCount));
+            DispatchRequest request = DispatchRequest.of(null, envelope, conversationId).withMessages(messages);
+            return model != null ? request.withModel(model) : request;
+        }
+    }
+
+    private final MessageDispatcher dispatcher;
+    private final MessageStorage storage;
+    private final ReplayStore replays;
+    private final String ip;
+    private final int port;
+    private volatile String model;
+
+    /**
+     * Replays through the dispatcher's {@link BackendPool}.
+     */
+    public ReplayRunner(MessageDispatcher dispatcher, MessageStorage storage) {
+        this(dispatcher, storage, null, 0);
+    }
+
+    /**
+     * Replays every turn to one LMStudio endpoint.
+     */
+    public ReplayRunner(MessageDispatcher dispatcher, MessageStorage storage, String ip, int port) {
+        this.dispatcher = dispatcher;
+        this.storage = storage;
+        this.replays = storage.getReplayStore();
+        this.ip = ip;
+        this.port = port;
+    }
+
+    /**
+     * Sends every turn to this model instead of the one it named, e.g. to
+     * compare a candidate with the model the turns were recorded with. Null
+     * keeps each turn's model.
+     */
+    public void setModel(String model) {
+        this.model = model;
+    }
+
+    /**
+     * Replays the conversations' turns and stores the run. Returns when every
+     * turn has been answered or has failed.
+     *
+     * @param conversationIds The conversations to replay, e.g.
+     *                        {@link MessageStorage#getConversationIdsWithResponses()}
+     * @param maxInFlight     Turns sent at once; a due turn waits for a slot
+     * @param label           Names the run in reports, e.g. the hardware or model under test
+     */
+    public Report run(List<String> conversationIds, Pacing pacing, int maxInFlight, String label)
+            throws SQLException, InterruptedException {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Turns in flight must be at least 1.");
+        }
+        if (ip == null && dispatcher.getBackendPool() == null) {
+            throw new IllegalStateException("No backend pool configured.");
+        }
+        List<Turn> turns = new ArrayList<>();
+        for (String conversationId : conversationIds) {
+            load(conversationId, turns);
+        }
+        turns.sort(Comparator.comparing((Turn turn) -> turn.timestamp).thenComparingLong(turn -> turn.responseId));
+
+        String sentModel = model;
+        long runId = replays.startRun(label, pacing.toString(), sentModel);
+        Semaphore permits = new Semaphore(maxInFlight);
+        ConcurrentLinkedQueue<ReplayStore.Result> done = new ConcurrentLinkedQueue<>();
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < turns.size(); i++) {
+                Turn turn = turns.get(i);
+                long due = pacing.due(start, i, Duration.between(turns.get(0).timestamp, turn.timestamp).toNanos());
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                permits.acquire();
+                executor.submit(() -> {
+                    try {
+                        done.add(replay(turn, sentModel));
+                    } finally {
+                        permits.release();
+                    }
+                });
+                if (done.size() >= FLUSH_BATCH) {
+                    flush(runId, done);
+                }
+            }
+        }
+        long wallNanos = System.nanoTime() - start;
+        flush(runId, done);
+        replays.finishRun(runId, wallNanos);
+        return new Report(runId, label, pacing.toString(), replays.getResults(runId), wallNanos);
+    }
+
+    /** Adds the conversation's turns, streaming them out of storage. */
+    private void load(String conversationId, List<Turn> turns) throws SQLException {
+        List<JsonNode> history = new ArrayList<>();
+        try (Stream<MessageStorage.ResponseRecord> records = storage.streamResponsesByConversationId(conversationId)) {
+            for (MessageStorage.ResponseRecord record : (Iterable<MessageStorage.ResponseRecord>) records::iterator) {
+                JsonNode request;
+                JsonNode message;
+                try {
+                    request = MAPPER.readTree(record.requestJson);
+                    message = MAPPER.readTree(record.responseContent).path("choices").path(0).path("message");
+                } catch (JsonProcessingException e) {
+                    DebugLog.log("Skipping turn " + record.id + " of " + conversationId
+                            + ": " + e.getOriginalMessage());
+                    continue;
+                }
+                if (record.startsNewHistory) {
+                    history = new ArrayList<>();
+                }
+                for (JsonNode stored : request.path("messages")) {
+                    history.add(stored);
+                }
+                ObjectNode envelope = request.isObject() ? ((ObjectNode) request).deepCopy() : MAPPER.createObjectNode();
+                envelope.remove("messages");
+                String content = message.path("content").asText("");
+                turns.add(new Turn(record.id, conversationId, Instant.parse(record.timestamp), envelope,
+                        history, history.size(), content));
+
+                // The next turn's prompt continues with the stored answer
+                history.add(MAPPER.createObjectNode().put("role", message.path("role").asText("assistant"))
+                        .put("content", content));
+            }
+        }
+    }
+
+    private ReplayStore.Result replay(Turn turn, String sentModel) {
+        DispatchRequest request = turn.request(sentModel);
+        String requestModel = request.getModel() != null ? request.getModel() : "unknown";
+        long start = System.nanoTime();
+        try {
+            ChatCompletion completion = ip != null
+                    ? dispatcher.getClient(ip, port).streamToLlmStudio(request, token -> { })
+                    : dispatcher.getBackendPool().execute(turn.conversationId,
+                            client -> client.streamToLlmStudio(request, token -> { }));
+            return new ReplayStore.Result(turn.responseId, turn.conversationId, requestModel,
+                    completion.content, null, completion.content.equals(turn.originalContent),
+                    completion.timeToFirstTokenNanos, completion.totalNanos,
+                    completion.promptTokens, completion.completionTokens);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            String error = e.getMessage() != null ? e.getMessage() : e.toString();
+            return new ReplayStore.Result(turn.responseId, turn.conversationId, requestModel,
+                    null, error, false, -1, System.nanoTime() - start, -1, -1);
+        }
+    }
+
+    private void flush(long runId, ConcurrentLinkedQueue<ReplayStore.Result> done) throws SQLException {
+        List<ReplayStore.Result> batch = new ArrayList<>();
+        ReplayStore.Result result;
+        while ((result = done.poll()) != null) {
+            batch.add(result);
+        }
+        replays.storeResults(runId, batch);
+    }
+
+    /**
+     * Compares a stored run with an earlier one, per model: latency and time to
+     * first token percentiles, generation speed and how many answers changed.
+     * A turn counts in the comparison only if both runs replayed it.
+     *
+     * @param baselineRunId The run to compare with, or 0 for none
+     * @throws IllegalArgumentException if a run does not exist
+     */
+    public static String report(ReplayStore replays, long runId, long baselineRunId) throws SQLException {
+        ReplayStore.Run run = requireRun(replays, runId);
+        ReplayStore.Run baseline = baselineRunId > 0 ? requireRun(replays, baselineRunId) : null;
+        List<ReplayStore.Result> after = replays.getResults(runId);
+        Map<Long, ReplayStore.Result> before = new HashMap<>();
+        if (baseline != null) {
+            for (ReplayStore.Result result : replays.getResults(baselineRunId)) {
+                before.put(result.responseId, result);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Replay run %d \"%s\" (%s, %d turns)", run.id, run.label, run.pacing, after.size()));
+        if (baseline != null) {
+            sb.append(String.format(" vs run %d \"%s\" (%s)", baseline.id, baseline.label, baseline.pacing));
+        }
+        sb.append(System.lineSeparator());
+
+        Map<String, List<ReplayStore.Result>> byModel = new LinkedHashMap<>();
+        for (ReplayStore.Result result : after) {
+            byModel.computeIfAbsent(result.model, m -> new ArrayList<>()).add(result);
+        }
+        for (Map.Entry<String, List<ReplayStore.Result>> entry : byModel.entrySet()) {
+            List<ReplayStore.Result> now = entry.getValue();
+            List<ReplayStore.Result> then = new ArrayList<>();
+            TreeSet<String> thenModels = new TreeSet<>();
+            int differ = 0;
+            for (ReplayStore.Result result : now) {
+                ReplayStore.Result earlier = before.get(result.responseId);
+                if (earlier != null) {
+                    then.add(earlier);
+                    thenModels.add(earlier.model);
+                    if (result.content == null || !result.content.equals(earlier.content)) {
+                        differ++;
+                    }
+                }
+            }
+            Stats a = new Stats(now);
+            sb.append(String.format("%s%s: %d turns, %d failed%n", entry.getKey(),
+                    baseline != null ? " (was " + String.join(", ", thenModels) + ")" : "", now.size(), a.failed));
+            if (baseline == null) {
+                sb.append(String.format("  Latency:     p50 %.1f ms, p95 %.1f ms%n",
+                        a.latencies.getPercentileMillis(0.50), a.latencies.getPercentileMillis(0.95)));
+                sb.append(String.format("  First token: p50 %.1f ms, p95 %.1f ms%n",
+                        a.firstTokens.getPercentileMillis(0.50), a.firstTokens.getPercentileMillis(0.95)));
+                sb.append(String.format("  Tokens/s:    %.1f%n", a.tokensPerSecond()));
+            } else {
+                Stats b = new Stats(then);
+                sb.append(String.format("  Latency:     p50 %s, p95 %s%n",
+                        change(b.latencies.getPercentileMillis(0.50), a.latencies.getPercentileMillis(0.50), " ms"),
+                        change(b.latencies.getPercentileMillis(0.95), a.latencies.getPercentileMillis(0.95), " ms")));
+                sb.append(String.format("  First token: p50 %s, p95 %s%n",
+                        change(b.firstTokens.getPercentileMillis(0.50), a.firstTokens.getPercentileMillis(0.50), " ms"),
+                        change(b.firstTokens.getPercentileMillis(0.95), a.firstTokens.getPercentileMillis(0.95), " ms")));
+                sb.append(String.format("  Tokens/s:    %s%n", change(b.tokensPerSecond(), a.tokensPerSecond(), "")));
+                sb.append(String.format("  Answers:     %d of %d differ from run %d%n", differ, then.size(), baseline.id));
+            }
+            sb.append(String.format("  Stored:      %d of %d answers as originally stored%n",
+                    now.stream().filter(result -> result.matchesOriginal).count(), now.size()));
+        }
+        return sb.toString();
+    }
+
+    private static ReplayStore.Run requireRun(ReplayStore replays, long runId) throws SQLException {
+        ReplayStore.Run run = replays.getRun(runId);
+        if (run == null) {
+            throw new IllegalArgumentException("No replay run " + runId);
+        }
+        return run;
+    }
+
+    /** "812.0 -> 640.2 ms (-21.2%)". */
+    private static String change(double before, double after, String unit) {
+        String percent = before == 0 ? "" : String.format(" (%+.1f%%)", 100 * (after - before) / before);
+        return String.format("%.1f -> %.1f%s%s", before, after, unit, percent);
+    }
+
+    /** The timings of some results, successful calls only. */
+    private static final class Stats {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final LatencyHistogram firstTokens = new LatencyHistogram();
+        long failed;
+        long completionTokens;
+        long generationNanos;
+
+        Stats(List<ReplayStore.Result> results) {
+            for (ReplayStore.Result result : results) {
+                if (!result.isSuccess()) {
+                    failed++;
+                    continue;
+                }
+                latencies.record(result.totalNanos);
+                if (result.timeToFirstTokenNanos >= 0) {
+                    firstTokens.record(result.timeToFirstTokenNanos);
+                }
+                if (result.completionTokens > 0) {
+                    completionTokens += result.completionTokens;
+                    generationNanos += result.totalNanos;
+                }
+            }
+        }
+
+        double tokensPerSecond() {
+            return generationNanos == 0 ? 0 : completionTokens / (generationNanos / 1e9);
+        }
+    }
+
+    /** What one run did, as it was stored. */
+    public static class Report {
+        public final long runId;
+        public final String label;
+        public final String pacing;
+        public final List<ReplayStore.Result> results;
+        public final long wallNanos;
+
+        public Report(long runId, String label, String pacing, List<ReplayStore.Result> results,
+                      long wallNanos) {
+            this.runId = runId;
+            this.label = label;
+            this.pacing = pacing;
+            this.results = results;
+            this.wallNanos = wallNanos;
+        }
+
+        public long failed() {
+            return results.stream().filter(result -> !result.isSuccess()).count();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Replay:     run %d \"%s\", %d turns (failed %d) at %s in %.2f s",
+                    runId, label, results.size(), failed(), pacing, wallNanos / 1e9);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package net.vuonnala;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The runs of {@link ReplayRunner} and their results, in the
+ * {@code replay_runs} and {@code replay_results} tables of a
+ * {@link MessageStorage} database. The tables are created with the rest of the
+ * schema; get the store from {@link MessageStorage#getReplayStore()}.
+ */
+public class ReplayStore {
+
+    static final String CREATE_RUNS = """
+            CREATE TABLE IF NOT EXISTS replay_runs (
+                id INTEGER PRIMARY KEY AUTOINCREMENT,
+                started_at TEXT NOT NULL,
+                label TEXT NOT NULL,
+                pacing TEXT NOT NULL,
+                model TEXT,
+                wall_nanos INTEGER
+            );
+        """;
+
+    // One row per replayed turn (response_id = responses.id of the turn whose prompt was sent)
+    static final String CREATE_RESULTS = """
+            CREATE TABLE IF NOT EXISTS replay_results (
+                run_id INTEGER NOT NULL,
+                response_id INTEGER NOT NULL,
+                conversation_id TEXT NOT NULL,
+                model TEXT NOT NULL,
+                content TEXT,
+                error TEXT,
+                matches_original INTEGER NOT NULL,
+                ttft_nanos INTEGER NOT NULL,
+                total_nanos INTEGER NOT NULL,
+                prompt_tokens INTEGER NOT NULL,
+                completion_tokens INTEGER NOT NULL,
+                PRIMARY KEY (run_id, response_id),
+                FOREIGN KEY (run_id) REFERENCES replay_runs(id)
+            ) WITHOUT ROWID;
+        """;
+
+    private static final String INSERT_RUN =
+            "INSERT INTO replay_runs (started_at, label, pacing, model) VALUES (?, ?, ?, ?)";
+    private static final String UPDATE_RUN_WALL =
+            "UPDATE replay_runs SET wall_nanos = ? WHERE id = ?";
+    private static final String SELECT_RUN =
+            "SELECT id, started_at, label, pacing, model, wall_nanos FROM replay_runs WHERE id = ?";
+    private static final String INSERT_RESULT =
+            "INSERT OR REPLACE INTO replay_results (run_id, response_id, conversation_id, model, content, error, "
+                    + "matches_original, ttft_nanos, total_nanos, prompt_tokens, completion_tokens) "
+                    + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_RESULTS =
+            "SELECT response_id, conversation_id, model, content, error, matches_original, ttft_nanos, total_nanos, "
+                    + "prompt_tokens, completion_tokens FROM replay_results WHERE run_id = ? ORDER BY response_id";
+
+    private final SqliteConnectionPool pool;
+
+    ReplayStore(SqliteConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Records the start of a run.
+     *
+     * @param model The model every turn was sent to, or null if each kept its own
+     * @return The run's id, linking its results
+     */
+    public long startRun(String label, String pacing, String model) throws SQLException {
+        return pool.inTransaction(conn -> {
+            PreparedStatement pstmt = conn.prepare(INSERT_RUN);
+            pstmt.setString(1, Instant.now().toString());
+            pstmt.setString(2, label);
+            pstmt.setString(3, pacing);
+            pstmt.setString(4, model);
+            pstmt.executeUpdate();
+            try (Statement stmt = conn.connection().createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT last_insert_rowid()")) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        });
+    }
+
+    public void finishRun(long runId, long wallNanos) throws SQLException {
+        pool.write(conn -> {
+            PreparedStatement pstmt = conn.prepare(UPDATE_RUN_WALL);
+            pstmt.setLong(1, wallNanos);
+            pstmt.setLong(2, runId);
+            return pstmt.executeUpdate();
+        });
+    }
+
+    /** Stores results of a run in one transaction; a turn replayed again replaces its result. */
+    public void storeResults(long runId, List<Result> results) throws SQLException {
+        if (results.isEmpty()) {
+            return;
+        }
+        pool.inTransaction(conn -> {
+            PreparedStatement pstmt = conn.prepare(INSERT_RESULT);
+            for (Result result : results) {
+                pstmt.setLong(1, runId);
+                pstmt.setLong(2, result.responseId);
+                pstmt.setString(3, result.conversationId);
+                pstmt.setString(4, result.model);
+                pstmt.setString(5, result.content);
+                pstmt.setString(6, result.error);
+                pstmt.setBoolean(7, result.matchesOriginal);
+                pstmt.setLong(8, result.timeToFirstTokenNanos);
+                pstmt.setLong(9, result.totalNanos);
+                pstmt.setInt(10, result.promptTokens);
+                pstmt.setInt(11, result.completionTokens);
+                pstmt.executeUpdate();
+            }
+            return null;
+        });
+    }
+
+    /** A run, or null if there is none with the id. */
+    public Run getRun(long runId) throws SQLException {
+        return pool.read(conn -> {
+            PreparedStatement pstmt = conn.prepare(SELECT_RUN);
+            pstmt.setLong(1, runId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                long wallNanos = rs.getLong("wall_nanos");
+                if (rs.wasNull()) {
+                    wallNanos = -1;
+                }
+                return new Run(rs.getLong("id"), rs.getString("started_at"), rs.getString("label"),
+                        rs.getString("pacing"), rs.getString("model"), wallNanos);
+            }
+        });
+    }
+
+    /** A run's results in the order the turns were first stored. */
+    public List<Result> getResults(long runId) throws SQLException {
+        return pool.read(conn -> {
+            PreparedStatement pstmt = conn.prepare(SELECT_RESULTS);
+            pstmt.setLong(1, runId);
+            List<Result> results = new ArrayList<>();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    results.add(new Result(rs.getLong("response_id"), rs.getString("conversation_id"),
+                            rs.getString("model"), rs.getString("content"), rs.getString("error"),
+                            rs.getBoolean("matches_original"), rs.getLong("ttft_nanos"), rs.getLong("total_nanos"),
+                            rs.getInt("prompt_tokens"), rs.getInt("completion_tokens")));
+                }
+            }
+            return results;
+        });
+    }
+
+    /** One run of {@link ReplayRunner}. */
+    public static class Run {
+        public final long id;
+        public final String startedAt;
+        public final String label;
+        /** How the turns were paced, e.g. "original x4.0". */
+        public final String pacing;
+        /** The model every turn was sent to, or null if each kept its own. */
+        public final String model;
+        /** -1 while the run has not finished. */
+        public final long wallNanos;
+
+        public Run(long id, String startedAt, String label, String pacing, String model, long wallNanos) {
+            this.id = id;
+            this.startedAt = startedAt;
+            this.label = label;
+            this.pacing = pacing;
+            this.model = model;
+            this.wallNanos = wallNanos;
+        }
+    }
+
+    /** One stored turn sent again by a {@link ReplayRunner} run. */
+    public static class Result {
+        /** The id of the stored turn whose prompt was sent. */
+        public final long responseId;
+        public final String conversationId;
+        public final String model;
+        /** The assistant's text, or null if the call failed. */
+        public final String content;
+        /** Null if the call succeeded. */
+        public final String error;
+        /** Whether the text is the same as the stored answer's. */
+        public final boolean matchesOriginal;
+        /** -1 if no token arrived. */
+        public final long timeToFirstTokenNanos;
+        /** Until the answer was complete, or until the call failed. */
+        public final long totalNanos;
+        /** -1 if not reported. */
+        public final int promptTokens;
+        public final int completionTokens;
+
+        public Result(long responseId, String conversationId, String model, String content, String error,
+                      boolean matchesOriginal, long timeToFirstTokenNanos, long totalNanos,
+                      int promptTokens, int completionTokens) {
+            this.responseId = responseId;
+            this.conversationId = conversationId;
+            this.model = model;
+            this.content = content;
+            this.error = error;
+            this.matchesOriginal = matchesOriginal;
+            this.timeToFirstTokenNanos = timeToFirstTokenNanos;
+            this.totalNanos = totalNanos;
+            this.promptTokens = promptTokens;
+            this.completionTokens = completionTokens;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package net.vuonnala;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Single-flight for LLM calls: while a request is in flight, identical
+ * requests (same {@link ResponseCache#key}) wait for it and share its result
+ * instead of calling the backend again. The first caller makes the call; its
+ * result or exception goes to everyone who joined before it finished. Callers
+ * arriving after that start a new call. If the first caller is interrupted,
+ * e.g. because its dispatch was cancelled, its waiters start a new call
+ * instead of failing with it.
+ *
+ * Streamed calls are shared the same way. Every waiter receives the tokens on
+ * its own thread, starting with those that arrived before it joined, so a
+ * slow consumer never holds up the call or the other waiters. If the first
+ * caller of a stream is interrupted, one waiter streams again and the others
+ * follow it; each skips the text it has already passed on. Streamed and
+ * non-streamed requests are never shared with each other.
+ */
+public class RequestCoalescer {
+
+    private final ConcurrentHashMap<String, Flight> calls = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Flight> streams = new ConcurrentHashMap<>();
+
+    private final LongAdder upstream = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /** A call in progress and what it has produced so far. */
+    private static final class Flight {
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition changed = lock.newCondition();
+        final List<String> tokens = new ArrayList<>();  // streams only
+        boolean done;
+        Object result;
+        Exception failure;
+        boolean abandoned;  // the caller was interrupted, not the call failed
+
+        void token(String token) {
+            lock.lock();
+            try {
+                tokens.add(token);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void finish(Object result, Exception failure) {
+            lock.lock();
+            try {
+                this.result = result;
+                this.failure = failure;
+                this.abandoned = failure instanceof InterruptedException;
+                done = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Hands every token to {@code onToken} until the call ends, then returns its result. */
+        Object follow(Consumer<String> onToken) throws Exception {
+            int next = 0;
+            while (true) {
+                List<String> batch;
+                boolean finished;
+                lock.lock();
+                try {
+                    while (next == tokens.size() && !done) {
+                        changed.await();
+                    }
+                    batch = onToken == null ? List.of() : new ArrayList<>(tokens.subList(next, tokens.size()));
+                    next = tokens.size();
+                    finished = done;
+                } finally {
+                    lock.unlock();
+                }
+                for (String token : batch) {
+                    onToken.accept(token);  // outside the lock
+                }
+                if (finished) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    return result;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the result of {@code call}, or of the identical call already in
+     * flight under {@code key}.
+     */
+    public String execute(String key, Callable<String> call) throws Exception {
+        Flight flight = new Flight();
+        Flight running;
+        while ((running = calls.putIfAbsent(key, flight)) != null) {
+            waiting.incrementAndGet();
+            try {
+                String result = (String) running.follow(null);
+                coalesced.increment();
+                return result;
+            } catch (Exception e) {
+                if (!running.abandoned || e != running.failure) {  // or this caller was interrupted
+                    coalesced.increment();
+                    throw e;
+                }
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+        upstream.increment();
+        String result = null;
+        Exception failure = null;
+        try {
+            result = call.call();
+            return result;
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            calls.remove(key, flight);
+            flight.finish(result, failure);
+        }
+    }
+
+    /** A streamed call that sends its tokens to the given consumer. */
+    public interface StreamCall {
+        ChatCompletion stream(Consumer<String> onToken) throws Exception;
+    }
+
+    /**
+     * Passes a caller's tokens on. After the stream it followed was abandoned
+     * and started again, it skips the text it already passed on, so the caller
+     * sees each part of the answer once. If the new answer differs, the
+     * completion's content is the one to keep.
+     */
+    private static final class Resumable implements Consumer<String> {
+        private final Consumer<String> onToken;
+        private int passed;  // characters passed on
+        private int seen;    // characters of the current stream
+
+        Resumable(Consumer<String> onToken) {
+            this.onToken = onToken;
+        }
+
+        @Override
+        public void accept(String token) {
+            int skip = Math.max(0, passed - seen);
+            seen += token.length();
+            if (skip < token.length()) {
+                onToken.accept(skip == 0 ? token : token.substring(skip));
+                passed = seen;
+            }
+        }
+
+        void restart() {
+            seen = 0;
+        }
+    }
+
+    /**
+     * Streams {@code call}, or follows the identical stream already in flight
+     * under {@code key}. Either way {@code onToken} receives every token, on
+     * the calling thread.
+     *
+     * If the first caller is interrupted, e.g. because the user stopped it,
+     * its waiters stream again rather than failing with it. If its own
+     * {@code onToken} throws, its stream ends and the waiters get the same
+     * exception; they may already have passed on some of its tokens.
+     */
+    public ChatCompletion stream(String key, Consumer<String> onToken, StreamCall call) throws Exception {
+        Resumable sink = new Resumable(onToken);
+        Flight flight = new Flight();
+        Flight running;
+        while ((running = streams.putIfAbsent(key, flight)) != null) {
+            waiting.incrementAndGet();
+            try {
+                ChatCompletion result = (ChatCompletion) running.follow(sink);
+                coalesced.increment();
+                return result;
+            } catch (Exception e) {
+                if (!running.abandoned || e != running.failure) {  // or this caller was interrupted
+                    coalesced.increment();
+                    throw e;
+                }
+                sink.restart();
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+        upstream.increment();
+        ChatCompletion result = null;
+        Exception failure = null;
+        try {
+            result = call.stream(token -> {
+                flight.token(token);
+                sink.accept(token);
+            });
+            return result;
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        } finally {
+            streams.remove(key, flight);
+            flight.finish(result, failure);
+        }
+    }
+
+    /** Calls that went to the backend. */
+    public long getUpstreamCount() {
+        return upstream.sum();
+    }
+
+    /** Calls answered by another caller's call, i.e. backend calls saved. */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /** Callers following another caller's call right now. */
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    /** Calls in flight right now, streamed or not. */
+    public int getInFlightCount() {
+        return calls.size() + streams.size();
+    }
+
+    /** "upstream=.. coalesced=.. (..% saved)", for reports. */
+    public String summary() {
+        long up = getUpstreamCount();
+        long saved = getCoalescedCount();
+        return String.format("upstream=%d coalesced=%d (%.1f%% of calls saved)",
+                up, saved, up + saved == 0 ? 0.0 : 100.0 * saved / (up + saved));
+    }
+}
@@ -0,0 +1,265 @@
+package net.vuonnala;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Exact-match cache for chat completions, keyed by the SHA-256 of the
+ * canonicalized model and messages, i.e. exactly what is sent to LM Studio.
+ *
+ * Lookups go to an in-memory LRU tier first, bounded by entry count and by the
+ * total size of the cached responses, then to the {@code response_cache} table
+ * of the {@link MessageStorage} database if one is given. Entries older than the
+ * TTL are treated as misses in both tiers. Only responses that carry at least
+ * one choice are cached, so backend errors are always retried.
+ *
+ * The table is pruned on the first write and every {@link #PRUNE_EVERY} writes
+ * after it: expired entries are deleted, and so is everything but the newest
+ * {@code maxPersistentEntries}.
+ */
+public class ResponseCache {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final Duration DEFAULT_TTL = Duration.ofHours(24);
+    public static final int DEFAULT_MAX_PERSISTENT_ENTRIES = 10_000;
+
+    /** Writes between two prunings of the persistent tier. */
+    static final int PRUNE_EVERY = 100;
+
+    private final MessageStorage persistent;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final int maxPersistentEntries;
+    private final AtomicLong persistentWrites = new AtomicLong();
+
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;  // guarded by memory
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder persistentHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder bypassed = new LongAdder();
+    private final LongAdder pruned = new LongAdder();
+
+    private static final class Entry {
+        final String response;
+        final long createdAtMillis;
+
+        Entry(String response, long createdAtMillis) {
+            this.response = response;
+            this.createdAtMillis = createdAtMillis;
+        }
+    }
+
+    /**
+     * A memory-only cache with the default limits.
+     */
+    public ResponseCache() {
+        this(null, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, DEFAULT_TTL);
+    }
+
+    public ResponseCache(MessageStorage persistent, int maxEntries, long maxBytes, Duration ttl) {
+        this(persistent, maxEntries, maxBytes, ttl, DEFAULT_MAX_PERSISTENT_ENTRIES);
+    }
+
+    /**
+     * @param persistent           Storage whose database backs the memory tier, or null for memory only
+     * @param maxEntries           Entries kept in memory
+     * @param maxBytes             Total response characters kept in memory
+     * @param ttl                  How long a cached response stays valid, in both tiers
+     * @param maxPersistentEntries Entries kept in the database
+     */
+    public ResponseCache(MessageStorage persistent, int maxEntries, long maxBytes, Duration ttl,
+                         int maxPersistentEntries) {
+        if (maxEntries < 1 || maxBytes < 1 || maxPersistentEntries < 1) {
+            throw new IllegalArgumentException("Cache limits must be positive.");
+        }
+        this.persistent = persistent;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttl.toMillis();
+        this.maxPersistentEntries = maxPersistentEntries;
+    }
+
+    /**
+     * The cache key of a request: SHA-256 over its model and messages with
+     * object keys sorted, so field order and unrelated fields such as
+     * conversation_id don't matter.
+     */
+    public static String key(DispatchRequest request) {
+        ObjectNode keyed = MAPPER.createObjectNode();
+        keyed.put("model", request.getModel());
+        keyed.set("messages", request.getMessages());
+        return MessageLog.sha256(MessageLog.canonicalize(keyed).toString());
+    }
+
+    /**
+     * The cached response for the key, or null on a miss. A hit in the
+     * persistent tier is promoted to memory.
+     */
+    public String get(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (memory) {
+            Entry entry = memory.get(key);
+            if (entry != null) {
+                if (now - entry.createdAtMillis < ttlMillis) {
+                    hits.increment();
+                    return entry.response;
+                }
+                remove(key);
+            }
+        }
+
+        if (persistent != null) {
+            try {
+                MessageStorage.CachedResponse cached = persistent.getCachedResponse(key, now - ttlMillis);
+                if (cached != null) {
+                    persistentHits.increment();
+                    putInMemory(key, new Entry(cached.response, cached.createdAtMillis));
+                    return cached.response;
+                }
+            } catch (SQLException e) {
+                DebugLog.log("Response cache lookup failed: " + e.getMessage());
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Caches the response if it is a completion with at least one choice.
+     */
+    public void put(String key, String response) {
+        if (!isCacheable(response)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        putInMemory(key, new Entry(response, now));
+        if (persistent != null) {
+            try {
+                persistent.putCachedResponse(key, response, now);
+            } catch (SQLException e) {
+                DebugLog.log("Failed to persist cached response: " + e.getMessage());
+            }
+            if (persistentWrites.getAndIncrement() % PRUNE_EVERY == 0) {
+                prunePersistent();
+            }
+        }
+    }
+
+    /**
+     * Deletes expired entries from the persistent tier, and all but the newest
+     * maxPersistentEntries.
+     *
+     * @return The number of entries deleted; 0 without a persistent tier
+     */
+    public int prunePersistent() {
+        if (persistent == null) {
+            return 0;
+        }
+        try {
+            int deleted = persistent.pruneCachedResponses(System.currentTimeMillis() - ttlMillis, maxPersistentEntries);
+            pruned.add(deleted);
+            return deleted;
+        } catch (SQLException e) {
+            DebugLog.log("Failed to prune the response cache: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /** Counts a request that skipped the cache on purpose. */
+    void recordBypass() {
+        bypassed.increment();
+    }
+
+    private void putInMemory(String key, Entry entry) {
+        synchronized (memory) {
+            remove(key);
+            memory.put(key, entry);
+            memoryBytes += entry.response.length();
+
+            // Least recently used entries go first; the new entry stays even if it alone exceeds maxBytes
+            Iterator<Map.Entry<String, Entry>> it = memory.entrySet().iterator();
+            while (memory.size() > 1 && (memory.size() > maxEntries || memoryBytes > maxBytes)) {
+                Map.Entry<String, Entry> eldest = it.next();
+                memoryBytes -= eldest.getValue().response.length();
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Entry removed = memory.remove(key);
+        if (removed != null) {
+            memoryBytes -= removed.response.length();
+        }
+    }
+
+    private static boolean isCacheable(String response) {
+        try {
+            JsonNode choices = MAPPER.readTree(response).path("choices");
+            return choices.isArray() && !choices.isEmpty();
+        } catch (JsonProcessingException e) {
+            return false;
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getPersistentHitCount() {
+        return persistentHits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getBypassCount() {
+        return bypassed.sum();
+    }
+
+    /** Entries deleted from the persistent tier by pruning. */
+    public long getPrunedCount() {
+        return pruned.sum();
+    }
+
+    public int getSize() {
+        synchronized (memory) {
+            return memory.size();
+        }
+    }
+
+    public long getSizeBytes() {
+        synchronized (memory) {
+            return memoryBytes;
+        }
+    }
+
+    /** "hits=.. misses=.." in one line, for reports. */
+    public String summary() {
+        return String.format("hits=%d (persistent %d) misses=%d bypassed=%d evictions=%d entries=%d pruned=%d",
+                getHitCount() + getPersistentHitCount(), getPersistentHitCount(), getMissCount(),
+                getBypassCount(), getEvictionCount(), getSize(), getPrunedCount());
+    }
+}
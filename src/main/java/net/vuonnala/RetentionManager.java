@@ -0,0 +1,218 @@
+package net.vuonnala;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the hot database small. Conversations that fall outside the
+ * {@link Policy} are moved to the archive (see
+ * {@link MessageStorage#archiveConversations}), a few at a time, and the pages
+ * they leave free are returned to the file system with incremental vacuum in
+ * small steps, so neither ever holds the writer for long.
+ *
+ * Runs on a background thread at a fixed interval, or only when
+ * {@link #runOnce()} is called if the interval is zero.
+ */
+public class RetentionManager implements AutoCloseable {
+
+    public static final Duration DEFAULT_INTERVAL = Duration.ofHours(1);
+
+    /** Conversations per archiving transaction. */
+    static final int ARCHIVE_BATCH = 5;
+    /** Pages per incremental vacuum step; 1 MB with the default 4 KB pages. */
+    static final int VACUUM_STEP_PAGES = 256;
+    /** Pause between vacuum steps, which lets queued writers in. */
+    static final Duration VACUUM_PAUSE = Duration.ofMillis(10);
+
+    private static final int COLD_LOOKUP_LIMIT = 500;
+
+    /** Which conversations stay in the hot database. */
+    public static final class Policy {
+        /** Conversations active within this long stay hot; null to keep any age. */
+        public final Duration keepAge;
+        /** The most recently active conversations to keep hot; 0 to keep any number. */
+        public final int keepConversations;
+
+        public Policy(Duration keepAge, int keepConversations) {
+            if (keepConversations < 0) {
+                throw new IllegalArgumentException("keepConversations must not be negative: " + keepConversations);
+            }
+            this.keepAge = keepAge;
+            this.keepConversations = keepConversations;
+        }
+
+        /** True if the policy never archives anything. */
+        public boolean keepsEverything() {
+            return keepAge == null && keepConversations == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "keep " + (keepAge == null ? "any age" : keepAge.toDays() + " days") + ", "
+                    + (keepConversations == 0 ? "any number" : keepConversations + " conversations");
+        }
+    }
+
+    /** What one {@link #runOnce()} did. */
+    public static final class Report {
+        public final int archivedConversations;
+        public final long vacuumedPages;
+        public final long elapsedMillis;
+
+        Report(int archivedConversations, long vacuumedPages, long elapsedMillis) {
+            this.archivedConversations = archivedConversations;
+            this.vacuumedPages = vacuumedPages;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("archived %d conversations, vacuumed %d pages in %d ms",
+                    archivedConversations, vacuumedPages, elapsedMillis);
+        }
+    }
+
+    private final MessageStorage storage;
+    private final Policy policy;
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean closed;
+    private boolean vacuumWarned;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong archivedConversations = new AtomicLong();
+    private final AtomicLong vacuumedPages = new AtomicLong();
+
+    public RetentionManager(MessageStorage storage, Policy policy, Duration interval) {
+        this.storage = storage;
+        this.policy = policy;
+        if (interval.isZero()) {
+            this.scheduler = null;
+        } else {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "echoforge-retention");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(this::runScheduled, interval.toMillis(), interval.toMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Archives every conversation outside the policy, then vacuums until no
+     * free page is left. Stops early when the manager is closed.
+     */
+    public synchronized Report runOnce() throws SQLException {
+        long start = System.nanoTime();
+        int archived = 0;
+        if (!policy.keepsEverything()) {
+            String activeSince = policy.keepAge == null ? "" : Instant.now().minus(policy.keepAge).toString();
+            int keep = policy.keepConversations == 0 ? Integer.MAX_VALUE : policy.keepConversations;
+            while (!closed) {
+                List<String> cold = storage.findColdConversations(activeSince, keep, COLD_LOOKUP_LIMIT);
+                if (cold.isEmpty()) {
+                    break;
+                }
+                int before = archived;
+                for (int from = 0; from < cold.size() && !closed; from += ARCHIVE_BATCH) {
+                    archived += storage.archiveConversations(cold.subList(from, Math.min(from + ARCHIVE_BATCH, cold.size())));
+                }
+                if (archived == before) {
+                    break;
+                }
+            }
+        }
+        archivedConversations.addAndGet(archived);
+
+        long vacuumed = vacuum();
+        runs.incrementAndGet();
+        return new Report(archived, vacuumed, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private long vacuum() throws SQLException {
+        if (!storage.isIncrementalVacuumEnabled()) {
+            if (!vacuumWarned) {
+                vacuumWarned = true;
+                DebugLog.log("Incremental vacuum is off for this database; run --compact once "
+                        + "to return archived space to the file system");
+            }
+            return 0;
+        }
+        long vacuumed = 0;
+        while (!closed) {
+            int freed = storage.incrementalVacuum(VACUUM_STEP_PAGES);
+            vacuumed += freed;
+            vacuumedPages.addAndGet(freed);
+            if (freed < VACUUM_STEP_PAGES) {
+                break;
+            }
+            try {
+                Thread.sleep(VACUUM_PAUSE.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return vacuumed;
+    }
+
+    private void runScheduled() {
+        try {
+            Report report = runOnce();
+            if (report.archivedConversations > 0 || report.vacuumedPages > 0) {
+                DebugLog.log("Retention: " + report);
+            }
+        } catch (SQLException | RuntimeException e) {
+            if (!closed) {
+                DebugLog.log("Retention run failed: " + e.getMessage());
+            }
+        }
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public long getRunCount() {
+        return runs.get();
+    }
+
+    public long getArchivedConversationCount() {
+        return archivedConversations.get();
+    }
+
+    public long getVacuumedPageCount() {
+        return vacuumedPages.get();
+    }
+
+    /** Hot database and archive sizes, and archive reads, in one line. */
+    public String summary() throws SQLException {
+        MessageStorage.StorageStats stats = storage.getStorageStats();
+        return String.format("db=%.1f MB (free %.1f MB) archived=%d conversations in %.1f MB "
+                        + "archiveReads=%d (avg %.2f ms) runs=%d vacuumedPages=%d",
+                stats.databaseBytes / 1e6, stats.freeBytes / 1e6, stats.archivedConversations,
+                stats.archiveBytes / 1e6, stats.archiveReads,
+                stats.archiveReads == 0 ? 0.0 : stats.archiveReadNanos / 1e6 / stats.archiveReads,
+                getRunCount(), getVacuumedPageCount());
+    }
+
+    /** Stops the schedule and waits for a running pass, which stops at its next batch. */
+    @Override
+    public void close() {
+        closed = true;
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package net.vuonnala;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps one long-lived writer connection and a small pool of reader connections
+ * to a single SQLite database. SQLite allows exactly one writer at a time, so all
+ * writes are serialized on the writer; in WAL mode readers never block it.
+ *
+ * Every pooled connection caches its prepared statements by SQL text, so hot
+ * statements are compiled once per connection instead of once per call.
+ *
+ * In-memory databases (":memory:") are private to the connection that opened
+ * them, so for those the pool has no readers and reads go through the writer.
+ */
+public class SqliteConnectionPool implements AutoCloseable {
+
+    public static final int DEFAULT_READERS = 4;
+
+    @FunctionalInterface
+    public interface SqlWork<T> {
+        T apply(PooledConnection conn) throws SQLException;
+    }
+
+    private final PooledConnection writer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final BlockingQueue<PooledConnection> readers;
+    private final List<PooledConnection> allReaders = new ArrayList<>();
+    private volatile boolean closed;
+
+    public SqliteConnectionPool(String dbFile, int readerCount) throws SQLException {
+        String dbUrl = "jdbc:sqlite:" + dbFile;
+        boolean inMemory = dbFile.isEmpty() || dbFile.startsWith(":memory:");
+
+        this.writer = new PooledConnection(DriverManager.getConnection(dbUrl));
+        applyWriterPragmas(writer.connection(), inMemory);
+
+        int count = inMemory ? 0 : Math.max(0, readerCount);
+        this.readers = new ArrayBlockingQueue<>(Math.max(1, count));
+        for (int i = 0; i < count; i++) {
+            PooledConnection reader = new PooledConnection(DriverManager.getConnection(dbUrl));
+            applyReaderPragmas(reader.connection());
+            allReaders.add(reader);
+            readers.add(reader);
+        }
+    }
+
+    private static void applyWriterPragmas(Connection conn, boolean inMemory) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            // Lets freed pages be returned in small steps (PRAGMA incremental_vacuum).
+            // Only takes effect before the first table is created or on the next VACUUM.
+            stmt.execute("PRAGMA auto_vacuum=INCREMENTAL");
+            if (!inMemory) {
+                stmt.execute("PRAGMA journal_mode=WAL");
+                // NORMAL is durable across application crashes in WAL mode; only
+                // an OS crash or power loss can roll back the last commits.
+                stmt.execute("PRAGMA synchronous=NORMAL");
+                stmt.execute("PRAGMA mmap_size=268435456");
+            }
+            stmt.execute("PRAGMA cache_size=-16000");
+            stmt.execute("PRAGMA temp_store=MEMORY");
+            stmt.execute("PRAGMA busy_timeout=5000");
+        }
+    }
+
+    private static void applyReaderPragmas(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA mmap_size=268435456");
+            stmt.execute("PRAGMA cache_size=-8000");
+            stmt.execute("PRAGMA busy_timeout=5000");
+            stmt.execute("PRAGMA query_only=1");
+        }
+    }
+
+    /**
+     * Runs the work on the writer connection. Calls are serialized; the writer is
+     * in auto-commit mode unless the work uses {@link #inTransaction}.
+     */
+    public <T> T write(SqlWork<T> work) throws SQLException {
+        ensureOpen();
+        writeLock.lock();
+        try {
+            return work.apply(writer);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Runs the work on the writer connection inside a single transaction.
+     * The transaction is rolled back if the work throws.
+     */
+    public <T> T inTransaction(SqlWork<T> work) throws SQLException {
+        return write(conn -> {
+            Connection c = conn.connection();
+            c.setAutoCommit(false);
+            try {
+                T result = work.apply(conn);
+                c.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        });
+    }
+
+    /**
+     * Runs the work on a pooled reader connection, waiting for one to become free.
+     * Falls back to the writer when the pool has no readers.
+     */
+    public <T> T read(SqlWork<T> work) throws SQLException {
+        ensureOpen();
+        if (allReaders.isEmpty()) {
+            return write(work);
+        }
+        PooledConnection reader;
+        try {
+            reader = readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a reader connection", e);
+        }
+        try {
+            return work.apply(reader);
+        } finally {
+            readers.add(reader);
+        }
+    }
+
+    /**
+     * Borrows a reader for longer-lived work such as a lazy cursor. The caller
+     * must hand it back with {@link #release(PooledConnection)}.
+     */
+    PooledConnection acquireReader() throws SQLException {
+        ensureOpen();
+        if (allReaders.isEmpty()) {
+            writeLock.lock();
+            return writer;
+        }
+        try {
+            return readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a reader connection", e);
+        }
+    }
+
+    void release(PooledConnection conn) {
+        if (conn == writer) {
+            writeLock.unlock();
+        } else {
+            readers.add(conn);
+        }
+    }
+
+    public int readerCount() {
+        return allReaders.size();
+    }
+
+    private void ensureOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writeLock.lock();
+        try {
+            writer.close();
+        } finally {
+            writeLock.unlock();
+        }
+        for (PooledConnection reader : allReaders) {
+            reader.close();
+        }
+    }
+
+    /**
+     * A connection together with its prepared statement cache. Cached statements
+     * must not be closed by callers; close only the result sets.
+     */
+    public static final class PooledConnection {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        public Connection connection() {
+            return connection;
+        }
+
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null) {
+                stmt = connection.prepareStatement(sql);
+                statements.put(sql, stmt);
+            } else {
+                stmt.clearParameters();
+            }
+            return stmt;
+        }
+
+        /**
+         * Closes the cached statements; they are prepared again when next used.
+         * VACUUM fails while any statement on the connection is still active.
+         */
+        public void closeStatements() throws SQLException {
+            for (PreparedStatement stmt : statements.values()) {
+                stmt.close();
+            }
+            statements.clear();
+        }
+
+        void close() throws SQLException {
+            closeStatements();
+            connection.close();
+        }
+    }
+}
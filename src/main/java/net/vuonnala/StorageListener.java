@@ -0,0 +1,18 @@
+package net.vuonnala;
+
+/**
+ * Notified by {@link MessageStorage} after a change is committed, so views can
+ * update the affected rows instead of reloading. Called on the thread that made
+ * the change; Swing listeners must hop to the event dispatch thread themselves.
+ */
+public interface StorageListener {
+
+    default void conversationAdded(MessageStorage.ConversationSummary conversation) {
+    }
+
+    default void conversationRenamed(String conversationId, String newTitle) {
+    }
+
+    default void responseStored(String conversationId) {
+    }
+}
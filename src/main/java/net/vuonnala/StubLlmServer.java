@@ -0,0 +1,366 @@
+package net.vuonnala;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An OpenAI-compatible stand-in for LM Studio, for load tests without a GPU.
+ * Serves {@code /v1/models} and {@code /v1/chat/completions}, with or without
+ * server-sent events, and shapes every answer by a {@link Profile}: a delay
+ * before the first token, a generation speed, an answer length and a share of
+ * requests that fail with HTTP 500. Answers are filler text; nothing is
+ * downloaded or computed.
+ *
+ * Further models can be added with their own profiles, e.g. to compare a
+ * fast and a slow model; requests naming an unknown model get the default
+ * profile.
+ *
+ * Each request is served on its own virtual thread, so slow answers don't
+ * limit how many are in progress.
+ */
+public class StubLlmServer implements AutoCloseable {
+
+    public static final String MODEL = "stub-model";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String[] WORDS = {
+            "the", "model", "answers", "with", "a", "short", "sentence", "about", "your", "question",
+            "and", "then", "adds", "some", "detail", "that", "is", "neither", "wrong", "nor", "useful"
+    };
+
+    /** How the stub answers. */
+    public static final class Profile {
+        public static final Profile DEFAULT = new Profile(Duration.ofMillis(100), Duration.ZERO, 200, 64, 0);
+
+        /** Before the first token, like prompt processing. */
+        public final Duration latency;
+        /** A random extra delay of up to this much is added to {@link #latency}. */
+        public final Duration jitter;
+        /** Generation speed after the first token; 0 to answer at once. */
+        public final double tokensPerSecond;
+        /** Completion tokens per answer, each one word. */
+        public final int completionTokens;
+        /** Share of chat completions answered with HTTP 500, between 0 and 1. */
+        public final double errorRate;
+
+        public Profile(Duration latency, Duration jitter, double tokensPerSecond, int completionTokens,
+                       double errorRate) {
+            if (tokensPerSecond < 0 || completionTokens < 1 || errorRate < 0 || errorRate > 1) {
+                throw new IllegalArgumentException("Invalid stub profile: tokens/s " + tokensPerSecond
+                        + ", tokens " + completionTokens + ", error rate " + errorRate);
+            }
+            this.latency = latency;
+            this.jitter = jitter;
+            this.tokensPerSecond = tokensPerSecond;
+            this.completionTokens = completionTokens;
+            this.errorRate = errorRate;
+        }
+
+        /**
+         * Parses "latency=100ms,jitter=20ms,tps=200,tokens=64,errors=0.01". Keys
+         * left out keep their {@link #DEFAULT}; durations without a unit are
+         * milliseconds.
+         */
+        public static Profile parse(String spec) {
+            Duration latency = DEFAULT.latency;
+            Duration jitter = DEFAULT.jitter;
+            double tokensPerSecond = DEFAULT.tokensPerSecond;
+            int completionTokens = DEFAULT.completionTokens;
+            double errorRate = DEFAULT.errorRate;
+            for (String part : spec.split(",")) {
+                if (part.isBlank()) {
+                    continue;
+                }
+                int eq = part.indexOf('=');
+                if (eq < 0) {
+                    throw new IllegalArgumentException("Expected key=value in stub profile: " + part);
+                }
+                String key = part.substring(0, eq).trim();
+                String value = part.substring(eq + 1).trim();
+                switch (key) {
+                    case "latency" -> latency = parseDuration(value);
+                    case "jitter" -> jitter = parseDuration(value);
+                    case "tps" -> tokensPerSecond = Double.parseDouble(value);
+                    case "tokens" -> completionTokens = Integer.parseInt(value);
+                    case "errors" -> errorRate = Double.parseDouble(value);
+                    default -> throw new IllegalArgumentException("Unknown stub profile key: " + key);
+                }
+            }
+            return new Profile(latency, jitter, tokensPerSecond, completionTokens, errorRate);
+        }
+
+        private static Duration parseDuration(String value) {
+            if (value.endsWith("ms")) {
+                return Duration.ofMillis(Long.parseLong(value.substring(0, value.length() - 2)));
+            }
+            if (value.endsWith("s")) {
+                return Duration.ofMillis(Math.round(Double.parseDouble(value.substring(0, value.length() - 1)) * 1000));
+            }
+            return Duration.ofMillis(Long.parseLong(value));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("latency=%dms,jitter=%dms,tps=%s,tokens=%d,errors=%s", latency.toMillis(),
+                    jitter.toMillis(), tokensPerSecond, completionTokens, errorRate);
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private volatile Profile profile;
+    private final Map<String, Profile> modelProfiles = new ConcurrentHashMap<>();
+
+    private final AtomicLong ids = new AtomicLong();
+    private final LongAdder completions = new LongAdder();
+    private final LongAdder streamed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+
+    /**
+     * Starts serving on 127.0.0.1.
+     *
+     * Without TCP_NODELAY, Nagle plus delayed ACKs add ~40 ms to every reused
+     * connection. The JDK server only turns it on when the JVM-wide property
+     * {@code sun.net.httpserver.nodelay} is true before its first use, so the
+     * caller sets it, as Main does.
+     *
+     * @param port 0 for any free port, see {@link #getPort()}
+     */
+    public StubLlmServer(int port, Profile profile) throws IOException {
+        this.profile = profile;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext("/v1/models", this::models);
+        server.createContext("/v1/chat/completions", this::chatCompletion);
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public Profile getProfile() {
+        return profile;
+    }
+
+    /** Applies to requests that arrive from now on. */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Lists the model in {@code /v1/models} after {@link #MODEL} and answers
+     * requests for it with its own profile.
+     */
+    public void addModel(String model, Profile profile) {
+        modelProfiles.put(model, profile);
+    }
+
+    /** Chat completions answered, streamed or not, including errors. */
+    public long getCompletionCount() {
+        return completions.sum();
+    }
+
+    /** Chat completions that asked to be streamed. */
+    public long getStreamedCount() {
+        return streamed.sum();
+    }
+
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    /** Streams the client hung up on before they ended. */
+    public long getAbortedCount() {
+        return aborted.sum();
+    }
+
+    private void models(HttpExchange exchange) throws IOException {
+        ObjectNode root = MAPPER.createObjectNode();
+        root.put("object", "list");
+        ArrayNode data = root.putArray("data");
+        data.addObject().put("id", MODEL).put("object", "model").put("owned_by", "echoforge");
+        for (String model : modelProfiles.keySet().stream().sorted().toList()) {
+            data.addObject().put("id", model).put("object", "model").put("owned_by", "echoforge");
+        }
+        send(exchange, 200, MAPPER.writeValueAsBytes(root));
+    }
+
+    private void chatCompletion(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            if (!exchange.getRequestMethod().equals("POST")) {
+                send(exchange, 405, error("Use POST"));
+                return;
+            }
+            JsonNode request;
+            try {
+                request = MAPPER.readTree(body);
+            } catch (IOException e) {
+                send(exchange, 400, error("Request is not JSON"));
+                return;
+            }
+            completions.increment();
+            boolean stream = request.path("stream").asBoolean(false);
+            if (stream) {
+                streamed.increment();
+            }
+            String model = request.path("model").asText(MODEL);
+            Profile p = modelProfiles.getOrDefault(model, profile);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            pause(p.latency.toNanos() + (p.jitter.isZero() ? 0 : random.nextLong(p.jitter.toNanos() + 1)));
+            if (random.nextDouble() < p.errorRate) {
+                errors.increment();
+                send(exchange, 500, error("Injected error"));
+                return;
+            }
+
+            String id = "chatcmpl-stub-" + ids.incrementAndGet();
+            // About four characters per token, the estimate the context window uses
+            int promptTokens = Math.max(1, request.path("messages").toString().length() / 4);
+            if (stream) {
+                try {
+                    stream(exchange, p, id, model, promptTokens,
+                            request.path("stream_options").path("include_usage").asBoolean(false));
+                } catch (IOException e) {
+                    aborted.increment();
+                    throw e;
+                }
+            } else {
+                StringBuilder content = new StringBuilder();
+                for (int i = 0; i < p.completionTokens; i++) {
+                    content.append(token(i));
+                }
+                pause(generationNanos(p, p.completionTokens));
+                ObjectNode root = completion(id, model);
+                ObjectNode choice = root.putArray("choices").addObject();
+                choice.put("index", 0);
+                choice.putObject("message").put("role", "assistant").put("content", content.toString());
+                choice.put("finish_reason", "stop");
+                usage(root, promptTokens, p.completionTokens);
+                send(exchange, 200, MAPPER.writeValueAsBytes(root));
+            }
+        }
+    }
+
+    /** One event per token, paced at the profile's speed, then the usage and [DONE]. */
+    private void stream(HttpExchange exchange, Profile p, String id, String model, int promptTokens,
+                        boolean includeUsage) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        long start = System.nanoTime();
+        for (int i = 0; i < p.completionTokens; i++) {
+            pause(start + generationNanos(p, i) - System.nanoTime());
+            ObjectNode chunk = chunk(id, model);
+            ObjectNode delta = chunk.putArray("choices").addObject().put("index", 0).putObject("delta");
+            if (i == 0) {
+                delta.put("role", "assistant");
+            }
+            delta.put("content", token(i));
+            event(out, chunk);
+        }
+        ObjectNode last = chunk(id, model);
+        last.putArray("choices").addObject().put("index", 0).put("finish_reason", "stop").putObject("delta");
+        event(out, last);
+        if (includeUsage) {
+            ObjectNode usage = chunk(id, model);
+            usage.putArray("choices");
+            usage(usage, promptTokens, p.completionTokens);
+            event(out, usage);
+        }
+        out.write("data: [DONE]\n\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static ObjectNode completion(String id, String model) {
+        ObjectNode root = MAPPER.createObjectNode();
+        root.put("id", id);
+        root.put("object", "chat.completion");
+        root.put("created", System.currentTimeMillis() / 1000);
+        root.put("model", model);
+        return root;
+    }
+
+    private static ObjectNode chunk(String id, String model) {
+        ObjectNode root = completion(id, model);
+        root.put("object", "chat.completion.chunk");
+        return root;
+    }
+
+    private static void usage(ObjectNode root, int promptTokens, int completionTokens) {
+        root.putObject("usage").put("prompt_tokens", promptTokens).put("completion_tokens", completionTokens)
+                .put("total_tokens", promptTokens + completionTokens);
+    }
+
+    private static void event(OutputStream out, ObjectNode chunk) throws IOException {
+        out.write(("data: " + chunk + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static String token(int i) {
+        return (i == 0 ? "" : " ") + WORDS[i % WORDS.length];
+    }
+
+    private static long generationNanos(Profile p, int tokens) {
+        return p.tokensPerSecond == 0 ? 0 : (long) (tokens * 1e9 / p.tokensPerSecond);
+    }
+
+    private static byte[] error(String message) throws IOException {
+        ObjectNode root = MAPPER.createObjectNode();
+        root.putObject("error").put("message", message).put("type", "server_error");
+        return MAPPER.writeValueAsBytes(root);
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void pause(long nanos) throws IOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(Duration.ofNanos(nanos));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+
+    /** "completions=.. streamed=.. errors=..", for reports. */
+    public String summary() {
+        return String.format("completions=%d streamed=%d errors=%d aborted=%d (%s)",
+                getCompletionCount(), getStreamedCount(), getErrorCount(), getAbortedCount(), profile);
+    }
+
+    /** Stops accepting requests and gives running ones a second to finish. */
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,16 @@
+package net.vuonnala;
+
+/**
+ * Counts tokens locally, without asking the backend. {@link ContextWindow}
+ * only needs an estimate that errs on the high side, so the default is a
+ * characters-per-token heuristic; a model-specific tokenizer can be plugged in
+ * instead.
+ */
+@FunctionalInterface
+public interface Tokenizer {
+
+    /** About four characters per token, which over-counts for English text with common BPE vocabularies. */
+    Tokenizer APPROXIMATE = text -> (text.length() + 3) / 4;
+
+    int count(String text);
+}
@@ -1,6 +1,8 @@
 package net.vuonnala;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
@@ -8,13 +10,19 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
-import java.sql.SQLException;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 import javax.swing.SwingWorker;
+import javax.swing.Timer;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -22,6 +30,7 @@ import org.json.JSONObject;
 public class UserInterface extends JFrame {
 
     private final MessageDispatcher dispatcher;
+    private final DispatchScheduler scheduler;
     private final MessageValidator validator;
     private String currentConversationId = UUID.randomUUID().toString();
     private JTextField ipField;
@@ -30,28 +39,51 @@ public class UserInterface extends JFrame {
     private JTextField userInputField;
     private JTextField systemInputField;
     private JButton sendButton;
-    private JPanel chatPanel;
-    private JScrollPane chatScrollPane;
-    private DefaultListModel<String> historyListModel;
-    private JList<String> historyList;
+    private ChatView chatView;
+    private DefaultListModel<MessageStorage.ConversationSummary> historyListModel;
+    private JList<MessageStorage.ConversationSummary> historyList;
     private JComboBox<String> modelDropdown;
     private List<JSONObject> messageHistory;
     private final MessageStorage messageStorage;
     private JButton newChatButton;
-    private Map<String, String> conversationMap = new HashMap<>();  // title → UUID
+    private String selectedConversationId;
+    private boolean loadingHistoryPage;
+    private boolean historyExhausted;
+    private JTextField searchField;
+    private Timer searchTimer;
+    private String activeSearch;                                // null while the sidebar pages through all chats
+    private final Map<String, String> searchSnippets = new HashMap<>();  // conversation id → best matching text
     private MessageBuilderUI messageBuilderUI;
+    private CompletableFuture<ChatCompletion> chatDispatch;     // the streamed answer in progress, if any
+    private CompletableFuture<String> builderDispatch;          // the builder's dispatch in progress, if any
+
+    private static final int HISTORY_PAGE_SIZE = 200;
+    private static final int SEARCH_LIMIT = 200;
+    /** How long a dispatch from the UI may take before it is aborted. */
+    private static final Duration DISPATCH_DEADLINE = Duration.ofMinutes(5);
 
 
     public UserInterface(MessageDispatcher dispatcher, MessageValidator validator, MessageStorage messageStorage) {
+        this(dispatcher, new DispatchScheduler(dispatcher), validator, messageStorage);
+    }
+
+    /**
+     * @param scheduler Runs the window's dispatches as interactive, ahead of
+     *                  batch work sharing the same scheduler
+     */
+    public UserInterface(MessageDispatcher dispatcher, DispatchScheduler scheduler, MessageValidator validator,
+                         MessageStorage messageStorage) {
         super("EchoForge");
         this.dispatcher = dispatcher;
+        this.scheduler = scheduler;
         this.validator = validator;
         this.messageStorage = messageStorage;
         initComponents();
         layoutComponents();
         initMenu();
         addListeners();
-        loadHistory();
+        messageStorage.addListener(new SidebarUpdater());
+        loadHistoryPage();
 
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setSize(1000, 700);
@@ -101,27 +133,53 @@ public class UserInterface extends JFrame {
         messageBuilderUI = new MessageBuilderUI();
 
 
-        chatPanel = new JPanel();
-        chatPanel.setLayout(new BoxLayout(chatPanel, BoxLayout.Y_AXIS));
-        chatScrollPane = new JScrollPane(chatPanel);
-        chatScrollPane.setBorder(BorderFactory.createTitledBorder("Chat"));
+        chatView = new ChatView();
+        chatView.setBorder(BorderFactory.createTitledBorder("Chat"));
 
         historyListModel = new DefaultListModel<>();
         historyList = new JList<>(historyListModel);
+        historyList.setCellRenderer(new SidebarRenderer());
+
+        // Search runs once the user pauses typing
+        searchField = new JTextField();
+        searchField.setToolTipText("Search titles and messages");
+        searchTimer = new Timer(250, e -> runSearch());
+        searchTimer.setRepeats(false);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+        });
         historyList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         historyList.addListSelectionListener(e -> {
             if (!e.getValueIsAdjusting()) {
-                String title = historyList.getSelectedValue();
-                String id = conversationMap.get(title);
-                loadSelectedHistory(id);
+                // Rows inserted or renamed around the selection keep the same conversation selected
+                MessageStorage.ConversationSummary selected = historyList.getSelectedValue();
+                String id = selected == null ? null : selected.id;
+                if (!Objects.equals(id, selectedConversationId)) {
+                    selectedConversationId = id;
+                    loadSelectedHistory(id);
+                }
             }
         });
         JPopupMenu historyMenu = new JPopupMenu();
         JMenuItem renameItem = new JMenuItem("Rename Chat...");
         historyMenu.add(renameItem);
         renameItem.addActionListener(e -> {
-            String currentTitle = historyList.getSelectedValue();
-            if (currentTitle == null) return;
+            MessageStorage.ConversationSummary selected = historyList.getSelectedValue();
+            if (selected == null) return;
+            String currentTitle = selected.title;
 
             String newTitle = JOptionPane.showInputDialog(
                     UserInterface.this,
@@ -130,16 +188,11 @@ public class UserInterface extends JFrame {
             );
 
             if (newTitle != null && !newTitle.trim().isEmpty()) {
-                String conversationId = conversationMap.get(currentTitle);
-
-                try {
-                    messageStorage.updateConversationTitle(conversationId, newTitle.trim());
-                    loadHistory(); // refresh sidebar
-                } catch (SQLException ex) {
-                    JOptionPane.showMessageDialog(UserInterface.this,
-                            "Failed to rename chat: " + ex.getMessage(),
-                            "Error", JOptionPane.ERROR_MESSAGE);
-                }
+                // The sidebar row is updated by SidebarUpdater once the rename is stored
+                inBackground(() -> messageStorage.updateConversationTitle(selected.id, newTitle.trim()),
+                        ex -> JOptionPane.showMessageDialog(UserInterface.this,
+                                "Failed to rename chat: " + ex.getMessage(),
+                                "Error", JOptionPane.ERROR_MESSAGE));
             }
         });
 
@@ -189,52 +242,82 @@ public class UserInterface extends JFrame {
         inputPanel.add(sendButton, BorderLayout.EAST);
 
         JScrollPane scrollHistory = new JScrollPane(historyList);
-        scrollHistory.setBorder(BorderFactory.createTitledBorder("Response History"));
-        scrollHistory.setPreferredSize(new Dimension(250, 0));
+        JPanel sidebar = new JPanel(new BorderLayout());
+        sidebar.setBorder(BorderFactory.createTitledBorder("Response History"));
+        sidebar.setPreferredSize(new Dimension(250, 0));
+        sidebar.add(searchField, BorderLayout.NORTH);
+        sidebar.add(scrollHistory, BorderLayout.CENTER);
+        // Load the next page when the user scrolls near the end of what is loaded
+        scrollHistory.getVerticalScrollBar().addAdjustmentListener(e -> {
+            JScrollBar bar = (JScrollBar) e.getAdjustable();
+            if (bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - bar.getVisibleAmount()) {
+                loadHistoryPage();
+            }
+        });
 
         JPanel mainPanel = new JPanel(new BorderLayout());
         mainPanel.add(configPanel, BorderLayout.NORTH);
-        //mainPanel.add(chatScrollPane, BorderLayout.CENTER);
         JTabbedPane centerTabs = new JTabbedPane();
-        centerTabs.addTab("Chat View", chatScrollPane);
+        centerTabs.addTab("Chat View", chatView);
         centerTabs.addTab("Message Builder", messageBuilderUI);
+        centerTabs.addTab("Compare Models", new ComparisonView(dispatcher, scheduler,
+                () -> ipField.getText().trim() + ":" + portField.getText().trim(), () -> currentConversationId));
         mainPanel.add(centerTabs, BorderLayout.CENTER);
 
         JButton dispatchFromBuilder = new JButton("Dispatch JSON");
         dispatchFromBuilder.addActionListener(e -> {
+            if (builderDispatch != null) {
+                builderDispatch.cancel(true);
+                return;
+            }
             String json = messageBuilderUI.getFinalJson();
             String ip = ipField.getText().trim();
             String portText = portField.getText().trim();
+            int port;
             try {
-                int port = Integer.parseInt(portText);
-                String response = dispatcher.dispatch(json, ip, port);
-                addMessage("System", "Builder dispatch response:\n" + response);
-                loadHistory();
-            } catch (Exception ex) {
+                port = Integer.parseInt(portText);
+            } catch (NumberFormatException ex) {
                 addMessage("Error", "Failed to dispatch from builder: " + ex.getMessage());
+                return;
             }
+            CompletableFuture<String> dispatch = scheduler.dispatch(DispatchScheduler.Priority.INTERACTIVE, json, ip, port,
+                    DISPATCH_DEADLINE);
+            builderDispatch = dispatch;
+            dispatchFromBuilder.setText("Cancel dispatch");
+            dispatch.whenComplete((response, failure) -> SwingUtilities.invokeLater(() -> {
+                builderDispatch = null;
+                dispatchFromBuilder.setText("Dispatch JSON");
+                if (failure == null) {
+                    addMessage("System", "Builder dispatch response:\n" + response);
+                } else if (failure instanceof CancellationException) {
+                    addMessage("System", "Builder dispatch cancelled.");
+                } else {
+                    addMessage("Error", "Failed to dispatch from builder: " + describe(failure));
+                }
+            }));
         });
 
         messageBuilderUI.add(dispatchFromBuilder, BorderLayout.SOUTH);
         mainPanel.add(inputPanel, BorderLayout.SOUTH);
-        mainPanel.add(scrollHistory, BorderLayout.EAST);
+        mainPanel.add(sidebar, BorderLayout.EAST);
 
         add(mainPanel);
     }
 
-    private void addMessage(String sender, String content) {
-        JTextArea message = new JTextArea(sender + ":\n" + content);
-        message.setLineWrap(true);
-        message.setWrapStyleWord(true);
-        message.setEditable(false);
-        message.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
-        chatPanel.add(message);
-        chatPanel.revalidate();
-        chatScrollPane.getVerticalScrollBar().setValue(chatScrollPane.getVerticalScrollBar().getMaximum());
+    private ChatView.ChatMessage addMessage(String sender, String content) {
+        ChatView.ChatMessage message = chatView.addMessage(sender, content);
+        chatView.scrollToBottom();
+        return message;
     }
 
     private void addListeners() {
-        sendButton.addActionListener(e -> doDispatch());
+        sendButton.addActionListener(e -> {
+            if (chatDispatch != null) {
+                chatDispatch.cancel(true);
+            } else {
+                doDispatch();
+            }
+        });
         dispatchButton.addActionListener(e -> {
             String ip = ipField.getText().trim();
             String portText = portField.getText().trim();
@@ -252,22 +335,18 @@ public class UserInterface extends JFrame {
 
     private void startNewChat() {
         messageHistory.clear();
-        chatPanel.removeAll();
-        chatPanel.revalidate();
-        chatPanel.repaint();
+        chatView.clear();
 
         currentConversationId = UUID.randomUUID().toString();
 
         String title = "Chat on " + LocalDateTime.now()
                 .format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm"));
 
-        try {
-            messageStorage.registerConversation(currentConversationId, title);
-        } catch (SQLException e) {
-            addMessage("Error", "Could not register conversation: " + e.getMessage());
-        }
+        String conversationId = currentConversationId;
+        historyList.clearSelection();
+        inBackground(() -> messageStorage.registerConversation(conversationId, title),
+                e -> addMessage("Error", "Could not register conversation: " + e.getMessage()));
         addMessage("System", "Started new conversation: " + title);
-        loadHistory();
     }
 
     private void doDispatch() {
@@ -310,59 +389,78 @@ public class UserInterface extends JFrame {
 
         userInputField.setText("");
         systemInputField.setText("");
-        sendButton.setEnabled(false);
-
-        SwingWorker<String, Void> worker = new SwingWorker<>() {
-            @Override
-            protected String doInBackground() throws Exception {
-                JSONObject requestJson = new JSONObject();
-                requestJson.put("conversation_id", currentConversationId);
-                requestJson.put("model", selectedModel);
-                requestJson.put("messages", new JSONArray(messageHistory));
-                return dispatcher.dispatch(requestJson.toString(), ip, port);
+        final ChatView.ChatMessage reply = addMessage("assistant", "");
+        final StringBuilder shown = new StringBuilder();    // on the EDT
+        final StringBuilder pending = new StringBuilder();  // tokens not yet shown, guarded by itself
+
+        JSONObject requestJson = new JSONObject();
+        requestJson.put("conversation_id", currentConversationId);
+        requestJson.put("model", selectedModel);
+        requestJson.put("messages", new JSONArray(messageHistory));
+
+        // Tokens arrive on the dispatch thread; they are shown in batches, one EDT task per batch
+        Runnable showPending = () -> {
+            String text;
+            synchronized (pending) {
+                text = pending.toString();
+                pending.setLength(0);
             }
-
-            @Override
-            protected void done() {
-                sendButton.setEnabled(true);
-                try {
-                    String response = get();
-                    JSONObject json = new JSONObject(response);
-                    if (json.has("choices")) {
-                        JSONArray choices = json.getJSONArray("choices");
-                        for (int i = 0; i < choices.length(); i++) {
-                            JSONObject choice = choices.getJSONObject(i);
-                            if (choice.has("message")) {
-                                JSONObject msg = choice.getJSONObject("message");
-                                String role = msg.optString("role", "LLM");
-                                String content = msg.optString("content", "");
-                                addMessage(role, content);
-
-                                // Append LLM response to message history
-                                JSONObject llmMsg = new JSONObject();
-                                llmMsg.put("role", role);
-                                llmMsg.put("content", content);
-                                messageHistory.add(llmMsg);
-                            }
-                        }
-                    } else {
-                        addMessage("LLM", json.toString(2));
+            shown.append(text);
+            chatView.appendToMessage(reply, text);
+            chatView.scrollToBottom();
+        };
+        CompletableFuture<ChatCompletion> dispatch = scheduler.dispatchStreaming(DispatchScheduler.Priority.INTERACTIVE,
+                requestJson.toString(), ip, port, token -> {
+                    boolean first;
+                    synchronized (pending) {
+                        first = pending.length() == 0;
+                        pending.append(token);
                     }
-                    loadHistory();
-                } catch (Exception ex) {
-                    addMessage("Error", ex.getMessage());
+                    if (first) {
+                        SwingUtilities.invokeLater(showPending);
+                    }
+                }, DISPATCH_DEADLINE);
+        chatDispatch = dispatch;
+        sendButton.setText("Stop");
+
+        // Runs after every batch already queued, so the message is complete
+        dispatch.whenComplete((completion, failure) -> SwingUtilities.invokeLater(() -> {
+            chatDispatch = null;
+            sendButton.setText("Send");
+            if (failure == null) {
+                chatView.setMessageContent(reply, completion.content
+                        + "\n\n(first token after " + completion.getTimeToFirstTokenMillis()
+                        + " ms, complete after " + completion.getTotalMillis() + " ms)");
+
+                // Append LLM response to message history
+                JSONObject llmMsg = new JSONObject();
+                llmMsg.put("role", completion.role);
+                llmMsg.put("content", completion.content);
+                messageHistory.add(llmMsg);
+            } else if (failure instanceof CancellationException && shown.length() > 0) {
+                chatView.setMessageContent(reply, shown + "\n\n(stopped)");
+            } else {
+                chatView.removeMessage(reply);
+                if (!(failure instanceof CancellationException)) {
+                    addMessage("Error", describe(failure));
                 }
             }
-        };
-        worker.execute();
+        }));
+    }
+
+    /** The message to show for a failed dispatch. */
+    private static String describe(Throwable failure) {
+        if (failure instanceof TimeoutException) {
+            return "No answer within " + DISPATCH_DEADLINE.toMinutes() + " minutes.";
+        }
+        return failure.getMessage();
     }
 
     private void loadModels(String ip, int port) {
         SwingWorker<List<String>, Void> modelLoader = new SwingWorker<>() {
             @Override
             protected List<String> doInBackground() throws Exception {
-                LLMClient client = new LLMClient(ip, port);
-                return client.fetchAvailableModels();
+                return dispatcher.getClient(ip, port).fetchAvailableModels();
             }
 
             @Override
@@ -386,69 +484,258 @@ public class UserInterface extends JFrame {
         modelLoader.execute();
     }
 
-    private void loadHistory() {
-        historyListModel.clear();
-        conversationMap.clear();
+    /**
+     * Appends the next page of conversations to the sidebar. Does nothing while a
+     * page is loading or once all conversations are shown.
+     */
+    private void loadHistoryPage() {
+        if (loadingHistoryPage || historyExhausted || activeSearch != null) {
+            return;
+        }
+        loadingHistoryPage = true;
+        MessageStorage.ConversationSummary last = historyListModel.isEmpty()
+                ? null : historyListModel.lastElement();
 
-        try {
-            List<MessageStorage.ConversationSummary> convos = messageStorage.getAllConversations();
-            for (MessageStorage.ConversationSummary convo : convos) {
-                historyListModel.addElement(convo.title);
-                conversationMap.put(convo.title, convo.id);
+        SwingWorker<List<MessageStorage.ConversationSummary>, Void> pageLoader = new SwingWorker<>() {
+            @Override
+            protected List<MessageStorage.ConversationSummary> doInBackground() throws Exception {
+                return messageStorage.getConversationsPage(last, HISTORY_PAGE_SIZE);
+            }
+
+            @Override
+            protected void done() {
+                loadingHistoryPage = false;
+                if (activeSearch != null) {
+                    return;  // the sidebar shows search results now; reloaded when the search is cleared
+                }
+                try {
+                    List<MessageStorage.ConversationSummary> page = get();
+                    historyListModel.addAll(page);
+                    historyExhausted = page.size() < HISTORY_PAGE_SIZE;
+                } catch (Exception e) {
+                    historyExhausted = true;  // don't retry on every scroll event
+                    addMessage("Error", "Failed to load history: " + e.getMessage());
+                }
+            }
+        };
+        pageLoader.execute();
+    }
+
+    /**
+     * Shows the conversations matching the search box: title matches first, then
+     * conversations with matching messages, best match first. An empty search
+     * box brings back the paged list of all conversations.
+     */
+    private void runSearch() {
+        // Untrimmed: a trailing space tells the search that the last word is complete
+        String query = searchField.getText();
+        if (query.isBlank()) {
+            if (activeSearch != null) {
+                activeSearch = null;
+                searchSnippets.clear();
+                historyListModel.clear();
+                historyExhausted = false;
+                loadHistoryPage();
+            }
+            return;
+        }
+        activeSearch = query;
+
+        SwingWorker<Map<String, MessageStorage.ConversationSummary>, Void> searcher = new SwingWorker<>() {
+            private final Map<String, String> snippets = new HashMap<>();
+
+            @Override
+            protected Map<String, MessageStorage.ConversationSummary> doInBackground() throws Exception {
+                Map<String, MessageStorage.ConversationSummary> results = new LinkedHashMap<>();
+                for (MessageStorage.ConversationSummary match : messageStorage.searchConversationTitles(query, SEARCH_LIMIT)) {
+                    results.put(match.id, match);
+                }
+                for (MessageStorage.SearchHit hit : messageStorage.search(query, 0, SEARCH_LIMIT)) {
+                    String title = hit.conversationTitle != null ? hit.conversationTitle : hit.conversationId;
+                    results.putIfAbsent(hit.conversationId,
+                            new MessageStorage.ConversationSummary(hit.conversationId, title));
+                    snippets.putIfAbsent(hit.conversationId, hit.snippet);
+                }
+                return results;
+            }
+
+            @Override
+            protected void done() {
+                if (!query.equals(activeSearch)) {
+                    return;  // superseded by a newer search
+                }
+                try {
+                    Map<String, MessageStorage.ConversationSummary> results = get();
+                    searchSnippets.clear();
+                    searchSnippets.putAll(snippets);
+                    historyListModel.clear();
+                    historyListModel.addAll(results.values());
+                } catch (Exception e) {
+                    addMessage("Error", "Search failed: " + e.getMessage());
+                }
+            }
+        };
+        searcher.execute();
+    }
+
+    /**
+     * Shows a conversation's title, and under it the matching text while searching.
+     */
+    private final class SidebarRenderer extends DefaultListCellRenderer {
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                      boolean isSelected, boolean cellHasFocus) {
+            super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+            if (value instanceof MessageStorage.ConversationSummary conversation) {
+                String snippet = searchSnippets.get(conversation.id);
+                if (activeSearch != null && snippet != null) {
+                    setText("<html><b>" + escapeHtml(conversation.title) + "</b><br><small>"
+                            + escapeHtml(snippet) + "</small></html>");
+                }
             }
-        } catch (Exception e) {
-            addMessage("Error", "Failed to load history: " + e.getMessage());
+            return this;
         }
     }
 
+    private static String escapeHtml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /**
+     * Applies storage changes to the loaded sidebar rows on the EDT.
+     */
+    private final class SidebarUpdater implements StorageListener {
+        @Override
+        public void conversationAdded(MessageStorage.ConversationSummary conversation) {
+            // New conversations are the newest, so they go on top
+            SwingUtilities.invokeLater(() -> {
+                if (activeSearch == null) {
+                    historyListModel.add(0, conversation);
+                }
+            });
+        }
+
+        @Override
+        public void conversationRenamed(String conversationId, String newTitle) {
+            SwingUtilities.invokeLater(() -> {
+                for (int i = 0; i < historyListModel.size(); i++) {
+                    MessageStorage.ConversationSummary row = historyListModel.get(i);
+                    if (row.id.equals(conversationId)) {
+                        historyListModel.set(i, new MessageStorage.ConversationSummary(row.id, newTitle, row.createdAt));
+                        return;
+                    }
+                }
+            });
+        }
+    }
+
+    @FunctionalInterface
+    private interface StorageTask {
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs storage work off the EDT; a failure is handed to {@code onError} on the EDT.
+     */
+    private void inBackground(StorageTask task, Consumer<Exception> onError) {
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws Exception {
+                task.run();
+                return null;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (ExecutionException e) {
+                    onError.accept(e.getCause() instanceof Exception cause ? cause : e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Reads and parses the conversation in the background, then shows it in one
+     * batch. The rebuilt history replaces messageHistory only once it is complete.
+     */
     private void loadSelectedHistory(String conversationId) {
         if (conversationId == null || conversationId.isEmpty()) return;
 
-        try {
-            chatPanel.removeAll();
-            chatPanel.revalidate();
-            chatPanel.repaint();
-            messageHistory.clear();
+        SwingWorker<Void, Void> loader = new SwingWorker<>() {
+            private final List<ChatView.ChatMessage> shown = new ArrayList<>();
+            private final List<JSONObject> history = new ArrayList<>();
 
-            List<MessageStorage.ResponseRecord> records = messageStorage.getResponsesByConversationId(conversationId);
+            @Override
+            protected Void doInBackground() throws Exception {
+                rebuildConversation(messageStorage.getResponsesByConversationId(conversationId), shown, history);
+                return null;
+            }
 
-            for (MessageStorage.ResponseRecord record : records) {
-                JSONObject request = new JSONObject(record.requestJson);
-                JSONArray messages = request.optJSONArray("messages");
+            @Override
+            protected void done() {
+                chatView.clear();
+                messageHistory.clear();
+                try {
+                    get();
+                    chatView.addMessages(shown);
+                    chatView.scrollToBottom();
+                    messageHistory.addAll(history);
+                    currentConversationId = conversationId;
+                } catch (Exception e) {
+                    addMessage("Error", "Failed to load full conversation: " + e.getMessage());
+                }
+            }
+        };
+        loader.execute();
+    }
 
-                if (messages != null) {
-                    for (int i = 0; i < messages.length(); i++) {
-                        JSONObject msg = messages.getJSONObject(i);
-                        String role = msg.optString("role", "unknown");
-                        String content = msg.optString("content", "");
-                        addMessage(role, content);
-                        messageHistory.add(msg);  // rebuild message history
-                    }
+    /**
+     * Replays a conversation's records in order into the messages to show and
+     * the history the next request extends. A record that starts a new history
+     * replaces both. Replies are kept as role and content only, as live turns
+     * append them, so the next request still extends the stored message log.
+     */
+    static void rebuildConversation(List<MessageStorage.ResponseRecord> records,
+                                    List<ChatView.ChatMessage> shown, List<JSONObject> history) {
+        for (MessageStorage.ResponseRecord record : records) {
+            if (record.startsNewHistory) {
+                shown.clear();  // the record carries its whole request
+                history.clear();
+            }
+            JSONObject request = new JSONObject(record.requestJson);
+            JSONArray messages = request.optJSONArray("messages");
+
+            if (messages != null) {
+                for (int i = 0; i < messages.length(); i++) {
+                    JSONObject msg = messages.getJSONObject(i);
+                    String role = msg.optString("role", "unknown");
+                    String content = msg.optString("content", "");
+                    shown.add(new ChatView.ChatMessage(role, content));
+                    history.add(msg);  // rebuild message history
                 }
+            }
 
-                // Also show the assistant response
-                JSONObject response = new JSONObject(record.responseContent);
-                JSONArray choices = response.optJSONArray("choices");
-                if (choices != null) {
-                    for (int i = 0; i < choices.length(); i++) {
-                        JSONObject choice = choices.getJSONObject(i);
-                        JSONObject msg = choice.optJSONObject("message");
-                        if (msg != null) {
-                            String role = msg.optString("role", "assistant");
-                            String content = msg.optString("content", "");
-                            addMessage(role, content);
-                            messageHistory.add(msg);
+            // Also show the assistant response
+            JSONObject response = new JSONObject(record.responseContent);
+            JSONArray choices = response.optJSONArray("choices");
+            if (choices != null) {
+                for (int i = 0; i < choices.length(); i++) {
+                    JSONObject choice = choices.getJSONObject(i);
+                    JSONObject msg = choice.optJSONObject("message");
+                    if (msg != null) {
+                        String role = msg.optString("role", "assistant");
+                        String content = msg.optString("content", "");
+                        shown.add(new ChatView.ChatMessage(role, content));
+                        if (msg.opt("content") instanceof String) {
+                            history.add(new JSONObject().put("role", role).put("content", content));
                         }
                     }
                 }
             }
-
-            currentConversationId = conversationId;
-
-        } catch (Exception e) {
-            addMessage("Error", "Failed to load full conversation: " + e.getMessage());
         }
     }
-
-
 }
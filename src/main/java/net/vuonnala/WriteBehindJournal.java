@@ -0,0 +1,300 @@
+package net.vuonnala;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind journal for dispatch results. Responses are queued in memory and a
+ * background writer stores them in batched transactions, so callers don't wait
+ * for a SQLite commit.
+ *
+ * The queue is bounded: when it is full, {@link #submit} blocks until the writer
+ * catches up. {@link #flush()} waits for everything submitted so far, and
+ * {@link #close()} drains the queue before returning.
+ *
+ * A batch that fails {@link #MAX_ATTEMPTS} times in a row is written one
+ * response at a time, and the responses that still fail are dropped and
+ * counted, so one bad response can't stall the queue and every dispatch
+ * behind it.
+ *
+ * {@link #register()} exposes the queue depth and lag over JMX through
+ * {@link WriteBehindJournalMXBean}.
+ */
+public class WriteBehindJournal implements WriteBehindJournalMXBean, AutoCloseable {
+
+    public static final String OBJECT_NAME = "net.vuonnala:type=WriteBehindJournal";
+    public static final int DEFAULT_QUEUE_DEPTH = 1024;
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final Duration DEFAULT_FLUSH_INTERVAL = Duration.ofMillis(50);
+
+    /** Writes of the same batch before its responses are written one by one. */
+    public static final int MAX_ATTEMPTS = 3;
+
+    private static final long RETRY_DELAY_MS = 500;
+
+    private final MessageStorage storage;
+    private final BlockingQueue<Entry> queue;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final Thread writerThread;
+
+    private final Object progress = new Object();
+    private final AtomicLong submitted = new AtomicLong();
+    private volatile long written;
+    private volatile long batches;
+    private volatile long failedAttempts;
+    private volatile long dropped;
+    private volatile long lastBatchLagNanos;
+    private volatile boolean closed;
+
+    private static final class Entry {
+        final MessageStorage.PendingResponse response;
+        final long enqueuedAt;
+
+        Entry(MessageStorage.PendingResponse response, long enqueuedAt) {
+            this.response = response;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    public WriteBehindJournal(MessageStorage storage) {
+        this(storage, DEFAULT_QUEUE_DEPTH, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    public WriteBehindJournal(MessageStorage storage, int queueDepth, int batchSize, Duration flushInterval) {
+        if (queueDepth < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("Queue depth and batch size must be positive.");
+        }
+        this.storage = storage;
+        this.queue = new ArrayBlockingQueue<>(queueDepth);
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = flushInterval.toNanos();
+        this.writerThread = new Thread(this::runWriter, "echoforge-journal-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Queues a response for storage. Blocks while the queue is full.
+     *
+     * @throws IllegalStateException if the journal has been closed
+     */
+    public void submit(String conversationId, String requestJson, String responseContent) throws InterruptedException {
+        submit(new MessageStorage.PendingResponse(Instant.now().toString(), conversationId, requestJson, responseContent));
+    }
+
+    /**
+     * Queues an already parsed request and its response for storage.
+     */
+    public void submit(String conversationId, DispatchRequest request, String responseContent) throws InterruptedException {
+        submit(new MessageStorage.PendingResponse(Instant.now().toString(), conversationId,
+                request.getJson(), request.getRoot(), responseContent));
+    }
+
+    private void submit(MessageStorage.PendingResponse response) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Journal is closed.");
+        }
+        submitted.incrementAndGet();
+        queue.put(new Entry(response, System.nanoTime()));
+    }
+
+    /**
+     * Blocks until every response submitted before this call has been committed
+     * or dropped.
+     */
+    public void flush() throws InterruptedException {
+        long target = submitted.get();
+        synchronized (progress) {
+            while (written + dropped < target && writerThread.isAlive()) {
+                progress.wait(100);
+            }
+        }
+    }
+
+    private void runWriter() {
+        List<Entry> batch = new ArrayList<>(batchSize);
+        int attempts = 0;  // of the current batch
+        while (!closed || !queue.isEmpty() || !batch.isEmpty()) {
+            try {
+                if (batch.isEmpty()) {
+                    Entry first = queue.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                }
+                writeBatch(batch);
+                batch.clear();
+                attempts = 0;
+            } catch (InterruptedException e) {
+                // close() interrupts to wake us up; keep draining until the queue is empty
+            } catch (SQLException | RuntimeException e) {
+                failedAttempts++;
+                if (++attempts < MAX_ATTEMPTS) {
+                    DebugLog.log("Journal write failed, retrying: " + e.getMessage());
+                    sleepQuietly(RETRY_DELAY_MS);
+                    continue;
+                }
+                DebugLog.log("Journal write failed " + attempts + " times, writing the batch"
+                        + " one response at a time: " + e.getMessage());
+                writeEach(batch);
+                batch.clear();
+                attempts = 0;
+            }
+        }
+        synchronized (progress) {
+            progress.notifyAll();
+        }
+    }
+
+    private void writeBatch(List<Entry> batch) throws SQLException {
+        List<MessageStorage.PendingResponse> responses = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            responses.add(entry.response);
+        }
+        storage.storeResponses(responses);
+
+        lastBatchLagNanos = System.nanoTime() - batch.get(0).enqueuedAt;
+        synchronized (progress) {
+            written += batch.size();
+            batches++;
+            progress.notifyAll();
+        }
+    }
+
+    /** Writes each entry on its own, dropping those that fail. */
+    private void writeEach(List<Entry> entries) {
+        for (Entry entry : entries) {
+            try {
+                writeBatch(List.of(entry));
+            } catch (SQLException | RuntimeException e) {
+                DebugLog.log("Dropping the journal entry of conversation "
+                        + entry.response.conversationId + ": " + e.getMessage());
+                synchronized (progress) {
+                    dropped++;
+                    progress.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ignored) {
+            // woken up by close(); the loop re-checks its state
+        }
+    }
+
+    @Override
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    @Override
+    public long getLagMillis() {
+        Entry head = queue.peek();
+        if (head == null) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - head.enqueuedAt);
+    }
+
+    @Override
+    public long getLastBatchLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastBatchLagNanos);
+    }
+
+    @Override
+    public long getWrittenCount() {
+        return written;
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batches;
+    }
+
+    @Override
+    public long getFailedAttempts() {
+        return failedAttempts;
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    /** "pending=.. lag=.. ms lastBatchLag=.. ms written=.. batches=.. failed=.. dropped=..", for reports. */
+    @Override
+    public String summary() {
+        return String.format("pending=%d lag=%d ms lastBatchLag=%d ms written=%d batches=%d failed=%d dropped=%d",
+                getPendingCount(), getLagMillis(), getLastBatchLagMillis(), getWrittenCount(), getBatchCount(),
+                getFailedAttempts(), getDroppedCount());
+    }
+
+    /**
+     * Registers this journal with the platform MBean server under
+     * {@link #OBJECT_NAME}, replacing whatever was registered there before.
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        try {
+            server.registerMBean(this, name);
+        } catch (InstanceAlreadyExistsException e) {
+            server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        }
+    }
+
+    /**
+     * Stops accepting new responses and waits until the queue has been drained.
+     * If the calling thread is interrupted meanwhile, it still waits, and its
+     * interrupt status is set again on return.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writerThread.interrupt();
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        // A submit() racing with close() may have queued after the writer's last check
+        List<Entry> leftovers = new ArrayList<>();
+        queue.drainTo(leftovers);
+        if (!leftovers.isEmpty()) {
+            try {
+                writeBatch(leftovers);
+            } catch (SQLException | RuntimeException e) {
+                writeEach(leftovers);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package net.vuonnala;
+
+/**
+ * The JMX view of a {@link WriteBehindJournal}, registered as
+ * {@value WriteBehindJournal#OBJECT_NAME}. Lags are in milliseconds.
+ */
+public interface WriteBehindJournalMXBean {
+
+    /** Responses waiting to be written. */
+    int getPendingCount();
+
+    /** How long the oldest waiting response has been queued. */
+    long getLagMillis();
+
+    /** Queue-to-commit time of the oldest response in the last written batch. */
+    long getLastBatchLagMillis();
+
+    long getWrittenCount();
+
+    long getBatchCount();
+
+    /** Batch writes that failed. */
+    long getFailedAttempts();
+
+    /** Responses that could not be written even on their own, and were given up. */
+    long getDroppedCount();
+
+    /** The figures above in one line. */
+    String summary();
+}
@@ -0,0 +1,158 @@
+// This is a JUnit test class for BackendPool routing and health handling
+package net.vuonnala;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BackendPoolTest {
+
+    private final LLMClientRegistry clients = new LLMClientRegistry();
+    private BackendPool pool;
+    private HttpServer server;
+
+    @AfterEach
+    void tearDown() {
+        if (pool != null) pool.close();
+        if (server != null) server.stop(0);
+        clients.close();
+    }
+
+    @Test
+    void testConsistentHashKeepsConversationOnOneBackend() throws Exception {
+        pool = new BackendPool(clients, List.of("10.0.0.1:1234", "10.0.0.2:1234", "10.0.0.3:1234"),
+                BackendPool.Mode.CONSISTENT_HASH, Duration.ZERO, Duration.ofSeconds(30), 3);
+
+        BackendPool.Backend owner = pool.select("conversation-42");
+        for (int i = 0; i < 20; i++) {
+            assertSame(owner, pool.select("conversation-42"));
+        }
+
+        Set<String> used = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            used.add(pool.select("conversation-" + i).getEndpoint());
+        }
+        assertEquals(3, used.size());
+    }
+
+    @Test
+    void testLeastOutstandingPrefersIdleBackend() throws Exception {
+        pool = new BackendPool(clients, List.of("10.0.0.1:1234", "10.0.0.2:1234"),
+                BackendPool.Mode.LEAST_OUTSTANDING, Duration.ZERO, Duration.ofSeconds(30), 3);
+        BackendPool.Backend busy = pool.getBackends().get(0);
+
+        String chosen = busy.execute(client -> pool.select("any").getEndpoint());
+        assertEquals("10.0.0.2:1234", chosen);
+    }
+
+    @Test
+    void testFailingBackendIsEjectedAndReadmittedByProbe() throws Exception {
+        byte[] models = "{\"data\":[{\"id\":\"m\"}]}".getBytes(StandardCharsets.UTF_8);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/models", exchange -> {
+            exchange.sendResponseHeaders(200, models.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(models);
+            }
+        });
+        server.start();
+        String live = "127.0.0.1:" + server.getAddress().getPort();
+
+        pool = new BackendPool(clients, List.of(live, "10.0.0.2:1234"),
+                BackendPool.Mode.LEAST_OUTSTANDING, Duration.ofMillis(50), Duration.ofMillis(200), 2);
+        BackendPool.Backend backend = pool.getBackends().get(0);
+
+        for (int i = 0; i < 2; i++) {
+            assertThrows(IOException.class, () -> backend.execute(client -> {
+                throw new IOException("connection reset");
+            }));
+        }
+        assertFalse(backend.isAvailable());
+        assertEquals(2, backend.getFailureCount());
+
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!backend.isAvailable() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(backend.isAvailable(), "probe should re-admit the backend after the cool-down");
+    }
+
+    @Test
+    void testWithoutProbingRequestsTryAnEjectedBackendAfterTheCoolDown() throws Exception {
+        pool = new BackendPool(clients, List.of("10.0.0.1:1234"),
+                BackendPool.Mode.LEAST_OUTSTANDING, Duration.ZERO, Duration.ofMillis(100), 2);
+        BackendPool.Backend backend = pool.getBackends().get(0);
+        BackendPool.BackendCall<String> failing = client -> {
+            throw new IOException("connection reset");
+        };
+
+        for (int i = 0; i < 2; i++) {
+            assertThrows(IOException.class, () -> pool.execute("c", failing));
+        }
+        assertFalse(backend.isAvailable());
+        assertThrows(IOException.class, () -> pool.select("c"), "no backend during the cool-down");
+
+        awaitAvailable(backend);
+        assertThrows(IOException.class, () -> pool.execute("c", failing));
+        assertFalse(backend.isAvailable(), "a failed try ejects it again");
+
+        awaitAvailable(backend);
+        assertEquals("ok", pool.execute("c", client -> "ok"));
+        assertTrue(backend.isAvailable());
+        assertTrue(backend.toString().contains(" UP "), backend.toString());
+    }
+
+    @Test
+    void testClientErrorsLeaveTheBackendAvailable() throws Exception {
+        int[] status = {400};
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/chat/completions", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            byte[] body = "{\"error\":\"model not loaded\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status[0], body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        String request = "{\"model\":\"m\",\"messages\":[{\"role\":\"user\",\"content\":\"hi\"}]}";
+
+        pool = new BackendPool(clients, List.of("127.0.0.1:" + server.getAddress().getPort()),
+                BackendPool.Mode.LEAST_OUTSTANDING, Duration.ZERO, Duration.ofSeconds(30), 2);
+        BackendPool.Backend backend = pool.getBackends().get(0);
+
+        for (int i = 0; i < 5; i++) {
+            LLMClient.HttpStatusException e = assertThrows(LLMClient.HttpStatusException.class,
+                    () -> backend.execute(client -> client.sendToLlmStudio(request)));
+            assertEquals(400, e.getStatusCode());
+        }
+        assertTrue(backend.isAvailable(), "4xx answers are about the request, not the backend");
+        assertEquals(0, backend.getFailureCount());
+
+        status[0] = 503;
+        for (int i = 0; i < 2; i++) {
+            assertThrows(LLMClient.HttpStatusException.class,
+                    () -> backend.execute(client -> client.sendToLlmStudio(request)));
+        }
+        assertFalse(backend.isAvailable(), "5xx answers count against the backend");
+    }
+
+    private static void awaitAvailable(BackendPool.Backend backend) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!backend.isAvailable() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(backend.isAvailable(), "the cool-down should end");
+    }
+}
@@ -0,0 +1,84 @@
+// This is a JUnit test class for the headless batch runner and its latency histogram
+package net.vuonnala;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchRunnerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private HttpServer server;
+    private MessageStorage storage;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        byte[] reply = "{\"choices\":[{\"message\":{\"role\":\"assistant\",\"content\":\"ok\"}}]}"
+                .getBytes(StandardCharsets.UTF_8);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/chat/completions", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(200, reply.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(reply);
+            }
+        });
+        server.start();
+        storage = new MessageStorage(tempDir.resolve("batch.db").toString());
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        server.stop(0);
+        storage.close();
+    }
+
+    @Test
+    void testBatchDispatchesValidLinesAndReportsInvalidOnes() throws Exception {
+        Path input = tempDir.resolve("requests.jsonl");
+        Files.write(input, List.of(
+                "{\"conversation_id\":\"a\",\"model\":\"m\",\"messages\":[{\"role\":\"user\",\"content\":\"1\"}]}",
+                "",
+                "{\"conversation_id\":\"b\",\"model\":\"m\",\"messages\":[{\"role\":\"user\",\"content\":\"2\"}]}",
+                "{\"conversation_id\":\"c\",\"model\":\"m\"}"
+        ));
+        Path output = tempDir.resolve("results.jsonl");
+
+        MessageValidator validator = new MessageValidator(getClass().getClassLoader().getResourceAsStream("schema.json"));
+        MessageDispatcher dispatcher = new MessageDispatcher(validator, new MessageInput(), storage);
+        BatchRunner.Report report = new BatchRunner(dispatcher, "127.0.0.1", server.getAddress().getPort(), 2)
+                .run(input, output);
+
+        assertEquals(2, report.succeeded);
+        assertEquals(1, report.invalid);
+        assertEquals(0, report.failed);
+        assertEquals(2, report.latencies.getCount());
+        assertEquals(3, Files.readAllLines(output).size());
+        assertEquals(1, storage.getResponsesByConversationId("a").size());
+    }
+
+    @Test
+    void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1_000_000L);  // 1..1000 ms
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500, histogram.getPercentileMillis(0.50), 500 * 0.07);
+        assertEquals(990, histogram.getPercentileMillis(0.99), 990 * 0.07);
+        assertEquals(1000, histogram.getMaxNanos() / 1_000_000);
+    }
+}
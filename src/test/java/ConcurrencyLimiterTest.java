@@ -0,0 +1,139 @@
+// This is a JUnit test class for the adaptive per-backend concurrency limit
+package net.vuonnala;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConcurrencyLimiterTest {
+
+    private static final long MS = 1_000_000L;
+
+    private StubLlmServer stub;
+
+    @AfterEach
+    void tearDown() {
+        if (stub != null) {
+            stub.close();
+        }
+    }
+
+    /** Takes n permits at once, so every one was started under the same load. */
+    private static List<ConcurrencyLimiter.Permit> acquire(ConcurrencyLimiter limiter, int n) throws Exception {
+        List<ConcurrencyLimiter.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            permits.add(limiter.acquire());
+        }
+        return permits;
+    }
+
+    @Test
+    void testLimitGrowsWhileLatencyHolds() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 8, 0, Duration.ZERO);
+        for (int round = 0; round < 20; round++) {
+            for (ConcurrencyLimiter.Permit permit : acquire(limiter, limiter.getLimit())) {
+                permit.success(100 * MS, 10);
+            }
+        }
+        assertEquals(8, limiter.getLimit());
+        assertEquals(10.0, limiter.getBaselineMillisPerToken(), 1e-9);
+        assertEquals(0, limiter.getBackoffCount());
+    }
+
+    @Test
+    void testLimitBacksOffOncePerBurstOfSlowAnswers() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 10, 0, Duration.ZERO);
+        limiter.acquire().success(10 * MS, 10);  // baseline: 1 ms per token
+
+        List<ConcurrencyLimiter.Permit> burst = acquire(limiter, 5);
+        for (ConcurrencyLimiter.Permit permit : burst) {
+            permit.success(50 * MS, 10);
+        }
+        assertEquals(9, limiter.getLimit());
+        assertEquals(1, limiter.getBackoffCount());
+
+        // Started after the decrease, so it counts again; failures count like slow answers
+        limiter.acquire().failure();
+        assertEquals(8, limiter.getLimit());
+        // Long answers are fine as long as each token comes quickly
+        limiter.acquire().success(500 * MS, 400);
+        assertEquals(2, limiter.getBackoffCount());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void testBaselineFollowsAnUnloadedBackendThatGotSlower() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 4, 0, Duration.ZERO);
+        limiter.acquire().success(10 * MS, 10);
+        for (int i = 0; i < 30; i++) {
+            limiter.acquire().success(30 * MS, 10);  // e.g. a bigger model was loaded
+        }
+        assertEquals(3.0, limiter.getBaselineMillisPerToken(), 0.01);
+        assertTrue(limiter.getLimit() > 1, limiter.summary());
+    }
+
+    @Test
+    void testRequestsBeyondTheLimitQueueThenFailFast() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, Duration.ofMillis(200));
+        ConcurrencyLimiter.Permit held = limiter.acquire();
+
+        CompletableFuture<ConcurrencyLimiter.Permit> waiter = CompletableFuture.supplyAsync(() -> {
+            try {
+                return limiter.acquire();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (limiter.getQueueDepth() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, limiter.getQueueDepth());
+        // The queue is full
+        assertThrows(ConcurrencyLimiter.RejectedException.class, limiter::acquire);
+
+        held.release();
+        waiter.get(5, TimeUnit.SECONDS).release();
+
+        held = limiter.acquire();
+        long start = System.nanoTime();
+        // The wait runs out
+        assertThrows(ConcurrencyLimiter.RejectedException.class, limiter::acquire);
+        assertTrue(System.nanoTime() - start >= 200 * MS);
+        held.release();
+        assertEquals(2, limiter.getRejectedCount());
+        assertEquals(0, limiter.getQueueDepth());
+        assertTrue(limiter.summary().contains("rejected=2"), limiter.summary());
+    }
+
+    @Test
+    void testRegistryLimitsEveryEndpoint() throws Exception {
+        stub = new StubLlmServer(0, StubLlmServer.Profile.parse("latency=0,tps=0,tokens=8"));
+        try (LLMClientRegistry clients = new LLMClientRegistry()) {
+            LLMClient before = clients.get("127.0.0.1", stub.getPort());
+            clients.setConcurrencyLimits(() -> new ConcurrencyLimiter(2, 4, 8, Duration.ofSeconds(1)));
+            LLMClient after = clients.get("127.0.0.2", 1);
+            assertNotNull(before.getLimiter());
+            assertNotNull(after.getLimiter());
+            assertNotSame(before.getLimiter(), after.getLimiter());
+
+            String request = "{\"model\":\"m\",\"messages\":[{\"role\":\"user\",\"content\":\"hi\"}]}";
+            before.sendToLlmStudio(request);
+            before.streamToLlmStudio(request, token -> { });
+            assertEquals(0, before.getLimiter().getInFlight());
+            assertFalse(Double.isNaN(before.getLimiter().getBaselineMillisPerToken()));
+            assertTrue(clients.describeLimits().contains("127.0.0.1:" + stub.getPort() + " limit="),
+                    clients.describeLimits());
+
+            clients.setConcurrencyLimits(null);
+            assertNull(before.getLimiter());
+        }
+    }
+}
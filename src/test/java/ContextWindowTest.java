@@ -0,0 +1,110 @@
+// This is a JUnit test class for ContextWindow
+package net.vuonnala;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ContextWindowTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // One token per character keeps the budgets in these tests easy to follow
+    private static final Tokenizer CHARS = String::length;
+
+    @TempDir
+    Path tempDir;
+
+    private MessageStorage storage;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        storage = new MessageStorage(tempDir.resolve("context.db").toString());
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        storage.close();
+    }
+
+    /** System prompt plus {@code turns} user/assistant pairs and a final user message. */
+    private static DispatchRequest conversation(int turns) {
+        ObjectNode root = MAPPER.createObjectNode();
+        root.put("conversation_id", "long-chat");
+        root.put("model", "m");
+        ArrayNode messages = root.putArray("messages");
+        messages.addObject().put("role", "system").put("content", "Be brief.");
+        for (int i = 0; i < turns; i++) {
+            messages.addObject().put("role", "user").put("content", "question number " + i);
+            messages.addObject().put("role", "assistant").put("content", "answer number " + i);
+        }
+        messages.addObject().put("role", "user").put("content", "latest question");
+        return DispatchRequest.parse(root.toString());
+    }
+
+    private static int tokens(ContextWindow window, DispatchRequest request) {
+        int total = 0;
+        for (JsonNode message : request.getMessages()) {
+            total += window.countTokens(message);
+        }
+        return total;
+    }
+
+    @Test
+    void testRequestWithinBudgetIsUnchanged() throws Exception {
+        ContextWindow window = new ContextWindow(CHARS, 10_000, Map.of(), null);
+        DispatchRequest request = conversation(3);
+
+        assertSame(request, window.fit(request, null));
+    }
+
+    @Test
+    void testOldTurnsAreDroppedAndSystemPromptKept() throws Exception {
+        ContextWindow window = new ContextWindow(CHARS, 10_000, Map.of("m", 120), null);
+        DispatchRequest fitted = window.fit(conversation(20), null);
+
+        JsonNode messages = fitted.getMessages();
+        assertTrue(tokens(window, fitted) <= 120);
+        assertEquals("Be brief.", messages.get(0).path("content").asText());
+        assertEquals("user", messages.get(1).path("role").asText());
+        assertEquals("latest question", messages.get(messages.size() - 1).path("content").asText());
+        assertEquals("long-chat", fitted.getConversationId());
+    }
+
+    @Test
+    void testSummaryIsGeneratedOnceAndExtendedIncrementally() throws Exception {
+        ContextWindow window = new ContextWindow(CHARS, 200, Map.of(), storage);
+        List<Integer> summarizedCounts = new ArrayList<>();
+        ContextWindow.Summarizer summarizer = (model, previous, messages) -> {
+            summarizedCounts.add(messages.size());
+            return "S" + summarizedCounts.size();
+        };
+
+        for (int turns = 1; turns <= 40; turns++) {
+            DispatchRequest fitted = window.fit(conversation(turns), summarizer);
+            assertTrue(tokens(window, fitted) <= 200, "turn " + turns + " is over budget");
+        }
+
+        // Each message is summarized once, and only every few turns
+        int summarized = summarizedCounts.stream().mapToInt(Integer::intValue).sum();
+        assertTrue(summarized < 80, "messages summarized more than once: " + summarizedCounts);
+        assertTrue(summarizedCounts.size() < 20, "summarized on too many turns: " + summarizedCounts);
+
+        DispatchRequest last = window.fit(conversation(40), summarizer);
+        assertEquals(ContextWindow.SUMMARY_PREFIX + "S" + summarizedCounts.size(),
+                last.getMessages().get(1).path("content").asText());
+        assertNotNull(storage.getContextSummary("long-chat"));
+    }
+}
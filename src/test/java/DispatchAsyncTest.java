@@ -0,0 +1,124 @@
+// This is a JUnit test class for non-blocking dispatch with deadlines and cancellation
+package net.vuonnala;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.vuonnala.DispatchFixture.awaitTrue;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DispatchAsyncTest {
+
+    @TempDir
+    Path tempDir;
+
+    private DispatchFixture fixture;
+    private StubLlmServer stub;
+    private MessageStorage storage;
+    private MessageDispatcher dispatcher;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        fixture = new DispatchFixture(tempDir, "latency=0,tps=0,tokens=8");
+        stub = fixture.stub;
+        storage = fixture.storage;
+        dispatcher = fixture.dispatcher;
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    private static String request(String conversationId) {
+        return "{\"conversation_id\":\"" + conversationId + "\",\"model\":\"m\","
+                + "\"messages\":[{\"role\":\"user\",\"content\":\"hello\"}]}";
+    }
+
+    @Test
+    void testAsyncDispatchStoresTheResponse() throws Exception {
+        String response = dispatcher.dispatchAsync(request("conv-1"), "127.0.0.1", stub.getPort(), Duration.ofSeconds(5)).get();
+
+        assertTrue(response.contains("\"completion_tokens\":8"), response);
+        assertEquals(1, storage.getResponsesByConversationId("conv-1").size());
+        assertEquals(1, dispatcher.getMetrics().getHistogram(DispatchMetrics.Stage.TOTAL).getCount());
+    }
+
+    @Test
+    void testInvalidRequestFailsTheFuture() {
+        CompletableFuture<String> future = dispatcher.dispatchAsync("{\"model\":\"m\"}", "127.0.0.1", stub.getPort(), null);
+
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        assertFalse(e.getCause() instanceof TimeoutException);
+        assertEquals(0, stub.getCompletionCount());
+    }
+
+    @Test
+    void testMissedDeadlineAbortsTheStream() throws Exception {
+        // Ten seconds of tokens
+        stub.setProfile(StubLlmServer.Profile.parse("latency=0,tps=20,tokens=200"));
+        AtomicInteger tokens = new AtomicInteger();
+        long start = System.nanoTime();
+        MessageDispatcher.AsyncDispatch<ChatCompletion> future = dispatcher.dispatchStreamingAsync(request("conv-1"),
+                "127.0.0.1", stub.getPort(), token -> tokens.incrementAndGet(), Duration.ofMillis(300));
+        assertTrue(System.nanoTime() - start < 200_000_000L, "dispatchStreamingAsync should not block");
+
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        assertInstanceOf(TimeoutException.class, e.getCause());
+        awaitTrue(() -> stub.getAbortedCount() == 1, "the stub should see the client hang up");
+        // Tokens are passed on by the dispatch's thread, which ends with the aborted stream
+        future.workerFinished().get(5, TimeUnit.SECONDS);
+        assertTrue(tokens.get() < 20, "about 300 ms of tokens, not ten seconds: " + tokens.get());
+        assertEquals(0, storage.getAllResponses().size());
+    }
+
+    @Test
+    void testCancelFreesTheBackendSlot() throws Exception {
+        stub.setProfile(StubLlmServer.Profile.parse("latency=10s,tps=0"));
+        dispatcher.setBackendPool(new BackendPool(fixture.clients, List.of("127.0.0.1:" + stub.getPort()),
+                BackendPool.Mode.LEAST_OUTSTANDING, Duration.ZERO, Duration.ofSeconds(30), 1));
+        BackendPool.Backend backend = dispatcher.getBackendPool().getBackends().get(0);
+
+        CompletableFuture<String> future = dispatcher.dispatchAsync(request("conv-1"), null);
+        awaitTrue(() -> backend.getInFlight() == 1, "the dispatch should reach the backend");
+        long start = System.nanoTime();
+        assertTrue(future.cancel(true));
+
+        assertThrows(CancellationException.class, future::get);
+        awaitTrue(() -> backend.getInFlight() == 0, "cancelling should free the slot");
+        assertTrue(System.nanoTime() - start < 2_000_000_000L, "the slot should not wait for the answer");
+        // Cancelling is not the backend's fault
+        assertEquals(0, backend.getFailureCount());
+        assertTrue(backend.isAvailable());
+    }
+
+    @Test
+    void testCancelledCallHandsOverToItsWaiter() throws Exception {
+        stub.setProfile(StubLlmServer.Profile.parse("latency=300ms,tps=0"));
+        RequestCoalescer coalescer = new RequestCoalescer();
+        dispatcher.setRequestCoalescer(coalescer);
+
+        CompletableFuture<String> first = dispatcher.dispatchAsync(request("conv-1"), "127.0.0.1", stub.getPort(), null);
+        awaitTrue(() -> coalescer.getInFlightCount() == 1, "the first call should be in flight");
+        CompletableFuture<String> second = dispatcher.dispatchAsync(request("conv-2"), "127.0.0.1", stub.getPort(), null);
+        awaitTrue(() -> coalescer.getWaitingCount() == 1, "the second call should wait on the first");
+        first.cancel(true);
+
+        assertTrue(second.get().contains("chat.completion"));
+        assertEquals(2, coalescer.getUpstreamCount());
+        assertEquals(0, storage.getResponsesByConversationId("conv-1").size());
+        assertEquals(1, storage.getResponsesByConversationId("conv-2").size());
+    }
+}
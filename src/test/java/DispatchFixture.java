@@ -0,0 +1,62 @@
+// Test support: a MessageDispatcher over a temporary database, for the dispatch tests
+package net.vuonnala;
+
+import java.nio.file.Path;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A dispatcher with its own storage and client registry, and optionally a
+ * stub LM Studio to send to. Closing it closes all of them, and the
+ * dispatcher's backend pool if a test set one.
+ */
+final class DispatchFixture implements AutoCloseable {
+
+    /** Null unless a stub profile was given. */
+    final StubLlmServer stub;
+    final MessageStorage storage;
+    final LLMClientRegistry clients = new LLMClientRegistry();
+    final MessageDispatcher dispatcher;
+
+    /** A dispatcher without a stub; the test brings its own server. */
+    DispatchFixture(Path dir) throws Exception {
+        this(dir, null);
+    }
+
+    /**
+     * @param stubProfile A {@link StubLlmServer.Profile} spec, or null for no stub
+     */
+    DispatchFixture(Path dir, String stubProfile) throws Exception {
+        stub = stubProfile == null ? null : new StubLlmServer(0, StubLlmServer.Profile.parse(stubProfile));
+        storage = new MessageStorage(dir.resolve("dispatch.db").toString());
+        MessageValidator validator = new MessageValidator(
+                DispatchFixture.class.getClassLoader().getResourceAsStream("schema.json"));
+        dispatcher = new MessageDispatcher(validator, new MessageInput(), storage, null, clients);
+    }
+
+    int port() {
+        return stub.getPort();
+    }
+
+    /** Polls the condition until it holds, and fails with the message after five seconds. */
+    static void awaitTrue(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean(), message);
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (dispatcher.getBackendPool() != null) {
+            dispatcher.getBackendPool().close();
+        }
+        if (stub != null) {
+            stub.close();
+        }
+        storage.close();
+        clients.close();
+    }
+}
@@ -0,0 +1,119 @@
+// This is a JUnit test class for DispatchMetrics, against an in-process HTTP server
+package net.vuonnala;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DispatchMetricsTest {
+
+    private static final String REQUEST =
+            "{\"conversation_id\":\"a\",\"model\":\"m\",\"messages\":[{\"role\":\"user\",\"content\":\"hi\"}]}";
+    private static final String REPLY = "{\"choices\":[{\"message\":{\"role\":\"assistant\",\"content\":\"ok\"}}],"
+            + "\"usage\":{\"prompt_tokens\":12,\"completion_tokens\": 30,\"total_tokens\":42}}";
+
+    @TempDir
+    Path tempDir;
+
+    private HttpServer server;
+    private DispatchFixture fixture;
+    private MessageDispatcher dispatcher;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        byte[] reply = REPLY.getBytes(StandardCharsets.UTF_8);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/chat/completions", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(200, reply.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(reply);
+            }
+        });
+        server.start();
+        fixture = new DispatchFixture(tempDir);
+        dispatcher = fixture.dispatcher;
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        server.stop(0);
+        fixture.close();
+    }
+
+    @Test
+    void testDispatchRecordsEveryStage() throws Exception {
+        int port = server.getAddress().getPort();
+        dispatcher.dispatch(REQUEST, "127.0.0.1", port);
+        dispatcher.dispatch(REQUEST, "127.0.0.1", port);
+        assertThrows(Exception.class, () -> dispatcher.dispatch("{\"model\":\"m\"}", "127.0.0.1", port));
+
+        DispatchMetrics metrics = dispatcher.getMetrics();
+        assertEquals(3, metrics.getRequestCount());
+        assertEquals(1, metrics.getErrorCount());
+        for (DispatchMetrics.Stage stage : DispatchMetrics.Stage.values()) {
+            long expected = switch (stage) {
+                case PARSE, CONVERSATION_ID -> 3;  // the invalid request fails in validation, which is not timed
+                default -> 2;
+            };
+            assertEquals(expected, metrics.getHistogram(stage).getCount(), stage.name());
+        }
+        assertEquals(2L * REPLY.length(), metrics.getBytesIn());
+        assertTrue(metrics.getBytesOut() > 0);
+        assertEquals(24, metrics.getPromptTokens());
+        assertEquals(60, metrics.getCompletionTokens());
+        assertTrue(metrics.getTokensPerSecond() > 0);
+
+        metrics.reset();
+        assertEquals(0, metrics.getRequestCount());
+        assertEquals(0, metrics.getHistogram(DispatchMetrics.Stage.TOTAL).getCount());
+    }
+
+    @Test
+    void testDisabledMetricsRecordNothing() throws Exception {
+        dispatcher.setMetrics(null);
+        dispatcher.dispatch(REQUEST, "127.0.0.1", server.getAddress().getPort());
+        assertEquals(0, dispatcher.getMetrics().getRequestCount());
+        assertEquals(0, dispatcher.getMetrics().getHistogram(DispatchMetrics.Stage.SEND).getCount());
+    }
+
+    @Test
+    void testMetricsAreReadableOverJmx() throws Exception {
+        dispatcher.getMetrics().register();
+        dispatcher.dispatch(REQUEST, "127.0.0.1", server.getAddress().getPort());
+
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(DispatchMetrics.OBJECT_NAME);
+        assertEquals(1L, mbeans.getAttribute(name, "RequestCount"));
+        TabularData stages = (TabularData) mbeans.getAttribute(name, "Stages");
+        CompositeData send = (CompositeData) stages.get(new Object[]{"SEND"}).get("value");
+        assertEquals(1L, send.get("count"));
+        assertTrue((Double) send.get("maxMillis") > 0);
+
+        new DispatchMetrics().register();  // replaces the registered instance
+        assertEquals(0L, mbeans.getAttribute(name, "RequestCount"));
+        mbeans.unregisterMBean(name);
+    }
+
+    @Test
+    void testUsageTokensAreReadWithoutParsing() {
+        assertEquals(12, DispatchMetrics.usageTokens(REPLY, DispatchMetrics.PROMPT_TOKENS));
+        assertEquals(30, DispatchMetrics.usageTokens(REPLY, DispatchMetrics.COMPLETION_TOKENS));
+        assertEquals(-1, DispatchMetrics.usageTokens("{\"choices\":[]}", DispatchMetrics.COMPLETION_TOKENS));
+        assertEquals(-1, DispatchMetrics.usageTokens("{\"usage\":{\"completion_tokens\":null}}", DispatchMetrics.COMPLETION_TOKENS));
+    }
+}
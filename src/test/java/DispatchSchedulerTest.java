@@ -0,0 +1,208 @@
+// This is a JUnit test class for the priority and per-conversation dispatch scheduler
+package net.vuonnala;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DispatchSchedulerTest {
+
+    private static final DispatchScheduler.Priority INTERACTIVE = DispatchScheduler.Priority.INTERACTIVE;
+    private static final DispatchScheduler.Priority BATCH = DispatchScheduler.Priority.BATCH;
+    private static final DispatchScheduler.Priority BACKGROUND = DispatchScheduler.Priority.BACKGROUND;
+
+    @TempDir
+    Path tempDir;
+
+    /** Work that starts when scheduled and ends when the test says so. */
+    private final List<String> started = new ArrayList<>();
+    private final Map<String, CompletableFuture<String>> running = new HashMap<>();
+
+    private CompletableFuture<String> submit(DispatchScheduler scheduler, DispatchScheduler.Priority priority,
+                                             String conversationId, String name) {
+        return scheduler.submit(priority, conversationId, () -> {
+            CompletableFuture<String> work = new CompletableFuture<>();
+            started.add(name);
+            running.put(name, work);
+            return work;
+        });
+    }
+
+    private void finish(String name) {
+        running.remove(name).complete(name);
+    }
+
+    @Test
+    void testTurnsOfAConversationRunInOrderAndOthersInParallel() {
+        DispatchScheduler scheduler = new DispatchScheduler(null, 4, 0);
+        CompletableFuture<String> a1 = submit(scheduler, BATCH, "a", "a1");
+        submit(scheduler, BATCH, "a", "a2");
+        submit(scheduler, BATCH, "a", "a3");
+        submit(scheduler, BATCH, "b", "b1");
+        assertEquals(List.of("a1", "b1"), started);
+        assertEquals(2, scheduler.getQueuedCount(BATCH));
+
+        finish("a1");
+        assertEquals("a1", a1.join());
+        assertEquals(List.of("a1", "b1", "a2"), started);
+        finish("a2");
+        finish("b1");
+        finish("a3");
+        assertEquals(List.of("a1", "b1", "a2", "a3"), started);
+        assertEquals(0, scheduler.getRunningCount());
+        assertEquals(4, scheduler.getStartedCount(BATCH));
+    }
+
+    @Test
+    void testConversationsTakeTurnsWithinAClass() {
+        DispatchScheduler scheduler = new DispatchScheduler(null, 1, 0);
+        for (int i = 1; i <= 3; i++) {
+            submit(scheduler, BATCH, "a", "a" + i);
+        }
+        for (int i = 1; i <= 3; i++) {
+            submit(scheduler, BATCH, "b", "b" + i);
+        }
+        while (!running.isEmpty()) {
+            finish(running.keySet().iterator().next());
+        }
+        assertEquals(List.of("a1", "b1", "a2", "b2", "a3", "b3"), started);
+    }
+
+    @Test
+    void testInteractiveTurnsUseTheReservedSlotAndGoFirst() {
+        DispatchScheduler scheduler = new DispatchScheduler(null, 2, 1);
+        for (int i = 1; i <= 3; i++) {
+            submit(scheduler, BATCH, "batch-" + i, "batch" + i);
+        }
+        assertEquals(List.of("batch1"), started, "batch work may not take the reserved slot");
+
+        submit(scheduler, INTERACTIVE, "chat", "chat1");
+        assertEquals(List.of("batch1", "chat1"), started, "the reserved slot was free");
+
+        submit(scheduler, INTERACTIVE, "other-chat", "chat2");
+        finish("batch1");
+        assertEquals(List.of("batch1", "chat1", "chat2"), started, "ahead of the waiting batch work");
+        finish("chat1");
+        finish("chat2");
+        assertEquals(List.of("batch1", "chat1", "chat2", "batch2"), started);
+    }
+
+    @Test
+    void testClassesShareSlotsByWeight() {
+        DispatchScheduler scheduler = new DispatchScheduler(null, 1, 0);
+        submit(scheduler, BATCH, null, "warm-up");
+        for (int i = 0; i < 50; i++) {
+            submit(scheduler, BATCH, null, "batch");
+            submit(scheduler, BACKGROUND, null, "background");
+        }
+        for (int i = 0; i < 50; i++) {
+            finish(started.get(started.size() - 1));
+        }
+        List<String> first = started.subList(1, 51);
+        long background = first.stream().filter("background"::equals).count();
+        // Weights 4:1
+        assertEquals(10, background, String.valueOf(first));
+    }
+
+    @Test
+    void testAWaitingInteractiveTurnLiftsItsConversation() {
+        DispatchScheduler scheduler = new DispatchScheduler(null, 1, 0);
+        submit(scheduler, BATCH, "busy", "busy");
+        submit(scheduler, BATCH, "other", "other");
+        submit(scheduler, BACKGROUND, "chat", "summary");
+        submit(scheduler, INTERACTIVE, "chat", "question");
+
+        finish("busy");
+        assertEquals("summary", started.get(1), "the conversation is scheduled as interactive");
+        finish("summary");
+        assertEquals("question", started.get(2));
+    }
+
+    @Test
+    void testCancellingAWaitingOrRunningTurn() {
+        DispatchScheduler scheduler = new DispatchScheduler(null, 1, 0);
+        CompletableFuture<String> first = submit(scheduler, BATCH, "a", "first");
+        CompletableFuture<String> waiting = submit(scheduler, BATCH, "b", "waiting");
+        submit(scheduler, BATCH, "c", "last");
+
+        assertTrue(waiting.cancel(true));
+        assertTrue(first.cancel(true));
+        assertTrue(running.get("first").isCancelled(), "cancelling reaches the running dispatch");
+        assertThrows(CancellationException.class, first::join);
+        assertEquals(List.of("first", "last"), started);
+    }
+
+    @Test
+    void testCancelledTurnKeepsItsLaneUntilItsThreadReturns() throws Exception {
+        DispatchScheduler scheduler = new DispatchScheduler(null, 4, 0);
+        List<String> stored = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> inFlight = new CompletableFuture<>();
+        CompletableFuture<Void> answered = new CompletableFuture<>();
+        CompletableFuture<String> first = scheduler.submit(INTERACTIVE, "a", () -> MessageDispatcher.async(() -> {
+            inFlight.complete(null);
+            answered.join();  // not interruptible, like an answer already being stored
+            stored.add("first");
+            return "first";
+        }, null));
+        inFlight.join();
+
+        assertTrue(first.cancel(true));
+        CompletableFuture<String> second = scheduler.submit(INTERACTIVE, "a", () -> MessageDispatcher.async(() -> {
+            stored.add("second");
+            return "second";
+        }, null));
+        assertEquals(1, scheduler.getRunningCount(), "the cancelled turn's thread still runs");
+        assertEquals(1, scheduler.getQueuedCount(INTERACTIVE));
+
+        answered.complete(null);
+        assertEquals("second", second.get(5, TimeUnit.SECONDS));
+        assertEquals(List.of("first", "second"), stored);
+        assertThrows(CancellationException.class, first::join);
+    }
+
+    @Test
+    void testConversationIdIsReadWithoutParsingTheRequest() {
+        assertEquals("c1", DispatchScheduler.conversationId(
+                "{\"model\":\"m\",\"messages\":[{\"conversation_id\":\"inner\"}],\"conversation_id\":\"c1\"}"));
+        assertNull(DispatchScheduler.conversationId("{\"model\":\"m\",\"conversation_id\":7}"));
+        assertNull(DispatchScheduler.conversationId("{\"model\":\"m\"}"));
+        assertNull(DispatchScheduler.conversationId("not json"));
+    }
+
+    @Test
+    void testScheduledDispatchesStoreTurnsInOrder() throws Exception {
+        try (StubLlmServer stub = new StubLlmServer(0, StubLlmServer.Profile.parse("latency=20ms,jitter=40ms,tps=0"))) {
+            MessageStorage storage = new MessageStorage(tempDir.resolve("scheduler.db").toString());
+            MessageValidator validator = new MessageValidator(getClass().getClassLoader().getResourceAsStream("schema.json"));
+            MessageDispatcher dispatcher = new MessageDispatcher(validator, new MessageInput(), storage);
+            DispatchScheduler scheduler = new DispatchScheduler(dispatcher, 4, 1);
+
+            List<CompletableFuture<String>> turns = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                turns.add(scheduler.dispatch(i % 2 == 0 ? BATCH : INTERACTIVE,
+                        "{\"conversation_id\":\"ordered\",\"model\":\"m\",\"messages\":[{\"role\":\"user\","
+                                + "\"content\":\"turn " + i + "\"}]}", "127.0.0.1", stub.getPort(), Duration.ofSeconds(5)));
+            }
+            CompletableFuture.allOf(turns.toArray(new CompletableFuture[0])).get();
+
+            List<MessageStorage.ResponseRecord> stored = storage.getResponsesByConversationId("ordered");
+            assertEquals(6, stored.size());
+            for (int i = 0; i < 6; i++) {
+                assertTrue(stored.get(i).requestJson.contains("turn " + i), stored.get(i).requestJson);
+            }
+            storage.close();
+        }
+    }
+}
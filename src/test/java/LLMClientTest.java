@@ -0,0 +1,140 @@
+// This is a JUnit test class for LLMClient against an in-process HTTP server
+package net.vuonnala;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LLMClientTest {
+
+    private static final String REQUEST = "{\"model\":\"model-x\",\"messages\":[{\"role\":\"user\",\"content\":\"hi\"}]}";
+
+    private HttpServer server;
+    private volatile String responseBody;
+    private volatile String contentType;
+    private volatile int status = 200;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/chat/completions", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            byte[] bytes = responseBody.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void testStreamingDeliversTokensInOrder() throws Exception {
+        contentType = "text/event-stream";
+        responseBody = """
+                data: {"id":"c1","model":"model-x","choices":[{"index":0,"delta":{"role":"assistant"}}]}
+
+                data: {"id":"c1","choices":[{"index":0,"delta":{"content":"Hel"}}]}
+
+                data: {"id":"c1","choices":[{"index":0,"delta":{"content":"lo"},"finish_reason":"stop"}]}
+
+                data: {"id":"c1","choices":[],"usage":{"prompt_tokens":3,"completion_tokens":2}}
+
+                data: [DONE]
+
+                """;
+
+        List<String> tokens = new ArrayList<>();
+        ChatCompletion completion = client().streamToLlmStudio(REQUEST, tokens::add);
+
+        assertEquals(List.of("Hel", "lo"), tokens);
+        assertEquals("Hello", completion.content);
+        assertEquals("assistant", completion.role);
+        assertEquals(3, completion.promptTokens);
+        assertEquals(2, completion.completionTokens);
+        assertTrue(completion.timeToFirstTokenNanos >= 0);
+        assertTrue(completion.responseJson.contains("\"content\":\"Hello\""));
+    }
+
+    @Test
+    void testStreamingFallsBackToRegularResponse() throws Exception {
+        contentType = "application/json";
+        responseBody = "{\"choices\":[{\"message\":{\"role\":\"assistant\",\"content\":\"Hi there\"}}]}";
+
+        List<String> tokens = new ArrayList<>();
+        ChatCompletion completion = client().streamToLlmStudio(REQUEST, tokens::add);
+
+        assertEquals(List.of("Hi there"), tokens);
+        assertEquals("Hi there", completion.content);
+        assertEquals(-1, completion.completionTokens);
+    }
+
+    @Test
+    void testStreamingCountsBytesNotCharacters() throws Exception {
+        contentType = "text/event-stream";
+        responseBody = """
+                data: {"id":"c1","choices":[{"index":0,"delta":{"role":"assistant","content":"Hyvää päivää "}}]}
+
+                data: {"id":"c1","choices":[{"index":0,"delta":{"content":"👋"},"finish_reason":"stop"}]}
+
+                data: [DONE]
+                """;
+
+        DispatchMetrics metrics = new DispatchMetrics();
+        ChatCompletion completion = client().streamToLlmStudio(DispatchRequest.parse(REQUEST), token -> { }, metrics);
+
+        assertEquals("Hyvää päivää 👋", completion.content);
+        assertEquals(responseBody.getBytes(StandardCharsets.UTF_8).length, metrics.getBytesIn());
+        assertTrue(metrics.getBytesIn() > responseBody.length());
+    }
+
+    @Test
+    void testUtf8Length() {
+        for (String s : new String[]{"", "ascii", "päivää", "€", "👋", "a👋b"}) {
+            assertEquals(s.getBytes(StandardCharsets.UTF_8).length, LLMClient.utf8Length(s), s);
+        }
+    }
+
+    @Test
+    void testOnlyOverloadBacksTheLimiterOff() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 8, 10, Duration.ofSeconds(1));
+        LLMClient client = client();
+        client.setLimiter(limiter);
+        contentType = "application/json";
+        responseBody = "{\"error\":\"context length exceeded\"}";
+        status = 400;
+
+        for (int i = 0; i < 3; i++) {
+            assertThrows(LLMClient.HttpStatusException.class, () -> client.sendToLlmStudio(REQUEST));
+            assertThrows(LLMClient.HttpStatusException.class, () -> client.streamToLlmStudio(REQUEST, token -> { }));
+        }
+        assertEquals(0, limiter.getBackoffCount(), "client errors say nothing about load");
+        assertEquals(0, limiter.getInFlight());
+
+        status = 503;
+        assertThrows(LLMClient.HttpStatusException.class, () -> client.sendToLlmStudio(REQUEST));
+        assertEquals(1, limiter.getBackoffCount());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    private LLMClient client() {
+        return new LLMClient("127.0.0.1", server.getAddress().getPort());
+    }
+}
@@ -0,0 +1,111 @@
+// This is a JUnit test class for the stub LMStudio server and the load generator
+package net.vuonnala;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoadGeneratorTest {
+
+    private static final String REQUEST = "{\"model\":\"model-x\",\"messages\":[{\"role\":\"user\",\"content\":\"hi\"}]}";
+    private static final String INSTANT = "latency=0,tps=0,tokens=8";
+
+    @TempDir
+    Path tempDir;
+
+    private DispatchFixture fixture;
+    private StubLlmServer stub;
+    private MessageStorage storage;
+    private MessageDispatcher dispatcher;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        fixture = new DispatchFixture(tempDir, INSTANT);
+        stub = fixture.stub;
+        storage = fixture.storage;
+        dispatcher = fixture.dispatcher;
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Test
+    void testStubAnswersLikeLmStudio() throws Exception {
+        LLMClient client = new LLMClient("127.0.0.1", stub.getPort());
+        assertEquals(List.of(StubLlmServer.MODEL), client.fetchAvailableModels());
+
+        String response = client.sendToLlmStudio(REQUEST);
+        assertTrue(response.contains("\"completion_tokens\":8"), response);
+
+        List<String> tokens = new ArrayList<>();
+        ChatCompletion completion = client.streamToLlmStudio(REQUEST, tokens::add);
+        assertEquals(8, tokens.size());
+        assertEquals(String.join("", tokens), completion.content);
+        assertEquals(8, completion.completionTokens);
+        assertEquals(2, stub.getCompletionCount());
+        assertEquals(1, stub.getStreamedCount());
+    }
+
+    @Test
+    void testInjectedErrorsFailTheRequest() {
+        stub.setProfile(StubLlmServer.Profile.parse("latency=0,tps=0,errors=1"));
+        LLMClient client = new LLMClient("127.0.0.1", stub.getPort());
+
+        IOException e = assertThrows(IOException.class, () -> client.sendToLlmStudio(REQUEST));
+        assertTrue(e.getMessage().contains("HTTP 500"), e.getMessage());
+        assertThrows(IOException.class, () -> client.streamToLlmStudio(REQUEST, token -> { }));
+        assertEquals(2, stub.getErrorCount());
+    }
+
+    @Test
+    void testProfileParsing() {
+        StubLlmServer.Profile profile = StubLlmServer.Profile.parse("latency=1.5s, jitter=20ms,tps=40,errors=0.25");
+        assertEquals(Duration.ofMillis(1500), profile.latency);
+        assertEquals(Duration.ofMillis(20), profile.jitter);
+        assertEquals(40, profile.tokensPerSecond);
+        assertEquals(StubLlmServer.Profile.DEFAULT.completionTokens, profile.completionTokens);
+        assertEquals(0.25, profile.errorRate);
+
+        assertThrows(IllegalArgumentException.class, () -> StubLlmServer.Profile.parse("speed=3"));
+        assertThrows(IllegalArgumentException.class, () -> StubLlmServer.Profile.parse("errors=2"));
+    }
+
+    @Test
+    void testClosedLoadStoresEveryAnswer() throws Exception {
+        LoadGenerator generator = new LoadGenerator(dispatcher, "127.0.0.1", stub.getPort(), 3, false);
+        LoadGenerator.Report report = generator.runAtConcurrency(4, Duration.ofMillis(300));
+
+        assertTrue(report.succeeded > 0);
+        assertEquals(0, report.failed);
+        assertEquals(report.total(), stub.getCompletionCount());
+        assertEquals(report.succeeded, report.latencies.getCount());
+        assertTrue(report.maxInFlight <= 4);
+        assertNull(report.firstTokens);
+        assertEquals(report.succeeded, storage.getAllResponses().size());
+        assertFalse(storage.getResponsesByConversationId("load-1").isEmpty());
+    }
+
+    @Test
+    void testOpenLoadSendsAtTheRateAndCountsFailures() throws Exception {
+        stub.setProfile(StubLlmServer.Profile.parse("latency=0,tps=0,errors=1"));
+        LoadGenerator generator = new LoadGenerator(dispatcher, "127.0.0.1", stub.getPort(), 10, true);
+        LoadGenerator.Report report = generator.runAtRate(50, Duration.ofMillis(400));
+
+        assertEquals(20, report.total());
+        assertEquals(20, report.failed);
+        assertEquals(20, stub.getStreamedCount());
+        assertEquals(0, storage.getAllResponses().size());
+        assertTrue(report.toString().contains("50.0 req/s"), report.toString());
+    }
+}
@@ -44,6 +44,26 @@ public class MessageInputTest {
         assertEquals("unknown", input.getConversationId(json));
     }
 
+    @Test
+    void testDispatchRequest_bodyFromTree() {
+        String json = "{\"conversation_id\":\"abc123\",\"model\":\"m\",\"metadata\":{\"tags\":[\"x\"]},"
+                + "\"messages\":[{\"role\":\"user\",\"content\":\"hi\"}]}";
+        DispatchRequest request = DispatchRequest.parse(json);
+
+        assertEquals("abc123", request.getConversationId());
+        assertEquals("m", request.getModel());
+        assertEquals("{\"model\":\"m\",\"messages\":[{\"role\":\"user\",\"content\":\"hi\"}]}",
+                new String(request.toRequestBody(false)));
+    }
+
+    @Test
+    void testDispatchRequest_invalidJson() {
+        assertThrows(IllegalArgumentException.class, () -> DispatchRequest.parse("{"));
+        DispatchRequest noModel = DispatchRequest.parse("{\"messages\":[]}");
+        assertEquals("unknown", noModel.getConversationId());
+        assertThrows(IllegalArgumentException.class, () -> noModel.toRequestBody(false));
+    }
+
     @Test
     void testMessageValidator_validJson() throws Exception {
         String schema = """
@@ -0,0 +1,448 @@
+// This is a JUnit test class for MessageStorage
+package net.vuonnala;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageStorageTest {
+
+    @TempDir
+    Path tempDir;
+
+    private MessageStorage storage;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        storage = new MessageStorage(tempDir.resolve("test.db").toString());
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        storage.close();
+    }
+
+    @Test
+    void testWritesAreVisibleToReaders() throws SQLException {
+        storage.registerConversation("conv1", "First chat");
+        storage.storeResponse("conv1", "{\"messages\":[]}", "{\"choices\":[]}");
+        storage.storeResponse("conv1", "{\"messages\":[]}", "{\"choices\":[]}");
+
+        List<MessageStorage.ResponseRecord> records = storage.getResponsesByConversationId("conv1");
+        assertEquals(2, records.size());
+        assertEquals("First chat", storage.getAllConversations().get(0).title);
+    }
+
+    @Test
+    void testInMemoryDatabaseUsesSingleConnection() throws SQLException {
+        try (MessageStorage memory = new MessageStorage(":memory:")) {
+            memory.registerConversation("conv1", "In memory");
+            assertEquals(1, memory.getAllConversations().size());
+        }
+    }
+
+    @Test
+    void testWriteBehindJournalDrainsOnClose() throws Exception {
+        WriteBehindJournal journal = new WriteBehindJournal(storage, 8, 4, Duration.ofMillis(10));
+        for (int i = 0; i < 50; i++) {
+            journal.submit("conv1", "{\"messages\":[]}", "{\"choices\":[]}");
+        }
+        journal.flush();
+        assertEquals(50, storage.getResponsesByConversationId("conv1").size());
+
+        journal.register();
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(WriteBehindJournal.OBJECT_NAME);
+        assertEquals(50L, mbeans.getAttribute(name, "WrittenCount"));
+        assertEquals(0, mbeans.getAttribute(name, "PendingCount"));
+        assertEquals(0L, mbeans.getAttribute(name, "LagMillis"));
+        assertTrue(journal.summary().startsWith("pending=0 lag=0 ms"), journal.summary());
+        mbeans.unregisterMBean(name);
+
+        journal.submit("conv1", "{\"messages\":[]}", "{\"choices\":[]}");
+        journal.close();
+        assertEquals(51, storage.getResponsesByConversationId("conv1").size());
+        assertEquals(0, journal.getPendingCount());
+        assertThrows(IllegalStateException.class, () -> journal.submit("conv1", "{}", "{}"));
+    }
+
+    @Test
+    void testWriteBehindJournalDropsOnlyTheResponseThatKeepsFailing() throws Exception {
+        WriteBehindJournal journal = new WriteBehindJournal(storage, 8, 4, Duration.ofSeconds(1));
+        journal.submit("conv1", "{\"messages\":[]}", "{\"choices\":[]}");
+        journal.submit(null, "{\"messages\":[]}", "{\"choices\":[]}");  // violates NOT NULL
+        journal.submit("conv1", "{\"messages\":[]}", "{\"choices\":[]}");
+        journal.flush();
+
+        assertEquals(2, storage.getResponsesByConversationId("conv1").size());
+        assertEquals(1, journal.getDroppedCount());
+        assertEquals(WriteBehindJournal.MAX_ATTEMPTS, journal.getFailedAttempts());
+
+        journal.submit("conv1", "{\"messages\":[]}", "{\"choices\":[]}");
+        journal.close();
+        assertEquals(3, storage.getResponsesByConversationId("conv1").size());
+    }
+
+    @Test
+    void testTurnsOnlyAppendNewMessages() throws SQLException {
+        String system = "{\"content\":\"Be brief.\",\"role\":\"system\"}";
+        String user1 = "{\"content\":\"Hi\",\"role\":\"user\"}";
+        String reply1 = "{\"content\":\"Hello\",\"role\":\"assistant\"}";
+        String user2 = "{\"content\":\"Bye\",\"role\":\"user\"}";
+
+        storage.storeResponse("conv1", request("conv1", system, user1), response("Hello"));
+        storage.storeResponse("conv1", request("conv1", system, user1, reply1, user2), response("Goodbye"));
+        storage.storeResponse("conv2", request("conv2", system, user1), response("Hello"));
+
+        List<MessageStorage.ResponseRecord> records = storage.getResponsesByConversationId("conv1");
+        assertEquals(2, records.size());
+        assertTrue(records.get(0).startsNewHistory);
+        assertEquals(request("conv1", system, user1), records.get(0).requestJson);
+        assertFalse(records.get(1).startsNewHistory);
+        assertEquals(request("conv1", user2), records.get(1).requestJson);
+        assertEquals(List.of(records.get(0).id, records.get(1).id, records.get(1).id + 1),
+                storage.getAllResponses().stream().map(r -> r.id).toList(), "every turn, oldest first");
+
+        // conv1: system, user1, reply1, user2, reply2; conv2: system, user1, reply1
+        assertEquals(8, countRows("messages"));
+        // system, user1, reply1, user2, reply2 are each stored once
+        assertEquals(5, countRows("message_bodies"));
+    }
+
+    @Test
+    void testDivergingRequestStartsNewHistory() throws SQLException {
+        String user1 = "{\"content\":\"Hi\",\"role\":\"user\"}";
+        String other = "{\"content\":\"Something else\",\"role\":\"user\"}";
+
+        storage.storeResponse("conv1", request("conv1", user1), response("Hello"));
+        storage.storeResponse("conv1", request("conv1", other), response("Sure"));
+
+        List<MessageStorage.ResponseRecord> records = storage.getResponsesByConversationId("conv1");
+        assertTrue(records.get(1).startsNewHistory);
+        assertEquals(request("conv1", other), records.get(1).requestJson);
+    }
+
+    @Test
+    void testMigratesFullHistoryRows() throws SQLException {
+        storage.close();
+        Path legacy = tempDir.resolve("legacy.db");
+        String user1 = "{\"content\":\"Hi\",\"role\":\"user\"}";
+        String reply1 = "{\"content\":\"Hello\",\"role\":\"assistant\"}";
+        String user2 = "{\"content\":\"Bye\",\"role\":\"user\"}";
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + legacy);
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE responses (id INTEGER PRIMARY KEY AUTOINCREMENT, timestamp TEXT NOT NULL, "
+                    + "conversation_id TEXT NOT NULL, request_json TEXT NOT NULL, response_content TEXT NOT NULL)");
+            stmt.execute("INSERT INTO responses (timestamp, conversation_id, request_json, response_content) VALUES "
+                    + "('t1', 'conv1', '" + request("conv1", user1) + "', '" + response("Hello") + "'), "
+                    + "('t2', 'conv1', '" + request("conv1", user1, reply1, user2) + "', '" + response("Goodbye") + "'), "
+                    + "('t3', 'conv1', 'not json', 'raw')");
+        }
+
+        storage = new MessageStorage(legacy.toString());
+        List<MessageStorage.ResponseRecord> records = storage.getResponsesByConversationId("conv1");
+        assertEquals(3, records.size());
+        assertEquals(request("conv1", user1), records.get(0).requestJson);
+        assertEquals(request("conv1", user2), records.get(1).requestJson);
+        assertEquals("not json", records.get(2).requestJson);
+    }
+
+    private static String request(String conversationId, String... messages) {
+        return "{\"conversation_id\":\"" + conversationId + "\",\"model\":\"m\",\"messages\":["
+                + String.join(",", messages) + "]}";
+    }
+
+    private static String response(String content) {
+        return "{\"choices\":[{\"message\":{\"content\":\"" + content + "\",\"role\":\"assistant\"}}]}";
+    }
+
+    private int countRows(String table) throws SQLException {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + tempDir.resolve("test.db"));
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            return rs.getInt(1);
+        }
+    }
+
+    @Test
+    void testConversationPagesFollowNewestFirstOrder() throws SQLException {
+        for (int i = 0; i < 25; i++) {
+            storage.registerConversation(String.format("conv%02d", i), "Chat " + i);
+        }
+
+        List<String> paged = new ArrayList<>();
+        MessageStorage.ConversationSummary last = null;
+        List<MessageStorage.ConversationSummary> page;
+        do {
+            page = storage.getConversationsPage(last, 10);
+            page.forEach(c -> paged.add(c.id));
+            last = page.isEmpty() ? null : page.get(page.size() - 1);
+        } while (page.size() == 10);
+
+        List<String> all = storage.getAllConversations().stream().map(c -> c.id).toList();
+        assertEquals(25, paged.size());
+        assertEquals(all, paged);
+    }
+
+    @Test
+    void testConversationPagesUseCreatedAtIndex() throws SQLException {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + tempDir.resolve("test.db"));
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("EXPLAIN QUERY PLAN SELECT conversation_id, title, created_at "
+                     + "FROM conversations WHERE (created_at, conversation_id) < ('x', 'y') "
+                     + "ORDER BY created_at DESC, conversation_id DESC LIMIT 10")) {
+            StringBuilder plan = new StringBuilder();
+            while (rs.next()) {
+                plan.append(rs.getString("detail")).append('\n');
+            }
+            assertTrue(plan.toString().contains("idx_conversations_created"), plan.toString());
+            assertFalse(plan.toString().contains("TEMP B-TREE"), plan.toString());
+        }
+    }
+
+    @Test
+    void testListenersSeeCommittedChanges() throws SQLException {
+        List<String> events = new ArrayList<>();
+        storage.addListener(new StorageListener() {
+            @Override
+            public void conversationAdded(MessageStorage.ConversationSummary conversation) {
+                events.add("added " + conversation.id + " " + conversation.title);
+            }
+
+            @Override
+            public void conversationRenamed(String conversationId, String newTitle) {
+                events.add("renamed " + conversationId + " " + newTitle);
+            }
+
+            @Override
+            public void responseStored(String conversationId) {
+                events.add("stored " + conversationId);
+            }
+        });
+
+        storage.registerConversation("conv1", "First");
+        storage.registerConversation("conv1", "Duplicate");  // ignored, no event
+        storage.updateConversationTitle("conv1", "Renamed");
+        storage.updateConversationTitle("missing", "Nothing");  // no row, no event
+        storage.storeResponse("conv1", request("conv1"), response("ok"));
+
+        assertEquals(List.of("added conv1 First", "renamed conv1 Renamed", "stored conv1"), events);
+    }
+
+    @Test
+    void testResponsePagesAndStreamsMatchFullReads() throws SQLException {
+        String user = "{\"content\":\"Hi\",\"role\":\"user\"}";
+        for (int i = 0; i < 12; i++) {
+            String conversationId = i % 2 == 0 ? "even" : "odd";
+            storage.storeResponse(conversationId, request(conversationId, user), response("r" + i));
+        }
+
+        List<Integer> paged = new ArrayList<>();
+        long after = 0;
+        List<MessageStorage.ResponseRecord> page;
+        do {
+            page = storage.getResponsesPage(after, 5);
+            page.forEach(r -> paged.add(r.id));
+            after = page.isEmpty() ? after : page.get(page.size() - 1).id;
+        } while (page.size() == 5);
+        assertEquals(12, paged.size());
+
+        List<String> evenFull = storage.getResponsesByConversationId("even").stream()
+                .map(r -> r.requestJson + r.responseContent).toList();
+        try (Stream<MessageStorage.ResponseRecord> stream =
+                     storage.streamResponsesByConversationId("even")) {
+            assertEquals(evenFull, stream.map(r -> r.requestJson + r.responseContent).toList());
+        }
+        List<MessageStorage.ResponseRecord> evenPage = storage.getResponsesByConversationId("even", 0, 4);
+        assertEquals(4, evenPage.size());
+        assertEquals(evenFull.subList(0, 4), evenPage.stream().map(r -> r.requestJson + r.responseContent).toList());
+
+        assertEquals(6, storage.streamResponseSummaries("odd").count());
+        assertEquals(12, storage.getResponseSummariesPage(0, 100).size());
+    }
+
+    @Test
+    void testStreamReleasesItsReader() throws SQLException {
+        storage.close();
+        storage = new MessageStorage(tempDir.resolve("test.db").toString(), 1);
+        storage.storeResponse("conv1", request("conv1"), response("ok"));
+
+        try (Stream<MessageStorage.ResponseRecord> stream = storage.streamAllResponses()) {
+            assertEquals(1, stream.findFirst().map(r -> r.id).orElse(-1));
+        }
+        // Would wait forever for the only reader if the stream kept it
+        assertEquals(1, storage.getResponseSummariesPage(0, 10).size());
+        assertEquals(1, storage.streamAllResponses().toList().size());  // consumed to the end
+        assertEquals(1, storage.getResponsesPage(0, 10).size());
+    }
+
+    @Test
+    void testConversationSummariesReadOnlyTheIndex() throws SQLException {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + tempDir.resolve("test.db"));
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("EXPLAIN QUERY PLAN SELECT id, timestamp, conversation_id "
+                     + "FROM responses WHERE conversation_id = 'c' ORDER BY timestamp, id")) {
+            StringBuilder plan = new StringBuilder();
+            while (rs.next()) {
+                plan.append(rs.getString("detail")).append('\n');
+            }
+            assertTrue(plan.toString().contains("COVERING INDEX idx_responses_conversation"), plan.toString());
+            assertFalse(plan.toString().contains("TEMP B-TREE"), plan.toString());
+        }
+    }
+
+    @Test
+    void testSearchFindsMessageTextNotJson() throws SQLException {
+        storage.registerConversation("conv1", "Gardening");
+        storage.registerConversation("conv2", "Cooking");
+        storage.storeResponse("conv1", request("conv1", "{\"content\":\"When should I plant tomatoes?\",\"role\":\"user\"}"),
+                response("After the last frost"));
+        storage.storeResponse("conv2", request("conv2", "{\"content\":\"A good tomato sauce?\",\"role\":\"user\"}"),
+                response("Simmer slowly"));
+
+        List<MessageStorage.SearchHit> hits = storage.search("frost", 0, 10);
+        assertEquals(1, hits.size());
+        assertEquals("conv1", hits.get(0).conversationId);
+        assertEquals("Gardening", hits.get(0).conversationTitle);
+        assertTrue(hits.get(0).snippet.contains("[frost]"), hits.get(0).snippet);
+
+        assertEquals(2, storage.search("tomat", 0, 10).size());  // last word matches as a prefix
+        assertEquals(1, storage.search("tomat", 1, 10).size());
+        assertTrue(storage.search("tomat ", 0, 10).isEmpty());  // a finished word matches exactly
+        assertTrue(storage.search("role", 0, 10).isEmpty());
+        assertTrue(storage.search("\"unbalanced OR", 0, 10).isEmpty());
+        assertTrue(storage.search("   ", 0, 10).isEmpty());
+
+        storage.updateConversationTitle("conv2", "Italian dinners");
+        assertTrue(storage.searchConversationTitles("cooking", 10).isEmpty());
+        assertEquals("conv2", storage.searchConversationTitles("italian", 10).get(0).id);
+    }
+
+    @Test
+    void testSearchIndexIsRebuiltForExistingData() throws SQLException {
+        storage.registerConversation("conv1", "Old chat");
+        storage.storeResponse("conv1", request("conv1", "{\"content\":\"Remember the lighthouse\",\"role\":\"user\"}"),
+                response("Noted"));
+        storage.close();
+
+        // What a version 1 database looks like: no search tables
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + tempDir.resolve("test.db"));
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP TABLE response_search");
+            stmt.execute("DROP TABLE conversation_search");
+            stmt.execute("PRAGMA user_version = 1");
+        }
+
+        storage = new MessageStorage(tempDir.resolve("test.db").toString());
+        assertEquals(1, storage.search("lighthouse", 0, 10).size());
+        assertEquals(1, storage.search("noted", 0, 10).size());
+        assertEquals(1, storage.searchConversationTitles("old", 10).size());
+    }
+
+    @Test
+    void testCompressionKeepsRowsReadable() throws SQLException {
+        String system = "{\"content\":\"You are a helpful assistant. Answer in full sentences.\",\"role\":\"system\"}";
+        for (int i = 0; i < 120; i++) {
+            storage.storeResponse("conv" + i, request("conv" + i, system,
+                    "{\"content\":\"Tell me about the number " + i + "\",\"role\":\"user\"}"),
+                    response("The number " + i + " is a fine number to talk about at some length."));
+        }
+        List<String> before = storage.getResponsesPage(0, 1000).stream()
+                .map(r -> r.requestJson + r.responseContent).toList();
+
+        storage.enableCompression();
+        storage.compressExistingRows();
+        storage.storeResponse("conv0", request("conv0", system, "{\"content\":\"And 1000?\",\"role\":\"user\"}"),
+                response("Also fine."));
+
+        assertEquals(1, countRows("codec_dictionaries"));
+        assertEquals(0, countWhere("responses", "typeof(response_content) = 'text' OR typeof(request_json) = 'text'"));
+        assertEquals(0, countWhere("message_bodies", "typeof(body) = 'text'"));
+        List<MessageStorage.ResponseRecord> after = storage.getResponsesPage(0, 1000);
+        assertEquals(before, after.subList(0, 120).stream().map(r -> r.requestJson + r.responseContent).toList());
+        assertEquals(request("conv0", system, "{\"content\":\"And 1000?\",\"role\":\"user\"}"),
+                after.get(120).requestJson);
+        assertEquals(1, storage.search("number 42 ", 0, 10).size());
+
+        // Compressed rows stay readable once compression is turned off again
+        storage.close();
+        storage = new MessageStorage(tempDir.resolve("test.db").toString());
+        assertFalse(storage.isCompressionEnabled());
+        assertEquals(before, storage.getResponsesPage(0, 120).stream()
+                .map(r -> r.requestJson + r.responseContent).toList());
+    }
+
+    @Test
+    void testArchivedConversationsStayReadable() throws SQLException {
+        String system = "{\"content\":\"Be brief.\",\"role\":\"system\"}";
+        String user1 = "{\"content\":\"Where is the lighthouse?\",\"role\":\"user\"}";
+        String reply1 = "{\"content\":\"On the cape\",\"role\":\"assistant\"}";
+        String user2 = "{\"content\":\"How tall is it?\",\"role\":\"user\"}";
+        storage.registerConversation("conv1", "Lighthouses");
+        storage.storeResponse("conv1", request("conv1", system, user1), response("On the cape"));
+        storage.storeResponse("conv1", request("conv1", system, user1, reply1, user2), response("Forty metres"));
+        storage.storeResponse("conv2", request("conv2", system, user1), response("On the cape"));
+        List<MessageStorage.ResponseRecord> before = storage.getResponsesByConversationId("conv1");
+
+        assertEquals(1, storage.archiveConversations(List.of("conv1", "unknown")));
+
+        assertEquals(1, countRows("responses"));
+        assertEquals(0, countWhere("messages", "conversation_id = 'conv1'"));
+        assertEquals(3, countRows("message_bodies"));  // conv2 still uses system, user1 and its reply
+        List<MessageStorage.ResponseRecord> after = storage.getResponsesByConversationId("conv1");
+        assertEquals(before.stream().map(r -> r.id + r.requestJson + r.responseContent + r.startsNewHistory).toList(),
+                after.stream().map(r -> r.id + r.requestJson + r.responseContent + r.startsNewHistory).toList());
+        assertEquals(before.get(1).id, storage.getResponsesByConversationId("conv1", before.get(0).id, 10).get(0).id);
+        try (Stream<MessageStorage.ResponseRecord> stream = storage.streamResponsesByConversationId("conv1")) {
+            assertEquals(2, stream.count());
+        }
+        assertEquals(1, storage.getAllResponses().size());
+        assertTrue(storage.search("tall", 0, 10).isEmpty());  // archived text is not searched
+        assertEquals(1, storage.search("cape", 0, 10).size());
+        assertEquals("conv1", storage.searchConversationTitles("lighthouses", 10).get(0).id);
+
+        // A new turn starts a new history, and archiving again keeps all three turns
+        storage.storeResponse("conv1", request("conv1", system, user1, reply1, user2), response("Still forty metres"));
+        List<MessageStorage.ResponseRecord> resumed = storage.getResponsesByConversationId("conv1");
+        assertEquals(3, resumed.size());
+        assertTrue(resumed.get(2).startsNewHistory);
+        storage.archiveConversations(List.of("conv1"));
+        assertEquals(3, storage.getResponsesByConversationId("conv1").size());
+
+        MessageStorage.StorageStats stats = storage.getStorageStats();
+        assertEquals(1, stats.archivedConversations);
+        assertTrue(stats.archiveBytes > 0);
+        assertTrue(stats.archiveReads > 0);
+    }
+
+    private int countWhere(String table, String condition) throws SQLException {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + tempDir.resolve("test.db"));
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table + " WHERE " + condition)) {
+            return rs.getInt(1);
+        }
+    }
+
+    @Test
+    void testClosedStorageRejectsCalls() throws SQLException {
+        storage.close();
+        assertThrows(SQLException.class, () -> storage.getAllConversations());
+    }
+}
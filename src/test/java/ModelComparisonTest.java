@@ -0,0 +1,133 @@
+// This is a JUnit test class for sending one request to several models at once
+package net.vuonnala;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ModelComparisonTest {
+
+    private static final String REQUEST = "{\"conversation_id\":\"compare\",\"model\":\"" + StubLlmServer.MODEL
+            + "\",\"messages\":[{\"role\":\"user\",\"content\":\"Which model is best?\"}]}";
+
+    @TempDir
+    Path tempDir;
+
+    private DispatchFixture fixture;
+    private StubLlmServer first;
+    private StubLlmServer second;
+    private MessageStorage storage;
+    private MessageDispatcher dispatcher;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        fixture = new DispatchFixture(tempDir, "latency=400ms,tps=0,tokens=8");
+        first = fixture.stub;
+        second = new StubLlmServer(0, StubLlmServer.Profile.parse("latency=400ms,tps=0,tokens=16"));
+        storage = fixture.storage;
+        dispatcher = fixture.dispatcher;
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        fixture.close();
+        second.close();
+    }
+
+    private String endpoint(StubLlmServer stub) {
+        return "127.0.0.1:" + stub.getPort();
+    }
+
+    @Test
+    void testModelsAnswerConcurrentlyAndAreStoredTogether() throws Exception {
+        first.addModel("slow-model", StubLlmServer.Profile.parse("latency=800ms,tps=0,tokens=4"));
+        List<ModelComparison.Target> targets = dispatcher.discoverTargets(List.of(endpoint(first), endpoint(second)));
+        assertEquals(List.of(StubLlmServer.MODEL + " @ " + endpoint(first), "slow-model @ " + endpoint(first),
+                StubLlmServer.MODEL + " @ " + endpoint(second)), targets.stream().map(Object::toString).toList());
+
+        Map<String, StringBuilder> streamed = new ConcurrentHashMap<>();
+        ModelComparison comparison = dispatcher.dispatchFanOut(REQUEST, targets,
+                (target, token) -> streamed.computeIfAbsent(target.toString(), k -> new StringBuilder()).append(token),
+                Duration.ofSeconds(10));
+
+        // 400 + 800 + 400 ms one after the other
+        assertTrue(comparison.getWallMillis() >= 800 && comparison.getWallMillis() < 1_500, comparison.summary());
+        assertEquals(3, comparison.results.size());
+        int[] tokens = {8, 4, 16};
+        for (int i = 0; i < 3; i++) {
+            ModelComparison.Result result = comparison.results.get(i);
+            assertTrue(result.isSuccess(), result.describe());
+            assertSame(targets.get(i), result.target);
+            assertEquals(tokens[i], result.completion.completionTokens);
+            assertTrue(result.completion.getTimeToFirstTokenMillis() >= (i == 1 ? 800 : 400), result.describe());
+            assertEquals(result.completion.content, streamed.get(result.target.toString()).toString());
+        }
+        assertTrue(comparison.results.get(1).completion.responseJson.contains("\"model\":\"slow-model\""));
+
+        ModelComparison stored = storage.getComparisonStore().getComparison(comparison.id);
+        assertEquals("compare", stored.conversationId);
+        assertEquals(REQUEST, stored.requestJson);
+        assertEquals(comparison.wallNanos, stored.wallNanos);
+        for (int i = 0; i < 3; i++) {
+            ModelComparison.Result expected = comparison.results.get(i);
+            ModelComparison.Result actual = stored.results.get(i);
+            assertEquals(expected.target.toString(), actual.target.toString());
+            assertEquals(expected.completion.content, actual.completion.content);
+            assertEquals(expected.completion.timeToFirstTokenNanos, actual.completion.timeToFirstTokenNanos);
+            assertEquals(expected.completion.promptTokens, actual.completion.promptTokens);
+            assertEquals(expected.completion.completionTokens, actual.completion.completionTokens);
+        }
+        assertEquals(List.of(comparison.id),
+                storage.getComparisonStore().getComparisonsByConversationId("compare").stream().map(c -> c.id).toList());
+        assertTrue(storage.getResponsesByConversationId("compare").isEmpty(), "not turns of the conversation");
+        assertNull(storage.getComparisonStore().getComparison(comparison.id + 1));
+    }
+
+    @Test
+    void testFailingAndLateModelsKeepTheOtherAnswers() throws Exception {
+        first.addModel("broken-model", StubLlmServer.Profile.parse("latency=0ms,errors=1"));
+        first.addModel("late-model", StubLlmServer.Profile.parse("latency=3s"));
+        List<ModelComparison.Target> targets = dispatcher.discoverTargets(List.of(endpoint(first)));
+
+        ModelComparison comparison = dispatcher.dispatchFanOut(REQUEST, targets, null, Duration.ofSeconds(1));
+
+        assertEquals(List.of(StubLlmServer.MODEL, "broken-model", "late-model"),
+                comparison.results.stream().map(r -> r.target.model).toList());
+        assertTrue(comparison.results.get(0).isSuccess(), comparison.summary());
+        assertTrue(comparison.results.get(1).error.contains("HTTP 500"), comparison.summary());
+        assertEquals("No answer within 1000 ms", comparison.results.get(2).error);
+        assertTrue(comparison.getWallMillis() < 2_000, comparison.summary());
+
+        ModelComparison stored = storage.getComparisonStore().getComparison(comparison.id);
+        assertTrue(stored.results.get(0).isSuccess());
+        assertNull(stored.results.get(1).completion);
+        assertEquals(comparison.results.get(2).error, stored.results.get(2).error);
+    }
+
+    @Test
+    void testInvalidRequestsAreRejectedBeforeAnyModelIsCalled() {
+        List<ModelComparison.Target> targets = List.of(ModelComparison.Target.of(endpoint(first), StubLlmServer.MODEL));
+        assertThrows(Exception.class, () -> dispatcher.dispatchFanOut("{\"messages\":\"none\"}", targets, null, null));
+        assertThrows(IllegalArgumentException.class, () -> dispatcher.dispatchFanOut(REQUEST, List.of(), null, null));
+        assertEquals(0, first.getCompletionCount());
+    }
+
+    @Test
+    void testDiscoverySkipsUnreachableEndpoints() throws Exception {
+        List<ModelComparison.Target> targets = dispatcher.discoverTargets(List.of("127.0.0.1:1", endpoint(second)));
+        assertEquals(1, targets.size());
+        assertEquals(second.getPort(), targets.get(0).port);
+
+        assertThrows(IOException.class, () -> dispatcher.discoverTargets(List.of("127.0.0.1:1")));
+    }
+}
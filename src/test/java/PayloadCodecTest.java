@@ -0,0 +1,71 @@
+// This is a JUnit test class for PayloadCodec
+package net.vuonnala;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PayloadCodecTest {
+
+    private static String response(int i) {
+        return "{\"id\":\"chatcmpl-" + i + "\",\"object\":\"chat.completion\",\"created\":" + (1700000000 + i)
+                + ",\"model\":\"llama-3.2-3b-instruct\",\"choices\":[{\"index\":0,\"logprobs\":null,"
+                + "\"finish_reason\":\"stop\",\"message\":{\"role\":\"assistant\",\"content\":\"Answer number " + i
+                + "\"}}],\"usage\":{\"prompt_tokens\":" + (i % 97) + ",\"completion_tokens\":" + (i % 13)
+                + ",\"total_tokens\":" + (i % 97 + i % 13) + "},\"system_fingerprint\":\"llama-3.2-3b-instruct\"}";
+    }
+
+    @Test
+    void testValuesRoundTrip() throws SQLException {
+        PayloadCodec codec = new PayloadCodec();
+        String longText = "Käännä tämä: " + "the same words again and again ".repeat(50);
+        for (String value : List.of("", "{}", response(1), longText)) {
+            byte[] encoded = codec.encode(value);
+            assertEquals(value, codec.decode(encoded));
+        }
+        assertEquals(PayloadCodec.STORED, codec.encode("{}")[0]);
+        assertEquals(PayloadCodec.DEFLATE, codec.encode(longText)[0]);
+        assertTrue(codec.encode(longText).length < longText.length() / 5);
+    }
+
+    @Test
+    void testTrainedDictionaryShrinksSmallValues() throws SQLException {
+        List<String> samples = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            samples.add(response(i));
+        }
+        byte[] dictionary = PayloadCodec.train(samples, PayloadCodec.MAX_DICTIONARY_SIZE);
+        String trained = new String(dictionary, StandardCharsets.UTF_8);
+        assertTrue(trained.contains("llama-3.2-3b-instruct"), trained);
+        assertFalse(trained.contains("Answer number 17\""), trained);
+
+        PayloadCodec plain = new PayloadCodec();
+        PayloadCodec withDictionary = new PayloadCodec();
+        withDictionary.putDictionary(1, dictionary);
+        String value = response(1234);
+        byte[] compressed = withDictionary.encode(value);
+        assertTrue(compressed.length < plain.encode(value).length / 2,
+                compressed.length + " vs " + plain.encode(value).length);
+        assertEquals(value, withDictionary.decode(compressed));
+
+        // Values keep the dictionary they were written with
+        withDictionary.putDictionary(2, "unrelated".getBytes(StandardCharsets.UTF_8));
+        assertEquals(value, withDictionary.decode(compressed));
+        assertThrows(SQLException.class, () -> plain.decode(compressed));
+    }
+
+    @Test
+    void testCorruptValuesAreRejected() {
+        PayloadCodec codec = new PayloadCodec();
+        byte[] encoded = codec.encode(response(1));
+        byte[] truncated = Arrays.copyOf(encoded, encoded.length / 2);
+        assertThrows(SQLException.class, () -> codec.decode(truncated));
+        assertThrows(SQLException.class, () -> codec.decode(new byte[]{7, 1, 2}));
+    }
+}
@@ -0,0 +1,154 @@
+// This is a JUnit test class for replaying stored conversations as a regression suite
+package net.vuonnala;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReplayRunnerTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @TempDir
+    Path tempDir;
+
+    private DispatchFixture fixture;
+    private StubLlmServer stub;
+    private MessageStorage storage;
+    private MessageDispatcher dispatcher;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        fixture = new DispatchFixture(tempDir, "latency=20ms,tps=0,tokens=8");
+        stub = fixture.stub;
+        storage = fixture.storage;
+        dispatcher = fixture.dispatcher;
+        LLMClient.setDebugLogging(false);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        LLMClient.setDebugLogging(true);
+        fixture.close();
+    }
+
+    /** Chats like the window does: every turn sends the whole history, answers included. */
+    private void chat(String conversationId, int turns) throws Exception {
+        ArrayNode history = MAPPER.createArrayNode();
+        history.addObject().put("role", "system").put("content", "You are terse.");
+        for (int i = 0; i < turns; i++) {
+            history.addObject().put("role", "user").put("content", "Question " + i + " in " + conversationId);
+            ObjectNode request = MAPPER.createObjectNode();
+            request.put("conversation_id", conversationId);
+            request.put("model", StubLlmServer.MODEL);
+            request.set("messages", history);
+            String response = dispatcher.dispatch(request.toString(), "127.0.0.1", stub.getPort());
+            history.add(MAPPER.readTree(response).path("choices").path(0).path("message"));
+        }
+    }
+
+    private ReplayRunner runner() {
+        return new ReplayRunner(dispatcher, storage, "127.0.0.1", stub.getPort());
+    }
+
+    @Test
+    void testReplaySendsTheStoredPromptsAgain() throws Exception {
+        chat("first", 3);
+        chat("second", 3);
+        long calls = stub.getCompletionCount();
+
+        ReplayRunner.Report report = runner().run(storage.getConversationIdsWithResponses(),
+                ReplayRunner.Pacing.asFastAsPossible(), 4, "same stub");
+
+        assertEquals(6, report.results.size(), report.toString());
+        assertEquals(0, report.failed());
+        assertEquals(calls + 6, stub.getCompletionCount());
+        List<Integer> originalPromptTokens = new ArrayList<>();
+        for (String conversationId : List.of("first", "second")) {
+            for (MessageStorage.ResponseRecord record : storage.getResponsesByConversationId(conversationId)) {
+                JsonNode usage = MAPPER.readTree(record.responseContent).path("usage");
+                originalPromptTokens.add(usage.path("prompt_tokens").asInt());
+            }
+        }
+        // The stub counts the prompt from the messages, so equal counts mean equal histories
+        assertEquals(originalPromptTokens, report.results.stream().map(r -> r.promptTokens).toList());
+        assertTrue(report.results.stream().allMatch(r -> r.matchesOriginal));
+        assertTrue(report.results.stream().allMatch(r -> r.model.equals(StubLlmServer.MODEL)));
+        assertEquals(3, storage.getResponsesByConversationId("first").size(), "replays are not stored as turns");
+
+        ReplayStore.Run run = storage.getReplayStore().getRun(report.runId);
+        assertEquals("same stub", run.label);
+        assertEquals("max", run.pacing);
+        assertNull(run.model);
+        assertEquals(report.wallNanos, run.wallNanos);
+        assertTrue(ReplayRunner.report(storage.getReplayStore(), report.runId, 0)
+                .contains(StubLlmServer.MODEL + ": 6 turns, 0 failed"));
+    }
+
+    @Test
+    void testReportComparesARunWithItsBaselinePerModel() throws Exception {
+        chat("compare", 4);
+        ReplayRunner runner = runner();
+        ReplayRunner.Report baseline = runner.run(List.of("compare"), ReplayRunner.Pacing.asFastAsPossible(), 2,
+                "baseline");
+
+        stub.addModel("candidate", StubLlmServer.Profile.parse("latency=120ms,tps=0,tokens=16"));
+        runner.setModel("candidate");
+        ReplayRunner.Report candidate = runner.run(List.of("compare"), ReplayRunner.Pacing.asFastAsPossible(), 2,
+                "candidate");
+
+        assertEquals("candidate", storage.getReplayStore().getRun(candidate.runId).model);
+        String report = ReplayRunner.report(storage.getReplayStore(), candidate.runId, baseline.runId);
+        assertTrue(report.contains("vs run " + baseline.runId + " \"baseline\""), report);
+        assertTrue(report.contains("candidate (was " + StubLlmServer.MODEL + "): 4 turns, 0 failed"), report);
+        assertTrue(report.contains("Answers:     4 of 4 differ from run " + baseline.runId), report);
+        assertTrue(report.contains("0 of 4 answers as originally stored"), report);
+        // Slower to the first token than the baseline
+        String firstToken = report.lines().filter(line -> line.contains("First token")).findFirst().orElseThrow();
+        assertTrue(firstToken.contains("(+"), report);
+
+        assertThrows(IllegalArgumentException.class, () -> ReplayRunner.report(storage.getReplayStore(), candidate.runId, 999));
+    }
+
+    @Test
+    void testPacing() throws Exception {
+        Instant start = Instant.parse("2026-01-01T10:00:00Z");
+        List<MessageStorage.PendingResponse> turns = new ArrayList<>();
+        String response = "{\"choices\":[{\"message\":{\"role\":\"assistant\",\"content\":\"ok\"}}]}";
+        for (int i = 0; i < 3; i++) {
+            String request = "{\"conversation_id\":\"paced-" + i + "\",\"model\":\"" + StubLlmServer.MODEL
+                    + "\",\"messages\":[{\"role\":\"user\",\"content\":\"Turn " + i + "\"}]}";
+            turns.add(new MessageStorage.PendingResponse(start.plusMillis(400L * i).toString(), "paced-" + i,
+                    request, response));
+        }
+        storage.storeResponses(turns);
+        List<String> conversations = storage.getConversationIdsWithResponses();
+        assertEquals(List.of("paced-0", "paced-1", "paced-2"), conversations);
+
+        // 800 ms of original spacing, twice as fast
+        ReplayRunner.Report original = runner().run(conversations, ReplayRunner.Pacing.parse("original:2"), 8, "original");
+        assertTrue(original.wallNanos >= 400_000_000L, original.toString());
+        assertEquals("original x2.0", original.pacing);
+
+        ReplayRunner.Report rate = runner().run(conversations, ReplayRunner.Pacing.parse("10"), 8, "rate");
+        assertTrue(rate.wallNanos >= 200_000_000L, rate.toString());
+        assertEquals("10.0 req/s", rate.pacing);
+        assertEquals(0, rate.failed());
+
+        assertEquals("max", ReplayRunner.Pacing.parse("max").toString());
+        assertThrows(IllegalArgumentException.class, () -> ReplayRunner.Pacing.parse("sometimes"));
+        assertThrows(IllegalArgumentException.class, () -> ReplayRunner.Pacing.original(0));
+    }
+}
@@ -0,0 +1,183 @@
+// This is a JUnit test class for sharing identical in-flight requests
+package net.vuonnala;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static net.vuonnala.DispatchFixture.awaitTrue;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestCoalescerTest {
+
+    private static final int CALLERS = 5;
+
+    @TempDir
+    Path tempDir;
+
+    private DispatchFixture fixture;
+    private StubLlmServer stub;
+    private MessageStorage storage;
+    private MessageDispatcher dispatcher;
+    private RequestCoalescer coalescer;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        // Slow enough that every caller arrives while the first call is in flight
+        fixture = new DispatchFixture(tempDir, "latency=500ms,tps=0,tokens=6");
+        stub = fixture.stub;
+        storage = fixture.storage;
+        dispatcher = fixture.dispatcher;
+        coalescer = new RequestCoalescer();
+        dispatcher.setRequestCoalescer(coalescer);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    private static String request(String conversationId, String extra) {
+        return "{\"conversation_id\":\"" + conversationId + "\",\"model\":\"m\"" + extra
+                + ",\"messages\":[{\"role\":\"user\",\"content\":\"same question\"}]}";
+    }
+
+    /** Runs the calls at once and returns their results in order. */
+    private static <T> List<T> concurrently(List<Callable<T>> calls) throws Exception {
+        CountDownLatch ready = new CountDownLatch(calls.size());
+        List<Future<T>> futures = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Callable<T> call : calls) {
+                futures.add(executor.submit(() -> {
+                    ready.countDown();
+                    ready.await();
+                    return call.call();
+                }));
+            }
+        }
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : futures) {
+            results.add(future.get());
+        }
+        return results;
+    }
+
+    @Test
+    void testIdenticalRequestsShareOneCallAndStoreOneTurnEach() throws Exception {
+        List<Callable<String>> calls = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            String json = request("conv-" + i, "");
+            calls.add(() -> dispatcher.dispatch(json, "127.0.0.1", stub.getPort()));
+        }
+        List<String> responses = concurrently(calls);
+
+        assertEquals(1, stub.getCompletionCount());
+        assertEquals(1, coalescer.getUpstreamCount());
+        assertEquals(CALLERS - 1, coalescer.getCoalescedCount());
+        assertEquals(0, coalescer.getInFlightCount());
+        for (int i = 0; i < CALLERS; i++) {
+            assertEquals(responses.get(0), responses.get(i));
+            assertEquals(1, storage.getResponsesByConversationId("conv-" + i).size());
+        }
+        // Only the call that went upstream is timed as one
+        assertEquals(1, dispatcher.getMetrics().getHistogram(DispatchMetrics.Stage.SEND).getCount());
+        assertEquals(CALLERS, dispatcher.getMetrics().getHistogram(DispatchMetrics.Stage.TOTAL).getCount());
+    }
+
+    @Test
+    void testStreamedTokensReachEveryCaller() throws Exception {
+        List<Callable<List<String>>> calls = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            String json = request("conv-" + i, "");
+            calls.add(() -> {
+                List<String> tokens = new ArrayList<>();
+                ChatCompletion completion = dispatcher.dispatchStreaming(json, "127.0.0.1", stub.getPort(), tokens::add);
+                assertEquals(String.join("", tokens), completion.content);
+                return tokens;
+            });
+        }
+        List<List<String>> tokens = concurrently(calls);
+
+        assertEquals(1, stub.getStreamedCount());
+        assertEquals(CALLERS - 1, coalescer.getCoalescedCount());
+        for (List<String> received : tokens) {
+            assertEquals(6, received.size());
+            assertEquals(tokens.get(0), received);
+        }
+        for (int i = 0; i < CALLERS; i++) {
+            assertEquals(1, storage.getResponsesByConversationId("conv-" + i).size());
+        }
+    }
+
+    @Test
+    void testFailureReachesEveryCaller() throws Exception {
+        stub.setProfile(StubLlmServer.Profile.parse("latency=500ms,tps=0,errors=1"));
+        List<Callable<String>> calls = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            String json = request("conv-" + i, "");
+            calls.add(() -> {
+                Exception e = assertThrows(Exception.class, () -> dispatcher.dispatch(json, "127.0.0.1", stub.getPort()));
+                return e.getMessage();
+            });
+        }
+        List<String> errors = concurrently(calls);
+
+        assertEquals(1, stub.getErrorCount());
+        assertTrue(errors.get(0).contains("HTTP 500"), errors.get(0));
+        assertEquals(0, storage.getAllResponses().size());
+    }
+
+    @Test
+    void testStreamOutlivesTheCancelledCallerItFollowed() throws Exception {
+        stub.setProfile(StubLlmServer.Profile.parse("latency=0,tps=20,tokens=10"));
+        List<String> leaderTokens = new CopyOnWriteArrayList<>();
+        CompletableFuture<ChatCompletion> leader = dispatcher.dispatchStreamingAsync(request("leader", ""),
+                "127.0.0.1", stub.getPort(), leaderTokens::add, Duration.ofSeconds(10));
+        awaitTrue(() -> leaderTokens.size() >= 3, "the leader is streaming");
+
+        List<String> followerTokens = new CopyOnWriteArrayList<>();
+        CompletableFuture<ChatCompletion> follower = dispatcher.dispatchStreamingAsync(request("follower", ""),
+                "127.0.0.1", stub.getPort(), followerTokens::add, Duration.ofSeconds(10));
+        awaitTrue(() -> !followerTokens.isEmpty(), "the follower joined the leader's stream");
+        leader.cancel(true);
+
+        ChatCompletion completion = follower.get();
+        assertTrue(leader.isCancelled());
+        assertEquals(2, stub.getStreamedCount());
+        assertEquals(completion.content, String.join("", followerTokens), "no text is passed on twice");
+        assertEquals(10, completion.completionTokens);
+        assertEquals(1, storage.getResponsesByConversationId("follower").size());
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    @Test
+    void testOnlyInFlightAndSharableRequestsAreShared() throws Exception {
+        stub.setProfile(StubLlmServer.Profile.parse("latency=0,tps=0"));
+        dispatcher.dispatch(request("a", ""), "127.0.0.1", stub.getPort());
+        dispatcher.dispatch(request("b", ""), "127.0.0.1", stub.getPort());
+        assertEquals(2, coalescer.getUpstreamCount());
+
+        stub.setProfile(StubLlmServer.Profile.parse("latency=500ms,tps=0"));
+        List<Callable<String>> calls = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            String json = request("uncached-" + i, ",\"cache\":false");
+            calls.add(() -> dispatcher.dispatch(json, "127.0.0.1", stub.getPort()));
+        }
+        concurrently(calls);
+        assertEquals(5, stub.getCompletionCount());
+        assertEquals(0, coalescer.getCoalescedCount());
+    }
+}
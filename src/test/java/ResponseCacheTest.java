@@ -0,0 +1,127 @@
+// This is a JUnit test class for ResponseCache
+package net.vuonnala;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResponseCacheTest {
+
+    private static final String REPLY = "{\"choices\":[{\"message\":{\"role\":\"assistant\",\"content\":\"hi\"}}]}";
+
+    @TempDir
+    Path tempDir;
+
+    private MessageStorage storage;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        storage = new MessageStorage(tempDir.resolve("cache.db").toString());
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        storage.close();
+    }
+
+    @Test
+    void testKeyIgnoresFieldOrderAndConversation() {
+        String a = ResponseCache.key(DispatchRequest.parse(
+                "{\"conversation_id\":\"c1\",\"model\":\"m\",\"messages\":[{\"role\":\"user\",\"content\":\"Hi\"}]}"));
+        String b = ResponseCache.key(DispatchRequest.parse(
+                "{\"messages\":[{\"content\":\"Hi\",\"role\":\"user\"}],\"model\":\"m\",\"conversation_id\":\"c2\"}"));
+        String otherModel = ResponseCache.key(DispatchRequest.parse(
+                "{\"model\":\"n\",\"messages\":[{\"role\":\"user\",\"content\":\"Hi\"}]}"));
+
+        assertEquals(a, b);
+        assertNotEquals(a, otherModel);
+    }
+
+    @Test
+    void testLeastRecentlyUsedEntryIsEvicted() {
+        ResponseCache cache = new ResponseCache(null, 2, Long.MAX_VALUE, Duration.ofMinutes(1));
+        cache.put("a", REPLY);
+        cache.put("b", REPLY);
+        assertNotNull(cache.get("a"));  // b is now the eldest
+        cache.put("c", REPLY);
+
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    void testSizeLimitAndErrorsAreNotCached() {
+        ResponseCache cache = new ResponseCache(null, 100, REPLY.length() * 2L, Duration.ofMinutes(1));
+        cache.put("a", REPLY);
+        cache.put("b", REPLY);
+        cache.put("c", REPLY);
+        assertEquals(2, cache.getSize());
+
+        cache.put("error", "{\"error\":\"model not loaded\"}");
+        assertNull(cache.get("error"));
+    }
+
+    @Test
+    void testExpiredEntriesMiss() throws InterruptedException {
+        ResponseCache cache = new ResponseCache(storage, 10, Long.MAX_VALUE, Duration.ofMillis(20));
+        cache.put("a", REPLY);
+        Thread.sleep(50);
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    void testPersistentTierSurvivesNewCache() {
+        new ResponseCache(storage, 10, Long.MAX_VALUE, Duration.ofMinutes(1)).put("a", REPLY);
+
+        ResponseCache restarted = new ResponseCache(storage, 10, Long.MAX_VALUE, Duration.ofMinutes(1));
+        assertEquals(REPLY, restarted.get("a"));
+        assertEquals(1, restarted.getPersistentHitCount());
+
+        assertEquals(REPLY, restarted.get("a"));
+        assertEquals(1, restarted.getHitCount());  // promoted to memory
+    }
+
+    @Test
+    void testPersistentTierIsPruned() throws SQLException {
+        long now = System.currentTimeMillis();
+        storage.putCachedResponse("expired", REPLY, now - Duration.ofHours(2).toMillis());
+        for (int i = 0; i < 5; i++) {
+            storage.putCachedResponse("k" + i, REPLY, now - 5 + i);
+        }
+
+        ResponseCache cache = new ResponseCache(storage, 10, Long.MAX_VALUE, Duration.ofHours(1), 3);
+        assertEquals(3, cache.prunePersistent());
+        assertEquals(3, cache.getPrunedCount());
+
+        assertNull(storage.getCachedResponse("expired", 0));
+        assertNull(storage.getCachedResponse("k0", 0));
+        assertNull(storage.getCachedResponse("k1", 0));
+        for (int i = 2; i < 5; i++) {
+            assertNotNull(storage.getCachedResponse("k" + i, 0));
+        }
+    }
+
+    @Test
+    void testFirstWritePrunes() throws SQLException {
+        storage.putCachedResponse("old", REPLY, 0);
+        ResponseCache cache = new ResponseCache(storage, 10, Long.MAX_VALUE, Duration.ofHours(1));
+        cache.put("new", REPLY);
+
+        assertNull(storage.getCachedResponse("old", 0));
+        assertNotNull(storage.getCachedResponse("new", 0));
+        assertEquals(1, cache.getPrunedCount());
+    }
+}
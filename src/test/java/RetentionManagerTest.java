@@ -0,0 +1,135 @@
+// This is a JUnit test class for RetentionManager
+package net.vuonnala;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RetentionManagerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private MessageStorage storage;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        storage = new MessageStorage(tempDir.resolve("test.db").toString());
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        storage.close();
+    }
+
+    @Test
+    void testKeepsTheMostRecentlyActiveConversations() throws SQLException {
+        // conv0 is the oldest, but its last turn is the newest of all
+        List<MessageStorage.PendingResponse> responses = new ArrayList<>();
+        Instant start = Instant.parse("2026-01-01T00:00:00Z");
+        for (int i = 0; i < 5; i++) {
+            responses.add(pending("conv" + i, start.plusSeconds(i)));
+        }
+        responses.add(pending("conv0", start.plusSeconds(10)));
+        storage.storeResponses(responses);
+
+        try (RetentionManager retention = new RetentionManager(storage,
+                new RetentionManager.Policy(null, 2), Duration.ZERO)) {
+            RetentionManager.Report report = retention.runOnce();
+            assertEquals(3, report.archivedConversations);
+            assertEquals(0, retention.runOnce().archivedConversations);
+            assertEquals(3, retention.getArchivedConversationCount());
+        }
+
+        List<String> hot = storage.getAllResponses().stream().map(r -> r.conversationId).distinct().sorted().toList();
+        assertEquals(List.of("conv0", "conv4"), hot);
+        assertEquals(1, storage.getResponsesByConversationId("conv2").size());
+        assertEquals(3, storage.getStorageStats().archivedConversations);
+    }
+
+    @Test
+    void testArchivesConversationsInactiveForLongerThanTheAge() throws SQLException {
+        Instant now = Instant.now();
+        storage.storeResponses(List.of(
+                pending("old", now.minus(Duration.ofDays(40))),
+                pending("recent", now.minus(Duration.ofDays(2)))));
+
+        try (RetentionManager retention = new RetentionManager(storage,
+                new RetentionManager.Policy(Duration.ofDays(30), 0), Duration.ZERO)) {
+            assertEquals(1, retention.runOnce().archivedConversations);
+        }
+        assertEquals(List.of("recent"), storage.getAllResponses().stream().map(r -> r.conversationId).toList());
+        assertEquals(1, storage.getResponsesByConversationId("old").size());
+    }
+
+    @Test
+    void testVacuumReturnsArchivedSpace() throws SQLException {
+        assertTrue(storage.isIncrementalVacuumEnabled());
+        String padding = "x".repeat(2000);
+        List<MessageStorage.PendingResponse> responses = new ArrayList<>();
+        Instant start = Instant.parse("2026-01-01T00:00:00Z");
+        for (int i = 0; i < 2000; i++) {
+            responses.add(new MessageStorage.PendingResponse(start.plusSeconds(i).toString(), "conv" + (i % 100),
+                    "{\"model\":\"m\",\"note\":\"" + i + padding + "\"}", "{\"choices\":[]}"));
+        }
+        storage.storeResponses(responses);
+        long before = storage.getStorageStats().databaseBytes;
+
+        try (RetentionManager retention = new RetentionManager(storage,
+                new RetentionManager.Policy(null, 1), Duration.ZERO)) {
+            RetentionManager.Report report = retention.runOnce();
+            assertEquals(99, report.archivedConversations);
+            assertTrue(report.vacuumedPages > 0);
+            assertTrue(retention.summary().contains("archived=99"), retention.summary());
+        }
+        MessageStorage.StorageStats stats = storage.getStorageStats();
+        assertEquals(0, stats.freeBytes);
+        assertTrue(stats.databaseBytes < before / 2, stats.databaseBytes + " of " + before);
+        assertEquals(20, storage.getResponsesByConversationId("conv7").size());
+    }
+
+    @Test
+    void testCompactEnablesIncrementalVacuumOnOlderDatabases() throws Exception {
+        storage.close();
+        Path legacy = tempDir.resolve("legacy.db");
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + legacy);
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE t (x)");  // fixes auto_vacuum at its default, NONE
+        }
+        storage = new MessageStorage(legacy.toString());
+        assertFalse(storage.isIncrementalVacuumEnabled());
+        storage.compact();
+        assertTrue(storage.isIncrementalVacuumEnabled());
+    }
+
+    @Test
+    void testCompactAfterWrites() throws Exception {
+        storage.storeResponses(List.of(pending("conv1", Instant.now()), pending("conv2", Instant.now())));
+        storage.getResponsesByConversationId("conv1");
+
+        storage.compact();
+
+        assertTrue(storage.isIncrementalVacuumEnabled());
+        assertEquals(1, storage.getResponsesByConversationId("conv2").size());
+    }
+
+    private static MessageStorage.PendingResponse pending(String conversationId, Instant timestamp) {
+        return new MessageStorage.PendingResponse(timestamp.toString(), conversationId,
+                "{\"conversation_id\":\"" + conversationId + "\",\"model\":\"m\",\"messages\":["
+                        + "{\"content\":\"Hi\",\"role\":\"user\"}]}",
+                "{\"choices\":[{\"message\":{\"content\":\"Hello\",\"role\":\"assistant\"}}]}");
+    }
+}
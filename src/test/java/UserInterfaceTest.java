@@ -0,0 +1,76 @@
+// This is a JUnit test class for reopening stored conversations in the UserInterface
+package net.vuonnala;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UserInterfaceTest {
+
+    @TempDir
+    Path tempDir;
+
+    private MessageStorage storage;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        storage = new MessageStorage(tempDir.resolve("ui.db").toString());
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        storage.close();
+    }
+
+    @Test
+    void testReopenedConversationStartsAtItsRestartedHistory() throws SQLException {
+        String system = "{\"content\":\"Be brief.\",\"role\":\"system\"}";
+        String user1 = "{\"content\":\"Hi\",\"role\":\"user\"}";
+        String reply1 = "{\"content\":\"Hello\",\"role\":\"assistant\"}";
+        String user2 = "{\"content\":\"Bye\",\"role\":\"user\"}";
+        String other = "{\"content\":\"Something else\",\"role\":\"user\"}";
+
+        storage.storeResponse("conv1", request(system, user1), response("Hello"));
+        storage.storeResponse("conv1", request(system, user1, reply1, user2), response("Goodbye"));
+        // A hand-built request under the same id restarts the history
+        storage.storeResponse("conv1", request(other), response("Sure"));
+
+        List<ChatView.ChatMessage> shown = new ArrayList<>();
+        List<JSONObject> history = new ArrayList<>();
+        UserInterface.rebuildConversation(storage.getResponsesByConversationId("conv1"), shown, history);
+
+        assertEquals(List.of("user:\nSomething else", "assistant:\nSure"),
+                shown.stream().map(Object::toString).toList());
+        assertEquals(2, history.size());
+        // Extra reply fields such as refusal are not carried into the history
+        assertEquals(2, history.get(1).length(), history.get(1).toString());
+        assertEquals("Sure", history.get(1).getString("content"));
+
+        // The next turn extends the stored history instead of starting another one
+        history.add(new JSONObject().put("role", "user").put("content", "Thanks"));
+        JSONObject next = new JSONObject().put("conversation_id", "conv1").put("model", "m")
+                .put("messages", new JSONArray(history));
+        storage.storeResponse("conv1", next.toString(), response("Welcome"));
+        List<MessageStorage.ResponseRecord> records = storage.getResponsesByConversationId("conv1");
+        assertFalse(records.get(3).startsNewHistory);
+    }
+
+    private static String request(String... messages) {
+        return "{\"conversation_id\":\"conv1\",\"model\":\"m\",\"messages\":[" + String.join(",", messages) + "]}";
+    }
+
+    private static String response(String content) {
+        return "{\"choices\":[{\"message\":{\"content\":\"" + content
+                + "\",\"refusal\":null,\"role\":\"assistant\"}}]}";
+    }
+}